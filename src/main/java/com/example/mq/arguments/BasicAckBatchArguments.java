@@ -0,0 +1,19 @@
+package com.example.mq.arguments;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/*
+ * 批量确认消息 type=0xf，两种方式可以同时使用：
+ * 1. 按照 messageId 确认 queueName 队列中的若干条消息
+ * 2. 按照投递标签确认这个 channel 上投递的消息，multiple=true 表示确认 deliveryTag 以及之前所有还没有确认的消息，deliveryTag=0 表示不使用
+ */
+@Data
+public class BasicAckBatchArguments extends BasicArguments implements Serializable {
+    private String queueName;
+    private List<String> messageIds;
+    private long deliveryTag;
+    private boolean multiple;
+}
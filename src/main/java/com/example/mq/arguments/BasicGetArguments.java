@@ -0,0 +1,17 @@
+package com.example.mq.arguments;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/*
+ * 拉模式消费 type=0x12，一次取走最多 maxMessages 条消息
+ * 队列是空的话，服务器最多等待 maxWaitMs 毫秒再响应，期间有消息到达就立即响应；0 表示不等待
+ */
+@Data
+public class BasicGetArguments extends BasicArguments implements Serializable {
+    private String queueName;
+    private int maxMessages;
+    private long maxWaitMs;
+    private boolean autoAck;
+}
@@ -0,0 +1,16 @@
+package com.example.mq.arguments;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/*
+ * 批量发送消息 type=0xe
+ * 每一条消息还是使用 BasicPublishArguments 表示，只用到其中的 exchangeName routingKey basicProperties body，
+ * rid 和 channelId 以外层的为准
+ */
+@Data
+public class BasicPublishBatchArguments extends BasicArguments implements Serializable {
+    private List<BasicPublishArguments> entries;
+}
@@ -0,0 +1,14 @@
+package com.example.mq.arguments;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/*
+ * 设置 channel 的预取额度 type=0x10，对这个 channel 上已有的和之后的消费者都生效，0 表示不限制
+ */
+@Data
+public class BasicQosArguments extends BasicArguments implements Serializable {
+    private int prefetchCount;
+    private long prefetchBytes;
+}
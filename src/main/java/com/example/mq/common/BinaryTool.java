@@ -4,24 +4,67 @@ import java.io.*;
 
 //下面的逻辑，并不仅仅是Message，其他的Java中的对象，也可以通过这样的逻辑进行序列化和反序列化
 // 如果要想让这个对象能够序列化或者反序列化，需要让类能够实现 Serializable 接口
+// 序列化时使用的字节缓冲区是每个线程复用的（见 acquireBuffer），其他的编码（WireCodec 等）也可以借用
 public class BinaryTool {
+    // 每个线程缓存的缓冲区的初始大小
+    private static final int BUFFER_INITIAL_CAPACITY=1024;
+    // 缓冲区超过这么大，用完就不再缓存了，避免偶尔的一条大消息让每个线程都一直占着一大块内存
+    private static final int BUFFER_MAX_RETAINED_CAPACITY=256*1024;
+
+    // 每个线程一个缓冲区，同一时刻只能被借出去一次
+    private static class PooledBuffer {
+        private ByteBufferOutputStream buffer=new ByteBufferOutputStream(BUFFER_INITIAL_CAPACITY);
+        private boolean inUse=false;
+    }
+
+    private static final ThreadLocal<PooledBuffer> POOL=ThreadLocal.withInitial(PooledBuffer::new);
+
+    // 借一个清空了的缓冲区，用完之后要调用 releaseBuffer 还回来
+    // 同一个线程嵌套借用的时候（比如编码的过程中又要序列化一个对象），线程缓存的已经借出去了，就临时分配一个新的
+    public static ByteBufferOutputStream acquireBuffer() {
+        PooledBuffer pooled=POOL.get();
+        if(pooled.inUse) {
+            return new ByteBufferOutputStream(BUFFER_INITIAL_CAPACITY);
+        }
+        pooled.inUse=true;
+        pooled.buffer.reset();
+        return pooled.buffer;
+    }
+
+    public static void releaseBuffer(ByteBufferOutputStream buffer) {
+        PooledBuffer pooled=POOL.get();
+        if(pooled.buffer!=buffer) {
+            return;
+        }
+        pooled.inUse=false;
+        if(buffer.capacity()>BUFFER_MAX_RETAINED_CAPACITY) {
+            pooled.buffer=new ByteBufferOutputStream(BUFFER_INITIAL_CAPACITY);
+        }
+    }
+
     // 把一个对象序列化成一个字节数据
     public static byte[] toBytes(Object object) throws IOException {
-        // 这个流对象相当于一个变长的字节数据
-        // 就可以把 object 序列化的数据给逐渐写入到 byteArrayOutputStream 中，再统一转成 byte[]
-        try (ByteArrayOutputStream byteArrayOutputStream=new ByteArrayOutputStream()){
-            try (ObjectOutputStream objectOutputStream=new ObjectOutputStream(byteArrayOutputStream)){
-                // 此处的 writeObject 会把该对象进行序列化，生成的二进制字节数据，
-                // 就会写入到 ObjectOutputStream 中
-                // 由于 ObjectOutputStream 又关联到了 ByteArrayOutputStream,
-                // 最终结果就写入到 ByteArrayOutputStream 里了
-                objectOutputStream.writeObject(object);
-            }
-            // 该操作把 byteArrayOutputStream 中持有的二进制数据取出来，转换成 byte[]
-            return byteArrayOutputStream.toByteArray();
+        // 先序列化到复用的缓冲区中，最后只复制一次有效的数据
+        ByteBufferOutputStream buffer=acquireBuffer();
+        try {
+            writeObject(object,buffer);
+            return buffer.toByteArray();
+        } finally {
+            releaseBuffer(buffer);
         }
     }
 
+    // 把一个对象序列化之后追加写到 buffer 中，调用者可以通过 buffer.toByteBuffer() 直接写到 socket 或者文件通道中
+    public static void writeObject(Object object,ByteBufferOutputStream buffer) throws IOException {
+        // 此处的 writeObject 会把该对象进行序列化，生成的二进制字节数据，
+        // 就会写入到 ObjectOutputStream 中
+        // 由于 ObjectOutputStream 又关联到了 buffer,最终结果就写入到 buffer 里了
+        // 不能关闭 ObjectOutputStream（会把 buffer 也关掉），flush 一下就行了
+        ObjectOutputStream objectOutputStream=new ObjectOutputStream(buffer);
+        objectOutputStream.writeObject(object);
+        objectOutputStream.flush();
+    }
+
     // 把一个字节数组，反序列化成一个对象
     public static Object fromBytes(byte[] data) throws IOException, ClassNotFoundException {
         Object object=null;
@@ -0,0 +1,81 @@
+package com.example.mq.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * 可以重复使用的变长字节缓冲区，和 ByteArrayOutputStream 类似，但是：
+ * 1. 没有加锁
+ * 2. reset 之后复用已经分配的数组，配合 BinaryTool.acquireBuffer 可以在同一个线程中反复使用
+ * 3. toByteBuffer 直接包装内部的数组，不需要再复制一份，可以直接写到 socket 或者文件通道中
+ *    返回的 ByteBuffer 只在下一次写入/reset 之前有效
+ */
+public class ByteBufferOutputStream extends OutputStream {
+    private byte[] buf;
+    private int count;
+
+    public ByteBufferOutputStream(int initialCapacity) {
+        buf=new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if(minCapacity<0) {
+            throw new OutOfMemoryError("缓冲区太大了！");
+        }
+        if(minCapacity>buf.length) {
+            buf=Arrays.copyOf(buf,Math.max(minCapacity,buf.length<<1));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count+1);
+        buf[count++]=(byte) b;
+    }
+
+    @Override
+    public void write(byte[] b,int off,int len) {
+        ensureCapacity(count+len);
+        System.arraycopy(b,off,buf,count,len);
+        count+=len;
+    }
+
+    // 在 position 位置写一个 int（大端），用来回填提前预留出来的长度字段
+    public void putInt(int position,int value) {
+        buf[position]=(byte) (value>>>24);
+        buf[position+1]=(byte) (value>>>16);
+        buf[position+2]=(byte) (value>>>8);
+        buf[position+3]=(byte) value;
+    }
+
+    public void reset() {
+        count=0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return buf.length;
+    }
+
+    // 内部的数组，有效数据是 [0, size())
+    public byte[] array() {
+        return buf;
+    }
+
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf,0,count);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf,count);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf,0,count);
+    }
+}
@@ -13,4 +13,9 @@ public interface Consumer {
     // 通过这个方法把消息推送给对应的消费者
     // (注意！这里的方法名和参数，也都是参考 RabbitMQ展开的)
     void handleDelivery(String consumerTag, BasicProperties basicProperties,byte[] body) throws MqException, IOException;
+
+    // 客户端收到推送的消息时调用这个方法，需要按照投递标签确认消息（Channel.basicAck(deliveryTag,multiple)）的消费者重写这个方法
+    default void handleDelivery(String consumerTag,long deliveryTag,BasicProperties basicProperties,byte[] body) throws MqException, IOException {
+        handleDelivery(consumerTag,basicProperties,body);
+    }
 }
@@ -2,8 +2,13 @@ package com.example.mq.common;
 
 import lombok.Data;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /*
  * 表示一个消费者（完整的执行环境）
+ * 手动应答的消费者有一个预取额度（basicQos）：已经投递、还没有确认的消息条数和字节数达到上限之后，就不再给它投递消息，
+ * 等确认消息归还额度之后再继续投递，0 表示不限制。自动应答的消费者不受额度限制
  */
 @Data
 public class ConsumerEnv {
@@ -12,6 +17,14 @@ public class ConsumerEnv {
     private boolean autoAck;
     // 通过这个回调来处理收到的消息
     private Consumer consumer;
+    // 最多有多少条未确认的消息
+    private volatile int prefetchCount=0;
+    // 未确认的消息最多有多少字节，只要还没有达到上限就可以再投递一条，所以实际可能会超出一条消息的大小
+    private volatile long prefetchBytes=0;
+    private final AtomicInteger unackedCount=new AtomicInteger(0);
+    private final AtomicLong unackedBytes=new AtomicLong(0);
+    // 已经投递、但是消息内容还在硬盘上（惰性队列、索引快照恢复出来的消息），还不知道占用多少字节的消息条数
+    private final AtomicInteger unsizedCount=new AtomicInteger(0);
 
     public ConsumerEnv(String consumerTag,String queueName,boolean autoAck,Consumer consumer) {
         this.consumerTag=consumerTag;
@@ -19,4 +32,42 @@ public class ConsumerEnv {
         this.autoAck=autoAck;
         this.consumer=consumer;
     }
+
+    // 当前还能不能再给这个消费者投递消息
+    public boolean hasCredit() {
+        if(autoAck) {
+            return true;
+        }
+        if(prefetchCount>0&&unackedCount.get()>=prefetchCount) {
+            return false;
+        }
+        if(prefetchBytes<=0) {
+            return true;
+        }
+        // 有还不知道大小的消息的时候，先等它的大小确定下来，不然没法判断字节数有没有超过上限
+        return unsizedCount.get()==0&&unackedBytes.get()<prefetchBytes;
+    }
+
+    // 投递一条需要确认的消息，占用额度
+    public void acquireCredit(long bytes) {
+        unackedCount.incrementAndGet();
+        unackedBytes.addAndGet(bytes);
+    }
+
+    // 投递一条消息内容还在硬盘上的消息，先只占用条数，读出消息内容之后再调用 resolveCredit 占用字节数
+    public void acquireUnsizedCredit() {
+        unackedCount.incrementAndGet();
+        unsizedCount.incrementAndGet();
+    }
+
+    public void resolveCredit(long bytes) {
+        unackedBytes.addAndGet(bytes);
+        unsizedCount.decrementAndGet();
+    }
+
+    // 消息被确认了，归还额度
+    public void releaseCredit(long bytes) {
+        unackedCount.decrementAndGet();
+        unackedBytes.addAndGet(-bytes);
+    }
 }
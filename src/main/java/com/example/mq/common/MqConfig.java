@@ -0,0 +1,45 @@
+package com.example.mq.common;
+
+import com.example.mq.MqApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/*
+ * 通过这个类，来读取 application.yaml 中 mq 开头的配置项
+ * 服务器中的大部分对象都不是由 Spring 管理的（都是直接 new 出来的），所以这里通过 MqApplication.context 手动获取配置
+ * 如果 Spring 还没有启动（比如单元测试中直接 new 出来的对象），就使用默认值
+ */
+public class MqConfig {
+    public static <T> T get(String key,Class<T> type,T defaultValue) {
+        ConfigurableApplicationContext context=MqApplication.context;
+        if(context==null) {
+            return defaultValue;
+        }
+        try {
+            return context.getEnvironment().getProperty(key,type,defaultValue);
+        } catch (Exception e) {
+            // 配置项格式不对，就按照默认值来处理
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+    public static String getString(String key,String defaultValue) {
+        return get(key,String.class,defaultValue);
+    }
+
+    public static int getInt(String key,int defaultValue) {
+        return get(key,Integer.class,defaultValue);
+    }
+
+    public static long getLong(String key,long defaultValue) {
+        return get(key,Long.class,defaultValue);
+    }
+
+    public static double getDouble(String key,double defaultValue) {
+        return get(key,Double.class,defaultValue);
+    }
+
+    public static boolean getBoolean(String key,boolean defaultValue) {
+        return get(key,Boolean.class,defaultValue);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.mq.common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+ * 通过这个类，来记录服务器内部的运行指标，比如每个队列的 gc 停顿时间
+ * 每个指标都是一个 long 类型的数值，按照名字存放
+ * 可以通过 MetricsController 提供的 /metrics 接口查看所有指标的当前值
+ */
+public class MqMetrics {
+    private static final ConcurrentHashMap<String,AtomicLong> metrics=new ConcurrentHashMap<>();
+    // 由别的对象自己维护计数器的指标，查看的时候才去读取当前值，更新计数器的热点路径上不需要拼接名字、查找哈希表
+    private static final ConcurrentHashMap<String,LongSupplier> gauges=new ConcurrentHashMap<>();
+
+    private static AtomicLong metric(String name) {
+        return metrics.computeIfAbsent(name,k -> new AtomicLong(0));
+    }
+
+    // 计数类的指标，累加
+    public static void add(String name,long delta) {
+        metric(name).addAndGet(delta);
+    }
+
+    // 记录最近一次的值
+    public static void set(String name,long value) {
+        metric(name).set(value);
+    }
+
+    // 记录出现过的最大值
+    public static void max(String name,long value) {
+        metric(name).accumulateAndGet(value,Math::max);
+    }
+
+    // 注册一个查看时才读取的指标，同名的指标会被替换掉
+    public static void gauge(String name,LongSupplier supplier) {
+        gauges.put(name,supplier);
+    }
+
+    public static long get(String name) {
+        LongSupplier supplier=gauges.get(name);
+        if(supplier!=null) {
+            return supplier.getAsLong();
+        }
+        AtomicLong value=metrics.get(name);
+        return value==null?0:value.get();
+    }
+
+    // 删除以 prefix 开头的指标，比如队列删除之后，这个队列相关的指标也就没有意义了
+    public static void removeByPrefix(String prefix) {
+        metrics.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    // 按照名字排好序的所有指标的当前值
+    public static Map<String,Long> snapshot() {
+        Map<String,Long> result=new TreeMap<>();
+        for (Map.Entry<String,AtomicLong> entry:metrics.entrySet()) {
+            result.put(entry.getKey(),entry.getValue().get());
+        }
+        for (Map.Entry<String,LongSupplier> entry:gauges.entrySet()) {
+            result.put(entry.getKey(),entry.getValue().getAsLong());
+        }
+        return result;
+    }
+}
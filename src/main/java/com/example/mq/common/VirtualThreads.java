@@ -0,0 +1,61 @@
+package com.example.mq.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/*
+ * 虚拟线程（JDK 21）的支持
+ * 项目默认按照 Java 8 编译，这里通过反射调用 Executors.newVirtualThreadPerTaskExecutor，这样同一份代码在低版本的 JDK 上也能运行
+ * 配置了 mq.server.virtual-threads=true 并且运行在 JDK 21 以上时，处理连接、推送消息的任务都在虚拟线程中执行，
+ * 阻塞在 socket 读写上的虚拟线程不占用平台线程，大量空闲的连接也不会耗尽线程
+ * 当前 JDK 不支持的时候，退化成原来的平台线程池
+ */
+@Slf4j
+public class VirtualThreads {
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR=findMethod();
+
+    private static Method findMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR!=null;
+    }
+
+    public static boolean isEnabled() {
+        return MqConfig.getBoolean("mq.server.virtual-threads",false);
+    }
+
+    // 每个任务一个虚拟线程的线程池，当前 JDK 不支持虚拟线程的时候返回 null
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if(!isSupported()) {
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // 打开了虚拟线程并且当前 JDK 支持的时候，返回虚拟线程的线程池，否则使用 platformExecutor 创建平台线程池
+    public static ExecutorService newExecutor(Supplier<ExecutorService> platformExecutor) {
+        if(isEnabled()) {
+            ExecutorService executorService=newVirtualThreadPerTaskExecutor();
+            if(executorService!=null) {
+                return executorService;
+            }
+            log.info("[VirtualThreads] 当前 JDK 不支持虚拟线程，使用平台线程！java.version="+System.getProperty("java.version"));
+        }
+        return platformExecutor.get();
+    }
+}
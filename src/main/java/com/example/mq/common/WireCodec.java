@@ -0,0 +1,649 @@
+package com.example.mq.common;
+
+import com.example.mq.arguments.*;
+import com.example.mq.mqserver.core.BasicProperties;
+import com.example.mq.mqserver.core.ExchangeType;
+import com.example.mq.returns.BasicGetReturns;
+import com.example.mq.returns.BasicPublishBatchReturns;
+import com.example.mq.returns.BasicReturns;
+import com.example.mq.returns.SubScribeReturns;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * 网络通信中 payload 的二进制编码方式，每种请求（0x1 ~ 0xb、0xe ~ 0x10、0x12）和响应都有自己的编码和解码，不需要反射
+ * 客户端连接上服务器之后，先发送一个 type=0xd 的请求协商编码方式，payload 是客户端支持的编码版本(4)
+ * 服务器响应的 payload 是双方都支持的编码版本(4)，0 表示不支持，此后这个连接上的请求和响应都按照协商的结果来编码
+ * 没有协商过的连接（旧版本的客户端），还是使用 BinaryTool（Java 标准库序列化）
+ * 编码规则：
+ * 1. 字符串：长度(4) + UTF-8 编码的内容，长度为 -1 表示 null
+ * 2. 字节数组：长度(4) + 内容，长度为 -1 表示 null
+ * 3. boolean：一个字节，1 表示 true
+ * 4. 所有请求都以 rid channelId 开头，所有响应都以 rid channelId ok 开头，后面是各自的字段
+ * 5. 批量发送消息（0xe）：消息条数(4) + 每条消息按照 0x9 的字段编码，响应后面跟着条数(4) + 每条消息的结果(boolean)
+ * 6. 批量确认消息（0xf）：queueName + messageId 个数(4) + 每个 messageId + deliveryTag(8) + multiple(boolean)
+ * 7. 推送的消息（0xc）最后是投递标签(8)，没有这个字段（旧版本的服务器）的时候当作 0
+ * 8. 设置预取额度（0x10）：prefetchCount(4) + prefetchBytes(8)
+ * 9. 服务器资源告警的时候主动发送阻塞通知（0x11）：blocked(boolean)，不对应任何请求
+ * 10. 拉模式消费（0x12）：queueName + maxMessages(4) + maxWaitMs(8) + autoAck(boolean)，
+ *     响应后面跟着消息条数(4) + 每条消息的 basicProperties body deliveryTag(8)
+ * 编码的时候可以直接编码到 ByteBufferOutputStream 中，连同 type|length 一起组成完整的一帧，一次写到 socket 中
+ */
+public class WireCodec {
+    // 协商编码方式的请求/响应的 type
+    public static final int TYPE_NEGOTIATE=0xd;
+    // 当前支持的二进制编码版本，0 表示使用 Java 标准库序列化
+    // 版本 2 的编码和版本 1 相同，只是多了服务器主动发送的阻塞通知（0x11），协商到 2 以上的连接才会收到
+    public static final int VERSION=2;
+    public static final int VERSION_SERIALIZABLE=0;
+    public static final int VERSION_BLOCKED_NOTICE=2;
+    // 每一帧的头部：type(4) length(4)
+    public static final int FRAME_HEADER_SIZE=8;
+    // 批量发送消息的请求/响应的 type
+    public static final int TYPE_PUBLISH_BATCH=0xe;
+    // 批量确认消息的请求/响应的 type
+    public static final int TYPE_ACK_BATCH=0xf;
+    // 设置预取额度的请求/响应的 type
+    public static final int TYPE_QOS=0x10;
+    // 服务器通知客户端发布消息被阻塞/解除阻塞的 type，payload 只有一个字节，1 表示阻塞
+    public static final int TYPE_BLOCKED=0x11;
+    // 拉模式消费的请求/响应的 type
+    public static final int TYPE_GET=0x12;
+
+    // 交换机/队列的 arguments 中值的类型标记，不认识的类型还是使用 Java 标准库序列化
+    private static final byte VALUE_NULL=0;
+    private static final byte VALUE_STRING=1;
+    private static final byte VALUE_INT=2;
+    private static final byte VALUE_LONG=3;
+    private static final byte VALUE_BOOLEAN=4;
+    private static final byte VALUE_DOUBLE=5;
+    private static final byte VALUE_SERIALIZABLE=6;
+
+    // 按照协商的编码版本，编码请求
+    public static byte[] encodeArguments(int version,int type,BasicArguments arguments) throws IOException {
+        ByteBufferOutputStream buffer=BinaryTool.acquireBuffer();
+        try {
+            encodeArguments(version,type,arguments,buffer);
+            return buffer.toByteArray();
+        } finally {
+            BinaryTool.releaseBuffer(buffer);
+        }
+    }
+
+    // 按照协商的编码版本，把请求追加编码到 buffer 中
+    public static void encodeArguments(int version,int type,BasicArguments arguments,ByteBufferOutputStream buffer) throws IOException {
+        if(version==VERSION_SERIALIZABLE) {
+            BinaryTool.writeObject(arguments,buffer);
+            return;
+        }
+        DataOutputStream out=new DataOutputStream(buffer);
+        writeString(out,arguments.getRid());
+        writeString(out,arguments.getChannelId());
+        switch (type) {
+            case 0x1:
+            case 0x2:
+                break;
+            case 0x3: {
+                ExchangeDeclareArguments exchangeDeclareArguments=(ExchangeDeclareArguments) arguments;
+                writeString(out,exchangeDeclareArguments.getExchangeName());
+                out.writeInt(exchangeDeclareArguments.getExchangeType()==null?-1:exchangeDeclareArguments.getExchangeType().getType());
+                out.writeBoolean(exchangeDeclareArguments.isDurable());
+                out.writeBoolean(exchangeDeclareArguments.isAutoDelete());
+                writeMap(out,exchangeDeclareArguments.getArguments());
+                break;
+            }
+            case 0x4:
+                writeString(out,((ExchangeDeleteArguments) arguments).getExchangeName());
+                break;
+            case 0x5: {
+                QueueDeclareArguments queueDeclareArguments=(QueueDeclareArguments) arguments;
+                writeString(out,queueDeclareArguments.getQueueName());
+                out.writeBoolean(queueDeclareArguments.isDurable());
+                out.writeBoolean(queueDeclareArguments.isExclusive());
+                out.writeBoolean(queueDeclareArguments.isAutoDelete());
+                writeMap(out,queueDeclareArguments.getArguments());
+                break;
+            }
+            case 0x6:
+                writeString(out,((QueueDeleteArguments) arguments).getQueueName());
+                break;
+            case 0x7: {
+                QueueBindArguments queueBindArguments=(QueueBindArguments) arguments;
+                writeString(out,queueBindArguments.getQueueName());
+                writeString(out,queueBindArguments.getExchangeName());
+                writeString(out,queueBindArguments.getBindingKey());
+                break;
+            }
+            case 0x8: {
+                QueueUnbindArguments queueUnbindArguments=(QueueUnbindArguments) arguments;
+                writeString(out,queueUnbindArguments.getQueueName());
+                writeString(out,queueUnbindArguments.getExchangeName());
+                break;
+            }
+            case 0x9:
+                writePublishEntry(out,(BasicPublishArguments) arguments);
+                break;
+            case 0xa: {
+                BasicConsumeArguments basicConsumeArguments=(BasicConsumeArguments) arguments;
+                writeString(out,basicConsumeArguments.getConsumerTag());
+                writeString(out,basicConsumeArguments.getQueueName());
+                out.writeBoolean(basicConsumeArguments.isAutoAck());
+                break;
+            }
+            case 0xb: {
+                BasicAckArguments basicAckArguments=(BasicAckArguments) arguments;
+                writeString(out,basicAckArguments.getQueueName());
+                writeString(out,basicAckArguments.getMessageId());
+                break;
+            }
+            case TYPE_PUBLISH_BATCH: {
+                List<BasicPublishArguments> entries=((BasicPublishBatchArguments) arguments).getEntries();
+                out.writeInt(entries.size());
+                for (BasicPublishArguments entry:entries) {
+                    writePublishEntry(out,entry);
+                }
+                break;
+            }
+            case TYPE_ACK_BATCH: {
+                BasicAckBatchArguments basicAckBatchArguments=(BasicAckBatchArguments) arguments;
+                writeString(out,basicAckBatchArguments.getQueueName());
+                List<String> messageIds=basicAckBatchArguments.getMessageIds();
+                out.writeInt(messageIds==null?0:messageIds.size());
+                if(messageIds!=null) {
+                    for (String messageId:messageIds) {
+                        writeString(out,messageId);
+                    }
+                }
+                out.writeLong(basicAckBatchArguments.getDeliveryTag());
+                out.writeBoolean(basicAckBatchArguments.isMultiple());
+                break;
+            }
+            case TYPE_QOS: {
+                BasicQosArguments basicQosArguments=(BasicQosArguments) arguments;
+                out.writeInt(basicQosArguments.getPrefetchCount());
+                out.writeLong(basicQosArguments.getPrefetchBytes());
+                break;
+            }
+            case TYPE_GET: {
+                BasicGetArguments basicGetArguments=(BasicGetArguments) arguments;
+                writeString(out,basicGetArguments.getQueueName());
+                out.writeInt(basicGetArguments.getMaxMessages());
+                out.writeLong(basicGetArguments.getMaxWaitMs());
+                out.writeBoolean(basicGetArguments.isAutoAck());
+                break;
+            }
+            default:
+                throw new IOException("[WireCodec] 未知的 type! type="+type);
+        }
+    }
+
+    private static void writePublishEntry(DataOutputStream out,BasicPublishArguments arguments) throws IOException {
+        writeString(out,arguments.getExchangeName());
+        writeString(out,arguments.getRoutingKey());
+        writeProperties(out,arguments.getBasicProperties());
+        writeBytes(out,arguments.getBody());
+    }
+
+    // 按照协商的编码版本，解码请求
+    public static BasicArguments decodeArguments(int version,int type,byte[] payload) throws IOException, ClassNotFoundException {
+        if(version==VERSION_SERIALIZABLE) {
+            return (BasicArguments) BinaryTool.fromBytes(payload);
+        }
+        try {
+            ByteBuffer in=ByteBuffer.wrap(payload);
+            String rid=readString(in);
+            String channelId=readString(in);
+            BasicArguments arguments;
+            switch (type) {
+                case 0x1:
+                case 0x2:
+                    arguments=new BasicArguments();
+                    break;
+                case 0x3: {
+                    ExchangeDeclareArguments exchangeDeclareArguments=new ExchangeDeclareArguments();
+                    exchangeDeclareArguments.setExchangeName(readString(in));
+                    exchangeDeclareArguments.setExchangeType(toExchangeType(in.getInt()));
+                    exchangeDeclareArguments.setDurable(readBoolean(in));
+                    exchangeDeclareArguments.setAutoDelete(readBoolean(in));
+                    exchangeDeclareArguments.setArguments(readMap(in));
+                    arguments=exchangeDeclareArguments;
+                    break;
+                }
+                case 0x4: {
+                    ExchangeDeleteArguments exchangeDeleteArguments=new ExchangeDeleteArguments();
+                    exchangeDeleteArguments.setExchangeName(readString(in));
+                    arguments=exchangeDeleteArguments;
+                    break;
+                }
+                case 0x5: {
+                    QueueDeclareArguments queueDeclareArguments=new QueueDeclareArguments();
+                    queueDeclareArguments.setQueueName(readString(in));
+                    queueDeclareArguments.setDurable(readBoolean(in));
+                    queueDeclareArguments.setExclusive(readBoolean(in));
+                    queueDeclareArguments.setAutoDelete(readBoolean(in));
+                    queueDeclareArguments.setArguments(readMap(in));
+                    arguments=queueDeclareArguments;
+                    break;
+                }
+                case 0x6: {
+                    QueueDeleteArguments queueDeleteArguments=new QueueDeleteArguments();
+                    queueDeleteArguments.setQueueName(readString(in));
+                    arguments=queueDeleteArguments;
+                    break;
+                }
+                case 0x7: {
+                    QueueBindArguments queueBindArguments=new QueueBindArguments();
+                    queueBindArguments.setQueueName(readString(in));
+                    queueBindArguments.setExchangeName(readString(in));
+                    queueBindArguments.setBindingKey(readString(in));
+                    arguments=queueBindArguments;
+                    break;
+                }
+                case 0x8: {
+                    QueueUnbindArguments queueUnbindArguments=new QueueUnbindArguments();
+                    queueUnbindArguments.setQueueName(readString(in));
+                    queueUnbindArguments.setExchangeName(readString(in));
+                    arguments=queueUnbindArguments;
+                    break;
+                }
+                case 0x9:
+                    arguments=readPublishEntry(in);
+                    break;
+                case 0xa: {
+                    BasicConsumeArguments basicConsumeArguments=new BasicConsumeArguments();
+                    basicConsumeArguments.setConsumerTag(readString(in));
+                    basicConsumeArguments.setQueueName(readString(in));
+                    basicConsumeArguments.setAutoAck(readBoolean(in));
+                    arguments=basicConsumeArguments;
+                    break;
+                }
+                case 0xb: {
+                    BasicAckArguments basicAckArguments=new BasicAckArguments();
+                    basicAckArguments.setQueueName(readString(in));
+                    basicAckArguments.setMessageId(readString(in));
+                    arguments=basicAckArguments;
+                    break;
+                }
+                case TYPE_PUBLISH_BATCH: {
+                    int size=readCount(in);
+                    List<BasicPublishArguments> entries=new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        entries.add(readPublishEntry(in));
+                    }
+                    BasicPublishBatchArguments basicPublishBatchArguments=new BasicPublishBatchArguments();
+                    basicPublishBatchArguments.setEntries(entries);
+                    arguments=basicPublishBatchArguments;
+                    break;
+                }
+                case TYPE_ACK_BATCH: {
+                    BasicAckBatchArguments basicAckBatchArguments=new BasicAckBatchArguments();
+                    basicAckBatchArguments.setQueueName(readString(in));
+                    int size=readCount(in);
+                    List<String> messageIds=new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        messageIds.add(readString(in));
+                    }
+                    basicAckBatchArguments.setMessageIds(messageIds);
+                    basicAckBatchArguments.setDeliveryTag(in.getLong());
+                    basicAckBatchArguments.setMultiple(readBoolean(in));
+                    arguments=basicAckBatchArguments;
+                    break;
+                }
+                case TYPE_QOS: {
+                    BasicQosArguments basicQosArguments=new BasicQosArguments();
+                    basicQosArguments.setPrefetchCount(in.getInt());
+                    basicQosArguments.setPrefetchBytes(in.getLong());
+                    arguments=basicQosArguments;
+                    break;
+                }
+                case TYPE_GET: {
+                    BasicGetArguments basicGetArguments=new BasicGetArguments();
+                    basicGetArguments.setQueueName(readString(in));
+                    basicGetArguments.setMaxMessages(in.getInt());
+                    basicGetArguments.setMaxWaitMs(in.getLong());
+                    basicGetArguments.setAutoAck(readBoolean(in));
+                    arguments=basicGetArguments;
+                    break;
+                }
+                default:
+                    throw new IOException("[WireCodec] 未知的 type! type="+type);
+            }
+            arguments.setRid(rid);
+            arguments.setChannelId(channelId);
+            return arguments;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("[WireCodec] 请求数据不完整！type="+type,e);
+        }
+    }
+
+    private static BasicPublishArguments readPublishEntry(ByteBuffer in) throws IOException {
+        BasicPublishArguments basicPublishArguments=new BasicPublishArguments();
+        basicPublishArguments.setExchangeName(readString(in));
+        basicPublishArguments.setRoutingKey(readString(in));
+        basicPublishArguments.setBasicProperties(readProperties(in));
+        basicPublishArguments.setBody(readBytes(in));
+        return basicPublishArguments;
+    }
+
+    // 按照协商的编码版本，编码响应，SubScribeReturns、BasicPublishBatchReturns、BasicGetReturns 会多编码后面的字段
+    public static byte[] encodeReturns(int version,BasicReturns returns) throws IOException {
+        ByteBufferOutputStream buffer=BinaryTool.acquireBuffer();
+        try {
+            encodeReturns(version,returns,buffer);
+            return buffer.toByteArray();
+        } finally {
+            BinaryTool.releaseBuffer(buffer);
+        }
+    }
+
+    // 按照协商的编码版本，把响应追加编码到 buffer 中
+    public static void encodeReturns(int version,BasicReturns returns,ByteBufferOutputStream buffer) throws IOException {
+        if(version==VERSION_SERIALIZABLE) {
+            BinaryTool.writeObject(returns,buffer);
+            return;
+        }
+        DataOutputStream out=new DataOutputStream(buffer);
+        writeString(out,returns.getRid());
+        writeString(out,returns.getChannelId());
+        out.writeBoolean(returns.isOk());
+        if(returns instanceof SubScribeReturns) {
+            SubScribeReturns subScribeReturns=(SubScribeReturns) returns;
+            writeString(out,subScribeReturns.getConsumerTag());
+            writeProperties(out,subScribeReturns.getBasicProperties());
+            writeBytes(out,subScribeReturns.getBody());
+            out.writeLong(subScribeReturns.getDeliveryTag());
+        } else if(returns instanceof BasicPublishBatchReturns) {
+            boolean[] results=((BasicPublishBatchReturns) returns).getResults();
+            out.writeInt(results.length);
+            for (boolean result:results) {
+                out.writeBoolean(result);
+            }
+        } else if(returns instanceof BasicGetReturns) {
+            List<BasicGetReturns.GetMessage> messages=((BasicGetReturns) returns).getMessages();
+            out.writeInt(messages==null?0:messages.size());
+            if(messages!=null) {
+                for (BasicGetReturns.GetMessage message:messages) {
+                    writeProperties(out,message.getBasicProperties());
+                    writeBytes(out,message.getBody());
+                    out.writeLong(message.getDeliveryTag());
+                }
+            }
+        }
+    }
+
+    // 把请求编码成完整的一帧：type(4) length(4) payload，一次写到 out 中
+    public static int writeRequestFrame(OutputStream out,int version,int type,BasicArguments arguments) throws IOException {
+        ByteBufferOutputStream buffer=BinaryTool.acquireBuffer();
+        try {
+            beginFrame(buffer,type);
+            encodeArguments(version,type,arguments,buffer);
+            return endFrame(out,buffer);
+        } finally {
+            BinaryTool.releaseBuffer(buffer);
+        }
+    }
+
+    // 把响应编码成完整的一帧，一次写到 out 中
+    public static int writeResponseFrame(OutputStream out,int version,int type,BasicReturns returns) throws IOException {
+        ByteBufferOutputStream buffer=BinaryTool.acquireBuffer();
+        try {
+            beginFrame(buffer,type);
+            encodeReturns(version,returns,buffer);
+            return endFrame(out,buffer);
+        } finally {
+            BinaryTool.releaseBuffer(buffer);
+        }
+    }
+
+    // 把已经编码好的 payload 组成完整的一帧，一次写到 out 中
+    public static void writeFrame(OutputStream out,int type,byte[] payload) throws IOException {
+        ByteBufferOutputStream buffer=BinaryTool.acquireBuffer();
+        try {
+            beginFrame(buffer,type);
+            buffer.write(payload,0,payload.length);
+            endFrame(out,buffer);
+        } finally {
+            BinaryTool.releaseBuffer(buffer);
+        }
+    }
+
+    // buffer 是空的，先给帧头预留出位置写上 type，length 等 payload 编码完了再回填
+    private static void beginFrame(ByteBufferOutputStream buffer,int type) {
+        for (int i = 0; i < FRAME_HEADER_SIZE; i++) {
+            buffer.write(0);
+        }
+        buffer.putInt(0,type);
+    }
+
+    // 回填 length，把整个帧写出去，返回 payload 的长度
+    private static int endFrame(OutputStream out,ByteBufferOutputStream buffer) throws IOException {
+        int length=buffer.size()-FRAME_HEADER_SIZE;
+        buffer.putInt(4,length);
+        buffer.writeTo(out);
+        out.flush();
+        return length;
+    }
+
+    // 按照协商的编码版本，解码响应，type=0xc 的是服务器推送的消息（SubScribeReturns）
+    public static BasicReturns decodeReturns(int version,int type,byte[] payload) throws IOException, ClassNotFoundException {
+        if(version==VERSION_SERIALIZABLE) {
+            return (BasicReturns) BinaryTool.fromBytes(payload);
+        }
+        try {
+            ByteBuffer in=ByteBuffer.wrap(payload);
+            String rid=readString(in);
+            String channelId=readString(in);
+            boolean ok=readBoolean(in);
+            BasicReturns returns;
+            if(type==0xc) {
+                SubScribeReturns subScribeReturns=new SubScribeReturns();
+                subScribeReturns.setConsumerTag(readString(in));
+                subScribeReturns.setBasicProperties(readProperties(in));
+                subScribeReturns.setBody(readBytes(in));
+                if(in.remaining()>=8) {
+                    subScribeReturns.setDeliveryTag(in.getLong());
+                }
+                returns=subScribeReturns;
+            } else if(type==TYPE_PUBLISH_BATCH) {
+                boolean[] results=new boolean[readCount(in)];
+                for (int i = 0; i < results.length; i++) {
+                    results[i]=readBoolean(in);
+                }
+                BasicPublishBatchReturns basicPublishBatchReturns=new BasicPublishBatchReturns();
+                basicPublishBatchReturns.setResults(results);
+                returns=basicPublishBatchReturns;
+            } else if(type==TYPE_GET) {
+                int size=readCount(in);
+                List<BasicGetReturns.GetMessage> messages=new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    BasicGetReturns.GetMessage message=new BasicGetReturns.GetMessage();
+                    message.setBasicProperties(readProperties(in));
+                    message.setBody(readBytes(in));
+                    message.setDeliveryTag(in.getLong());
+                    messages.add(message);
+                }
+                BasicGetReturns basicGetReturns=new BasicGetReturns();
+                basicGetReturns.setMessages(messages);
+                returns=basicGetReturns;
+            } else {
+                returns=new BasicReturns();
+            }
+            returns.setRid(rid);
+            returns.setChannelId(channelId);
+            returns.setOk(ok);
+            return returns;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("[WireCodec] 响应数据不完整！type="+type,e);
+        }
+    }
+
+    // 协商请求/响应的 payload，就是一个编码版本
+    public static byte[] encodeVersion(int version) {
+        return ByteBuffer.allocate(4).putInt(version).array();
+    }
+
+    public static int decodeVersion(byte[] payload) throws IOException {
+        if(payload.length!=4) {
+            throw new IOException("[WireCodec] 协商编码的数据格式错误！length="+payload.length);
+        }
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    private static void writeString(DataOutputStream out,String value) throws IOException {
+        writeBytes(out,value==null?null:value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out,byte[] value) throws IOException {
+        if(value==null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static void writeProperties(DataOutputStream out,BasicProperties basicProperties) throws IOException {
+        if(basicProperties==null) {
+            out.writeBoolean(false);
+            return;
+        }
+        out.writeBoolean(true);
+        writeString(out,basicProperties.getMessageId());
+        writeString(out,basicProperties.getRoutingKey());
+        out.writeInt(basicProperties.getDeliverMode());
+    }
+
+    private static void writeMap(DataOutputStream out,Map<String,Object> map) throws IOException {
+        if(map==null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(map.size());
+        for (Map.Entry<String,Object> entry:map.entrySet()) {
+            writeString(out,entry.getKey());
+            Object value=entry.getValue();
+            if(value==null) {
+                out.writeByte(VALUE_NULL);
+            } else if(value instanceof String) {
+                out.writeByte(VALUE_STRING);
+                writeString(out,(String) value);
+            } else if(value instanceof Integer) {
+                out.writeByte(VALUE_INT);
+                out.writeInt((Integer) value);
+            } else if(value instanceof Long) {
+                out.writeByte(VALUE_LONG);
+                out.writeLong((Long) value);
+            } else if(value instanceof Boolean) {
+                out.writeByte(VALUE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if(value instanceof Double) {
+                out.writeByte(VALUE_DOUBLE);
+                out.writeDouble((Double) value);
+            } else {
+                out.writeByte(VALUE_SERIALIZABLE);
+                writeBytes(out,BinaryTool.toBytes(value));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        byte[] value=readBytes(in);
+        return value==null?null:new String(value,StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        int length=in.getInt();
+        if(length==-1) {
+            return null;
+        }
+        if(length<0||length>in.remaining()) {
+            throw new IOException("[WireCodec] 数据长度错误！length="+length);
+        }
+        byte[] value=new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    // 读取元素的个数，每个元素至少占一个字节，超过剩余字节数的一定是错误的数据，避免按照错误的个数分配内存
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count=in.getInt();
+        if(count<0||count>in.remaining()) {
+            throw new IOException("[WireCodec] 元素个数错误！count="+count);
+        }
+        return count;
+    }
+
+    private static boolean readBoolean(ByteBuffer in) {
+        return in.get()!=0;
+    }
+
+    private static BasicProperties readProperties(ByteBuffer in) throws IOException {
+        if(!readBoolean(in)) {
+            return null;
+        }
+        BasicProperties basicProperties=new BasicProperties();
+        basicProperties.setMessageId(readString(in));
+        basicProperties.setRoutingKey(readString(in));
+        basicProperties.setDeliverMode(in.getInt());
+        return basicProperties;
+    }
+
+    private static Map<String,Object> readMap(ByteBuffer in) throws IOException, ClassNotFoundException {
+        int size=in.getInt();
+        if(size==-1) {
+            return null;
+        }
+        Map<String,Object> map=new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key=readString(in);
+            byte tag=in.get();
+            switch (tag) {
+                case VALUE_NULL:
+                    map.put(key,null);
+                    break;
+                case VALUE_STRING:
+                    map.put(key,readString(in));
+                    break;
+                case VALUE_INT:
+                    map.put(key,in.getInt());
+                    break;
+                case VALUE_LONG:
+                    map.put(key,in.getLong());
+                    break;
+                case VALUE_BOOLEAN:
+                    map.put(key,readBoolean(in));
+                    break;
+                case VALUE_DOUBLE:
+                    map.put(key,in.getDouble());
+                    break;
+                case VALUE_SERIALIZABLE:
+                    map.put(key,BinaryTool.fromBytes(readBytes(in)));
+                    break;
+                default:
+                    throw new IOException("[WireCodec] 未知的值类型！tag="+tag);
+            }
+        }
+        return map;
+    }
+
+    private static ExchangeType toExchangeType(int type) throws IOException {
+        if(type==-1) {
+            return null;
+        }
+        for (ExchangeType exchangeType:ExchangeType.values()) {
+            if(exchangeType.getType()==type) {
+                return exchangeType;
+            }
+        }
+        throw new IOException("[WireCodec] 未知的交换机类型！type="+type);
+    }
+}
@@ -1,27 +1,37 @@
 package com.example.mq.mqclient;
 
 import com.example.mq.arguments.*;
-import com.example.mq.common.BinaryTool;
 import com.example.mq.common.Consumer;
 import com.example.mq.common.MqException;
-import com.example.mq.common.Request;
+import com.example.mq.common.WireCodec;
 import com.example.mq.mqserver.core.BasicProperties;
 import com.example.mq.mqserver.core.ExchangeType;
+import com.example.mq.returns.BasicGetReturns;
+import com.example.mq.returns.BasicPublishBatchReturns;
 import com.example.mq.returns.BasicReturns;
 import lombok.Data;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.ExecutionException;
+
+/*
+ * 每个请求都有同步和异步两种调用方式：
+ * 1. xxxAsync 把请求发出去之后立即返回一个 CompletableFuture，收到 rid 相同的响应时，由 Connection 的扫描线程完成这个 future
+ *    这样一个 channel 上可以同时有很多个请求在路上，不需要每个请求都等一个来回（注意不要在 future 的回调里做耗时的操作，会阻塞扫描线程）
+ * 2. 同步的方法就是调用对应的 xxxAsync，再阻塞等待这个 future
+ */
 @Data
 public class Channel {
     private String channelId;
     // 当前这个 channel 属于哪个连接
     private Connection connection;
-    // 用来存储后续客户端收到的服务器的响应
-    private ConcurrentHashMap<String, BasicReturns> basicReturnsMap=new ConcurrentHashMap<>();  // key:Rid
+    // 已经发出去、还没有收到响应的请求，收到响应之后完成对应的 future
+    private ConcurrentHashMap<String, CompletableFuture<BasicReturns>> pendingReturns=new ConcurrentHashMap<>();  // key:Rid
     // 如果当前 Channel 订阅了某个队列，就需要在此处记录下对应回调是啥，当该队列的消息返回回来的时候，调用回调
     // 此处约定一个 Channel 只能有一个回调
     private Consumer consumer=null;
@@ -33,49 +43,63 @@ public class Channel {
 
     // 在这个方法中，和服务器进行交互，告知服务器，此处客户端创建了新的 channel了
     public boolean createChannel() throws IOException {
+        return waitResult(createChannelAsync()).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> createChannelAsync() {
         // 对于创建 Channel 操作来说，payload 就是一个 basicArguments 对象
         BasicArguments basicArguments=new BasicArguments();
         basicArguments.setChannelId(channelId);
         basicArguments.setRid(generateRid());
-        byte[] payload= BinaryTool.toBytes(basicArguments);
-
-        Request request=new Request();
-        request.setType(0x1);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        // 构造出完整请求之后，就可以发送这个请求了
-        connection.writeRequest(request);
-        // 等待服务器的响应
-        BasicReturns basicReturns=waitResult(basicArguments.getRid());
-        return basicReturns.isOk();
-    }
-
-    // 期望使用这个方法来阻塞等待服务器的响应
-    private BasicReturns waitResult(String rid) {
-        BasicReturns basicReturns=null;
-        while ((basicReturns=basicReturnsMap.get(rid))==null) {
-            // 如果查询结果为null,说明包裹还没回来
-            // 此时需要阻塞等待
-            synchronized (this) {
-                try {
-                    wait();
-                }catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+        return sendRequest(0x1,basicArguments);
+    }
+
+    // 先登记 future 再发送请求，这样响应来得再快也能找到对应的 future
+    // 发送失败的时候返回一个异常完成的 future
+    private CompletableFuture<BasicReturns> sendRequest(int type,BasicArguments arguments) {
+        CompletableFuture<BasicReturns> future=new CompletableFuture<>();
+        pendingReturns.put(arguments.getRid(),future);
+        try {
+            // 编码请求并组成完整的一帧，发送给服务器
+            connection.writeRequest(type,arguments);
+        } catch (IOException e) {
+            pendingReturns.remove(arguments.getRid());
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // 同步的方法使用这个方法来阻塞等待服务器的响应
+    private BasicReturns waitResult(CompletableFuture<BasicReturns> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[Channel] 等待响应的时候被中断！channelId="+channelId,e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw new IOException("[Channel] 请求失败！channelId="+channelId,e.getCause());
         }
-        // 读取成功之后，还需要把这个消息从哈希表中删除掉
-        basicReturnsMap.remove(rid);
-        return basicReturns;
     }
 
+    // 由 Connection 的扫描线程调用，收到响应之后完成对应的 future
     public void putReturns(BasicReturns basicReturns) {
-        basicReturnsMap.put(basicReturns.getRid(),basicReturns);
-        synchronized (this) {
-            // 当前也不知道有多少个线程在等待上述的这个响应
-            // 把所有的等待的线程都唤醒
-            notifyAll();
+        CompletableFuture<BasicReturns> future=pendingReturns.remove(basicReturns.getRid());
+        if(future==null) {
+            return;
+        }
+        future.complete(basicReturns);
+    }
+
+    // 连接断开了，还在等待响应的请求都不会再有响应了
+    public void failPendingReturns(IOException cause) {
+        for (String rid:pendingReturns.keySet()) {
+            CompletableFuture<BasicReturns> future=pendingReturns.remove(rid);
+            if(future!=null) {
+                future.completeExceptionally(cause);
+            }
         }
     }
 
@@ -85,24 +109,24 @@ public class Channel {
 
     // 关闭channel，给服务器发送一个 type=0x2 的请求
     public boolean close() throws IOException {
+        return waitResult(closeAsync()).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> closeAsync() {
         BasicArguments basicArguments=new BasicArguments();
         basicArguments.setRid(generateRid());
         basicArguments.setChannelId(channelId);
-        byte[] payload=BinaryTool.toBytes(basicArguments);
-
-        Request request=new Request();
-        request.setType(0x2);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(basicArguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x2,basicArguments);
     }
 
     // 创建交换机    type=0x3
     public boolean exchangeDeclare(String exchangeName, ExchangeType exchangeType, boolean durable, boolean autoDelete,
                                    Map<String,Object> arguments) throws IOException {
+        return waitResult(exchangeDeclareAsync(exchangeName,exchangeType,durable,autoDelete,arguments)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> exchangeDeclareAsync(String exchangeName, ExchangeType exchangeType, boolean durable, boolean autoDelete,
+                                   Map<String,Object> arguments) {
         ExchangeDeclareArguments exchangeDeclareArguments=new ExchangeDeclareArguments();
         exchangeDeclareArguments.setRid(generateRid());
         exchangeDeclareArguments.setChannelId(channelId);
@@ -111,39 +135,30 @@ public class Channel {
         exchangeDeclareArguments.setDurable(durable);
         exchangeDeclareArguments.setAutoDelete(autoDelete);
         exchangeDeclareArguments.setArguments(arguments);
-        byte[] payload=BinaryTool.toBytes(exchangeDeclareArguments);
-
-        Request request=new Request();
-        request.setType(0x3);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(exchangeDeclareArguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x3,exchangeDeclareArguments);
     }
 
     // 删除交换机
     public boolean exchangeDelete(String exchangeName) throws IOException {
+        return waitResult(exchangeDeleteAsync(exchangeName)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> exchangeDeleteAsync(String exchangeName) {
         ExchangeDeleteArguments arguments=new ExchangeDeleteArguments();
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setExchangeName(exchangeName);
-        byte[] payload=BinaryTool.toBytes(arguments);
-
-        Request request=new Request();
-        request.setType(0x4);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x4,arguments);
     }
 
     // 创建队列
     public boolean queueDeclare(String queueName,boolean durable,boolean exclusive,boolean autoDelete,
                                 Map<String,Object> arguments) throws IOException {
+        return waitResult(queueDeclareAsync(queueName,durable,exclusive,autoDelete,arguments)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> queueDeclareAsync(String queueName,boolean durable,boolean exclusive,boolean autoDelete,
+                                Map<String,Object> arguments) {
         QueueDeclareArguments queueDeclareArguments=new QueueDeclareArguments();
         queueDeclareArguments.setRid(generateRid());
         queueDeclareArguments.setChannelId(channelId);
@@ -152,76 +167,57 @@ public class Channel {
         queueDeclareArguments.setExclusive(exclusive);
         queueDeclareArguments.setAutoDelete(autoDelete);
         queueDeclareArguments.setArguments(arguments);
-        byte[] payload=BinaryTool.toBytes(queueDeclareArguments);
-
-        Request request=new Request();
-        request.setType(0x5);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(queueDeclareArguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x5,queueDeclareArguments);
     }
 
     // 删除队列
     public boolean queueDelete(String queueName) throws IOException {
+        return waitResult(queueDeleteAsync(queueName)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> queueDeleteAsync(String queueName) {
         QueueDeleteArguments arguments=new QueueDeleteArguments();
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
-        byte[] payload=BinaryTool.toBytes(arguments);
-
-        Request request=new Request();
-        request.setType(0x6);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x6,arguments);
     }
 
     // 创建绑定
     public boolean queueBind(String queueName,String exchangeName,String bindingKey) throws IOException {
+        return waitResult(queueBindAsync(queueName,exchangeName,bindingKey)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> queueBindAsync(String queueName,String exchangeName,String bindingKey) {
         QueueBindArguments arguments=new QueueBindArguments();
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setExchangeName(exchangeName);
         arguments.setBindingKey(bindingKey);
-        byte[] payload=BinaryTool.toBytes(arguments);
-        Request request=new Request();
-        request.setType(0x7);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x7,arguments);
     }
 
     // 解除绑定
     public boolean queueUnbind(String queueName,String exchangeName) throws IOException {
+        return waitResult(queueUnbindAsync(queueName,exchangeName)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> queueUnbindAsync(String queueName,String exchangeName) {
         QueueUnbindArguments arguments=new QueueUnbindArguments();
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setExchangeName(exchangeName);
-        byte[] payload=BinaryTool.toBytes(arguments);
-
-        Request request=new Request();
-        request.setType(0x8);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0x8,arguments);
     }
 
     // 发送消息
     public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties,byte[] body) throws IOException {
+        return waitResult(basicPublishAsync(exchangeName,routingKey,basicProperties,body)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties,byte[] body) {
         BasicPublishArguments arguments=new BasicPublishArguments();
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
@@ -229,20 +225,63 @@ public class Channel {
         arguments.setRoutingKey(routingKey);
         arguments.setBasicProperties(basicProperties);
         arguments.setBody(body);
-        byte[] payload=BinaryTool.toBytes(arguments);
+        return sendRequest(0x9,arguments);
+    }
+
+    // 批量发送消息，每个 BasicPublishArguments 只需要设置 exchangeName routingKey basicProperties body
+    // 所有消息在一个请求中发给服务器，返回每条消息是否发送成功
+    public boolean[] basicPublishBatch(List<BasicPublishArguments> entries) throws IOException {
+        BasicReturns basicReturns=waitResult(basicPublishBatchAsync(entries));
+        return ((BasicPublishBatchReturns) basicReturns).getResults();
+    }
+
+    public CompletableFuture<BasicReturns> basicPublishBatchAsync(List<BasicPublishArguments> entries) {
+        BasicPublishBatchArguments arguments=new BasicPublishBatchArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setEntries(entries);
+        return sendRequest(WireCodec.TYPE_PUBLISH_BATCH,arguments);
+    }
 
-        Request request=new Request();
-        request.setType(0x9);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+    // 拉模式消费：一次取走最多 maxMessages 条消息，队列是空的话服务器最多等待 maxWaitMs 毫秒，超时返回空的列表
+    // autoAck 为 false 的时候，取到的消息需要按照 messageId 或者投递标签确认；请求失败（比如队列不存在）返回 null
+    public List<BasicGetReturns.GetMessage> basicGet(String queueName,int maxMessages,long maxWaitMs,boolean autoAck) throws IOException {
+        BasicGetReturns basicGetReturns=(BasicGetReturns) waitResult(basicGetAsync(queueName,maxMessages,maxWaitMs,autoAck));
+        return basicGetReturns.isOk()?basicGetReturns.getMessages():null;
+    }
+
+    public CompletableFuture<BasicReturns> basicGetAsync(String queueName,int maxMessages,long maxWaitMs,boolean autoAck) {
+        BasicGetArguments arguments=new BasicGetArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setQueueName(queueName);
+        arguments.setMaxMessages(maxMessages);
+        arguments.setMaxWaitMs(maxWaitMs);
+        arguments.setAutoAck(autoAck);
+        return sendRequest(WireCodec.TYPE_GET,arguments);
+    }
+
+    // 设置预取额度：手动应答的时候，这个 channel 上最多有多少条/多少字节的消息已经投递了还没有确认，0 表示不限制
+    // 额度用完之后服务器暂停给这个 channel 推送消息，确认消息之后继续推送
+    public boolean basicQos(int prefetchCount,long prefetchBytes) throws IOException {
+        return waitResult(basicQosAsync(prefetchCount,prefetchBytes)).isOk();
+    }
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+    public CompletableFuture<BasicReturns> basicQosAsync(int prefetchCount,long prefetchBytes) {
+        BasicQosArguments arguments=new BasicQosArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setPrefetchCount(prefetchCount);
+        arguments.setPrefetchBytes(prefetchBytes);
+        return sendRequest(WireCodec.TYPE_QOS,arguments);
     }
 
     // 订阅消息
     public boolean basicConsume(String queueName,boolean autoAck,Consumer consumer) throws MqException, IOException {
+        return waitResult(basicConsumeAsync(queueName,autoAck,consumer)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> basicConsumeAsync(String queueName,boolean autoAck,Consumer consumer) throws MqException {
         // 先设置回调
         if(this.consumer!=null) {
             throw new MqException("该 channel已经设置过消费消息的回调了，不能重复设置！");
@@ -255,34 +294,49 @@ public class Channel {
         arguments.setConsumerTag(channelId);
         arguments.setQueueName(queueName);
         arguments.setAutoAck(autoAck);
-        byte[] payload=BinaryTool.toBytes(arguments);
-
-        Request request=new Request();
-        request.setType(0xa);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return sendRequest(0xa,arguments);
     }
 
     // 确认消息
     public boolean basicAck(String queueName,String messageId) throws IOException {
+        return waitResult(basicAckAsync(queueName,messageId)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> basicAckAsync(String queueName,String messageId) {
         BasicAckArguments arguments=new BasicAckArguments();
         arguments.setRid(generateRid());
         arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setMessageId(messageId);
-        byte[] payload=BinaryTool.toBytes(arguments);
+        return sendRequest(0xb,arguments);
+    }
 
-        Request request=new Request();
-        request.setType(0xb);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+    // 一次确认同一个队列中的若干条消息
+    public boolean basicAckBatch(String queueName,List<String> messageIds) throws IOException {
+        return waitResult(basicAckBatchAsync(queueName,messageIds)).isOk();
+    }
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns=waitResult(arguments.getRid());
-        return basicReturns.isOk();
+    public CompletableFuture<BasicReturns> basicAckBatchAsync(String queueName,List<String> messageIds) {
+        BasicAckBatchArguments arguments=new BasicAckBatchArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setQueueName(queueName);
+        arguments.setMessageIds(messageIds);
+        return sendRequest(WireCodec.TYPE_ACK_BATCH,arguments);
+    }
+
+    // 按照投递标签确认消息，multiple=true 表示确认这个 channel 上 deliveryTag 以及之前所有还没有确认的消息
+    // 投递标签通过 Consumer.handleDelivery(consumerTag,deliveryTag,basicProperties,body) 拿到
+    public boolean basicAck(long deliveryTag,boolean multiple) throws IOException {
+        return waitResult(basicAckAsync(deliveryTag,multiple)).isOk();
+    }
+
+    public CompletableFuture<BasicReturns> basicAckAsync(long deliveryTag,boolean multiple) {
+        BasicAckBatchArguments arguments=new BasicAckBatchArguments();
+        arguments.setRid(generateRid());
+        arguments.setChannelId(channelId);
+        arguments.setDeliveryTag(deliveryTag);
+        arguments.setMultiple(multiple);
+        return sendRequest(WireCodec.TYPE_ACK_BATCH,arguments);
     }
 }
@@ -1,9 +1,10 @@
 package com.example.mq.mqclient;
 
-import com.example.mq.common.BinaryTool;
+import com.example.mq.arguments.BasicArguments;
 import com.example.mq.common.MqException;
 import com.example.mq.common.Request;
 import com.example.mq.common.Response;
+import com.example.mq.common.WireCodec;
 import com.example.mq.returns.BasicReturns;
 import com.example.mq.returns.SubScribeReturns;
 import lombok.extern.slf4j.Slf4j;
@@ -28,14 +29,32 @@ public class Connection {
     private DataOutputStream dataOutputStream;
 
     private ExecutorService callbackPool=null;
+    // 和服务器协商好的 payload 编码版本
+    private int codecVersion=WireCodec.VERSION_SERIALIZABLE;
+    // 服务器资源告警，暂停处理发布消息的请求（收到服务器的阻塞通知之后设置，只有协商到支持阻塞通知的版本才会收到）
+    private volatile boolean blocked=false;
 
     public Connection(String host,int port) throws IOException {
+        this(host,port,true);
+    }
+
+    // binaryCodec 为 false 时不协商编码方式，和旧版本的服务器一样使用 Java 标准库序列化
+    public Connection(String host,int port,boolean binaryCodec) throws IOException {
         socket=new Socket(host,port);
         inputStream= socket.getInputStream();
         outputStream=socket.getOutputStream();
         dataInputStream=new DataInputStream(inputStream);
         dataOutputStream=new DataOutputStream(outputStream);
         callbackPool= Executors.newFixedThreadPool(4);
+        if(binaryCodec) {
+            try {
+                negotiate();
+            } catch (IOException e) {
+                callbackPool.shutdown();
+                socket.close();
+                throw e;
+            }
+        }
 
         // 创建一个扫描线程，由这个线程负责不停的从 socket 中读取响应数据，把这个响应数据再交给对应的 channel 负责处理
         Thread t=new Thread(()-> {
@@ -50,6 +69,9 @@ public class Connection {
             }  catch (IOException|ClassNotFoundException|MqException e) {
                 log.info("[Connection] 连接异常断开");
                 e.printStackTrace();
+            } finally {
+                // 不会再收到响应了，还在等待响应的请求直接失败，不能让调用者一直等下去
+                failPendingReturns(new IOException("[Connection] 连接已经断开！"));
             }
         });
         t.start();
@@ -59,6 +81,7 @@ public class Connection {
         // 关闭 Connection 释放上述资源
         try {
             callbackPool.shutdown();
+            failPendingReturns(new IOException("[Connection] 连接已经关闭！"));
             channelMap.clear();
             inputStream.close();
             outputStream.close();
@@ -68,11 +91,52 @@ public class Connection {
         }
     }
 
+    private void failPendingReturns(IOException cause) {
+        for (Channel channel:channelMap.values()) {
+            channel.failPendingReturns(cause);
+        }
+    }
+
+    // 服务器当前是否阻塞了发布消息，阻塞期间发布消息的请求要等到服务器解除告警才会有响应
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    // 在扫描线程启动之前，同步的和服务器协商编码方式
+    private void negotiate() throws IOException {
+        byte[] payload=WireCodec.encodeVersion(WireCodec.VERSION);
+        Request request=new Request();
+        request.setType(WireCodec.TYPE_NEGOTIATE);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+        writeRequest(request);
+        Response response=readResponse();
+        if(response.getType()!=WireCodec.TYPE_NEGOTIATE) {
+            throw new IOException("[Connection] 协商编码方式的响应错误！type="+response.getType());
+        }
+        codecVersion=WireCodec.decodeVersion(response.getPayload());
+        log.info("[Connection] 协商编码版本完成！codecVersion="+codecVersion);
+    }
+
+    // 按照协商好的编码方式编码请求，连同帧头一起一次写到 socket 中
+    // 多个 channel 可能在不同的线程中同时发送请求，写 socket 的时候要加锁，避免两个帧交错在一起
+    public void writeRequest(int type,BasicArguments arguments) throws IOException {
+        int length;
+        synchronized (dataOutputStream) {
+            length=WireCodec.writeRequestFrame(dataOutputStream,codecVersion,type,arguments);
+        }
+        log.info("[Connection] 发送请求！type="+type+", length="+length);
+    }
+
     // 使用这个方法来分别处理，当前的响应是一个针对控制请求的响应，还是服务器推送的消息
     private void dispatchResponse(Response response) throws IOException, ClassNotFoundException, MqException {
-        if(response.getType()==0xc) {
+        if(response.getType()==WireCodec.TYPE_BLOCKED) {
+            // 服务器主动发送的阻塞通知，不属于任何一个 channel
+            blocked=response.getPayload().length>0&&response.getPayload()[0]!=0;
+            log.info("[Connection] 服务器"+(blocked?"阻塞":"解除阻塞")+"发布消息！");
+        } else if(response.getType()==0xc) {
             // 服务器推送来的消息数据
-            SubScribeReturns subScribeReturns=(SubScribeReturns) BinaryTool.fromBytes(response.getPayload());
+            SubScribeReturns subScribeReturns=(SubScribeReturns) WireCodec.decodeReturns(codecVersion,response.getType(),response.getPayload());
             // 根据 channelId 找到对应的 channel 对象
             Channel channel=channelMap.get(subScribeReturns.getChannelId());
             if(channel==null) {
@@ -81,15 +145,15 @@ public class Connection {
             // 执行该 channel 对象内部的回调
             callbackPool.submit(()-> {
                 try {
-                    channel.getConsumer().handleDelivery(subScribeReturns.getConsumerTag(),subScribeReturns.getBasicProperties(),
-                            subScribeReturns.getBody());
+                    channel.getConsumer().handleDelivery(subScribeReturns.getConsumerTag(),subScribeReturns.getDeliveryTag(),
+                            subScribeReturns.getBasicProperties(),subScribeReturns.getBody());
                 } catch (MqException | IOException e) {
                     e.printStackTrace();
                 }
             });
         } else {
            // 当前响应是针对刚才的控制请求的响应
-            BasicReturns basicReturns=(BasicReturns) BinaryTool.fromBytes(response.getPayload());
+            BasicReturns basicReturns=WireCodec.decodeReturns(codecVersion,response.getType(),response.getPayload());
             // 把这个结果放到对应的 channel 的hash表中
             Channel channel=channelMap.get(basicReturns.getChannelId());
             if(channel==null) {
@@ -101,10 +165,9 @@ public class Connection {
 
     // 发送请求
     public void writeRequest(Request request) throws IOException {
-        dataOutputStream.writeInt(request.getType());
-        dataOutputStream.writeInt(request.getLength());
-        dataOutputStream.write(request.getPayload());
-        dataOutputStream.flush();
+        synchronized (dataOutputStream) {
+            WireCodec.writeFrame(dataOutputStream,request.getType(),request.getPayload());
+        }
         log.info("[Connection] 发送请求！type="+request.getType()+", length="+request.getLength());
     }
     // 读取响应
@@ -113,10 +176,8 @@ public class Connection {
         response.setType(dataInputStream.readInt());
         response.setLength(dataInputStream.readInt());
         byte[] payload=new byte[response.getLength()];
-        int n=dataInputStream.read(payload);
-        if(n!=response.getLength()) {
-            throw new IOException("读取的响应数据不完整！");
-        }
+        // 大的帧可能分成好几次才能到达，read 一次不一定能读满，这里要一直读到 length 个字节（读到 EOF 会抛出 EOFException）
+        dataInputStream.readFully(payload);
         response.setPayload(payload);
         log.info("[Connection] 收到响应！type="+response.getType()+",length="+response.getLength());
         return response;
@@ -10,6 +10,8 @@ public class ConnectionFactory {
     private String host;
     // broker server 的端口号
     private int port;
+    // 是否和服务器协商使用二进制编码，连接旧版本的服务器时设置成 false
+    private boolean binaryCodec=true;
 
     // 访问 broker server 的哪个虚拟主机
     // 下列几个属性暂时先都不搞了
@@ -18,7 +20,7 @@ public class ConnectionFactory {
     // private String password;
 
     public Connection newConnection() throws IOException {
-        Connection connection=new Connection(host,port);
+        Connection connection=new Connection(host,port,binaryCodec);
         return connection;
     }
 }
@@ -0,0 +1,177 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.common.ByteBufferOutputStream;
+import com.example.mq.common.MqMetrics;
+import com.example.mq.common.WireCodec;
+import com.example.mq.returns.BasicReturns;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * 客户端连接的发送队列，阻塞模式和 NIO 模式共用
+ * 一个连接上的响应和推送的消息，都先编码追加到 pendingBuffer 中，由同一时刻唯一的一个“写线程”统一写出去：
+ * 1. 追加帧的线程如果发现当前没有线程在写，自己就成为写线程，把 pendingBuffer 整个换出来，一次写出去
+ * 2. 写的过程中其他线程追加的帧，攒在另一个缓冲区中，不需要等待，这次写完之后由写线程在下一轮一起写出去
+ * 这样同一个连接上的帧不会交错，推送消息的线程也不会阻塞在 socket 上，并且消息推送得越密集，一次系统调用写出去的帧越多
+ * 指标 server.outbound.frames / server.outbound.writes 就是平均一次写出去多少帧
+ * 这两个计数器所有连接共用，每一帧都要累加，所以用 LongAdder 在类加载的时候注册一次，查看指标的时候才去求和
+ */
+public abstract class AbstractClientConnection implements ClientConnection {
+    private static final int BUFFER_INITIAL_CAPACITY=1024;
+    // 写完之后，超过这个大小的缓冲区就不保留了，避免大量连接各自占着一块大内存
+    private static final int BUFFER_MAX_RETAINED_CAPACITY=256*1024;
+    private static final LongAdder OUTBOUND_FRAMES=new LongAdder();
+    private static final LongAdder OUTBOUND_WRITES=new LongAdder();
+
+    static {
+        MqMetrics.gauge("server.outbound.frames",OUTBOUND_FRAMES::sum);
+        MqMetrics.gauge("server.outbound.writes",OUTBOUND_WRITES::sum);
+    }
+
+    private volatile int codecVersion=WireCodec.VERSION_SERIALIZABLE;
+    private volatile boolean publisher=false;
+
+    // 下面的成员都需要持有 bufferLock 才能访问，bufferLock 只在追加帧、交换缓冲区的时候短暂持有，写 socket 的时候不持有
+    private final ReentrantLock bufferLock=new ReentrantLock();
+    private ByteBufferOutputStream pendingBuffer=new ByteBufferOutputStream(BUFFER_INITIAL_CAPACITY);
+    // 写线程正在写的缓冲区写完之后会放回这里，下一轮和 pendingBuffer 交换
+    private ByteBufferOutputStream spareBuffer=new ByteBufferOutputStream(BUFFER_INITIAL_CAPACITY);
+    private boolean writing=false;
+    private IOException writeFailure=null;
+
+    @Override
+    public int getCodecVersion() {
+        return codecVersion;
+    }
+
+    @Override
+    public void setCodecVersion(int codecVersion) {
+        this.codecVersion=codecVersion;
+    }
+
+    @Override
+    public boolean isPublisher() {
+        return publisher;
+    }
+
+    @Override
+    public void markPublisher() {
+        publisher=true;
+    }
+
+    @Override
+    public void writeFrame(int type,byte[] payload) throws IOException {
+        boolean writer;
+        bufferLock.lock();
+        try {
+            checkWritable();
+            WireCodec.writeFrame(pendingBuffer,type,payload);
+            writer=becomeWriter();
+        } finally {
+            bufferLock.unlock();
+        }
+        OUTBOUND_FRAMES.increment();
+        if(writer) {
+            flushPending();
+        }
+    }
+
+    @Override
+    public void writeReturns(int type,BasicReturns returns) throws IOException {
+        boolean writer;
+        bufferLock.lock();
+        try {
+            checkWritable();
+            WireCodec.writeResponseFrame(pendingBuffer,codecVersion,type,returns);
+            writer=becomeWriter();
+        } finally {
+            bufferLock.unlock();
+        }
+        OUTBOUND_FRAMES.increment();
+        if(writer) {
+            flushPending();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if(writeFailure!=null) {
+            throw new IOException("[ClientConnection] 连接写入失败！address="+getRemoteAddress(),writeFailure);
+        }
+        if(isClosed()) {
+            throw new IOException("[ClientConnection] 连接已经关闭！address="+getRemoteAddress());
+        }
+    }
+
+    // 调用者持有 bufferLock，当前没有写线程的话，由调用者成为写线程
+    private boolean becomeWriter() {
+        if(writing) {
+            return false;
+        }
+        writing=true;
+        return true;
+    }
+
+    // 由写线程调用，把攒下来的帧一批一批地写出去，直到没有新的帧了
+    protected final void flushPending() throws IOException {
+        while (true) {
+            ByteBufferOutputStream batch;
+            bufferLock.lock();
+            try {
+                if(pendingBuffer.size()==0) {
+                    writing=false;
+                    return;
+                }
+                batch=pendingBuffer;
+                pendingBuffer=spareBuffer;
+                spareBuffer=null;
+            } finally {
+                bufferLock.unlock();
+            }
+            boolean completed;
+            try {
+                OUTBOUND_WRITES.increment();
+                completed=writeOut(batch);
+            } catch (IOException e) {
+                bufferLock.lock();
+                try {
+                    writeFailure=e;
+                    writing=false;
+                } finally {
+                    bufferLock.unlock();
+                }
+                throw e;
+            }
+            if(!completed) {
+                // 子类暂时写不完，等可以写的时候接着写，写完了调用 writeCompleted，期间一直是写线程
+                return;
+            }
+            recycle(batch);
+        }
+    }
+
+    // writeOut 返回 false 的一批数据写完之后，由子类调用，继续写之后攒下来的帧
+    protected final void writeCompleted(ByteBufferOutputStream batch) throws IOException {
+        recycle(batch);
+        flushPending();
+    }
+
+    private void recycle(ByteBufferOutputStream batch) {
+        bufferLock.lock();
+        try {
+            if(batch.capacity()>BUFFER_MAX_RETAINED_CAPACITY) {
+                spareBuffer=new ByteBufferOutputStream(BUFFER_INITIAL_CAPACITY);
+            } else {
+                batch.reset();
+                spareBuffer=batch;
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    // 把一批完整的帧写出去，全部写完返回 true
+    // 返回 false 表示暂时写不完（非阻塞的 socket 发送缓冲区满了），子类负责写完剩下的数据之后调用 writeCompleted
+    protected abstract boolean writeOut(ByteBufferOutputStream batch) throws IOException;
+}
@@ -4,6 +4,9 @@ import com.example.mq.arguments.*;
 import com.example.mq.common.*;
 import com.example.mq.mqserver.core.BasicProperties;
 import com.example.mq.mqserver.core.Exchange;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.returns.BasicGetReturns;
+import com.example.mq.returns.BasicPublishBatchReturns;
 import com.example.mq.returns.BasicReturns;
 import com.example.mq.returns.SubScribeReturns;
 import lombok.Data;
@@ -14,10 +17,18 @@ import org.springframework.boot.autoconfigure.couchbase.CouchbaseProperties;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -25,29 +36,63 @@ import java.util.concurrent.Executors;
 /*
  * 这个 BrokerServer 就是咱们消息队列本体服务器
  * 本质上就是一个 TCP的服务器
+ * 处理连接的方式由 mq.server.io-mode 决定：
+ * blocking 每个连接一个线程阻塞读取；nio 由 NioReactor 的几个 I/O 线程非阻塞地管理所有连接
+ * 内存或者磁盘触发资源告警（见 ResourceAlarm）的时候，发布消息的请求等到告警解除才处理，
+ * 阻塞模式下这个连接也就不再读取，NIO 模式下发布者连接暂停读取，同时给客户端发送阻塞通知（0x11）
  */
 @Data
 @Slf4j
 public class BrokerServer {
     private ServerSocket serverSocket=null;
+    // NIO 模式下接收连接的 channel，serverSocket 就是它对应的 socket
+    private ServerSocketChannel serverSocketChannel=null;
+    private IoMode ioMode=IoMode.BLOCKING;
+    private NioReactor nioReactor=null;
 
     // 当前考虑一个 BrokerServer 上只有一个 虚拟主机
-    private VirtualHost virtualHost=new VirtualHost("default");
+    private VirtualHost virtualHost=null;
+    // 内存、磁盘的资源告警，告警期间阻塞发布者
+    private ResourceAlarm resourceAlarm=null;
     // 使用这个 哈希表 表示当前的所有会话（也就是说有哪些客户端正在和咱们的服务器进行通信）
-    // 此处的 Key 是 channelId,value 为对应的 Socket对象
-    private ConcurrentHashMap<String, Socket> sessions=new ConcurrentHashMap<>();
+    // 此处的 Key 是 channelId,value 为对应的客户端连接
+    private ConcurrentHashMap<String, ClientConnection> sessions=new ConcurrentHashMap<>();
+    // 每个 channel 上投递出去的消息的投递标签，key 是 channelId
+    private ConcurrentHashMap<String, ChannelDeliveries> deliveries=new ConcurrentHashMap<>();
     // 引入一个线程池，来处理多个客户端的请求
     private ExecutorService executorService=null;
     // 引入一个 boolean 变量控制服务器是否继续运行
     private volatile boolean runnable=true;
 
     public BrokerServer(int port) throws IOException {
-        serverSocket=new ServerSocket(port);
+        this(port,IoMode.valueOf(MqConfig.getString("mq.server.io-mode",IoMode.BLOCKING.name()).toUpperCase()));
+    }
+
+    public BrokerServer(int port,IoMode ioMode) throws IOException {
+        this.ioMode=ioMode;
+        // 虚拟主机在构造的时候，会把硬盘上的数据都恢复到内存中，恢复完成之后才绑定端口
+        // 这样在恢复完成之前，客户端是连不上服务器的，不会看到恢复了一半的数据
+        virtualHost=new VirtualHost("default");
+        resourceAlarm=ResourceAlarm.fromConfig(virtualHost.getMemoryDataCenter()::getMessageBytes,new File("./data"));
+        resourceAlarm.addListener(this::notifyBlocked);
+        if(ioMode==IoMode.NIO) {
+            serverSocketChannel=ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(port));
+            serverSocket=serverSocketChannel.socket();
+        } else {
+            serverSocket=new ServerSocket(port);
+        }
     }
 
     public void start() throws IOException {
-        log.info("[BrokerServer] 启动！");
-        executorService= Executors.newCachedThreadPool();
+        log.info("[BrokerServer] 启动！ioMode="+ioMode);
+        // 打开了虚拟线程的话，每个连接（NIO 模式下是每批请求）都在一个虚拟线程中处理
+        executorService=VirtualThreads.newExecutor(Executors::newCachedThreadPool);
+        resourceAlarm.start();
+        if(ioMode==IoMode.NIO) {
+            startNio();
+            return;
+        }
         try {
             while (runnable) {
                 Socket clientSocket=serverSocket.accept();
@@ -62,30 +107,60 @@ public class BrokerServer {
         }
     }
 
+    // NIO 模式下，当前线程只负责阻塞地接收连接，然后交给 reactor，连接上的读写都由 reactor 的 I/O 线程负责
+    private void startNio() throws IOException {
+        int ioThreads=MqConfig.getInt("mq.server.io-threads",0);
+        if(ioThreads<=0) {
+            ioThreads=Runtime.getRuntime().availableProcessors();
+        }
+        nioReactor=new NioReactor(this,ioThreads,executorService);
+        nioReactor.start();
+        try {
+            while (runnable) {
+                SocketChannel channel=serverSocketChannel.accept();
+                nioReactor.register(channel);
+            }
+        } catch (ClosedChannelException e) {
+            log.info("[BrokerServer] 服务器停止运行！");
+        }
+    }
+
     // 一般来说停止服务器，就是直接kill掉对应进程就行了
     // 此处写一个单独的停止方法，主要用于单元测试
     public void stop() throws IOException {
         runnable=false;
         // 把线程池中的任务都放弃了，让线程都销毁
-        executorService.shutdown();
+        // start 可能还没来得及执行（比如单元测试中刚启动就停止），此时线程池还没有创建
+        if(executorService!=null) {
+            executorService.shutdown();
+        }
+        if(nioReactor!=null) {
+            nioReactor.stop();
+        }
+        // 放行还在等待告警解除的发布者
+        resourceAlarm.close();
         serverSocket.close();
+        virtualHost.close();
     }
 
     // 通过这个方法，来处理一个客户端的连接
     // 在这一个连接中，可能会涉及到多个请求和响应
     private void processConnection(Socket clientSocket) {
-        try (InputStream inputStream= clientSocket.getInputStream();
-             OutputStream outputStream= clientSocket.getOutputStream();){
-            // 这里需要按照特定格式来读取并解析，此时就需要用到 DataInputStream和 DataOutputStream
-            try (DataInputStream dataInputStream=new DataInputStream(inputStream);
-                 DataOutputStream dataOutputStream=new DataOutputStream(outputStream)){
+        SocketClientConnection connection=null;
+        try (InputStream inputStream= clientSocket.getInputStream()){
+            // 这里需要按照特定格式来读取并解析，此时就需要用到 DataInputStream
+            // 响应和推送的消息都通过 connection 加锁写回去，避免两个帧交错
+            connection=new SocketClientConnection(clientSocket);
+            try (DataInputStream dataInputStream=new DataInputStream(inputStream)){
                 while (true) {
                     // 1. 读取请求并解析
                     Request request=readRequest(dataInputStream);
                     // 2. 根据请求计算响应
-                    Response response=process(request,clientSocket);
-                    // 3. 把响应写回给客户端
-                    writeResponse(dataOutputStream,response);
+                    Response response=handleRequest(request,connection);
+                    // 3. 把响应写回给客户端（等待消息的 basicGet 之后再响应）
+                    if(response!=null) {
+                        connection.writeFrame(response.getType(),response.getPayload());
+                    }
                 }
             }
         } catch (EOFException | SocketException e) {
@@ -101,7 +176,9 @@ public class BrokerServer {
                 // 当连接处理完了。就需要记得关闭 socket
                 clientSocket.close();
                 // 一个 TCP连接中，可能包含多个 channel,需要把当前这个 socket 对应的所有 channel 也顺便清理掉
-                clearClosedSession(clientSocket);
+                if(connection!=null) {
+                    clearClosedSession(connection);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -113,37 +190,93 @@ public class BrokerServer {
         request.setType(dataInputStream.readInt());
         request.setLength(dataInputStream.readInt());
         byte[] payload=new byte[request.getLength()];
-        int n=dataInputStream.read(payload);
-        if(n!=request.getLength()) {
-            throw new IOException("读取请求格式出错！");
-        }
+        // 大的帧可能分成好几次才能到达，read 一次不一定能读满，这里要一直读到 length 个字节
+        dataInputStream.readFully(payload);
         request.setPayload(payload);
         return request;
     }
 
-    private void writeResponse(DataOutputStream dataOutputStream, Response response) throws IOException {
-        dataOutputStream.writeInt(response.getType());
-        dataOutputStream.writeInt(response.getLength());
-        dataOutputStream.write(response.getPayload());
-        // 这个刷新缓冲区也是重要的操作
-        dataOutputStream.flush();
+    // 阻塞模式和 NIO 模式共用的请求处理逻辑，返回需要写回给客户端的响应
+    // 返回 null 表示响应之后再写回（basicGet 在等待消息），不占用处理请求的线程
+    Response handleRequest(Request request,ClientConnection connection) throws IOException, ClassNotFoundException, MqException {
+        if(request.getType()==WireCodec.TYPE_NEGOTIATE) {
+            // 协商编码方式，不涉及 channel，直接响应
+            int codecVersion=negotiate(request);
+            connection.setCodecVersion(codecVersion);
+            return createNegotiateResponse(codecVersion);
+        }
+        if(request.getType()==0x9||request.getType()==WireCodec.TYPE_PUBLISH_BATCH) {
+            // 发布消息之前先看看有没有资源告警，有的话一直等到解除，这期间不会再读取这个连接上的后续请求
+            connection.markPublisher();
+            resourceAlarm.awaitUnblocked();
+            Response response=process(request,connection);
+            // 放进去的消息可能让内存超过高水位，不等后台检查，马上触发告警
+            resourceAlarm.checkMemory();
+            return response;
+        }
+        return process(request,connection);
+    }
+
+    boolean isPublishBlocked() {
+        return resourceAlarm.isBlocked();
+    }
+
+    // 资源告警状态变化的时候，通知所有支持阻塞通知的客户端，NIO 模式下同时暂停或者恢复发布者连接的读取
+    private void notifyBlocked(boolean blocked) {
+        if(nioReactor!=null) {
+            nioReactor.setPublishersPaused(blocked);
+        }
+        byte[] payload=new byte[]{(byte) (blocked?1:0)};
+        Set<ClientConnection> connections=Collections.newSetFromMap(new IdentityHashMap<>());
+        connections.addAll(sessions.values());
+        for (ClientConnection connection:connections) {
+            if(connection.getCodecVersion()<WireCodec.VERSION_BLOCKED_NOTICE||connection.isClosed()) {
+                continue;
+            }
+            try {
+                connection.writeFrame(WireCodec.TYPE_BLOCKED,payload);
+            } catch (IOException e) {
+                log.info("[BrokerServer] 发送阻塞通知失败！address="+connection.getRemoteAddress()+", "+e);
+            }
+        }
+    }
+
+    // 根据客户端支持的编码版本，选出双方都支持的版本
+    private int negotiate(Request request) throws IOException {
+        int clientVersion=WireCodec.decodeVersion(request.getPayload());
+        int version=clientVersion>=1?Math.min(clientVersion,WireCodec.VERSION):WireCodec.VERSION_SERIALIZABLE;
+        log.info("[BrokerServer] 协商编码版本！clientVersion="+clientVersion+", version="+version);
+        return version;
+    }
+
+    private Response createNegotiateResponse(int codecVersion) {
+        byte[] payload=WireCodec.encodeVersion(codecVersion);
+        Response response=new Response();
+        response.setType(WireCodec.TYPE_NEGOTIATE);
+        response.setLength(payload.length);
+        response.setPayload(payload);
+        return response;
     }
 
-    // 根据请求计算响应
-    private Response process(Request request, Socket clientSocket) throws IOException, ClassNotFoundException, MqException {
+    // 根据请求计算响应，按照这个连接上协商好的编码版本来编解码
+    private Response process(Request request, ClientConnection connection) throws IOException, ClassNotFoundException, MqException {
+        int codecVersion=connection.getCodecVersion();
         // 1. 把 request 中的 payload 做一个初步的解析
-        BasicArguments basicArguments=(BasicArguments) BinaryTool.fromBytes(request.getPayload());
+        BasicArguments basicArguments=WireCodec.decodeArguments(codecVersion,request.getType(),request.getPayload());
         log.info("[Request] rid="+basicArguments.getRid()+", channelId="+basicArguments.getChannelId()
           +", type="+request.getType()+", length="+request.getLength());
         // 2. 根据 type 的值，来进一步区分接下来这次请求要干啥
         boolean ok=true;
+        // 需要返回额外字段的请求，在这里构造自己的响应对象
+        BasicReturns basicReturns=new BasicReturns();
         if(request.getType()==0x1) {
             // 创建 channel
-            sessions.put(basicArguments.getChannelId(), clientSocket);
+            sessions.put(basicArguments.getChannelId(), connection);
             log.info("[BrokerServer] 创建 channel 完成！ channelId="+basicArguments.getChannelId());
         }else if(request.getType()==0x2) {
             // 销毁 channel
             sessions.remove(basicArguments.getChannelId());
+            deliveries.remove(basicArguments.getChannelId());
             log.info("[BrokerServer] 销毁 channel 完成！ channelId="+basicArguments.getChannelId());;
         }else if(request.getType()==0x3) {
             // 创建交换机,此时 payload 就是 ExchangeDeclareArguments对象了
@@ -172,17 +305,19 @@ public class BrokerServer {
                     arguments.getBasicProperties(), arguments.getBody());
         } else if (request.getType()==0xa) {
             BasicConsumeArguments arguments=(BasicConsumeArguments) basicArguments;
+            ChannelDeliveries channelDeliveries=deliveries.computeIfAbsent(arguments.getChannelId(),k -> new ChannelDeliveries());
             ok=virtualHost.basicConsume(arguments.getConsumerTag(), arguments.getQueueName(), arguments.isAutoAck(),
+                    channelDeliveries.getPrefetchCount(), channelDeliveries.getPrefetchBytes(),
                     new Consumer() {
                         // 这个回调函数要做的工作，就是把服务器收到的消息可以直接推送回对应的消费者客户端
                         @Override
                         public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws MqException, IOException {
                             // 先知道当前这个收到的消息，要发给哪个客户端
                             // 此处 consumerTag 其实是 channelId, 根据 channelId 去 sessions 中查询，就可以得到对应的
-                            // socket 对象了，从而可以往里面发送数据了
-                            // 1.根据 channelId 找到 socket 对象
-                            Socket clientSocket=sessions.get(consumerTag);
-                            if(clientSocket==null||clientSocket.isClosed()) {
+                            // 连接了，从而可以往里面发送数据了
+                            // 1.根据 channelId 找到连接
+                            ClientConnection clientConnection=sessions.get(consumerTag);
+                            if(clientConnection==null||clientConnection.isClosed()) {
                                 throw new MqException("[BrokerServer] 订阅消息的客户端已经关闭！");
                             }
                             // 2.构造响应数据
@@ -193,35 +328,58 @@ public class BrokerServer {
                             subScribeReturns.setConsumerTag(consumerTag);
                             subScribeReturns.setBasicProperties(basicProperties);
                             subScribeReturns.setBody(body);
-                            byte[] payload=BinaryTool.toBytes(subScribeReturns);
-                            Response response=new Response();
-                            // 0xc 表示服务器给消费者客户端推送的消息数据
-                            response.setType(0xc);
-                            // response 的 payload 就是一个 SubScribeReturns
-                            response.setLength(payload.length);
-                            response.setPayload(payload);
-                            // 3. 把数据写回给客户端
-                            //  注意！此处的 dataOutputStream 这个对象不能 close ！！！
-                            //  如果 把 dataOutputStream 关闭，就会直接把 clientSocket 里的 outputStream 也关了
-                            //  此时就无法继续往 socket 中写入后续数据了
-                            DataOutputStream dataOutputStream=new DataOutputStream(clientSocket.getOutputStream());
-                            writeResponse(dataOutputStream,response);
+                            // 写回给客户端之前分配投递标签，客户端收到之后才可能按照这个标签确认
+                            subScribeReturns.setDeliveryTag(channelDeliveries.register(arguments.getQueueName(),
+                                    basicProperties.getMessageId(),arguments.isAutoAck()));
+                            // 3. 把数据写回给客户端，0xc 表示服务器给消费者客户端推送的消息数据
+                            // SubScribeReturns 按照这个连接协商好的版本编码，放到连接的发送缓冲区中，和其他帧攒在一起由写线程一次写出去
+                            clientConnection.writeReturns(0xc,subScribeReturns);
                         }
                     });
         }else if(request.getType()==0xb) {
             // 调用 basicAck 确认消息
             BasicAckArguments arguments=(BasicAckArguments) basicArguments;
             ok=virtualHost.basicAck(arguments.getQueueName(),arguments.getMessageId());
+            ChannelDeliveries channelDeliveries=deliveries.get(arguments.getChannelId());
+            if(channelDeliveries!=null) {
+                channelDeliveries.removeByMessageId(arguments.getMessageId());
+            }
+        }else if(request.getType()==WireCodec.TYPE_ACK_BATCH) {
+            ok=ackBatch((BasicAckBatchArguments) basicArguments);
+        }else if(request.getType()==WireCodec.TYPE_QOS) {
+            // 记下 channel 的预取额度给之后订阅的消费者使用，已经订阅的消费者（consumerTag 就是 channelId）立即生效
+            BasicQosArguments arguments=(BasicQosArguments) basicArguments;
+            deliveries.computeIfAbsent(arguments.getChannelId(),k -> new ChannelDeliveries())
+                    .setQos(arguments.getPrefetchCount(),arguments.getPrefetchBytes());
+            ok=virtualHost.basicQos(arguments.getChannelId(),arguments.getPrefetchCount(),arguments.getPrefetchBytes());
+        }else if(request.getType()==WireCodec.TYPE_GET) {
+            // 拉模式消费，取到消息（或者等待超时）之后才把响应写回去，可能在别的线程中
+            BasicGetArguments arguments=(BasicGetArguments) basicArguments;
+            if(basicGet(arguments,connection)) {
+                return null;
+            }
+            // 失败的时候也按照 basicGet 的响应格式编码（消息条数为 0），客户端才能正常解码
+            ok=false;
+            basicReturns=new BasicGetReturns();
+        }else if(request.getType()==WireCodec.TYPE_PUBLISH_BATCH) {
+            // 批量发送消息，每条消息的结果都要告诉客户端
+            BasicPublishBatchArguments arguments=(BasicPublishBatchArguments) basicArguments;
+            boolean[] results=virtualHost.basicPublishBatch(arguments.getEntries());
+            for (boolean result:results) {
+                ok&=result;
+            }
+            BasicPublishBatchReturns basicPublishBatchReturns=new BasicPublishBatchReturns();
+            basicPublishBatchReturns.setResults(results);
+            basicReturns=basicPublishBatchReturns;
         }else {
             // 当前的 type 是非法的
             throw new MqException("[BrokerServer] 未知的 type! type="+request.getType());
         }
         // 3. 构造响应
-        BasicReturns basicReturns=new BasicReturns();
         basicReturns.setChannelId(basicArguments.getChannelId());
         basicReturns.setRid(basicArguments.getRid());
         basicReturns.setOk(ok);
-        byte[] payload=BinaryTool.toBytes(basicReturns);
+        byte[] payload=WireCodec.encodeReturns(codecVersion,basicReturns);
         Response response=new Response();
         response.setType(request.getType());
         response.setLength(payload.length);
@@ -231,11 +389,69 @@ public class BrokerServer {
         return response;
     }
 
-    private void clearClosedSession(Socket clientSocket) {
-        // 这里要做的事情，主要就是遍历上述 sessions hash 表，把该被关闭的 socket对应的键值对，统统删掉
+    private boolean basicGet(BasicGetArguments arguments,ClientConnection connection) {
+        ChannelDeliveries channelDeliveries=deliveries.computeIfAbsent(arguments.getChannelId(),k -> new ChannelDeliveries());
+        return virtualHost.basicGet(arguments.getQueueName(),arguments.getMaxMessages(),arguments.getMaxWaitMs(),
+                arguments.isAutoAck(),messages -> {
+                    List<BasicGetReturns.GetMessage> getMessages=new ArrayList<>(messages.size());
+                    for (Message message:messages) {
+                        BasicGetReturns.GetMessage getMessage=new BasicGetReturns.GetMessage();
+                        getMessage.setBasicProperties(message.getBasicProperties());
+                        getMessage.setBody(message.getBody());
+                        getMessage.setDeliveryTag(channelDeliveries.register(arguments.getQueueName(),
+                                message.getMessageId(),arguments.isAutoAck()));
+                        getMessages.add(getMessage);
+                    }
+                    BasicGetReturns basicGetReturns=new BasicGetReturns();
+                    basicGetReturns.setRid(arguments.getRid());
+                    basicGetReturns.setChannelId(arguments.getChannelId());
+                    basicGetReturns.setOk(true);
+                    basicGetReturns.setMessages(getMessages);
+                    if(connection.isClosed()) {
+                        throw new MqException("[BrokerServer] basicGet 的客户端已经关闭！channelId="+arguments.getChannelId());
+                    }
+                    connection.writeReturns(WireCodec.TYPE_GET,basicGetReturns);
+                    log.info("[Response] rid="+arguments.getRid()+", channelId="+arguments.getChannelId()
+                            +", type="+WireCodec.TYPE_GET+", messages="+getMessages.size());
+                });
+    }
+
+    // 批量确认消息：按照 messageId 和按照投递标签要确认的消息，按照队列分组，每个队列一起确认
+    private boolean ackBatch(BasicAckBatchArguments arguments) {
+        ChannelDeliveries channelDeliveries=deliveries.get(arguments.getChannelId());
+        Map<String,List<String>> messageIdsByQueue=new LinkedHashMap<>();
+        if(arguments.getMessageIds()!=null&&!arguments.getMessageIds().isEmpty()) {
+            messageIdsByQueue.put(arguments.getQueueName(),new ArrayList<>(arguments.getMessageIds()));
+            if(channelDeliveries!=null) {
+                for (String messageId:arguments.getMessageIds()) {
+                    channelDeliveries.removeByMessageId(messageId);
+                }
+            }
+        }
+        boolean ok=true;
+        if(arguments.getDeliveryTag()>0) {
+            List<ChannelDeliveries.Delivery> acked=channelDeliveries==null?Collections.emptyList()
+                    :channelDeliveries.removeByTag(arguments.getDeliveryTag(),arguments.isMultiple());
+            if(acked.isEmpty()) {
+                log.info("[BrokerServer] 要确认的投递标签不存在！channelId="+arguments.getChannelId()
+                        +", deliveryTag="+arguments.getDeliveryTag());
+                ok=false;
+            }
+            for (ChannelDeliveries.Delivery delivery:acked) {
+                messageIdsByQueue.computeIfAbsent(delivery.getQueueName(),k -> new ArrayList<>()).add(delivery.getMessageId());
+            }
+        }
+        for (Map.Entry<String,List<String>> entry:messageIdsByQueue.entrySet()) {
+            ok&=virtualHost.basicAckBatch(entry.getKey(),entry.getValue());
+        }
+        return ok;
+    }
+
+    void clearClosedSession(ClientConnection connection) {
+        // 这里要做的事情，主要就是遍历上述 sessions hash 表，把该被关闭的连接对应的键值对，统统删掉
         List<String> toDeleteChannelId=new ArrayList<>();
-        for (Map.Entry<String,Socket> entry:sessions.entrySet()) {
-            if(entry.getValue()==clientSocket) {
+        for (Map.Entry<String,ClientConnection> entry:sessions.entrySet()) {
+            if(entry.getValue()==connection) {
                 // 不能在这里直接删除！！！
                 // 边遍历 边删除是使用集合类的大忌，会造成迭代器的失效
                 // sessions.remove(entry.getKey());
@@ -244,6 +460,7 @@ public class BrokerServer {
         }
         for (String channelId:toDeleteChannelId) {
             sessions.remove(channelId);
+            deliveries.remove(channelId);
         }
         log.info("[BrokerServer] 清理 session完成！ 被清理的 channelId="+toDeleteChannelId);
     }
@@ -0,0 +1,118 @@
+package com.example.mq.mqserver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * 一个 channel 上投递出去的消息的投递标签（deliveryTag）
+ * 每投递一条消息，标签加一，客户端可以按照标签确认消息，multiple=true 表示确认这个标签以及之前所有还没有确认的消息（参考 AMQP）
+ * 只记录手动应答、还没有确认的消息；按照 messageId 确认的消息也要从这里删掉，不然会一直留在这里
+ * 这里还记录了 channel 的预取额度（basicQos），之后在这个 channel 上订阅的消费者使用这个额度
+ */
+public class ChannelDeliveries {
+    // 一条还没有确认的投递
+    public static class Delivery {
+        private final String queueName;
+        private final String messageId;
+
+        Delivery(String queueName,String messageId) {
+            this.queueName=queueName;
+            this.messageId=messageId;
+        }
+
+        public String getQueueName() {
+            return queueName;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+    }
+
+    private volatile int prefetchCount=0;
+    private volatile long prefetchBytes=0;
+
+    private final ReentrantLock lock=new ReentrantLock();
+    // 下面的成员都需要持有 lock 才能访问
+    private long lastDeliveryTag=0;
+    private final TreeMap<Long,Delivery> unacked=new TreeMap<>();
+    private final HashMap<String,Long> tagsByMessageId=new HashMap<>();
+
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    public long getPrefetchBytes() {
+        return prefetchBytes;
+    }
+
+    public void setQos(int prefetchCount,long prefetchBytes) {
+        this.prefetchCount=prefetchCount;
+        this.prefetchBytes=prefetchBytes;
+    }
+
+    // 分配下一个投递标签，需要手动应答的消息记录下来等待确认
+    public long register(String queueName,String messageId,boolean autoAck) {
+        lock.lock();
+        try {
+            long deliveryTag=++lastDeliveryTag;
+            if(!autoAck) {
+                unacked.put(deliveryTag,new Delivery(queueName,messageId));
+                tagsByMessageId.put(messageId,deliveryTag);
+            }
+            return deliveryTag;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 按照投递标签取出要确认的消息，multiple=true 的时候包括这个标签之前所有还没有确认的消息
+    public List<Delivery> removeByTag(long deliveryTag,boolean multiple) {
+        lock.lock();
+        try {
+            List<Delivery> deliveries=new ArrayList<>();
+            if(multiple) {
+                Map<Long,Delivery> head=unacked.headMap(deliveryTag,true);
+                deliveries.addAll(head.values());
+                head.clear();
+            } else {
+                Delivery delivery=unacked.remove(deliveryTag);
+                if(delivery!=null) {
+                    deliveries.add(delivery);
+                }
+            }
+            for (Delivery delivery:deliveries) {
+                tagsByMessageId.remove(delivery.getMessageId());
+            }
+            return deliveries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 按照 messageId 确认的消息，不再等待按照标签确认
+    public void removeByMessageId(String messageId) {
+        lock.lock();
+        try {
+            Long deliveryTag=tagsByMessageId.remove(messageId);
+            if(deliveryTag!=null) {
+                unacked.remove(deliveryTag);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int unackedCount() {
+        lock.lock();
+        try {
+            return unacked.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.returns.BasicReturns;
+
+import java.io.IOException;
+
+/*
+ * 服务器这一侧的一个客户端连接，BrokerServer 通过它给客户端写响应、推送消息
+ * 阻塞模式下包装的是 Socket（SocketClientConnection），NIO 模式下包装的是 SocketChannel（NioClientConnection）
+ * 一个连接上的响应和推送可能来自不同的线程，实现类需要保证一个帧是完整写出去的，不会和别的帧交错
+ */
+public interface ClientConnection {
+    // 这个连接上协商好的 payload 编码版本
+    int getCodecVersion();
+
+    void setCodecVersion(int codecVersion);
+
+    // 写一个已经编码好 payload 的帧
+    void writeFrame(int type,byte[] payload) throws IOException;
+
+    // 按照协商好的编码版本编码 returns，组成一帧写出去
+    void writeReturns(int type,BasicReturns returns) throws IOException;
+
+    boolean isClosed();
+
+    // 这个连接上是否发布过消息，服务器资源告警的时候只阻塞发布者
+    boolean isPublisher();
+
+    void markPublisher();
+
+    // 客户端的地址，用于打印日志
+    String getRemoteAddress();
+}
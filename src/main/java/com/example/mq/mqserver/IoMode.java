@@ -0,0 +1,11 @@
+package com.example.mq.mqserver;
+
+/*
+ * BrokerServer 处理客户端连接的方式
+ */
+public enum IoMode {
+    // 每个连接一个线程，阻塞读取请求
+    BLOCKING,
+    // 少量的 I/O 线程通过 Selector 管理所有连接，非阻塞读写，请求交给线程池处理
+    NIO
+}
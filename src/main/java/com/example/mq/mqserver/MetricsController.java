@@ -0,0 +1,18 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.common.MqMetrics;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+/*
+ * 通过 http 接口，对外提供服务器内部的运行指标
+ */
+@RestController
+public class MetricsController {
+    @GetMapping("/metrics")
+    public Map<String,Long> metrics() {
+        return MqMetrics.snapshot();
+    }
+}
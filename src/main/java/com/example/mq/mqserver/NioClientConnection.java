@@ -0,0 +1,192 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.common.ByteBufferOutputStream;
+import com.example.mq.common.Request;
+import com.example.mq.common.WireCodec;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * NIO 模式下的客户端连接，每个连接有自己的读缓冲区和写缓冲区
+ * 1. 读：由所属的 I/O 线程在可读的时候读到 readBuffer 中，按照 type(4) length(4) payload 切分出完整的请求帧，
+ *    放到 pendingRequests 里，再交给线程池按顺序处理，半个帧留在缓冲区里等下次可读
+ * 2. 写：处理请求、推送消息的线程把帧追加到发送缓冲区中，由写线程直接写到 channel 里（见 AbstractClientConnection），
+ *    socket 的发送缓冲区满了写不完的时候，剩下的数据留在 inflightBuffer 中，让 I/O 线程关注 OP_WRITE，可写的时候接着写
+ * 3. 服务器资源告警的时候，发布者连接暂停读取（不再关注 OP_READ），数据留在 socket 的接收缓冲区里，由 TCP 把发布者挡住
+ */
+public class NioClientConnection extends AbstractClientConnection {
+    // 读缓冲区的初始大小，一个帧放不下的时候再扩容，帧处理完之后缩回来
+    private static final int READ_BUFFER_INITIAL_CAPACITY=16*1024;
+
+    private final SocketChannel channel;
+    private final NioReactor.IoThread ioThread;
+    // 连接关闭之后就拿不到地址了，提前记下来用于打印日志
+    private final String remoteAddress;
+    private volatile SelectionKey selectionKey;
+
+    // 只有 I/O 线程会访问
+    private ByteBuffer readBuffer=ByteBuffer.allocate(READ_BUFFER_INITIAL_CAPACITY);
+    private boolean readPaused=false;
+
+    // 一次没有写完、在等 OP_WRITE 的一批数据，以及它对应的 ByteBuffer（记录写到哪里了）
+    private volatile ByteBufferOutputStream inflightBatch=null;
+    private volatile ByteBuffer inflightBuffer=null;
+
+    // 已经读到的、还没有处理的请求，同一个连接上的请求同一时刻只有一个线程在处理，保证按顺序处理
+    private final ConcurrentLinkedQueue<Request> pendingRequests=new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled=new AtomicBoolean(false);
+    private final AtomicBoolean closed=new AtomicBoolean(false);
+
+    public NioClientConnection(SocketChannel channel,NioReactor.IoThread ioThread) {
+        this.channel=channel;
+        this.ioThread=ioThread;
+        Socket socket=channel.socket();
+        this.remoteAddress=socket.getInetAddress()+":"+socket.getPort();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey=selectionKey;
+    }
+
+    // 从 channel 中读取数据并切分出完整的请求帧，返回新读到的请求个数，读到 EOF 返回 -1
+    int read() throws IOException {
+        int n=channel.read(readBuffer);
+        if(n<0) {
+            return -1;
+        }
+        readBuffer.flip();
+        int count=0;
+        int frameSize=0;
+        while (readBuffer.remaining()>=WireCodec.FRAME_HEADER_SIZE) {
+            int position=readBuffer.position();
+            int type=readBuffer.getInt(position);
+            int length=readBuffer.getInt(position+4);
+            if(length<0) {
+                throw new IOException("[NioClientConnection] 读取请求格式出错！type="+type+", length="+length);
+            }
+            frameSize=WireCodec.FRAME_HEADER_SIZE+length;
+            if(readBuffer.remaining()<frameSize) {
+                break;
+            }
+            byte[] payload=new byte[length];
+            readBuffer.position(position+WireCodec.FRAME_HEADER_SIZE);
+            readBuffer.get(payload);
+            Request request=new Request();
+            request.setType(type);
+            request.setLength(length);
+            request.setPayload(payload);
+            pendingRequests.add(request);
+            count++;
+            frameSize=0;
+        }
+        if(!readBuffer.hasRemaining()&&readBuffer.capacity()>READ_BUFFER_INITIAL_CAPACITY) {
+            // 大帧已经处理完了，缓冲区缩回初始大小
+            readBuffer=ByteBuffer.allocate(READ_BUFFER_INITIAL_CAPACITY);
+        } else if(frameSize>readBuffer.capacity()) {
+            // 剩下的半个帧比整个缓冲区还大，扩容到正好能放下这一帧
+            ByteBuffer newBuffer=ByteBuffer.allocate(frameSize);
+            newBuffer.put(readBuffer);
+            readBuffer=newBuffer;
+        } else {
+            readBuffer.compact();
+        }
+        return count;
+    }
+
+    Request pollRequest() {
+        return pendingRequests.poll();
+    }
+
+    // 没有线程在处理这个连接的请求的时候，返回 true，由调用者负责处理
+    boolean trySchedule() {
+        return !pendingRequests.isEmpty()&&scheduled.compareAndSet(false,true);
+    }
+
+    void finishSchedule() {
+        scheduled.set(false);
+    }
+
+    @Override
+    protected boolean writeOut(ByteBufferOutputStream batch) throws IOException {
+        ByteBuffer buffer=batch.toByteBuffer();
+        channel.write(buffer);
+        if(!buffer.hasRemaining()) {
+            return true;
+        }
+        inflightBatch=batch;
+        inflightBuffer=buffer;
+        // 关注的事件只在 I/O 线程中修改，否则可能会和正在阻塞的 select 互相等待
+        ioThread.execute(this::updateInterestOps);
+        return false;
+    }
+
+    // I/O 线程在 channel 可写的时候调用，写完了就接着写这期间攒下来的帧
+    void handleWritable() throws IOException {
+        ByteBuffer buffer=inflightBuffer;
+        if(buffer==null) {
+            return;
+        }
+        channel.write(buffer);
+        if(buffer.hasRemaining()) {
+            return;
+        }
+        ByteBufferOutputStream batch=inflightBatch;
+        inflightBatch=null;
+        inflightBuffer=null;
+        updateInterestOps();
+        writeCompleted(batch);
+    }
+
+    // 由 I/O 线程调用，暂停或者恢复读取
+    void setReadPaused(boolean readPaused) {
+        if(this.readPaused==readPaused) {
+            return;
+        }
+        this.readPaused=readPaused;
+        updateInterestOps();
+    }
+
+    // 由 I/O 线程调用，根据是否暂停读取、是否有没写完的数据，计算需要关注的事件
+    private void updateInterestOps() {
+        if(selectionKey==null||!selectionKey.isValid()) {
+            return;
+        }
+        int ops=readPaused?0:SelectionKey.OP_READ;
+        if(inflightBuffer!=null) {
+            ops|=SelectionKey.OP_WRITE;
+        }
+        selectionKey.interestOps(ops);
+    }
+
+    // 只有第一次调用返回 true
+    boolean close() throws IOException {
+        if(!closed.compareAndSet(false,true)) {
+            return false;
+        }
+        if(selectionKey!=null) {
+            selectionKey.cancel();
+        }
+        channel.close();
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+}
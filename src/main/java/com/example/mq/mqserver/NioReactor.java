@@ -0,0 +1,219 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.common.MqException;
+import com.example.mq.common.Request;
+import com.example.mq.common.Response;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * NIO 模式下管理所有客户端连接的 reactor
+ * 1. BrokerServer 接收到新连接之后，轮流分配给这里的某一个 I/O 线程，之后这个连接的读写事件都由这个 I/O 线程负责
+ * 2. 每个 I/O 线程一个 Selector，只做非阻塞的读写和帧的切分，不执行具体的请求
+ * 3. 切分出来的请求交给 workerPool 处理（处理请求可能要等刷盘，不能占着 I/O 线程），同一个连接上的请求按顺序处理
+ * 4. 服务器资源告警期间，发布者连接暂停读取，告警解除之后恢复，消费者连接不受影响（还要靠它们确认消息来释放内存）
+ * 这样连接数再多，也只占用 I/O 线程 + 正在处理请求的线程，不再是每个连接一个线程
+ */
+@Slf4j
+public class NioReactor {
+    private final BrokerServer brokerServer;
+    private final ExecutorService workerPool;
+    private final IoThread[] ioThreads;
+    private final AtomicInteger nextIoThread=new AtomicInteger(0);
+    private volatile boolean runnable=true;
+
+    public NioReactor(BrokerServer brokerServer,int ioThreadCount,ExecutorService workerPool) throws IOException {
+        this.brokerServer=brokerServer;
+        this.workerPool=workerPool;
+        ioThreads=new IoThread[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++) {
+            ioThreads[i]=new IoThread("mq-nio-io-"+i);
+        }
+    }
+
+    public void start() {
+        for (IoThread ioThread:ioThreads) {
+            ioThread.start();
+        }
+        log.info("[NioReactor] 启动！ioThreads="+ioThreads.length);
+    }
+
+    public void stop() {
+        runnable=false;
+        for (IoThread ioThread:ioThreads) {
+            ioThread.selector.wakeup();
+        }
+    }
+
+    // 资源告警状态变化的时候调用，暂停或者恢复所有发布者连接的读取
+    public void setPublishersPaused(boolean paused) {
+        for (IoThread ioThread:ioThreads) {
+            ioThread.execute(() -> {
+                for (SelectionKey key:ioThread.selector.keys()) {
+                    NioClientConnection connection=(NioClientConnection) key.attachment();
+                    if(connection.isPublisher()) {
+                        connection.setReadPaused(paused);
+                    }
+                }
+            });
+        }
+    }
+
+    // 把一个新接收的连接分配给某个 I/O 线程
+    public void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        IoThread ioThread=ioThreads[Math.floorMod(nextIoThread.getAndIncrement(),ioThreads.length)];
+        NioClientConnection connection=new NioClientConnection(channel,ioThread);
+        // 注册需要在 I/O 线程中进行，否则可能会和正在阻塞的 select 互相等待
+        ioThread.execute(() -> {
+            try {
+                connection.setSelectionKey(channel.register(ioThread.selector,SelectionKey.OP_READ,connection));
+            } catch (IOException e) {
+                log.info("[NioReactor] 注册连接失败！address="+connection.getRemoteAddress());
+                e.printStackTrace();
+                closeConnection(connection);
+            }
+        });
+    }
+
+    // 这个连接上有新的请求，没有线程在处理的话，交给线程池处理
+    private void dispatch(NioClientConnection connection) {
+        if(!connection.trySchedule()) {
+            return;
+        }
+        try {
+            workerPool.submit(() -> processRequests(connection));
+        } catch (RejectedExecutionException e) {
+            // 服务器正在停止
+            closeConnection(connection);
+        }
+    }
+
+    private void processRequests(NioClientConnection connection) {
+        while (true) {
+            Request request;
+            while ((request=connection.pollRequest())!=null) {
+                if(connection.isClosed()) {
+                    return;
+                }
+                try {
+                    Response response=brokerServer.handleRequest(request,connection);
+                    if(response!=null) {
+                        connection.writeFrame(response.getType(),response.getPayload());
+                    }
+                } catch (IOException|ClassNotFoundException|MqException e) {
+                    log.info("[NioReactor] connection 出现异常！address="+connection.getRemoteAddress());
+                    e.printStackTrace();
+                    closeConnection(connection);
+                    return;
+                }
+            }
+            connection.finishSchedule();
+            // 释放之后 I/O 线程可能又放进来了新的请求，并且因为还没释放而没有提交，这里需要再检查一次
+            if(!connection.trySchedule()) {
+                return;
+            }
+        }
+    }
+
+    private void closeConnection(NioClientConnection connection) {
+        try {
+            if(connection.close()) {
+                log.info("[NioReactor] connection 关闭！客户端的地址："+connection.getRemoteAddress());
+                // 一个 TCP连接中，可能包含多个 channel,需要把当前这个连接对应的所有 channel 也顺便清理掉
+                brokerServer.clearClosedSession(connection);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    class IoThread extends Thread {
+        private final Selector selector;
+        // 其他线程需要 I/O 线程执行的操作（注册连接、修改关注的事件）
+        private final ConcurrentLinkedQueue<Runnable> tasks=new ConcurrentLinkedQueue<>();
+
+        IoThread(String name) throws IOException {
+            super(name);
+            selector=Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (runnable) {
+                    selector.select();
+                    runTasks();
+                    for (SelectionKey key:selector.selectedKeys()) {
+                        handleKey(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                log.info("[NioReactor] I/O 线程出现异常！");
+                e.printStackTrace();
+            } finally {
+                // 服务器停止了，关闭这个线程上的所有连接
+                for (SelectionKey key:selector.keys()) {
+                    closeConnection((NioClientConnection) key.attachment());
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task=tasks.poll())!=null) {
+                try {
+                    task.run();
+                } catch (CancelledKeyException e) {
+                    // 连接已经关闭了，忽略
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            NioClientConnection connection=(NioClientConnection) key.attachment();
+            try {
+                if(key.isValid()&&key.isReadable()) {
+                    int count=connection.read();
+                    if(count<0) {
+                        closeConnection(connection);
+                        return;
+                    }
+                    if(count>0) {
+                        // 告警期间才开始发布消息的连接，在这里暂停读取
+                        if(connection.isPublisher()&&brokerServer.isPublishBlocked()) {
+                            connection.setReadPaused(true);
+                        }
+                        dispatch(connection);
+                    }
+                }
+                if(key.isValid()&&key.isWritable()) {
+                    connection.handleWritable();
+                }
+            } catch (IOException|CancelledKeyException e) {
+                log.info("[NioReactor] connection 读写出现异常！address="+connection.getRemoteAddress()+", "+e);
+                closeConnection(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.common.MqConfig;
+import com.example.mq.common.MqMetrics;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/*
+ * 服务器的资源告警（参考 RabbitMQ 的内存/磁盘告警）
+ * 1. 内存：消息中心中的消息占用的内存超过高水位之后触发告警，降到低水位以下才解除，两个水位之间不会来回切换
+ * 2. 磁盘：数据目录所在磁盘的可用空间低于 free-limit 时触发告警，恢复之后解除
+ * 任意一个告警触发的时候，发布者被阻塞（BrokerServer 不再处理发布消息的请求，也不再读取发布者连接上的数据），
+ * 消费者的投递、确认照常进行，这样消息被消费掉之后内存降下来，告警就会解除
+ * 指标 server.memory.used / server.memory.blocked / server.disk.free / server.disk.blocked 反映当前的状态
+ */
+@Slf4j
+public class ResourceAlarm {
+    // 状态发生变化（阻塞/解除阻塞）的时候通知出去
+    public interface Listener {
+        void onBlockedChanged(boolean blocked);
+    }
+
+    private static final double DEFAULT_HIGH_WATERMARK=0.4;
+    private static final long DEFAULT_DISK_FREE_LIMIT=50L*1024*1024;
+    private static final long DEFAULT_CHECK_INTERVAL_MS=100;
+
+    private final LongSupplier memoryUsed;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final File diskDir;
+    private final long diskFreeLimit;
+    private final List<Listener> listeners=new CopyOnWriteArrayList<>();
+
+    // 下面的成员都需要持有 lock 才能修改，阻塞的发布者在 unblocked 上等待
+    private final ReentrantLock lock=new ReentrantLock();
+    private final Condition unblocked=lock.newCondition();
+    private volatile boolean memoryBlocked=false;
+    private volatile boolean diskBlocked=false;
+    private volatile boolean closed=false;
+
+    private ScheduledExecutorService scheduler=null;
+    // 通知监听者的线程：监听者可能要给每个连接写数据（会被不读数据的客户端卡住），所以不能在 lock 里执行
+    // 只用一个线程按照状态变化的顺序依次通知，保证客户端先后收到的阻塞/解除阻塞通知和状态变化的顺序一致
+    private final ExecutorService notifier=Executors.newSingleThreadExecutor(r -> {
+        Thread t=new Thread(r,"resource-alarm-notifier");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 从配置文件中读取水位：不大于 1 的值表示占最大堆内存的比例，大于 1 的值表示字节数；低水位不配置的话取高水位的 80%
+    public static ResourceAlarm fromConfig(LongSupplier memoryUsed,File diskDir) {
+        long maxMemory=Runtime.getRuntime().maxMemory();
+        long highWatermark=toBytes(MqConfig.getDouble("mq.server.memory.high-watermark",DEFAULT_HIGH_WATERMARK),maxMemory);
+        double low=MqConfig.getDouble("mq.server.memory.low-watermark",0.0);
+        long lowWatermark=low<=0?highWatermark/5*4:toBytes(low,maxMemory);
+        long diskFreeLimit=MqConfig.getLong("mq.server.disk.free-limit",DEFAULT_DISK_FREE_LIMIT);
+        return new ResourceAlarm(memoryUsed,highWatermark,lowWatermark,diskDir,diskFreeLimit);
+    }
+
+    private static long toBytes(double watermark,long maxMemory) {
+        return watermark<=1?(long) (maxMemory*watermark):(long) watermark;
+    }
+
+    // diskDir 为 null 的时候不检查磁盘
+    public ResourceAlarm(LongSupplier memoryUsed,long highWatermark,long lowWatermark,File diskDir,long diskFreeLimit) {
+        this.memoryUsed=memoryUsed;
+        this.highWatermark=highWatermark;
+        this.lowWatermark=Math.min(lowWatermark,highWatermark);
+        this.diskDir=diskDir;
+        this.diskFreeLimit=diskFreeLimit;
+        MqMetrics.set("server.memory.high-watermark",highWatermark);
+        MqMetrics.set("server.memory.blocked",0);
+        MqMetrics.set("server.disk.blocked",0);
+        log.info("[ResourceAlarm] highWatermark="+highWatermark+", lowWatermark="+this.lowWatermark
+                +", diskFreeLimit="+diskFreeLimit);
+    }
+
+    // 启动后台线程定期检查，消息被消费掉之后内存降下来，由这里解除告警
+    // 和 close 在同一把锁里执行，服务器刚启动就停止的时候（start 比 close 还晚执行），不会再留下一个没人关闭的后台线程
+    public void start() {
+        long intervalMs=MqConfig.getLong("mq.server.alarm-check-interval-ms",DEFAULT_CHECK_INTERVAL_MS);
+        lock.lock();
+        try {
+            if(closed||scheduler!=null) {
+                return;
+            }
+            scheduler=Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t=new Thread(r,"resource-alarm");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    checkMemory();
+                    checkDisk();
+                } catch (RuntimeException e) {
+                    log.info("[ResourceAlarm] 检查资源出现异常！"+e);
+                }
+            },0,intervalMs,TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 关闭之后不再阻塞发布者，正在等待的发布者也都放行
+    public void close() {
+        lock.lock();
+        try {
+            closed=true;
+            if(scheduler!=null) {
+                scheduler.shutdownNow();
+            }
+            // 和 changed 一样在锁里判断 closed，关闭之后就不会再往 notifier 提交任务了
+            notifier.shutdown();
+            unblocked.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isBlocked() {
+        return !closed&&(memoryBlocked||diskBlocked);
+    }
+
+    public boolean isMemoryBlocked() {
+        return memoryBlocked;
+    }
+
+    public boolean isDiskBlocked() {
+        return diskBlocked;
+    }
+
+    // 检查内存占用，超过高水位触发告警，低于低水位解除
+    public void checkMemory() {
+        if(closed) {
+            return;
+        }
+        long used=memoryUsed.getAsLong();
+        MqMetrics.set("server.memory.used",used);
+        if(!memoryBlocked&&used>=highWatermark) {
+            updateMemory(true,"内存占用超过高水位！used="+used+", highWatermark="+highWatermark);
+        } else if(memoryBlocked&&used<=lowWatermark) {
+            updateMemory(false,"内存占用降到低水位以下！used="+used+", lowWatermark="+lowWatermark);
+        }
+    }
+
+    // 检查数据目录所在磁盘的可用空间
+    public void checkDisk() {
+        if(closed||diskDir==null) {
+            return;
+        }
+        long free=diskDir.getUsableSpace();
+        MqMetrics.set("server.disk.free",free);
+        boolean low=free<diskFreeLimit;
+        if(low!=diskBlocked) {
+            updateDisk(low,"磁盘可用空间变化！free="+free+", freeLimit="+diskFreeLimit);
+        }
+    }
+
+    private void updateMemory(boolean blocked,String reason) {
+        lock.lock();
+        try {
+            boolean before=isBlocked();
+            memoryBlocked=blocked;
+            changed(before,reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void updateDisk(boolean blocked,String reason) {
+        lock.lock();
+        try {
+            boolean before=isBlocked();
+            diskBlocked=blocked;
+            changed(before,reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 调用者持有 lock，在锁里只修改状态、唤醒等待的发布者，通知监听者的任务按顺序交给 notifier 线程
+    private void changed(boolean before,String reason) {
+        boolean after=isBlocked();
+        MqMetrics.set("server.memory.blocked",memoryBlocked?1:0);
+        MqMetrics.set("server.disk.blocked",diskBlocked?1:0);
+        log.info("[ResourceAlarm] "+reason+" blocked="+after);
+        if(before==after) {
+            return;
+        }
+        if(!after) {
+            unblocked.signalAll();
+        }
+        if(closed) {
+            return;
+        }
+        notifier.execute(() -> {
+            for (Listener listener:listeners) {
+                try {
+                    listener.onBlockedChanged(after);
+                } catch (RuntimeException e) {
+                    log.info("[ResourceAlarm] 通知状态变化出现异常！"+e);
+                }
+            }
+        });
+    }
+
+    // 发布消息之前调用，告警期间一直等到解除，被中断的话保留中断标记直接返回
+    public void awaitUnblocked() {
+        if(!isBlocked()) {
+            return;
+        }
+        MqMetrics.add("server.publish.blocked",1);
+        lock.lock();
+        try {
+            while (isBlocked()) {
+                unblocked.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.mq.mqserver;
+
+import com.example.mq.common.ByteBufferOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/*
+ * 阻塞模式下的客户端连接，处理请求的线程和推送消息的线程都会往 socket 里写
+ * 同一时刻只有一个写线程（见 AbstractClientConnection），其他线程只是把帧追加到发送缓冲区中就返回了
+ */
+public class SocketClientConnection extends AbstractClientConnection {
+    private final Socket socket;
+    private final OutputStream outputStream;
+
+    public SocketClientConnection(Socket socket) throws IOException {
+        this.socket=socket;
+        this.outputStream=socket.getOutputStream();
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // 攒下来的若干个帧一次写到 socket 里并刷新
+    @Override
+    protected boolean writeOut(ByteBufferOutputStream batch) throws IOException {
+        batch.writeTo(outputStream);
+        outputStream.flush();
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().toString()+":"+socket.getPort();
+    }
+}
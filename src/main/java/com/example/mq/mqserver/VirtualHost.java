@@ -1,13 +1,21 @@
 package com.example.mq.mqserver;
 
+import com.example.mq.arguments.BasicPublishArguments;
 import com.example.mq.common.Consumer;
+import com.example.mq.common.MqConfig;
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
 import com.example.mq.mqserver.core.*;
 import com.example.mq.mqserver.datacenter.DiskDataCenter;
 import com.example.mq.mqserver.datacenter.MemoryDataCenter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -21,8 +29,11 @@ import java.util.concurrent.ConcurrentHashMap;
 public class VirtualHost {
     private String virtualHostName;
     private MemoryDataCenter memoryDataCenter=new MemoryDataCenter();
-    private DiskDataCenter diskDataCenter=new DiskDataCenter();
+    private DiskDataCenter diskDataCenter;
     private Router router=new Router();
+    // 主题交换机的转发结果缓存：key 是 exchangeName，routingKey 重复出现的时候不用每次都在前缀树上匹配一遍
+    private ConcurrentHashMap<String,RouteCache> routeCaches=new ConcurrentHashMap<>();
+    private final int routeCacheSize=MqConfig.getInt("mq.server.route-cache-size",1024);
 
     private ConsumerManager consumerManager=new ConsumerManager(this);
 
@@ -46,10 +57,19 @@ public class VirtualHost {
 
     public VirtualHost(String name) {
         this.virtualHostName=name;
+        this.diskDataCenter=new DiskDataCenter(name);
 
         // 对于 MemoryDataCenter 来说，不需要额外的初始化操作，只要对象 new出来就行了
         // 但是，针对 DiskDataCenter 来说，则需要进行初始化操作，建库建表和初始数据的设定
         diskDataCenter.init();
+        // 后台 gc 压缩分段之后，消息在文件中的位置会发生变化，需要同步更新内存中的 Message对象
+        diskDataCenter.setRelocationListener((queueName,messageId,offsetBeg,offsetEnd) -> {
+            Message message=memoryDataCenter.getMessage(messageId);
+            if(message!=null) {
+                message.setOffsetBeg(offsetBeg);
+                message.setOffsetEnd(offsetEnd);
+            }
+        });
 
         // 另外还需要针对硬盘的数据，进行恢复到内存中
         try {
@@ -60,6 +80,12 @@ public class VirtualHost {
         }
     }
 
+    // 关闭虚拟主机，主要是把硬盘上还没写完的数据写完
+    public void close() {
+        diskDataCenter.close();
+        log.info("[VirtualHost] 虚拟主机关闭！ virtualHostName="+virtualHostName);
+    }
+
     // 创建交换机
     // 如果交换机不存在，就创建；如果存在，直接返回
     // 返回值是 boolean,创建成功，返回 true；失败返回 false
@@ -117,6 +143,8 @@ public class VirtualHost {
                 }
                 // 3. 删除内存中的交换机数据
                 memoryDataCenter.deleteExchange(exchangeName);
+                routeCaches.remove(exchangeName);
+                MqMetrics.removeByPrefix("exchange."+exchangeName+".");
                 log.info("[VirtualHost] 交换机删除成功！ exchangeName="+exchangeName);
             }
             return true;
@@ -269,78 +297,168 @@ public class VirtualHost {
     // 发送消息到指定的交换机/队列中
     public boolean basicPublish(String exchangeName,String routingKey,BasicProperties basicProperties,byte[] body) {
         try {
-            // 1. 转换交换机的名字
-            exchangeName=virtualHostName+exchangeName;
-            // 2. 检查 routingKey 是否合法
-            if (!router.checkRoutingKey(routingKey)) {
-                throw new MqException("[VirtualHost] routingKey 非法！routingKey="+routingKey);
+            List<MSGQueue> queues=new ArrayList<>();
+            List<Message> messages=new ArrayList<>();
+            route(exchangeName,routingKey,basicProperties,body,queues,messages);
+            // 真正转发消息给队列
+            sendMessages(queues,messages,false);
+            return true;
+        } catch (Exception e) {
+            log.info("[VirtualHost] 消息发送失败！");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // 批量发送消息，返回每条消息是否发送成功
+    // 每条消息先各自路由，路由失败的消息不影响其他消息；路由成功的消息一起写入，需要持久化的消息同一个队列的只写一次硬盘
+    public boolean[] basicPublishBatch(List<BasicPublishArguments> entries) {
+        boolean[] results=new boolean[entries.size()];
+        List<MSGQueue> queues=new ArrayList<>();
+        List<Message> messages=new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            BasicPublishArguments entry=entries.get(i);
+            try {
+                route(entry.getExchangeName(),entry.getRoutingKey(),entry.getBasicProperties(),entry.getBody(),queues,messages);
+                results[i]=true;
+            } catch (Exception e) {
+                log.info("[VirtualHost] 批量发送消息时，消息路由失败！exchangeName="+entry.getExchangeName()
+                        +", routingKey="+entry.getRoutingKey()+", reason="+e.getMessage());
             }
-            // 3. 查找交换机对象
-            Exchange exchange=memoryDataCenter.getExchange(exchangeName);
-            if (exchange==null) {
-                throw new MqException("[VirtualHost] 交换机不存在！ exchangeName="+exchangeName);
+        }
+        try {
+            sendMessages(queues,messages,true);
+        } catch (Exception e) {
+            log.info("[VirtualHost] 批量发送消息失败！");
+            e.printStackTrace();
+            Arrays.fill(results,false);
+        }
+        return results;
+    }
+
+    // 找出消息要转发到的所有队列，并给每个队列构造一个消息对象，追加到 queues 和 messages 中
+    private void route(String exchangeName,String routingKey,BasicProperties basicProperties,byte[] body,
+                       List<MSGQueue> queues,List<Message> messages) throws MqException {
+        // 1. 转换交换机的名字
+        exchangeName=virtualHostName+exchangeName;
+        // 2. 检查 routingKey 是否合法
+        if (!router.checkRoutingKey(routingKey)) {
+            throw new MqException("[VirtualHost] routingKey 非法！routingKey="+routingKey);
+        }
+        // 3. 查找交换机对象
+        Exchange exchange=memoryDataCenter.getExchange(exchangeName);
+        if (exchange==null) {
+            throw new MqException("[VirtualHost] 交换机不存在！ exchangeName="+exchangeName);
+        }
+        // 4. 判断交换机的类型
+        if(exchange.getType()==ExchangeType.DIRECT) {
+            // 按照直接交换机的方式来转发消息
+            // 以 routingKey 作为队列的名字，直接把消息写入到指定的队列中
+            // 此时 可以无视绑定关系
+            String queueName=virtualHostName+routingKey;
+            // 5. 构造消息对象
+            Message message=Message.createMessageWithId(routingKey, basicProperties, body);
+            // 6. 查找该队列名对应的对象
+            MSGQueue queue=memoryDataCenter.getQueue(queueName);
+            if(queue==null) {
+                throw new MqException("[VirtualHost] 队列不存在！queueName="+queueName);
             }
-            // 4. 判断交换机的类型
-            if(exchange.getType()==ExchangeType.DIRECT) {
-                // 按照直接交换机的方式来转发消息
-                // 以 routingKey 作为队列的名字，直接把消息写入到指定的队列中
-                // 此时 可以无视绑定关系
-                String queueName=virtualHostName+routingKey;
-                // 5. 构造消息对象
-                Message message=Message.createMessageWithId(routingKey, basicProperties, body);
-                // 6. 查找该队列名对应的对象
+            // 7. 队列存在，直接给队列中写入消息
+            queues.add(queue);
+            messages.add(message);
+        } else if(exchange.getType()==ExchangeType.TOPIC) {
+            // 主题交换机：沿着 routingKey 在这个交换机的绑定前缀树上走一遍，找出所有匹配的队列
+            for (String queueName:matchTopic(exchangeName,routingKey)) {
                 MSGQueue queue=memoryDataCenter.getQueue(queueName);
                 if(queue==null) {
-                    throw new MqException("[VirtualHost] 队列不存在！queueName="+queueName);
+                    log.info("[VirtualHost] basicPublish 发送消息时，发现队列不存在！");
+                    continue;
                 }
-                // 7. 队列存在，直接给队列中写入消息
-                sendMessage(queue,message);
-            } else {
-                // 按照 fanout 和 topic 的方式来转发
-                // 找到该交换机关联的所有绑定，并遍历这些绑定对象
-                ConcurrentHashMap<String,Binding> bindingsMap=memoryDataCenter.getBindings(exchangeName);
-                for (Map.Entry<String,Binding> entry: bindingsMap.entrySet()) {
-                    // 1) 获取到绑定对象，判定对应的队列是否存在
-                    Binding binding=entry.getValue();
-                    MSGQueue queue=memoryDataCenter.getQueue(binding.getQueueName());
-                    if(queue==null) {
-                        // 此处就不抛出异常了 可能此处有多个这样的队列
-                        // 希望不要因为一个队列的失败，影响到其他队列的消息的传输
-                        log.info("[VirtualHost] basicPublish 发送消息时，发现队列不存在！");
-                        continue;
-                    }
-                    // 2) 构造消息对象
-                    Message message=Message.createMessageWithId(routingKey,basicProperties,body);
-                    // 3) 判定这个消息是否能转发给该队列
-                    //   如果是 fanout, 所有绑定的队列都要转发
-                    //   如果是 topic，还需要判定下，bindingKey 和 routingKey是不是匹配
-                    if(!router.route(exchange.getType(),binding,message)) {
-                        continue;
-                    }
-                    // 4) 真正转发消息给队列
-                    sendMessage(queue,message);
+                queues.add(queue);
+                messages.add(Message.createMessageWithId(routingKey,basicProperties,body));
+            }
+        } else {
+            // 按照 fanout 的方式来转发
+            // 找到该交换机关联的所有绑定，并遍历这些绑定对象
+            // 先找出所有要转发的队列，再一起写入，这样存储引擎可以只保存一份消息内容
+            ConcurrentHashMap<String,Binding> bindingsMap=memoryDataCenter.getBindings(exchangeName);
+            for (Map.Entry<String,Binding> entry: bindingsMap.entrySet()) {
+                // 1) 获取到绑定对象，判定对应的队列是否存在
+                Binding binding=entry.getValue();
+                MSGQueue queue=memoryDataCenter.getQueue(binding.getQueueName());
+                if(queue==null) {
+                    // 此处就不抛出异常了 可能此处有多个这样的队列
+                    // 希望不要因为一个队列的失败，影响到其他队列的消息的传输
+                    log.info("[VirtualHost] basicPublish 发送消息时，发现队列不存在！");
+                    continue;
+                }
+                // 2) 构造消息对象
+                Message message=Message.createMessageWithId(routingKey,basicProperties,body);
+                // 3) 判定这个消息是否能转发给该队列
+                //   如果是 fanout, 所有绑定的队列都要转发
+                //   如果是 topic，还需要判定下，bindingKey 和 routingKey是不是匹配
+                if(!router.route(exchange.getType(),binding,message)) {
+                    continue;
                 }
+                queues.add(queue);
+                messages.add(message);
             }
-            return true;
-        } catch (Exception e) {
-            log.info("[VirtualHost] 消息发送失败！");
-            e.printStackTrace();
-            return false;
         }
     }
 
-    private void sendMessage(MSGQueue queue,Message message) throws IOException, MqException, InterruptedException {
-        // 此处发送消息，就是把消息写入到 硬盘和内存上
-        int deliverMode=message.getDeliverMode();
-        // deliverMode 为1，不持久化；deliverMode 为2，表示持久化
-        if (deliverMode==2) {
-            diskDataCenter.sendMessage(queue,message);
+    // 先查转发结果缓存，没有命中（或者绑定已经修改过）再去前缀树上匹配，然后放进缓存
+    private List<String> matchTopic(String exchangeName,String routingKey) {
+        if(routeCacheSize<=0) {
+            return new ArrayList<>(memoryDataCenter.matchTopic(exchangeName,routingKey));
+        }
+        RouteCache routeCache=routeCaches.get(exchangeName);
+        if(routeCache==null) {
+            routeCache=routeCaches.computeIfAbsent(exchangeName,this::createRouteCache);
+        }
+        // 一定要在匹配之前读取版本号
+        long version=memoryDataCenter.getBindingVersion(exchangeName);
+        List<String> queueNames=routeCache.get(routingKey,version);
+        if(queueNames!=null) {
+            return queueNames;
         }
-        // 写入内存
-        memoryDataCenter.sendMessage(queue,message);
+        queueNames=Collections.unmodifiableList(new ArrayList<>(memoryDataCenter.matchTopic(exchangeName,routingKey)));
+        routeCache.put(routingKey,version,queueNames);
+        return queueNames;
+    }
 
-        // 此处还需要补充一个逻辑，通知消费者可以消息消息了
-        consumerManager.notifyConsume(queue.getName());
+    // 每个交换机的缓存只在创建的时候注册一次指标，查看指标的时候才去读缓存的计数器
+    private RouteCache createRouteCache(String exchangeName) {
+        RouteCache routeCache=new RouteCache(routeCacheSize);
+        String prefix="exchange."+exchangeName+".route-cache.";
+        MqMetrics.gauge(prefix+"hit",routeCache::getHits);
+        MqMetrics.gauge(prefix+"miss",routeCache::getMisses);
+        MqMetrics.gauge(prefix+"size",routeCache::size);
+        return routeCache;
+    }
+
+    // 把路由好的消息写入队列：需要持久化的消息先一起写入硬盘，然后写入内存，并通知消费者（每条消息一个令牌）
+    // batch 为 false 的时候是同一次发布转发给多个队列的消息，内容都相同，存储引擎可以只保存一份消息内容
+    // batch 为 true 的时候是批量发送的消息，内容各不相同，交给存储引擎按照队列合并写入
+    private void sendMessages(List<MSGQueue> queues,List<Message> messages,boolean batch) throws IOException, MqException, InterruptedException, ClassNotFoundException {
+        List<MSGQueue> durableQueues=new ArrayList<>();
+        List<Message> durableMessages=new ArrayList<>();
+        for (int i = 0; i < queues.size(); i++) {
+            if(messages.get(i).getDeliverMode()==2) {
+                durableQueues.add(queues.get(i));
+                durableMessages.add(messages.get(i));
+            }
+        }
+        if(!durableQueues.isEmpty()) {
+            if(batch) {
+                diskDataCenter.sendMessageBatch(durableQueues,durableMessages);
+            } else {
+                diskDataCenter.sendMessages(durableQueues,durableMessages);
+            }
+        }
+        for (int i = 0; i < queues.size(); i++) {
+            memoryDataCenter.sendMessage(queues.get(i),messages.get(i));
+            consumerManager.notifyConsume(queues.get(i).getName());
+        }
     }
 
     // 订阅消息
@@ -349,10 +467,16 @@ public class VirtualHost {
     // autoAck: 消息被消费完成后，应答的方式：为 true 自动应答，为 false 手动应答
     // consumer: 是一个回调函数，此处类型设定成函数式接口。这样后续调用 basicConsume 并且传实参的时候，就可以写作 lambda 样子了
     public boolean basicConsume(String consumerTag, String queueName, boolean autoAck, Consumer consumer) {
+        return basicConsume(consumerTag,queueName,autoAck,0,0,consumer);
+    }
+
+    // prefetchCount prefetchBytes: 手动应答的时候，最多有多少条/多少字节的消息已经投递了还没有确认，0 表示不限制
+    public boolean basicConsume(String consumerTag, String queueName, boolean autoAck, int prefetchCount, long prefetchBytes,
+                                Consumer consumer) {
         // 构造一个 ConsumerEnv 对象，把这个对应的队列找到，再把这个 Consumer 对象添加到该队列中
         queueName=virtualHostName+queueName;
         try {
-            consumerManager.addConsumer(consumerTag,queueName,autoAck,consumer);
+            consumerManager.addConsumer(consumerTag,queueName,autoAck,prefetchCount,prefetchBytes,consumer);
             log.info("[VirtualHost] basicConsume 成功！ queueName="+queueName);
             return true;
         } catch (Exception e) {
@@ -362,6 +486,42 @@ public class VirtualHost {
         }
     }
 
+    // 拉模式消费：一次从队列中取走最多 maxMessages 条消息，交给 callback
+    // 队列是空的话最多等待 maxWaitMs 毫秒，期间有消息到达就立即回调，超时的话回调空的列表；maxWaitMs 为 0 表示不等待
+    // autoAck 为 false 的时候，取走的消息需要之后调用 basicAck 确认
+    public boolean basicGet(String queueName,int maxMessages,long maxWaitMs,boolean autoAck,ConsumerManager.GetCallback callback) {
+        queueName=virtualHostName+queueName;
+        try {
+            if(maxMessages<=0||maxWaitMs<0) {
+                throw new MqException("[VirtualHost] basicGet 参数错误！maxMessages="+maxMessages+", maxWaitMs="+maxWaitMs);
+            }
+            consumerManager.basicGet(queueName,maxMessages,maxWaitMs,autoAck,callback);
+            log.info("[VirtualHost] basicGet 成功！queueName="+queueName+", maxMessages="+maxMessages);
+            return true;
+        } catch (Exception e) {
+            log.info("[VirtualHost] basicGet 失败！queueName="+queueName);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // 修改 consumerTag 对应的消费者的预取额度
+    public boolean basicQos(String consumerTag,int prefetchCount,long prefetchBytes) {
+        try {
+            if(prefetchCount<0||prefetchBytes<0) {
+                throw new MqException("[VirtualHost] 预取额度不能是负数！prefetchCount="+prefetchCount+", prefetchBytes="+prefetchBytes);
+            }
+            consumerManager.setQos(consumerTag,prefetchCount,prefetchBytes);
+            log.info("[VirtualHost] basicQos 成功！consumerTag="+consumerTag+", prefetchCount="+prefetchCount
+                    +", prefetchBytes="+prefetchBytes);
+            return true;
+        } catch (Exception e) {
+            log.info("[VirtualHost] basicQos 失败！consumerTag="+consumerTag);
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public boolean basicAck(String queueName,String messageId) {
         queueName=virtualHostName+queueName;
         try {
@@ -382,6 +542,8 @@ public class VirtualHost {
             memoryDataCenter.removeMessage(messageId);
             // 4. 删除待确认的集合中的数据
             memoryDataCenter.removeMessageWaitAck(queueName,messageId);
+            // 5. 把预取额度还给消费者
+            consumerManager.ackDelivered(queueName,messageId);
             log.info("[VirtualHost] basicAck 成功！消息被成功确认！ queueName="+queueName
             +", messageId="+messageId);
             return true;
@@ -392,4 +554,48 @@ public class VirtualHost {
             return false;
         }
     }
+
+    // 批量确认同一个队列中的若干条消息，需要持久化的消息一起从硬盘上删除
+    // 找不到的消息不影响其他消息的确认，只要有一条确认失败就返回 false
+    // 同一个 messageId 出现多次的时候只确认一次，否则硬盘上会把同一条记录删除两次，有效消息数就少算了
+    public boolean basicAckBatch(String queueName,List<String> messageIds) {
+        queueName=virtualHostName+queueName;
+        try {
+            MSGQueue queue=memoryDataCenter.getQueue(queueName);
+            if(queue==null) {
+                throw new MqException("[VirtualHost] 要确认的队列不存在！queueName="+queueName);
+            }
+            boolean ok=true;
+            List<Message> messages=new ArrayList<>(messageIds.size());
+            List<Message> durableMessages=new ArrayList<>();
+            for (String messageId:new LinkedHashSet<>(messageIds)) {
+                Message message=memoryDataCenter.getMessage(messageId);
+                if(message==null) {
+                    log.info("[VirtualHost] 要确认的消息不存在! messageId="+messageId);
+                    ok=false;
+                    continue;
+                }
+                messages.add(message);
+                if(message.getDeliverMode()==2) {
+                    durableMessages.add(message);
+                }
+            }
+            // 1. 删除硬盘上的数据，同一个队列的消息一起删除
+            if(!durableMessages.isEmpty()) {
+                diskDataCenter.deleteMessages(queue,durableMessages);
+            }
+            // 2. 删除消息中心和待确认的集合中的数据，并把预取额度还给消费者
+            for (Message message:messages) {
+                memoryDataCenter.removeMessage(message.getMessageId());
+                memoryDataCenter.removeMessageWaitAck(queueName,message.getMessageId());
+                consumerManager.ackDelivered(queueName,message.getMessageId());
+            }
+            log.info("[VirtualHost] basicAckBatch 成功！queueName="+queueName+", count="+messages.size());
+            return ok;
+        } catch (Exception e) {
+            log.info("[VirtualHost] basicAckBatch 失败！消息确认失败！queueName="+queueName);
+            e.printStackTrace();
+            return false;
+        }
+    }
 }
@@ -3,28 +3,92 @@ package com.example.mq.mqserver.core;
 import com.example.mq.common.Consumer;
 import com.example.mq.common.ConsumerEnv;
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
+import com.example.mq.common.VirtualThreads;
 import com.example.mq.mqserver.VirtualHost;
 import lombok.extern.slf4j.Slf4j;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 /*
  * 通过这个类，来实现消费消息的核心逻辑
+ * 1. 推模式：订阅了队列的消费者（basicConsume），扫描线程每拿到一个令牌就给某个消费者推送一条消息
+ * 2. 拉模式：basicGet 一次取走最多 maxMessages 条消息，队列是空的话，登记一个等待者，
+ *    扫描线程拿到这个队列的令牌时优先把消息交给等待者，等到超时还没有消息就返回空的结果，不需要线程轮询
  */
 public class ConsumerManager {
     // 持有上层的 VirtualHost 对象的引用，用来操作数据
     private VirtualHost parent;
     // 指定一个线程池 负责去执行具体的回调任务
-    private ExecutorService workerPool= Executors.newFixedThreadPool(4);
+    // 打开了虚拟线程的话，每次投递都在一个虚拟线程中执行，推送消息阻塞在 socket 上的时候不会占着这 4 个线程
+    private ExecutorService workerPool= VirtualThreads.newExecutor(() -> Executors.newFixedThreadPool(4));
     // 存放令牌的队列
     private BlockingQueue<String> tokenQueue=new LinkedBlockingQueue<>();
     // 扫描线程
     private Thread scannerThread=null;
+    // 已经投递给手动应答的消费者、还没有确认的消息，确认的时候把额度还给对应的消费者，key 是 messageId
+    private ConcurrentHashMap<String,UnackedDelivery> unackedDeliveries=new ConcurrentHashMap<>();
+    // 每个 consumerTag 对应的消费者，修改预取额度的时候使用
+    private ConcurrentHashMap<String,List<ConsumerEnv>> consumersByTag=new ConcurrentHashMap<>();
+    // 正在等待消息的 basicGet 请求，key 是 queueName，先来的先拿到消息
+    private ConcurrentHashMap<String,ConcurrentLinkedQueue<PendingGet>> pendingGets=new ConcurrentHashMap<>();
+    // basicGet 等待超时的定时器
+    private ScheduledExecutorService getTimer=Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t=new Thread(r,"basic-get-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // basicGet 取到消息（或者超时）之后的回调，超时的时候 messages 是空的
+    @FunctionalInterface
+    public interface GetCallback {
+        void onMessages(List<Message> messages) throws MqException, IOException;
+    }
+
+    // 一个正在等待消息的 basicGet 请求，取到消息和超时只有一个能生效
+    private static class PendingGet {
+        private final int maxMessages;
+        private final boolean autoAck;
+        private final GetCallback callback;
+        private final AtomicBoolean done=new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> timeout;
+
+        PendingGet(int maxMessages,boolean autoAck,GetCallback callback) {
+            this.maxMessages=maxMessages;
+            this.autoAck=autoAck;
+            this.callback=callback;
+        }
+    }
+
+    // 一条手动应答、还没有确认的投递占用的额度
+    // 消息内容还在硬盘上的时候，投递时还不知道占用多少字节（sized=false），由投递线程读出消息内容之后再补上
+    private static class UnackedDelivery {
+        private final ConsumerEnv consumerEnv;
+        private volatile long bytes;
+        private volatile boolean sized;
+
+        UnackedDelivery(ConsumerEnv consumerEnv,long bytes,boolean sized) {
+            this.consumerEnv=consumerEnv;
+            this.bytes=bytes;
+            this.sized=sized;
+        }
+    }
 
     public ConsumerManager(VirtualHost p) {
         parent=p;
@@ -39,9 +103,11 @@ public class ConsumerManager {
                     if(queue==null) {
                         throw new MqException("[ConsumerManager] 取令牌后发现,该队列名不存在！queueName="+queueName);
                     }
-                    // 3. 从这个队列中消费一个消息
+                    // 3. 从这个队列中消费一个消息，有 basicGet 在等待的话先交给它
                     synchronized (queue) {
-                        consumeMessage(queue);
+                        if(!serveGet(queue)) {
+                            consumeMessage(queue);
+                        }
                     }
                 } catch (InterruptedException | MqException e) {
                     e.printStackTrace();
@@ -58,13 +124,157 @@ public class ConsumerManager {
         tokenQueue.put(queueName);
     }
 
+    // 消息被确认之后调用，把额度还给投递时的消费者
+    // 额度用完的时候到达的消息，令牌已经被跳过了，消息还留在队列里，每归还一份额度就给队列补发一个令牌
+    // 多出来的令牌取不到消息，什么也不做
+    public void ackDelivered(String queueName,String messageId) throws InterruptedException {
+        UnackedDelivery delivery=unackedDeliveries.remove(messageId);
+        if(delivery==null) {
+            return;
+        }
+        delivery.consumerEnv.releaseCredit(delivery.bytes);
+        if(parent.getMemoryDataCenter().getMessageCount(queueName)>0) {
+            notifyConsume(queueName);
+        }
+    }
+
+    // 修改 consumerTag 对应的消费者的预取额度，额度变大之后，之前被跳过的消息可以继续投递了
+    public void setQos(String consumerTag,int prefetchCount,long prefetchBytes) throws InterruptedException {
+        List<ConsumerEnv> consumerEnvs=consumersByTag.get(consumerTag);
+        if(consumerEnvs==null) {
+            return;
+        }
+        for (ConsumerEnv consumerEnv:consumerEnvs) {
+            consumerEnv.setPrefetchCount(prefetchCount);
+            consumerEnv.setPrefetchBytes(prefetchBytes);
+            // 给队列中的消息补发令牌，最多补发新的额度那么多个
+            int n=parent.getMemoryDataCenter().getMessageCount(consumerEnv.getQueueName());
+            if(prefetchCount>0) {
+                n=Math.min(n,prefetchCount);
+            }
+            for (int i = 0; i < n; i++) {
+                notifyConsume(consumerEnv.getQueueName());
+            }
+        }
+    }
+
+    // 从队列中一次取走最多 maxMessages 条消息，交给 callback
+    // 队列是空的并且 maxWaitMs>0 的时候，等到有消息到达或者超时再回调，这期间不占用线程
+    public void basicGet(String queueName,int maxMessages,long maxWaitMs,boolean autoAck,GetCallback callback) throws MqException {
+        MSGQueue queue=parent.getMemoryDataCenter().getQueue(queueName);
+        if(queue==null) {
+            throw new MqException("[ConsumerManger] 队列不存在！ queueName="+queueName);
+        }
+        List<Message> messages;
+        synchronized (queue) {
+            messages=pollMessages(queueName,maxMessages);
+            if(messages.isEmpty()&&maxWaitMs>0) {
+                // 和扫描线程在同一把锁里检查、登记，不会出现消息刚到达却没有通知到等待者的情况
+                PendingGet pendingGet=new PendingGet(maxMessages,autoAck,callback);
+                ConcurrentLinkedQueue<PendingGet> waiters=pendingGets.computeIfAbsent(queueName,k -> new ConcurrentLinkedQueue<>());
+                waiters.add(pendingGet);
+                // 超时的回复也交给线程池去写，回调可能会阻塞在写 socket 上，不能让一个慢客户端拖住其他 basicGet 的超时
+                pendingGet.timeout=getTimer.schedule(() -> {
+                    if(pendingGet.done.compareAndSet(false,true)) {
+                        waiters.remove(pendingGet);
+                        MqMetrics.add("consumer.get.timeout",1);
+                        workerPool.submit(() -> deliverGet(queue,Collections.emptyList(),pendingGet));
+                    }
+                },maxWaitMs,TimeUnit.MILLISECONDS);
+                MqMetrics.add("consumer.get.parked",1);
+                return;
+            }
+        }
+        deliverGet(queue,messages,new PendingGet(maxMessages,autoAck,callback));
+    }
+
+    // 调用者持有 queue 的锁，队列上有等待中的 basicGet 的话，把消息交给最早的那个，返回 true
+    // 一次可能取走多条消息，这些消息对应的令牌之后取不到消息，什么也不做
+    private boolean serveGet(MSGQueue queue) {
+        ConcurrentLinkedQueue<PendingGet> waiters=pendingGets.get(queue.getName());
+        // 只有持有 queue 的锁才会从队列中取消息，这里看到有消息，下面就一定能取到
+        if(waiters==null||waiters.isEmpty()||parent.getMemoryDataCenter().getMessageCount(queue.getName())==0) {
+            return false;
+        }
+        PendingGet pendingGet;
+        while ((pendingGet=waiters.poll())!=null) {
+            if(!pendingGet.done.compareAndSet(false,true)) {
+                // 已经超时了
+                continue;
+            }
+            pendingGet.timeout.cancel(false);
+            List<Message> messages=pollMessages(queue.getName(),pendingGet.maxMessages);
+            PendingGet waiter=pendingGet;
+            workerPool.submit(() -> deliverGet(queue,messages,waiter));
+            return true;
+        }
+        return false;
+    }
+
+    private List<Message> pollMessages(String queueName,int maxMessages) {
+        List<Message> messages=new ArrayList<>();
+        while (messages.size()<maxMessages) {
+            Message message=parent.getMemoryDataCenter().pollMessage(queueName);
+            if(message==null) {
+                break;
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // 把 basicGet 取到的消息交给回调，和推送给消费者一样：投递之前加载消息内容，自动应答的消息回调之后直接删除
+    private void deliverGet(MSGQueue queue,List<Message> messages,PendingGet pendingGet) {
+        try {
+            List<Message> durableMessages=new ArrayList<>();
+            for (Message message:messages) {
+                if(message.isBodyOnDisk()) {
+                    parent.getDiskDataCenter().loadMessageBody(queue,message);
+                }
+                parent.getMemoryDataCenter().addMessageWaitAck(queue.getName(),message);
+                if(message.getDeliverMode()==2) {
+                    durableMessages.add(message);
+                }
+            }
+            pendingGet.callback.onMessages(messages);
+            MqMetrics.add("consumer.get.messages",messages.size());
+            for (Message message:messages) {
+                if(queue.isLazy()&&message.getDeliverMode()==2) {
+                    message.setBody(null);
+                    message.setBodyOnDisk(true);
+                }
+            }
+            if(pendingGet.autoAck&&!messages.isEmpty()) {
+                if(!durableMessages.isEmpty()) {
+                    parent.getDiskDataCenter().deleteMessages(queue,durableMessages);
+                }
+                for (Message message:messages) {
+                    parent.getMemoryDataCenter().removeMessageWaitAck(queue.getName(),message.getMessageId());
+                    parent.getMemoryDataCenter().removeMessage(message.getMessageId());
+                }
+                log.info("[ConsumerManger] basicGet 消息被成功消费！ queueName="+queue.getName()+", count="+messages.size());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public void addConsumer(String consumerTag, String queueName, boolean autoAck, Consumer consumer) throws MqException {
+        addConsumer(consumerTag,queueName,autoAck,0,0,consumer);
+    }
+
+    // prefetchCount prefetchBytes 是这个消费者的预取额度，0 表示不限制
+    public void addConsumer(String consumerTag, String queueName, boolean autoAck, int prefetchCount, long prefetchBytes,
+                            Consumer consumer) throws MqException {
         // 找到对应的队列
         MSGQueue queue=parent.getMemoryDataCenter().getQueue(queueName);
         if (queue==null) {
             throw new MqException("[ConsumerManger] 队列不存在！ queueName="+queueName);
         }
         ConsumerEnv consumerEnv=new ConsumerEnv(consumerTag,queueName,autoAck,consumer);
+        consumerEnv.setPrefetchCount(prefetchCount);
+        consumerEnv.setPrefetchBytes(prefetchBytes);
+        consumersByTag.computeIfAbsent(consumerTag,k -> new CopyOnWriteArrayList<>()).add(consumerEnv);
         synchronized (queue) {
             queue.addConsumerEnv(consumerEnv);
             // 如果当前队列中已经有了一些消息了，需要立即就消费掉
@@ -76,11 +286,29 @@ public class ConsumerManager {
         }
     }
 
+    // 消息内容读出来之后，补上投递时还不知道的字节数
+    // 等待大小确定的这段时间里，扫描线程跳过了这个消费者，所以队列中还有消息的话要补发一个令牌
+    private void resolveDelivery(MSGQueue queue,UnackedDelivery delivery,Message message) throws InterruptedException {
+        if(delivery==null||delivery.sized) {
+            return;
+        }
+        long bytes=message.getBody()==null?0:message.getBody().length;
+        delivery.bytes=bytes;
+        delivery.sized=true;
+        delivery.consumerEnv.resolveCredit(bytes);
+        if(parent.getMemoryDataCenter().getMessageCount(queue.getName())>0) {
+            notifyConsume(queue.getName());
+        }
+    }
+
     private void consumeMessage(MSGQueue queue) {
-        // 1. 按照轮询的方式，找个消费者出来
+        // 1. 按照轮询的方式，找个还有预取额度的消费者出来
         ConsumerEnv luckyDog=queue.chooseConsumer();
         if (luckyDog==null) {
-            // 当前队列没有消费者，暂时不消费，等后面有消费者出现再说
+            // 当前队列没有消费者，或者所有消费者的额度都用完了，暂时不消费，等后面有消费者出现/有消息被确认再说
+            if(!queue.getConsumerEnvList().isEmpty()) {
+                MqMetrics.add("consumer.credit.exhausted",1);
+            }
             return;
         }
         // 2. 从队列中取出一个消息
@@ -89,14 +317,42 @@ public class ConsumerManager {
             // 当前队列中还没有消息，也不需要消费
             return;
         }
+        // 手动应答的消息，在扫描线程中就占用额度，这样下一次挑选消费者的时候就能看到
+        // 消息内容还在硬盘上的话（惰性队列中只有 messageId，偏移量也不是消息内容的大小），先只占用条数，字节数等读出来之后再算
+        UnackedDelivery delivery=null;
+        if(!luckyDog.isAutoAck()) {
+            if(message.getBody()!=null) {
+                luckyDog.acquireCredit(message.getBody().length);
+                delivery=new UnackedDelivery(luckyDog,message.getBody().length,true);
+            } else {
+                luckyDog.acquireUnsizedCredit();
+                delivery=new UnackedDelivery(luckyDog,0,false);
+            }
+            unackedDeliveries.put(message.getMessageId(),delivery);
+        }
+        UnackedDelivery unackedDelivery=delivery;
         // 3. 把消息带入到消费者的回调方法中，丢给线程池执行
         workerPool.submit(()-> {
             try {
+                // 0. 从索引快照中恢复出来的消息，以及惰性队列中的消息，投递之前先从硬盘上把消息内容读出来
+                try {
+                    if(message.isBodyOnDisk()) {
+                        parent.getDiskDataCenter().loadMessageBody(queue,message);
+                    }
+                } finally {
+                    // 读取失败也要补上，不然这个消费者会一直等下去
+                    resolveDelivery(queue,unackedDelivery,message);
+                }
                 // 1. 把消息放到待确认的集合中，这个操作势必在执行回调之前
                 parent.getMemoryDataCenter().addMessageWaitAck(queue.getName(),message);
                 // 2. 真正执行回调操作
                 luckyDog.getConsumer().handleDelivery(luckyDog.getConsumerTag(),message.getBasicProperties(),
                         message.getBody());
+                // 惰性队列中的持久化消息，投递完之后就不再在内存中保留消息内容了，硬盘上还有
+                if(queue.isLazy()&&message.getDeliverMode()==2) {
+                    message.setBody(null);
+                    message.setBodyOnDisk(true);
+                }
                 // 3. 如果当前是“自动应答” ，就可以直接把消息删除了
                 // 4. 如果当前是“手动应答”，则先不处理，交给后续消费者调用 basicAck 方法来处理
                 if(luckyDog.isAutoAck()) {
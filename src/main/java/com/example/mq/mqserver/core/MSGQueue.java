@@ -18,6 +18,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 @Data
 public class MSGQueue {
+    // 扩展参数中的 x-queue-mode 为 lazy, 表示这是一个惰性队列.
+    // 惰性队列中的持久化消息, 内存中只保留 messageId, 消息内容等到投递的时候再从硬盘上读取.
+    public static final String QUEUE_MODE_ARGUMENT = "x-queue-mode";
+    public static final String QUEUE_MODE_LAZY = "lazy";
+
     // 表示队列的身份标识.
     private String name;
     // 表示队列是否持久化, true 表示持久化保存, false 表示不持久化.
@@ -42,15 +47,23 @@ public class MSGQueue {
 
     // 订阅者的删除暂时先不考虑
     // 挑选一个订阅者，用来处理当前的消息（按照轮循的方式）
+    // 预取额度已经用完的订阅者跳过，所有订阅者的额度都用完了就返回 null，等有消息被确认之后再投递
     public ConsumerEnv chooseConsumer() {
-        if(consumerEnvList.size()==0) {
+        int size=consumerEnvList.size();
+        if(size==0) {
             // 该队列没有人订阅的
             return null;
         }
-        // 计算一下当前要取的元素的下标
-        int index=consumerSeq.get()%consumerEnvList.size();
-        consumerSeq.getAndIncrement();
-        return consumerEnvList.get(index);
+        // 从轮循到的下标开始，找第一个还有额度的订阅者，下一次从它的下一个开始
+        int start=consumerSeq.get();
+        for (int i = 0; i < size; i++) {
+            ConsumerEnv consumerEnv=consumerEnvList.get(Math.floorMod(start+i,size));
+            if(consumerEnv.hasCredit()) {
+                consumerSeq.set(start+i+1);
+                return consumerEnv;
+            }
+        }
+        return null;
     }
 
     public String getArguments() {
@@ -72,6 +85,10 @@ public class MSGQueue {
         }
     }
 
+    public boolean isLazy() {
+        return arguments!=null&&QUEUE_MODE_LAZY.equals(arguments.get(QUEUE_MODE_ARGUMENT));
+    }
+
     public Object getArguments(String key) {
         return arguments.get(key);
     }
@@ -29,6 +29,12 @@ public class Message implements Serializable {
     // 使用这个属性表示该消息在文件中是否是有效消息. (针对文件中的消息, 如果删除, 使用逻辑删除的方式)
     // 0x1 表示有效. 0x0 表示无效.
     private byte isValid = 0x1;
+    // 服务器重启时, 如果是从索引快照中恢复出来的消息, 内存中只有 messageId 和偏移量, 消息的其余内容还在硬盘上.
+    // 这种消息在真正投递给消费者之前, 再根据偏移量从文件中把完整的内容读出来.
+    // 这个属性同样只在内存中使用, 不需要序列化.
+    private transient boolean bodyOnDisk = false;
+    // 放到消息中心时计入内存占用的字节数, 移除的时候按照这个值扣回去. 之后 body 被加载或者释放, 内存统计也不会对不上.
+    private transient long memoryBytes = 0;
 
     // 创建一个工厂方法, 让工厂方法帮我们封装一下创建 Message 对象的过程.
     // 这个方法中创建的 Message 对象, 会自动生成唯一的 MessageId
@@ -0,0 +1,92 @@
+package com.example.mq.mqserver.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * 一个交换机的转发结果缓存：key 是 routingKey，value 是这个 routingKey 匹配到的所有队列的名字
+ * 1. 容量有上限，超过之后按照 LRU 淘汰最久没有用过的 routingKey
+ * 2. 每条缓存都记录了计算它的时候交换机绑定的版本号（MemoryDataCenter 在绑定、解除绑定、删除队列的时候增加版本号），
+ *    取出来的时候版本号对不上就当作没有命中，这样不需要在修改绑定的时候主动清理缓存
+ * 调用者要先读版本号再计算转发结果，计算的过程中绑定被修改的话，存进去的版本号已经过期，下次查找自然不会命中
+ * 命中/没有命中的次数记在缓存自己的计数器里，由 VirtualHost 注册成查看时才读取的指标
+ */
+public class RouteCache {
+    private static class Entry {
+        private final long version;
+        private final List<String> queueNames;
+
+        Entry(long version,List<String> queueNames) {
+            this.version=version;
+            this.queueNames=queueNames;
+        }
+    }
+
+    private final int capacity;
+    private final ReentrantLock lock=new ReentrantLock();
+    // 需要持有 lock 才能访问，accessOrder=true，get 的时候会把条目挪到链表末尾
+    private final LinkedHashMap<String,Entry> entries;
+    private final AtomicLong hits=new AtomicLong(0);
+    private final AtomicLong misses=new AtomicLong(0);
+
+    public RouteCache(int capacity) {
+        this.capacity=capacity;
+        this.entries=new LinkedHashMap<String,Entry>(16,0.75f,true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+                return size()>RouteCache.this.capacity;
+            }
+        };
+    }
+
+    // 返回 version 版本下 routingKey 的转发结果，没有缓存或者缓存已经过期的时候返回 null
+    public List<String> get(String routingKey,long version) {
+        lock.lock();
+        try {
+            Entry entry=entries.get(routingKey);
+            if(entry!=null&&entry.version==version) {
+                hits.incrementAndGet();
+                return entry.queueNames;
+            }
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // queueNames 放进缓存之后不能再修改
+    public void put(String routingKey,long version,List<String> queueNames) {
+        lock.lock();
+        try {
+            Entry entry=entries.get(routingKey);
+            if(entry!=null&&entry.version>version) {
+                // 别的线程已经按照更新的版本算过了
+                return;
+            }
+            entries.put(routingKey,new Entry(version,queueNames));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.mq.mqserver.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * 一个主题交换机上所有绑定的 bindingKey 组成的单词前缀树
+ * 1. bindingKey 按照 . 切分成若干个单词，每个单词是树上的一层，* 和 # 也是普通的子节点，bindingKey 的最后一个单词对应的节点上记录绑定的队列
+ * 2. 转发的时候沿着 routingKey 的单词往下走一遍：普通单词和 * 各走一个单词，# 可以吃掉 0 个或者多个单词，
+ *    走到 routingKey 末尾的节点上的队列就是匹配的队列
+ * 这样转发一条消息的开销只和 routingKey 的长度以及树上匹配的分支有关，不再是 绑定个数 × 单词个数，也不需要每次用正则切分 bindingKey
+ * 修改（绑定/解除绑定）由调用者加锁串行执行，查找不加锁，和 ConcurrentHashMap 一样可能看不到正在进行的修改
+ */
+public class TopicTrie {
+    private static final String STAR="*";
+    private static final String HASH="#";
+
+    private static class Node {
+        private final ConcurrentHashMap<String,Node> children=new ConcurrentHashMap<>();
+        // bindingKey 在这个节点结束的绑定对应的队列
+        private final Set<String> queueNames=ConcurrentHashMap.newKeySet();
+
+        private boolean isEmpty() {
+            return children.isEmpty()&&queueNames.isEmpty();
+        }
+    }
+
+    private final Node root=new Node();
+
+    // 调用者需要保证同一时刻只有一个线程在修改
+    public void add(String bindingKey,String queueName) {
+        Node node=root;
+        for (String word:split(bindingKey)) {
+            node=node.children.computeIfAbsent(word,k -> new Node());
+        }
+        node.queueNames.add(queueName);
+    }
+
+    // 调用者需要保证同一时刻只有一个线程在修改，删除之后没有用的节点也一起删掉
+    public void remove(String bindingKey,String queueName) {
+        remove(root,split(bindingKey),0,queueName);
+    }
+
+    private boolean remove(Node node,List<String> words,int index,String queueName) {
+        if(index==words.size()) {
+            node.queueNames.remove(queueName);
+            return node.isEmpty();
+        }
+        Node child=node.children.get(words.get(index));
+        if(child==null) {
+            return false;
+        }
+        if(remove(child,words,index+1,queueName)) {
+            node.children.remove(words.get(index));
+        }
+        return node.isEmpty();
+    }
+
+    // 找出和 routingKey 匹配的所有队列
+    public Set<String> match(String routingKey) {
+        Set<String> result=new HashSet<>();
+        match(root,split(routingKey),0,result);
+        return result;
+    }
+
+    private void match(Node node,List<String> words,int index,Set<String> result) {
+        Node hash=node.children.get(HASH);
+        if(hash!=null) {
+            // # 吃掉 0 个或者多个单词
+            for (int i = index; i <= words.size(); i++) {
+                match(hash,words,i,result);
+            }
+        }
+        if(index==words.size()) {
+            result.addAll(node.queueNames);
+            return;
+        }
+        Node child=node.children.get(words.get(index));
+        if(child!=null) {
+            match(child,words,index+1,result);
+        }
+        Node star=node.children.get(STAR);
+        if(star!=null) {
+            match(star,words,index+1,result);
+        }
+    }
+
+    // 按照 . 切分，和 String.split("\\.") 的结果一致（末尾的空串去掉），但是不用正则
+    static List<String> split(String key) {
+        List<String> words=new ArrayList<>();
+        int beg=0;
+        int end;
+        while ((end=key.indexOf('.',beg))>=0) {
+            words.add(key.substring(beg,end));
+            beg=end+1;
+        }
+        if(beg==0) {
+            // 没有 . 的时候就是整个字符串（包括空串）
+            words.add(key);
+            return words;
+        }
+        words.add(key.substring(beg));
+        int size=words.size();
+        while (size>0&&words.get(size-1).isEmpty()) {
+            words.remove(--size);
+        }
+        return words;
+    }
+
+    public boolean isEmpty() {
+        return root.isEmpty();
+    }
+}
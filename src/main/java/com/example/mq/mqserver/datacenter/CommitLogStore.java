@@ -0,0 +1,858 @@
+package com.example.mq.mqserver.datacenter;
+
+import com.example.mq.common.BinaryTool;
+import com.example.mq.common.ByteBufferOutputStream;
+import com.example.mq.common.MqConfig;
+import com.example.mq.common.MqException;
+import com.example.mq.mqserver.core.MSGQueue;
+import com.example.mq.mqserver.core.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Slf4j
+/*
+ * 所有队列共用一个提交日志（commit log）的消息存储引擎，一个虚拟主机一个提交日志
+ * 1. 提交日志：所有持久化消息按照写入的顺序追加到同一组分段文件中，不管有多少个队列，写硬盘都是顺序写
+ *    分段文件的格式和 MessageSegment 一样（文件头 + 消息长度(4) 校验和(4) 有效标记(1) 消息本体），有效标记不使用
+ *    消息本体的编码方式见 MessageCodec，版本 2 的分段中是 Java 标准库序列化出来的 Message 对象，只读不写
+ * 2. 消费索引：每个队列一个文件，每条消息一条定长的记录：
+ *    提交日志中的偏移量(8) 消息长度(4) messageId(16) 有效标记(1)
+ *    同一次发布被路由到多个队列的消息（比如 fanout），消息内容在提交日志中只保存一份，每个队列只追加一条索引
+ *    不同队列中的消息 messageId 不一样，所以 messageId 保存在索引中，读取消息内容的时候再替换回去
+ * 确认消息的时候只改写索引记录中的有效标记，提交日志的分段中的消息都被确认了以后，就整个删除这个分段
+ * 消息在提交日志中的位置是不会变的，所以不需要像 MessageFileManger 那样通知内存中的消息更新偏移量
+ * 和 MessageFileManger 一样，写入由 journal 写线程完成：攒下的一批写入合并写一次提交日志，每个消费索引写一次，
+ * 按照刷盘策略 force 一次之后再通知这一批的所有生产者，发送消息的线程不会在持有 appendLock 的时候等待刷盘
+ */
+public class CommitLogStore implements MessageStore {
+    // 消费索引中每条记录的长度
+    public static final int INDEX_ENTRY_SIZE=29;
+    // 队列中的消息都被确认了，并且消费索引超过这么大，就把消费索引清空，重新开始写
+    private static final long INDEX_TRUNCATE_SIZE=INDEX_ENTRY_SIZE*1024L;
+    private static final String COMMIT_LOG_PREFIX="commitlog_";
+    // journal 写线程一次最多合并多少个写入任务
+    private static final int MAX_BATCH_SIZE=1024;
+
+    // 一个队列的消费索引
+    // positions 中是还没有被确认的消息在索引文件中的位置，读写都要持有 ConsumeIndex 的锁
+    static class ConsumeIndex {
+        private final File file;
+        private FileChannel channel;
+        private long writePosition;
+        private final HashMap<String,Long> positions=new HashMap<>();
+        // 持有锁的时候会写索引文件，使用 ReentrantLock，虚拟线程阻塞时不会占住载体线程
+        private final ReentrantLock lock=new ReentrantLock();
+
+        ConsumeIndex(File file) throws IOException {
+            this.file=file;
+            this.channel=FileChannel.open(file.toPath(),StandardOpenOption.READ,StandardOpenOption.WRITE);
+            this.writePosition=channel.size();
+        }
+
+        long append(ByteBuffer entry) throws IOException {
+            long position=writePosition;
+            while (entry.hasRemaining()) {
+                writePosition+=channel.write(entry,writePosition);
+            }
+            return position;
+        }
+
+        ByteBuffer read(long position) throws IOException {
+            ByteBuffer entry=ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            while (entry.hasRemaining()) {
+                if(channel.read(entry,position+entry.position())<0) {
+                    throw new EOFException("读取消费索引失败！ indexFile="+file.getAbsolutePath()+", position="+position);
+                }
+            }
+            entry.flip();
+            return entry;
+        }
+
+        void truncate(long position) throws IOException {
+            channel.truncate(position);
+            writePosition=position;
+        }
+    }
+
+    // 表示一次等待 journal 写线程完成的写入任务，对应一次 sendMessages 或者一次 sendMessageBatch
+    static class AppendTask {
+        // 每条消息要写入的消费索引，和 messages 一一对应
+        private final List<ConsumeIndex> indexes;
+        private final List<Message> messages;
+        // 要写入提交日志的消息内容：sendMessages 只有一条，所有消息共用；sendMessageBatch 每条消息一条
+        private final List<byte[]> messageBinaries;
+        // 写入（以及按照刷盘策略刷盘）完成之后，通过这个 future 通知到发送消息的线程
+        private final CompletableFuture<Void> future=new CompletableFuture<>();
+
+        AppendTask(List<ConsumeIndex> indexes,List<Message> messages,List<byte[]> messageBinaries) {
+            this.indexes=indexes;
+            this.messages=messages;
+            this.messageBinaries=messageBinaries;
+        }
+    }
+
+    // 提交日志和消费索引所在的目录
+    private final String baseDir;
+    private long segmentSize=MessageFileManger.DEFAULT_SEGMENT_SIZE;
+    private volatile FlushPolicy flushPolicy=FlushPolicy.EVERY_BATCH;
+    private volatile long flushIntervalMs=MessageFileManger.DEFAULT_FLUSH_INTERVAL_MS;
+
+    // 提交日志的分段，key 是 baseOffset
+    private ConcurrentSkipListMap<Long,MessageSegment> segments=new ConcurrentSkipListMap<>();
+    // 每个分段中还有多少条没有被确认的消息（一条消息被路由到几个队列就算几条），为 0 的旧分段就可以删除了
+    private ConcurrentSkipListMap<Long,AtomicInteger> segmentRefs=new ConcurrentSkipListMap<>();
+    // 每个队列的消费索引，key 是 queueName
+    private ConcurrentHashMap<String,ConsumeIndex> indexMap=new ConcurrentHashMap<>();
+    // 追加写入提交日志以及切换分段的时候持有这个锁，提交日志只能一条一条地顺序写
+    // 只有 journal 写线程会追加写入，这个锁用来和创建队列、删除分段互斥
+    private final ReentrantLock appendLock=new ReentrantLock();
+    // 确认消息、读取消息内容时持有的锁，每个队列一个
+    private ConcurrentHashMap<String,ReentrantLock> queueLocks=new ConcurrentHashMap<>();
+    // 发送消息的线程把写入任务放到这个队列中，由 journal 写线程批量写入
+    private BlockingQueue<AppendTask> appendQueue=new LinkedBlockingQueue<>();
+    private Thread journalThread=null;
+    private volatile boolean runnable=true;
+
+    public CommitLogStore(String baseDir) {
+        this.baseDir=baseDir;
+    }
+
+    @Override
+    public void init() {
+        segmentSize=MqConfig.getLong("mq.storage.segment-size",MessageFileManger.DEFAULT_SEGMENT_SIZE);
+        flushPolicy=FlushPolicy.valueOf(MqConfig.getString("mq.storage.flush-policy",
+                FlushPolicy.EVERY_BATCH.name()).toUpperCase());
+        flushIntervalMs=MqConfig.getLong("mq.storage.flush-interval-ms",MessageFileManger.DEFAULT_FLUSH_INTERVAL_MS);
+        try {
+            loadCommitLog();
+            loadConsumeIndexes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        journalThread=new Thread(this::runJournal,"commitlog-journal-writer");
+        journalThread.setDaemon(true);
+        journalThread.start();
+        log.info("[CommitLogStore] 初始化完成！baseDir="+baseDir+", segments="+segments.size()
+                +", queues="+indexMap.size()+", flushPolicy="+flushPolicy);
+    }
+
+    // 停止 journal 写线程，把还没写完的消息写完并刷盘，再关闭所有打开的文件
+    @Override
+    public void close() {
+        runnable=false;
+        if(journalThread!=null) {
+            try {
+                journalThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        for (MessageSegment segment:segments.values()) {
+            try {
+                segment.force();
+                segment.closeChannel();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (ConsumeIndex index:indexMap.values()) {
+            index.lock.lock();
+            try {
+                try {
+                    index.channel.force(false);
+                    index.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } finally {
+                index.lock.unlock();
+            }
+        }
+        log.info("[CommitLogStore] 关闭完成！");
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy=flushPolicy;
+    }
+
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs=flushIntervalMs;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize=segmentSize;
+    }
+
+    private String getSegmentPath(long baseOffset) {
+        return baseDir+"/"+String.format(COMMIT_LOG_PREFIX+"%020d.txt",baseOffset);
+    }
+
+    private String getConsumeIndexDir() {
+        return baseDir+"/consumequeue";
+    }
+
+    private String getConsumeIndexPath(String queueName) {
+        return getConsumeIndexDir()+"/"+queueName+".txt";
+    }
+
+    // 加载提交日志的所有分段，只有最后一个分段可能在写入的过程中被打断，需要检查一遍，截掉写了一半的记录
+    private void loadCommitLog() throws IOException {
+        File dir=new File(baseDir);
+        if(!dir.exists()&&!dir.mkdirs()) {
+            throw new IOException("创建目录失败！ baseDir="+dir.getAbsolutePath());
+        }
+        File[] files=dir.listFiles((d,name) -> name.startsWith(COMMIT_LOG_PREFIX)&&name.endsWith(".txt"));
+        if(files!=null) {
+            for (File file:files) {
+                String name=file.getName();
+                long baseOffset=Long.parseLong(name.substring(COMMIT_LOG_PREFIX.length(),name.length()-4));
+                segments.put(baseOffset,new MessageSegment(baseOffset,file));
+                segmentRefs.put(baseOffset,new AtomicInteger(0));
+            }
+        }
+        if(segments.isEmpty()) {
+            segments.put(0L,MessageSegment.create(0,new File(getSegmentPath(0))));
+            segmentRefs.put(0L,new AtomicInteger(0));
+            return;
+        }
+        MessageSegment activeSegment=segments.lastEntry().getValue();
+        activeSegment.writeHeaderIfEmpty();
+        truncateTornTail(activeSegment);
+    }
+
+    private void truncateTornTail(MessageSegment segment) throws IOException {
+        long fileLength=segment.getFile().length();
+        long position=MessageSegment.HEADER_SIZE;
+        try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(segment.getFile())))){
+            if(dataInputStream.readInt()!=MessageSegment.SEGMENT_MAGIC||dataInputStream.readInt()!=segment.getVersion()
+                    ||segment.getVersion()==MessageSegment.SEGMENT_VERSION_V1) {
+                throw new IOException("提交日志的文件头错误！ segmentFile="+segment.getFile().getAbsolutePath());
+            }
+            while (position<fileLength) {
+                if(fileLength-position<MessageSegment.RECORD_HEADER_SIZE) {
+                    break;
+                }
+                int messageSize=dataInputStream.readInt();
+                int checksum=dataInputStream.readInt();
+                dataInputStream.readByte();
+                if(messageSize<=0||messageSize>fileLength-position-MessageSegment.RECORD_HEADER_SIZE) {
+                    break;
+                }
+                byte[] buffer=new byte[messageSize];
+                dataInputStream.readFully(buffer);
+                if(MessageSegment.checksum(buffer)!=checksum) {
+                    break;
+                }
+                position+=MessageSegment.RECORD_HEADER_SIZE+messageSize;
+            }
+        }
+        if(position<fileLength) {
+            log.warn("[CommitLogStore] 发现不完整的记录，截断提交日志！segmentFile="+segment.getFile().getAbsolutePath()
+                    +", position="+position+", length="+fileLength);
+            segment.truncate(position);
+        }
+    }
+
+    // 加载所有队列的消费索引，顺便统计出提交日志每个分段中还有多少条没有被确认的消息
+    private void loadConsumeIndexes() throws IOException {
+        File dir=new File(getConsumeIndexDir());
+        if(!dir.exists()&&!dir.mkdirs()) {
+            throw new IOException("创建目录失败！ consumeIndexDir="+dir.getAbsolutePath());
+        }
+        File[] files=dir.listFiles((d,name) -> name.endsWith(".txt"));
+        if(files==null) {
+            return;
+        }
+        for (File file:files) {
+            String queueName=file.getName().substring(0,file.getName().length()-4);
+            indexMap.put(queueName,loadConsumeIndex(queueName,file));
+        }
+    }
+
+    // 读取一个队列的消费索引
+    // 索引是在提交日志之后写的，如果索引指向的消息超出了提交日志的末尾，说明这条消息没有完整写入，从这里开始截断
+    private ConsumeIndex loadConsumeIndex(String queueName,File file) throws IOException {
+        ConsumeIndex index=new ConsumeIndex(file);
+        long commitLogEnd=segments.lastEntry().getValue().getEndOffset();
+        long length=index.writePosition-index.writePosition%INDEX_ENTRY_SIZE;
+        long position=0;
+        try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            while (position<length) {
+                long commitLogOffset=dataInputStream.readLong();
+                int messageSize=dataInputStream.readInt();
+                String messageId=LazyMessageList.MESSAGE_ID_PREFIX+new UUID(dataInputStream.readLong(),dataInputStream.readLong());
+                byte isValid=dataInputStream.readByte();
+                if(messageSize<=0||commitLogOffset+messageSize>commitLogEnd) {
+                    break;
+                }
+                if(isValid==0x1) {
+                    Map.Entry<Long,AtomicInteger> ref=segmentRefs.floorEntry(commitLogOffset);
+                    if(ref==null) {
+                        throw new IOException("消费索引指向的提交日志分段不存在！queueName="+queueName+", offset="+commitLogOffset);
+                    }
+                    ref.getValue().incrementAndGet();
+                    index.positions.put(messageId,position);
+                }
+                position+=INDEX_ENTRY_SIZE;
+            }
+        }
+        if(position<index.writePosition) {
+            log.warn("[CommitLogStore] 发现不完整的消费索引，截断！queueName="+queueName+", position="+position
+                    +", length="+index.writePosition);
+            index.truncate(position);
+        }
+        return index;
+    }
+
+    private ConsumeIndex getConsumeIndex(String queueName) throws MqException {
+        ConsumeIndex index=indexMap.get(queueName);
+        if(index==null) {
+            throw new MqException("[CommitLogStore] 队列的消费索引不存在！queueName="+queueName);
+        }
+        return index;
+    }
+
+    private ReentrantLock getQueueLock(String queueName) {
+        return queueLocks.computeIfAbsent(queueName,k -> new ReentrantLock());
+    }
+
+    @Override
+    public void createQueueFiles(String queueName) throws IOException {
+        appendLock.lock();
+        try {
+            if(indexMap.containsKey(queueName)) {
+                return;
+            }
+            File file=new File(getConsumeIndexPath(queueName));
+            if(!file.exists()&&!file.createNewFile()) {
+                throw new IOException("创建文件失败！ consumeIndexFile="+file.getAbsolutePath());
+            }
+            indexMap.put(queueName,loadConsumeIndex(queueName,file));
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public void destroyQueueFiles(String queueName) throws IOException {
+        ConsumeIndex index=indexMap.remove(queueName);
+        if(index!=null) {
+            index.lock.lock();
+            try {
+                for (long position:index.positions.values()) {
+                    releaseRef(index.read(position).getLong(0));
+                }
+                index.positions.clear();
+                index.channel.close();
+            } finally {
+                index.lock.unlock();
+            }
+        }
+        File file=new File(getConsumeIndexPath(queueName));
+        if(file.exists()&&!file.delete()) {
+            throw new IOException("删除消费索引失败！ consumeIndexFile="+file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public void sendMessage(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException {
+        sendMessages(Collections.singletonList(queue),Collections.singletonList(message));
+    }
+
+    // 消息内容只写一次提交日志，再给每个队列追加一条消费索引
+    @Override
+    public void sendMessages(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        if(queues.isEmpty()) {
+            return;
+        }
+        List<ConsumeIndex> indexes=getConsumeIndexes(queues,messages);
+        submit(new AppendTask(indexes,messages,Collections.singletonList(MessageCodec.encode(messages.get(0)))));
+    }
+
+    // 批量发送的若干条不同的消息：和其他生产者的写入一起，合并成一次写提交日志（跨分段的时候每个分段一次），
+    // 同一个队列的消费索引也合并成一次写操作
+    @Override
+    public void sendMessageBatch(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        if(queues.isEmpty()) {
+            return;
+        }
+        List<ConsumeIndex> indexes=getConsumeIndexes(queues,messages);
+        List<byte[]> messageBinaries=new ArrayList<>(messages.size());
+        for (Message message:messages) {
+            messageBinaries.add(MessageCodec.encode(message));
+        }
+        submit(new AppendTask(indexes,messages,messageBinaries));
+    }
+
+    // 在发送消息的线程中检查队列和 messageId，有问题的消息不交给 journal 写线程，不影响同一批的其他生产者
+    private List<ConsumeIndex> getConsumeIndexes(List<MSGQueue> queues,List<Message> messages) throws MqException {
+        List<ConsumeIndex> indexes=new ArrayList<>(queues.size());
+        for (int i = 0; i < queues.size(); i++) {
+            if(LazyMessageList.parseMessageId(messages.get(i).getMessageId())==null) {
+                throw new MqException("[CommitLogStore] messageId 格式错误！messageId="+messages.get(i).getMessageId());
+            }
+            indexes.add(getConsumeIndex(queues.get(i).getName()));
+        }
+        return indexes;
+    }
+
+    // 交给 journal 写线程，并等待写入完成（以及满足刷盘策略）
+    private void submit(AppendTask task) throws IOException, MqException, ClassNotFoundException {
+        if(!runnable) {
+            throw new MqException("[CommitLogStore] journal 写线程已经停止！");
+        }
+        appendQueue.add(task);
+        try {
+            task.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[CommitLogStore] 等待消息写入时被中断！");
+        } catch (ExecutionException e) {
+            Throwable cause=e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof MqException) {
+                throw (MqException) cause;
+            }
+            if(cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // journal 写线程的主循环
+    // 每次把当前攒下的所有写入任务一次性取出来写入，然后根据刷盘策略决定何时 force 以及何时通知生产者
+    // EVERY_BATCH：这一批写完 force 一次；INTERVAL：生产者一直等到覆盖自己那次写入的定时刷盘完成；OS：写完就通知
+    private void runJournal() {
+        // 已经写入但还没有刷盘的任务，以及被写过的分段和消费索引
+        List<AppendTask> unflushedTasks=new ArrayList<>();
+        Set<MessageSegment> dirtySegments=new LinkedHashSet<>();
+        Set<ConsumeIndex> dirtyIndexes=new LinkedHashSet<>();
+        long lastFlushTime=System.currentTimeMillis();
+        while (runnable||!appendQueue.isEmpty()||!unflushedTasks.isEmpty()) {
+            try {
+                // 1. 等待新的任务，INTERVAL 策略下如果有未刷盘的任务，最多只等到下一次刷盘时间
+                long waitMs=100;
+                if(flushPolicy==FlushPolicy.INTERVAL&&!unflushedTasks.isEmpty()) {
+                    waitMs=Math.max(0,lastFlushTime+flushIntervalMs-System.currentTimeMillis());
+                }
+                List<AppendTask> batch=new ArrayList<>();
+                AppendTask task=appendQueue.poll(waitMs,TimeUnit.MILLISECONDS);
+                while (task!=null) {
+                    batch.add(task);
+                    task=batch.size()<MAX_BATCH_SIZE?appendQueue.poll():null;
+                }
+                // 2. 写入这一批消息
+                unflushedTasks.addAll(writeBatch(batch,dirtySegments,dirtyIndexes));
+                // 3. 根据刷盘策略进行 force，并通知生产者
+                if(flushPolicy==FlushPolicy.OS) {
+                    dirtySegments.clear();
+                    dirtyIndexes.clear();
+                    for (AppendTask written:unflushedTasks) {
+                        written.future.complete(null);
+                    }
+                    unflushedTasks.clear();
+                } else if(flushPolicy==FlushPolicy.EVERY_BATCH
+                        ||System.currentTimeMillis()-lastFlushTime>=flushIntervalMs||!runnable) {
+                    flushAndComplete(unflushedTasks,dirtySegments,dirtyIndexes);
+                    unflushedTasks.clear();
+                    lastFlushTime=System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        log.info("[CommitLogStore] journal 写线程退出！");
+    }
+
+    // 先刷提交日志，再刷消费索引，然后通知这些任务的生产者
+    private void flushAndComplete(List<AppendTask> tasks,Set<MessageSegment> dirtySegments,Set<ConsumeIndex> dirtyIndexes) {
+        try {
+            for (MessageSegment segment:dirtySegments) {
+                segment.force();
+            }
+            for (ConsumeIndex index:dirtyIndexes) {
+                index.lock.lock();
+                try {
+                    if(index.channel.isOpen()) {
+                        index.channel.force(false);
+                    }
+                } finally {
+                    index.lock.unlock();
+                }
+            }
+            for (AppendTask task:tasks) {
+                task.future.complete(null);
+            }
+        } catch (IOException e) {
+            for (AppendTask task:tasks) {
+                task.future.completeExceptionally(e);
+            }
+        }
+        dirtySegments.clear();
+        dirtyIndexes.clear();
+    }
+
+    // 把一批任务的消息内容合并写入提交日志，再按照消费索引分组，一个消费索引的若干条记录一次写入，返回写入成功的任务
+    // 写提交日志失败的时候整批任务都失败；写某个消费索引失败（比如队列刚被删除）只影响用到这个消费索引的任务
+    private List<AppendTask> writeBatch(List<AppendTask> batch,Set<MessageSegment> dirtySegments,Set<ConsumeIndex> dirtyIndexes) {
+        if(batch.isEmpty()) {
+            return batch;
+        }
+        // 1. 先写提交日志
+        ByteBufferOutputStream recordBuffer=BinaryTool.acquireBuffer();
+        appendLock.lock();
+        try {
+            appendRecords(batch,recordBuffer,dirtySegments);
+        } catch (IOException e) {
+            for (AppendTask task:batch) {
+                task.future.completeExceptionally(e);
+            }
+            return Collections.emptyList();
+        } finally {
+            appendLock.unlock();
+            BinaryTool.releaseBuffer(recordBuffer);
+        }
+        // 2. 再按照消费索引分组写索引
+        Map<ConsumeIndex,List<Message>> groups=new LinkedHashMap<>();
+        Map<ConsumeIndex,Set<AppendTask>> groupTasks=new HashMap<>();
+        for (AppendTask task:batch) {
+            for (int i = 0; i < task.messages.size(); i++) {
+                ConsumeIndex index=task.indexes.get(i);
+                groups.computeIfAbsent(index,k -> new ArrayList<>()).add(task.messages.get(i));
+                groupTasks.computeIfAbsent(index,k -> new HashSet<>()).add(task);
+            }
+        }
+        Set<AppendTask> failed=new HashSet<>();
+        for (Map.Entry<ConsumeIndex,List<Message>> group:groups.entrySet()) {
+            try {
+                appendIndexEntries(group.getKey(),group.getValue());
+                dirtyIndexes.add(group.getKey());
+            } catch (IOException e) {
+                // 这些消息不会出现在消费索引中，提交日志中的引用要还回去
+                for (Message message:group.getValue()) {
+                    releaseRef(message.getOffsetBeg());
+                }
+                for (AppendTask task:groupTasks.get(group.getKey())) {
+                    if(failed.add(task)) {
+                        task.future.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+        if(failed.isEmpty()) {
+            return batch;
+        }
+        List<AppendTask> written=new ArrayList<>(batch.size());
+        for (AppendTask task:batch) {
+            if(!failed.contains(task)) {
+                written.add(task);
+            }
+        }
+        return written;
+    }
+
+    // 把一批任务的消息内容依次写入提交日志，当前分段放不下下一条记录的时候，先把攒下的记录写进去，再切换分段
+    // 调用者需要持有 appendLock
+    private void appendRecords(List<AppendTask> batch,ByteBufferOutputStream recordBuffer,Set<MessageSegment> dirtySegments) throws IOException {
+        DataOutputStream dataOutputStream=new DataOutputStream(recordBuffer);
+        MessageSegment segment=null;
+        int pendingRefs=0;
+        for (AppendTask task:batch) {
+            // 所有消息共用的一条记录被每个队列各引用一次，否则每条记录只被一个队列引用
+            boolean shared=task.messageBinaries.size()==1;
+            for (int r = 0; r < task.messageBinaries.size(); r++) {
+                byte[] messageBinary=task.messageBinaries.get(r);
+                int recordSize=MessageSegment.RECORD_HEADER_SIZE+messageBinary.length;
+                if(segment!=null&&segment.getWritePosition()+recordBuffer.size()+recordSize>segmentSize) {
+                    appendRecords(segment,recordBuffer,pendingRefs,dirtySegments);
+                    pendingRefs=0;
+                }
+                segment=getActiveSegment(recordBuffer.size()+recordSize);
+                long offsetBeg=segment.getEndOffset()+recordBuffer.size()+MessageSegment.RECORD_HEADER_SIZE;
+                List<Message> messages=shared?task.messages:task.messages.subList(r,r+1);
+                for (Message message:messages) {
+                    message.setOffsetBeg(offsetBeg);
+                    message.setOffsetEnd(offsetBeg+messageBinary.length);
+                }
+                MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION,messageBinary,(byte) 0x1);
+                pendingRefs+=messages.size();
+            }
+        }
+        appendRecords(segment,recordBuffer,pendingRefs,dirtySegments);
+    }
+
+    // 把攒下的记录一次写入分段，refs 是这些记录一共被几个队列引用，调用者需要持有 appendLock
+    private void appendRecords(MessageSegment segment,ByteBufferOutputStream recordBuffer,int refs,Set<MessageSegment> dirtySegments) throws IOException {
+        if(recordBuffer.size()==0) {
+            return;
+        }
+        segment.append(recordBuffer.toByteBuffer());
+        segmentRefs.get(segment.getBaseOffset()).addAndGet(refs);
+        dirtySegments.add(segment);
+        recordBuffer.reset();
+    }
+
+    // 给一个队列追加若干条消费索引，一次写入
+    private void appendIndexEntries(ConsumeIndex index,List<Message> messages) throws IOException {
+        ByteBuffer entries=ByteBuffer.allocate(INDEX_ENTRY_SIZE*messages.size());
+        for (Message message:messages) {
+            UUID messageId=LazyMessageList.parseMessageId(message.getMessageId());
+            entries.putLong(message.getOffsetBeg());
+            entries.putInt((int) (message.getOffsetEnd()-message.getOffsetBeg()));
+            entries.putLong(messageId.getMostSignificantBits());
+            entries.putLong(messageId.getLeastSignificantBits());
+            entries.put((byte) 0x1);
+        }
+        entries.flip();
+        index.lock.lock();
+        try {
+            long position=index.append(entries);
+            for (Message message:messages) {
+                index.positions.put(message.getMessageId(),position);
+                position+=INDEX_ENTRY_SIZE;
+            }
+        } finally {
+            index.lock.unlock();
+        }
+    }
+
+    // 获取当前要写入的活跃分段，放不下这条记录了就切换到一个新的分段，调用者需要持有 appendLock
+    private MessageSegment getActiveSegment(int recordSize) throws IOException {
+        MessageSegment activeSegment=segments.lastEntry().getValue();
+        // 旧版本的分段只读不写，新消息总是写到一个新版本的分段中
+        if(activeSegment.getVersion()==MessageSegment.SEGMENT_VERSION&&(activeSegment.getWritePosition()<=MessageSegment.HEADER_SIZE
+                ||activeSegment.getWritePosition()+recordSize<=segmentSize)) {
+            return activeSegment;
+        }
+        long baseOffset=activeSegment.getEndOffset();
+        MessageSegment newSegment=MessageSegment.create(baseOffset,new File(getSegmentPath(baseOffset)));
+        segmentRefs.put(baseOffset,new AtomicInteger(0));
+        segments.put(baseOffset,newSegment);
+        log.info("[CommitLogStore] 切换到新的分段！baseOffset="+baseOffset);
+        return newSegment;
+    }
+
+    // 确认消息：把消费索引中这条记录的有效标记改成无效
+    @Override
+    public void deleteMessage(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException {
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            ConsumeIndex index=getConsumeIndex(queue.getName());
+            long commitLogOffset;
+            index.lock.lock();
+            try {
+                Long position=index.positions.remove(message.getMessageId());
+                if(position==null) {
+                    throw new MqException("[CommitLogStore] 消费索引中找不到消息！queueName="+queue.getName()
+                            +", messageId="+message.getMessageId());
+                }
+                commitLogOffset=index.read(position).getLong(0);
+                ByteBuffer buffer=ByteBuffer.wrap(new byte[]{0x0});
+                while (buffer.hasRemaining()) {
+                    index.channel.write(buffer,position+INDEX_ENTRY_SIZE-1);
+                }
+            } finally {
+                index.lock.unlock();
+            }
+            releaseRef(commitLogOffset);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // 批量删除同一个队列的消息，队列的锁和消费索引的锁都只加一次
+    @Override
+    public void deleteMessages(MSGQueue queue,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            ConsumeIndex index=getConsumeIndex(queue.getName());
+            List<Long> commitLogOffsets=new ArrayList<>(messages.size());
+            index.lock.lock();
+            try {
+                ByteBuffer buffer=ByteBuffer.allocate(1);
+                for (Message message:messages) {
+                    Long position=index.positions.remove(message.getMessageId());
+                    if(position==null) {
+                        throw new MqException("[CommitLogStore] 消费索引中找不到消息！queueName="+queue.getName()
+                                +", messageId="+message.getMessageId());
+                    }
+                    commitLogOffsets.add(index.read(position).getLong(0));
+                    buffer.clear();
+                    buffer.put((byte) 0x0).flip();
+                    while (buffer.hasRemaining()) {
+                        index.channel.write(buffer,position+INDEX_ENTRY_SIZE-1);
+                    }
+                }
+            } finally {
+                index.lock.unlock();
+                // 中途失败的时候，已经标记成无效的消息也要释放引用
+                for (long commitLogOffset:commitLogOffsets) {
+                    releaseRef(commitLogOffset);
+                }
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void releaseRef(long commitLogOffset) {
+        Map.Entry<Long,AtomicInteger> ref=segmentRefs.floorEntry(commitLogOffset);
+        if(ref!=null) {
+            ref.getValue().decrementAndGet();
+        }
+    }
+
+    // 队列中的消息都被确认了，就清空它的消费索引；提交日志中所有消息都被确认了的旧分段，直接删除
+    // 只有最后一个分段会被追加写入，其他分段的引用计数只会减少，减到 0 之后就不会再变了
+    @Override
+    public void requestGC(MSGQueue queue) throws IOException, MqException, ClassNotFoundException {
+        ConsumeIndex index=indexMap.get(queue.getName());
+        if(index!=null) {
+            index.lock.lock();
+            try {
+                if(index.positions.isEmpty()&&index.writePosition>=INDEX_TRUNCATE_SIZE&&index.channel.isOpen()) {
+                    index.truncate(0);
+                }
+            } finally {
+                index.lock.unlock();
+            }
+        }
+        long activeBaseOffset=segments.lastKey();
+        for (Map.Entry<Long,AtomicInteger> ref:segmentRefs.headMap(activeBaseOffset).entrySet()) {
+            if(ref.getValue().get()>0) {
+                continue;
+            }
+            appendLock.lock();
+            try {
+                MessageSegment segment=segments.remove(ref.getKey());
+                if(segment==null) {
+                    continue;
+                }
+                segmentRefs.remove(ref.getKey());
+                segment.closeChannel();
+                if(!segment.getFile().delete()) {
+                    throw new IOException("删除提交日志分段失败！ segmentFile="+segment.getFile().getAbsolutePath());
+                }
+                log.info("[CommitLogStore] 删除已经全部确认的分段！baseOffset="+ref.getKey());
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setRelocationListener(RelocationListener relocationListener) {
+        // 提交日志中的消息不会被挪动位置，不需要通知
+    }
+
+    // 读出队列中所有有效消息的完整内容
+    @Override
+    public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        LinkedList<Message> messages=recoverMessagesFromQueue(queueName);
+        for (Message message:messages) {
+            readMessageBody(message);
+        }
+        return messages;
+    }
+
+    // 只读取消费索引，恢复出来的消息只有 messageId 和提交日志中的偏移量，消息内容等到投递的时候再读取
+    @Override
+    public LinkedList<Message> recoverMessagesFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        LinkedList<Message> messages=new LinkedList<>();
+        if(!indexMap.containsKey(queueName)) {
+            // 数据库中有这个队列，但是没有消费索引（比如之前使用的是另一种存储引擎），当成空队列，之前的消息不会迁移过来
+            log.warn("[CommitLogStore] 队列没有消费索引，当成空队列处理！queueName="+queueName);
+            createQueueFiles(queueName);
+            return messages;
+        }
+        ConsumeIndex index=getConsumeIndex(queueName);
+        index.lock.lock();
+        try {
+            // 消费索引是定长的记录，顺序读一遍就行了
+            try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(index.file)))){
+                for (long position=0;position<index.writePosition;position+=INDEX_ENTRY_SIZE) {
+                    long offsetBeg=dataInputStream.readLong();
+                    int messageSize=dataInputStream.readInt();
+                    String messageId=LazyMessageList.MESSAGE_ID_PREFIX+new UUID(dataInputStream.readLong(),dataInputStream.readLong());
+                    byte isValid=dataInputStream.readByte();
+                    if(isValid!=0x1) {
+                        continue;
+                    }
+                    Message message=new Message();
+                    message.setMessageId(messageId);
+                    message.setDeliverMode(2);
+                    message.setOffsetBeg(offsetBeg);
+                    message.setOffsetEnd(offsetBeg+messageSize);
+                    message.setBodyOnDisk(true);
+                    messages.add(message);
+                }
+            }
+        } finally {
+            index.lock.unlock();
+        }
+        log.info("[CommitLogStore] 根据消费索引恢复消息完成！queueName="+queueName+", messages="+messages.size());
+        return messages;
+    }
+
+    @Override
+    public void loadMessageBody(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException {
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            if(!message.isBodyOnDisk()) {
+                return;
+            }
+            // 惰性队列中取出来的消息，只有 messageId，偏移量要从消费索引中查出来
+            if(message.getOffsetEnd()==0) {
+                ConsumeIndex index=getConsumeIndex(queue.getName());
+                index.lock.lock();
+                try {
+                    Long position=index.positions.get(message.getMessageId());
+                    if(position==null) {
+                        throw new MqException("[CommitLogStore] 消费索引中找不到消息！queueName="+queue.getName()
+                                +", messageId="+message.getMessageId());
+                    }
+                    ByteBuffer entry=index.read(position);
+                    long offsetBeg=entry.getLong();
+                    message.setOffsetBeg(offsetBeg);
+                    message.setOffsetEnd(offsetBeg+entry.getInt());
+                } finally {
+                    index.lock.unlock();
+                }
+            }
+            readMessageBody(message);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // 根据偏移量从提交日志中读出消息内容，提交日志中保存的 messageId 是同一次发布的第一个队列的，要换回这条消息自己的
+    private void readMessageBody(Message message) throws IOException, MqException, ClassNotFoundException {
+        Map.Entry<Long,MessageSegment> entry=segments.floorEntry(message.getOffsetBeg());
+        if(entry==null) {
+            throw new MqException("[CommitLogStore] 消息所在的分段不存在！offset="+message.getOffsetBeg());
+        }
+        MessageSegment segment=entry.getValue();
+        byte[] buffer=segment.read(message.getOffsetBeg()-segment.getBaseOffset(),
+                (int) (message.getOffsetEnd()-message.getOffsetBeg()));
+        Message diskMessage=MessageCodec.decode(segment.getVersion(),buffer);
+        String messageId=message.getMessageId();
+        message.setBasicProperties(diskMessage.getBasicProperties());
+        message.setMessageId(messageId);
+        message.setBody(diskMessage.getBody());
+        message.setBodyOnDisk(false);
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.mq.mqserver.datacenter;
 
+import com.example.mq.common.MqConfig;
 import com.example.mq.common.MqException;
 import com.example.mq.mqserver.core.Binding;
 import com.example.mq.mqserver.core.Exchange;
@@ -15,20 +16,42 @@ import java.util.List;
  * 1、数据库：交换机，绑定，队列
  * 2、数据文件：消息
  * 上层逻辑如果需要操作硬盘，统一都通过这个类来使用（上层代码不关心当前数据是存储在数据库还是文件中的）
+ * 消息使用哪种存储引擎，由配置项 mq.storage.engine 决定
  */
 public class DiskDataCenter {
     // 这个实例用来管理数据库中的数据
     private DataBaseManager dataBaseManager=new DataBaseManager();
-    // 这个实例用来管理数据文件中的数据
-    private MessageFileManger messageFileManager=new MessageFileManger();
+    // 这个实例用来管理数据文件中的数据，在 init 的时候根据配置创建
+    private MessageStore messageFileManager=null;
+    // 虚拟主机的名字，提交日志存储引擎每个虚拟主机一个提交日志
+    private String virtualHostName;
+
+    public DiskDataCenter() {
+        this("");
+    }
+
+    public DiskDataCenter(String virtualHostName) {
+        this.virtualHostName=virtualHostName;
+    }
 
     public void init() {
         // 针对上述两个实例进行初始化
         dataBaseManager.init();
-        // 当前 messageFileManger.init 是空的方法，只是先列在这里，一旦后续需要扩展，就在这里进行初始化即可
+        StorageEngine engine=StorageEngine.valueOf(MqConfig.getString("mq.storage.engine",
+                StorageEngine.SEGMENT.name()).toUpperCase());
+        if(engine==StorageEngine.COMMIT_LOG) {
+            messageFileManager=new CommitLogStore("./data/commitlog/"+virtualHostName);
+        } else {
+            messageFileManager=new MessageFileManger();
+        }
         messageFileManager.init();
     }
 
+    // 关闭硬盘数据管理，把还没落盘的消息写完
+    public void close() {
+        messageFileManager.close();
+    }
+
     // 封装交换机操作
     public void insertExchange(Exchange exchange) {
         dataBaseManager.insertExchange(exchange);
@@ -73,18 +96,51 @@ public class DiskDataCenter {
     }
 
     // 封装消息操作
-    public void sendMessage(MSGQueue queue, Message message) throws IOException, MqException {
+    public void sendMessage(MSGQueue queue, Message message) throws IOException, MqException, ClassNotFoundException {
         messageFileManager.sendMessage(queue,message);
     }
 
+    // 同一次发布被路由到多个队列的消息，一起写入
+    public void sendMessages(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        messageFileManager.sendMessages(queues,messages);
+    }
+
+    // 批量发送的消息，一起写入
+    public void sendMessageBatch(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        messageFileManager.sendMessageBatch(queues,messages);
+    }
+
     public void deleteMessage(MSGQueue queue,Message message) throws IOException, ClassNotFoundException, MqException {
         messageFileManager.deleteMessage(queue,message);
-        if(messageFileManager.checkGC(queue.getName())) {
-            messageFileManager.gc(queue);
-        }
+        // gc 交给后台线程执行，不阻塞确认消息的线程
+        messageFileManager.requestGC(queue);
+    }
+
+    // 批量确认的同一个队列的消息，一起删除，只请求一次 gc
+    public void deleteMessages(MSGQueue queue,List<Message> messages) throws IOException, ClassNotFoundException, MqException {
+        messageFileManager.deleteMessages(queue,messages);
+        messageFileManager.requestGC(queue);
+    }
+
+    public void setRelocationListener(MessageStore.RelocationListener relocationListener) {
+        messageFileManager.setRelocationListener(relocationListener);
     }
 
     public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
         return messageFileManager.loadAllMessageFromQueue(queueName);
     }
+
+    // 启动时恢复队列中的消息，优先使用索引快照
+    public LinkedList<Message> recoverMessagesFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        return messageFileManager.recoverMessagesFromQueue(queueName);
+    }
+
+    // 惰性队列启动时恢复消息，只恢复 messageId 和偏移量
+    public LinkedList<Message> recoverMessageIdsFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        return messageFileManager.recoverMessageIdsFromQueue(queueName);
+    }
+
+    public void loadMessageBody(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException {
+        messageFileManager.loadMessageBody(queue,message);
+    }
 }
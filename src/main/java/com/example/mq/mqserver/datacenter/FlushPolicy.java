@@ -0,0 +1,13 @@
+package com.example.mq.mqserver.datacenter;
+
+/*
+ * 持久化消息的刷盘策略
+ */
+public enum FlushPolicy {
+    // 每写入一批消息，就执行一次 force，生产者等刷盘完成才返回
+    EVERY_BATCH,
+    // 每隔 N 毫秒执行一次 force，生产者等到覆盖自己的那次刷盘完成才返回
+    INTERVAL,
+    // 只写入操作系统的缓存，什么时候落盘交给操作系统决定，写入完成就返回
+    OS
+}
@@ -0,0 +1,98 @@
+package com.example.mq.mqserver.datacenter;
+
+import com.example.mq.mqserver.core.Message;
+
+import java.util.UUID;
+
+/*
+ * 惰性队列在内存中保存消息的数据结构，是一个按照先进先出顺序使用的环形缓冲区
+ * 持久化消息只保存 messageId（也就是 UUID 的两个 long），不保存 Message对象，每条消息只占十几个字节
+ * 消息在文件中的偏移量由 MessageFileManger 的索引管理（分段压缩的时候偏移量会变），这里就不再重复保存了
+ * 非持久化消息在硬盘上没有，只能保存完整的 Message对象
+ * 取消息的时候，把 messageId 还原成一个只有 messageId 的 Message对象，消息内容在投递之前再从硬盘上读取
+ */
+public class LazyMessageList {
+    private static final int INITIAL_CAPACITY=16;
+    // Message.createMessageWithId 生成的 messageId 的前缀
+    static final String MESSAGE_ID_PREFIX="M-";
+
+    private long[] idMostBits=new long[INITIAL_CAPACITY];
+    private long[] idLeastBits=new long[INITIAL_CAPACITY];
+    // 需要保存完整 Message对象的消息，放在这里，只保存 messageId 的消息，这里是 null
+    private Message[] messages=new Message[INITIAL_CAPACITY];
+    // 队首元素的下标，以及元素个数
+    private int head=0;
+    private int size=0;
+
+    public synchronized void add(Message message) {
+        if(size==messages.length) {
+            grow();
+        }
+        int index=(head+size)%messages.length;
+        UUID uuid=message.getDeliverMode()==2?parseMessageId(message.getMessageId()):null;
+        if(uuid!=null) {
+            idMostBits[index]=uuid.getMostSignificantBits();
+            idLeastBits[index]=uuid.getLeastSignificantBits();
+            messages[index]=null;
+        } else {
+            messages[index]=message;
+        }
+        size++;
+    }
+
+    // 取出队首的消息，只保存了 messageId 的消息，返回的 Message对象中只有 messageId，isBodyOnDisk 为 true
+    public synchronized Message poll() {
+        if(size==0) {
+            return null;
+        }
+        Message message=messages[head];
+        if(message==null) {
+            message=new Message();
+            message.setMessageId(MESSAGE_ID_PREFIX+new UUID(idMostBits[head],idLeastBits[head]));
+            message.setDeliverMode(2);
+            message.setBodyOnDisk(true);
+        }
+        messages[head]=null;
+        head=(head+1)%messages.length;
+        size--;
+        return message;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void grow() {
+        int capacity=messages.length*2;
+        long[] newIdMostBits=new long[capacity];
+        long[] newIdLeastBits=new long[capacity];
+        Message[] newMessages=new Message[capacity];
+        for (int i = 0; i < size; i++) {
+            int index=(head+i)%messages.length;
+            newIdMostBits[i]=idMostBits[index];
+            newIdLeastBits[i]=idLeastBits[index];
+            newMessages[i]=messages[index];
+        }
+        idMostBits=newIdMostBits;
+        idLeastBits=newIdLeastBits;
+        messages=newMessages;
+        head=0;
+    }
+
+    // messageId 不是 "M-" + UUID 的格式的话，就没法压缩保存，返回 null
+    static UUID parseMessageId(String messageId) {
+        if(messageId==null||!messageId.startsWith(MESSAGE_ID_PREFIX)) {
+            return null;
+        }
+        try {
+            UUID uuid=UUID.fromString(messageId.substring(MESSAGE_ID_PREFIX.length()));
+            // UUID.fromString 对格式的检查比较宽松，还原回去不一样的话，也不能压缩保存
+            if(!uuid.toString().equals(messageId.substring(MESSAGE_ID_PREFIX.length()))) {
+                return null;
+            }
+            return uuid;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -1,16 +1,26 @@
 package com.example.mq.mqserver.datacenter;
 
+import com.example.mq.common.MqConfig;
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
 import com.example.mq.mqserver.core.Binding;
 import com.example.mq.mqserver.core.Exchange;
 import com.example.mq.mqserver.core.MSGQueue;
 import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.core.TopicTrie;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 /*
@@ -18,18 +28,54 @@ import java.util.concurrent.ConcurrentHashMap;
  * 该类后续提供的一些方法，可能会在多线程环境下被使用，因此要注意线程安全问题
  */
 public class MemoryDataCenter {
+    // 估算内存占用时，每条消息除了 body 之外的开销（Message 对象、属性、messageId、哈希表和链表的节点）
+    public static final long MESSAGE_OVERHEAD_BYTES=256;
+
     // 交换机：key 是 exchangeName,value 是 Exchange 对象
     private ConcurrentHashMap<String, Exchange> exchangeMap=new ConcurrentHashMap<>();
     // 队列：key 是 queueName,value 是 MSGQueue 对象
     private ConcurrentHashMap<String, MSGQueue> queueMap=new ConcurrentHashMap<>();
     // 绑定：第一个 key 是exchangeName,第二个 key是 queueName
     private ConcurrentHashMap<String,ConcurrentHashMap<String, Binding>> bindingsMap=new ConcurrentHashMap<>();
+    // 每个交换机上所有绑定的 bindingKey 组成的前缀树，主题交换机转发的时候一次找出所有匹配的队列：key 是 exchangeName
+    // 和 bindingsMap 一起修改（持有这个交换机的 bindingLock）
+    private ConcurrentHashMap<String,TopicTrie> topicTries=new ConcurrentHashMap<>();
+    // 每个交换机绑定的版本号：绑定、解除绑定、删除队列、删除交换机的时候加一，转发结果的缓存靠它判断是否过期：key 是 exchangeName
+    // 交换机删除之后也不删掉版本号，这样同名的交换机重新创建之后，之前缓存的转发结果也不会被当成有效的
+    private ConcurrentHashMap<String,AtomicLong> bindingVersions=new ConcurrentHashMap<>();
     // 消息：key 是 messageId, value 是 Message对象
     private ConcurrentHashMap<String, Message> messageMap=new ConcurrentHashMap<>();
     // 队列和消息的关联（每个队列中有哪些消息）：key 是 queueName,value 是一个 Message的链表
     private ConcurrentHashMap<String, LinkedList<Message>> queueMessageMap=new ConcurrentHashMap<>();
+    // 惰性队列和消息的关联：key 是 queueName,value 是只保存 messageId 的紧凑的消息列表
+    // 惰性队列中还没有被取走的持久化消息，不会放到 messageMap 中，取走的时候才会放进去
+    private ConcurrentHashMap<String,LazyMessageList> lazyQueueMessageMap=new ConcurrentHashMap<>();
     // "未被确认"的消息（每个队列中有哪些消息没有被确认）:第一个 key是 queueName,第二个 key是 messageId
     private ConcurrentHashMap<String,ConcurrentHashMap<String,Message>> queueMessageWaitAckMap=new ConcurrentHashMap<>();
+    // 修改绑定、队列消息链表时使用的锁：key 分别是 exchangeName 和 queueName
+    // 使用 ReentrantLock 而不是 synchronized，投递消息的虚拟线程在这里等锁的时候不会占住载体线程
+    private ConcurrentHashMap<String,ReentrantLock> bindingLocks=new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String,ReentrantLock> messageLocks=new ConcurrentHashMap<>();
+    // messageMap 中的消息估算占用的内存（body + 固定开销），服务器根据这个值决定是否要暂停接收发布者的消息
+    private AtomicLong messageBytes=new AtomicLong(0);
+
+    private ReentrantLock getBindingLock(String exchangeName) {
+        return bindingLocks.computeIfAbsent(exchangeName,k -> new ReentrantLock());
+    }
+
+    private void bumpBindingVersion(String exchangeName) {
+        bindingVersions.computeIfAbsent(exchangeName,k -> new AtomicLong(0)).incrementAndGet();
+    }
+
+    // 交换机绑定的当前版本号，要缓存转发结果的话，需要在计算之前读取
+    public long getBindingVersion(String exchangeName) {
+        AtomicLong version=bindingVersions.get(exchangeName);
+        return version==null?0:version.get();
+    }
+
+    private ReentrantLock getMessageLock(String queueName) {
+        return messageLocks.computeIfAbsent(queueName,k -> new ReentrantLock());
+    }
 
     public void insertExchange(Exchange exchange) {
         exchangeMap.put(exchange.getName(),exchange);
@@ -42,6 +88,7 @@ public class MemoryDataCenter {
 
     public void deleteExchange(String exchangeName) {
         exchangeMap.remove(exchangeName);
+        bumpBindingVersion(exchangeName);
         log.info("[MemoryDataCenter] 交换机删除成功！exchangeName="+exchangeName);
     }
 
@@ -56,6 +103,12 @@ public class MemoryDataCenter {
 
     public void deleteQueue(String queueName) {
         queueMap.remove(queueName);
+        // 绑定了这个队列的交换机，之前缓存的转发结果里都有这个队列
+        for (Map.Entry<String,ConcurrentHashMap<String,Binding>> entry:bindingsMap.entrySet()) {
+            if(entry.getValue().containsKey(queueName)) {
+                bumpBindingVersion(entry.getKey());
+            }
+        }
         log.info("[MemoryDataCenter] 队列删除成功！queueName="+queueName);
     }
 
@@ -69,13 +122,20 @@ public class MemoryDataCenter {
         ConcurrentHashMap<String,Binding> bindingMap=bindingsMap.computeIfAbsent(binding.getExchangeName(),
                 k -> new ConcurrentHashMap<>());
 
-        synchronized (bindingMap) {
+        ReentrantLock bindingLock=getBindingLock(binding.getExchangeName());
+        bindingLock.lock();
+        try {
             // 再根据 queueName 查一下，如果已经存在，就抛出异常，不存在才能插入
             if(bindingMap.get(binding.getQueueName())!=null) {
                 throw new MqException("[MemoryDataCenter] 绑定已经存在！ exchangeName="+binding.getExchangeName()+
                         ", queueName="+binding.getQueueName());
             }
             bindingMap.put(binding.getQueueName(),binding);
+            topicTries.computeIfAbsent(binding.getExchangeName(),k -> new TopicTrie())
+                    .add(binding.getBindingKey(),binding.getQueueName());
+            bumpBindingVersion(binding.getExchangeName());
+        } finally {
+            bindingLock.unlock();
         }
         log.info("[MemoryDataCenter] 新绑定添加成功！ exchangeName="+binding.getExchangeName()
         +", queueName="+binding.getQueueName());
@@ -96,6 +156,15 @@ public class MemoryDataCenter {
         return bindingsMap.get(exchangeName);
     }
 
+    // 主题交换机上 bindingKey 和 routingKey 匹配的所有队列的名字
+    public Set<String> matchTopic(String exchangeName,String routingKey) {
+        TopicTrie topicTrie=topicTries.get(exchangeName);
+        if(topicTrie==null) {
+            return Collections.emptySet();
+        }
+        return topicTrie.match(routingKey);
+    }
+
     // 删除绑定
     public void deleteBinding(Binding binding) throws MqException {
         ConcurrentHashMap<String,Binding> bindingMap=bindingsMap.get(binding.getExchangeName());
@@ -104,14 +173,28 @@ public class MemoryDataCenter {
             throw new MqException("[MemoryDataCenter] 绑定不存在！exchangeName="+binding.getExchangeName()+
                     ", queueName="+binding.getQueueName());
         }
-        bindingMap.remove(binding.getQueueName());
+        ReentrantLock bindingLock=getBindingLock(binding.getExchangeName());
+        bindingLock.lock();
+        try {
+            Binding removed=bindingMap.remove(binding.getQueueName());
+            TopicTrie topicTrie=topicTries.get(binding.getExchangeName());
+            if(removed!=null&&topicTrie!=null) {
+                topicTrie.remove(removed.getBindingKey(),removed.getQueueName());
+            }
+            bumpBindingVersion(binding.getExchangeName());
+        } finally {
+            bindingLock.unlock();
+        }
         log.info("[MemoryDataCenter] 绑定删除成功! exchangeName=" + binding.getExchangeName()
                 + ", queueName=" + binding.getQueueName());
     }
 
     // 添加消息
     public void addMessage(Message message) {
-        messageMap.put(message.getMessageId(),message);
+        // 重复插入同一条消息不重复计算内存
+        if(messageMap.put(message.getMessageId(),message)==null) {
+            chargeMemory(message);
+        }
         log.info("[MemoryDataCenter] 新消息添加成功！messageId="+message.getMessageId());
     }
 
@@ -122,18 +205,46 @@ public class MemoryDataCenter {
 
     // 根据 id 删除消息
     public void removeMessage(String messageId) {
-        messageMap.remove(messageId);
+        Message removed=messageMap.remove(messageId);
+        if(removed!=null) {
+            messageBytes.addAndGet(-removed.getMemoryBytes());
+        }
         log.info("[MemoryDataCenter] 消息被移除！messageId="+messageId);
     }
 
+    private void chargeMemory(Message message) {
+        long bytes=MESSAGE_OVERHEAD_BYTES+(message.getBody()==null?0:message.getBody().length);
+        message.setMemoryBytes(bytes);
+        messageBytes.addAndGet(bytes);
+    }
+
+    // 消息中心中的消息估算占用的内存（字节）
+    public long getMessageBytes() {
+        return messageBytes.get();
+    }
+
     // 发送消息到指定队列
     public void sendMessage(MSGQueue queue,Message message) {
+        // 惰性队列，持久化消息只在内存中保留 messageId
+        if(queue.isLazy()) {
+            LazyMessageList lazyMessages=lazyQueueMessageMap.computeIfAbsent(queue.getName(),k -> new LazyMessageList());
+            lazyMessages.add(message);
+            if(message.getDeliverMode()!=2) {
+                addMessage(message);
+            }
+            log.info("[MemoryDataCenter] 消息被投递到惰性队列中！ messageId="+message.getMessageId());
+            return;
+        }
         // 把消息放到对应的队列数据结构中
         // 先根据队列的名字，找到该队列对应的消息链表
         LinkedList<Message> messages=queueMessageMap.computeIfAbsent(queue.getName(),k->new LinkedList<>());
         // 再把数据加到 messages里面
-        synchronized (messages) {
+        ReentrantLock messageLock=getMessageLock(queue.getName());
+        messageLock.lock();
+        try {
             messages.add(message);
+        } finally {
+            messageLock.unlock();
         }
         // 在这里把该消息也往消息中心中插入一下，假设如果 message 已经在消息中心存在，重复插入也没关系
         // 主要就是相同的 messageId，对应的 message 的内容一定是一样的（服务器代码不会对 Message内容做修改）
@@ -143,12 +254,24 @@ public class MemoryDataCenter {
 
     // 从队列中取消息
     public Message pollMessage(String queueName) {
+        // 惰性队列，取出来的持久化消息只有 messageId，此时再放到消息中心中
+        LazyMessageList lazyMessages=lazyQueueMessageMap.get(queueName);
+        if(lazyMessages!=null) {
+            Message currentMessage=lazyMessages.poll();
+            if(currentMessage!=null) {
+                addMessage(currentMessage);
+                log.info("[MemoryDataCenter] 消息从惰性队列中抽出！messageId="+currentMessage.getMessageId());
+                return currentMessage;
+            }
+        }
         // 根据队列名，查找一下，对应的队列的消息链表
         LinkedList<Message> messages=queueMessageMap.get(queueName);
         if(messages==null) {
             return null;
         }
-        synchronized (messages) {
+        ReentrantLock messageLock=getMessageLock(queueName);
+        messageLock.lock();
+        try {
             // 如果没找到，说明队列中没有任何消息
             if(messages.size()==0) {
                 return null;
@@ -157,18 +280,29 @@ public class MemoryDataCenter {
             Message currentMessage=messages.remove(0);
             log.info("[MemoryDataCenter] 消息从队列中抽出！messageId="+currentMessage.getMessageId());
             return currentMessage;
+        } finally {
+            messageLock.unlock();
         }
     }
 
     // 获取指定队列中消息的个数
     public int getMessageCount(String queueName) {
+        int count=0;
+        LazyMessageList lazyMessages=lazyQueueMessageMap.get(queueName);
+        if(lazyMessages!=null) {
+            count+=lazyMessages.size();
+        }
         LinkedList<Message> messages=queueMessageMap.get(queueName);
         if(messages==null) {
             // 队列中没有消息
-            return 0;
+            return count;
         }
-        synchronized (messages) {
-            return messages.size();
+        ReentrantLock messageLock=getMessageLock(queueName);
+        messageLock.lock();
+        try {
+            return count+messages.size();
+        } finally {
+            messageLock.unlock();
         }
     }
 
@@ -205,8 +339,11 @@ public class MemoryDataCenter {
         exchangeMap.clear();
         queueMap.clear();
         bindingsMap.clear();
+        topicTries.clear();
         messageMap.clear();
+        messageBytes.set(0);
         queueMessageMap.clear();
+        lazyQueueMessageMap.clear();
         // 1.恢复所有的交换机数据
         List<Exchange> exchanges=diskDataCenter.selectAllExchanges();
         for(Exchange exchange:exchanges) {
@@ -222,18 +359,91 @@ public class MemoryDataCenter {
         for (Binding binding:bindings) {
             ConcurrentHashMap<String,Binding> bindingMap=bindingsMap.computeIfAbsent(binding.getExchangeName(),k->new ConcurrentHashMap<>());
             bindingMap.put(binding.getQueueName(),binding);
+            topicTries.computeIfAbsent(binding.getExchangeName(),k -> new TopicTrie())
+                    .add(binding.getBindingKey(),binding.getQueueName());
+            bumpBindingVersion(binding.getExchangeName());
         }
         // 4.恢复所有的消息数据
-        // 遍历所有的队列，根据每个队列的名字，获取到所有的消息
-        for (MSGQueue queue:queues) {
-            LinkedList<Message> messages=diskDataCenter.loadAllMessageFromQueue(queue.getName());
-            queueMessageMap.put(queue.getName(),messages);
-            for (Message message:messages) {
-                messageMap.put(message.getMessageId(),message);
-            }
-        }
+        // 每个队列的消息互不相关，交给线程池并行恢复，每个队列一个任务，等所有队列都恢复完了再返回
+        recoveryMessages(diskDataCenter,queues);
         // 注意！ 针对“未确认的消息”这部分内存中的数据，不需要从硬盘恢复.之前考虑硬盘存储的时候，也没设定这里
         // 一旦在等待 ack的过程中，服务器重启了，此时这些”未被确认的消息“，就恢复成”未被取走的消息“
         // 这个消息在硬盘上存储的时候，就是当做 ”未被取走“
     }
+
+    private void recoveryMessages(DiskDataCenter diskDataCenter,List<MSGQueue> queues) throws IOException, MqException, ClassNotFoundException {
+        int threads=MqConfig.getInt("mq.recovery.threads",0);
+        if(threads<=0) {
+            threads=Runtime.getRuntime().availableProcessors();
+        }
+        threads=Math.max(1,Math.min(threads,queues.size()));
+        AtomicInteger threadId=new AtomicInteger(0);
+        ExecutorService recoveryPool=Executors.newFixedThreadPool(threads,r -> {
+            Thread t=new Thread(r,"recovery-"+threadId.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        long recoveryBeg=System.currentTimeMillis();
+        try {
+            List<Future<?>> futures=new ArrayList<>();
+            for (MSGQueue queue:queues) {
+                futures.add(recoveryPool.submit(() -> {
+                    long beg=System.currentTimeMillis();
+                    // 惰性队列只保留 messageId，恢复的时候也不需要读出消息内容
+                    LinkedList<Message> messages=queue.isLazy()
+                            ?diskDataCenter.recoverMessageIdsFromQueue(queue.getName())
+                            :diskDataCenter.recoverMessagesFromQueue(queue.getName());
+                    if(queue.isLazy()) {
+                        LazyMessageList lazyMessages=new LazyMessageList();
+                        for (Message message:messages) {
+                            lazyMessages.add(message);
+                        }
+                        lazyQueueMessageMap.put(queue.getName(),lazyMessages);
+                    } else {
+                        queueMessageMap.put(queue.getName(),messages);
+                        for (Message message:messages) {
+                            if(messageMap.put(message.getMessageId(),message)==null) {
+                                chargeMemory(message);
+                            }
+                        }
+                    }
+                    long cost=System.currentTimeMillis()-beg;
+                    MqMetrics.set("queue."+queue.getName()+".recovery.ms",cost);
+                    log.info("[MemoryDataCenter] 队列消息恢复完成！queueName="+queue.getName()
+                            +", messages="+messages.size()+", time="+cost+"ms");
+                    return null;
+                }));
+            }
+            // 等待所有队列恢复完成，有队列恢复失败的话，也要等其他队列都结束了，再把第一个异常抛出去
+            Exception firstException=null;
+            for (Future<?> future:futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if(firstException==null) {
+                        firstException=e.getCause() instanceof Exception?(Exception) e.getCause():e;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MqException("[MemoryDataCenter] 等待消息恢复时被中断！");
+                }
+            }
+            if(firstException instanceof IOException) {
+                throw (IOException) firstException;
+            }
+            if(firstException instanceof MqException) {
+                throw (MqException) firstException;
+            }
+            if(firstException instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) firstException;
+            }
+            if(firstException!=null) {
+                throw new IOException(firstException);
+            }
+        } finally {
+            recoveryPool.shutdownNow();
+        }
+        log.info("[MemoryDataCenter] 所有队列消息恢复完成！queues="+queues.size()+", threads="+threads
+                +", time="+(System.currentTimeMillis()-recoveryBeg)+"ms");
+    }
 }
@@ -0,0 +1,146 @@
+package com.example.mq.mqserver.datacenter;
+
+import com.example.mq.common.BinaryTool;
+import com.example.mq.mqserver.core.Message;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * 消息记录中消息本体的编码方式
+ * 版本 3 及以后的分段文件中，消息本体是紧凑的二进制格式，读写都直接通过 ByteBuffer，不需要反射：
+ * 格式版本(1) 标记(1) messageId长度(2) messageId routingKey长度(2) routingKey deliverMode(1) body长度(4) body
+ * 标记用来区分 null 和空值：messageId/routingKey/body 为 null 的时候，对应的标记位是 0，长度写 0
+ * 字符串都是 UTF-8 编码，有效标记和校验和在记录头中（见 MessageSegment），不在消息本体里
+ * 版本 1、2 的分段文件中，消息本体是 Java 标准库序列化出来的 Message 对象，读取的时候转换成 Message 对象，只读不写
+ */
+public class MessageCodec {
+    // 消息本体的格式版本，以后增加字段的时候加一
+    public static final byte FORMAT_VERSION=1;
+    public static final byte FLAG_HAS_MESSAGE_ID=0x1;
+    public static final byte FLAG_HAS_ROUTING_KEY=0x2;
+    public static final byte FLAG_HAS_BODY=0x4;
+    // 格式版本(1) 标记(1) messageId长度(2) routingKey长度(2) deliverMode(1) body长度(4)
+    private static final int FIXED_SIZE=11;
+    private static final int MAX_STRING_LENGTH=0xFFFF;
+
+    // 把 Message对象编码成新格式的消息本体
+    public static byte[] encode(Message message) throws IOException {
+        byte[] messageId=toBytes(message.getMessageId());
+        byte[] routingKey=toBytes(message.getRoutingKey());
+        byte[] body=message.getBody();
+        byte flags=0;
+        if(messageId!=null) {
+            flags|=FLAG_HAS_MESSAGE_ID;
+        }
+        if(routingKey!=null) {
+            flags|=FLAG_HAS_ROUTING_KEY;
+        }
+        if(body!=null) {
+            flags|=FLAG_HAS_BODY;
+        }
+        ByteBuffer buffer=ByteBuffer.allocate(FIXED_SIZE+length(messageId)+length(routingKey)+length(body));
+        buffer.put(FORMAT_VERSION);
+        buffer.put(flags);
+        putString(buffer,messageId);
+        putString(buffer,routingKey);
+        buffer.put((byte) message.getDeliverMode());
+        buffer.putInt(length(body));
+        if(body!=null) {
+            buffer.put(body);
+        }
+        return buffer.array();
+    }
+
+    // 按照分段文件的版本，把消息本体解码成 Message对象
+    // 旧版本的消息本体通过 BinaryTool 反序列化，相当于把旧格式转换成内存中的 Message对象
+    public static Message decode(int segmentVersion,byte[] payload) throws IOException, ClassNotFoundException {
+        if(segmentVersion<=MessageSegment.SEGMENT_VERSION_V2) {
+            return (Message) BinaryTool.fromBytes(payload);
+        }
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    // 解码新格式的消息本体，buffer 中剩下的数据就是一个完整的消息本体
+    public static Message decode(ByteBuffer buffer) throws IOException {
+        try {
+            byte formatVersion=buffer.get();
+            if(formatVersion!=FORMAT_VERSION) {
+                throw new IOException("不支持的消息格式版本！ formatVersion="+formatVersion);
+            }
+            byte flags=buffer.get();
+            Message message=new Message();
+            message.setMessageId(getString(buffer,(flags&FLAG_HAS_MESSAGE_ID)!=0));
+            message.setRoutingKey(getString(buffer,(flags&FLAG_HAS_ROUTING_KEY)!=0));
+            message.setDeliverMode(buffer.get());
+            int bodyLength=buffer.getInt();
+            if(bodyLength<0||bodyLength>buffer.remaining()) {
+                throw new IOException("消息本体长度错误！ bodyLength="+bodyLength);
+            }
+            if((flags&FLAG_HAS_BODY)!=0) {
+                byte[] body=new byte[bodyLength];
+                buffer.get(body);
+                message.setBody(body);
+            }
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("消息本体不完整！",e);
+        }
+    }
+
+    // 只读出消息本体中的 messageId，不解码 routingKey 和 body，用于只需要 messageId 和偏移量的恢复
+    // 旧版本的消息本体没有办法只读一部分，只能整个反序列化出来再取 messageId
+    public static String decodeMessageId(int segmentVersion,byte[] payload) throws IOException, ClassNotFoundException {
+        if(segmentVersion<=MessageSegment.SEGMENT_VERSION_V2) {
+            return ((Message) BinaryTool.fromBytes(payload)).getMessageId();
+        }
+        try {
+            ByteBuffer buffer=ByteBuffer.wrap(payload);
+            byte formatVersion=buffer.get();
+            if(formatVersion!=FORMAT_VERSION) {
+                throw new IOException("不支持的消息格式版本！ formatVersion="+formatVersion);
+            }
+            byte flags=buffer.get();
+            return getString(buffer,(flags&FLAG_HAS_MESSAGE_ID)!=0);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("消息本体不完整！",e);
+        }
+    }
+
+    private static byte[] toBytes(String value) throws IOException {
+        if(value==null) {
+            return null;
+        }
+        byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length>MAX_STRING_LENGTH) {
+            throw new IOException("字符串太长了，无法编码！ length="+bytes.length);
+        }
+        return bytes;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes==null?0:bytes.length;
+    }
+
+    private static void putString(ByteBuffer buffer,byte[] bytes) {
+        buffer.putShort((short) length(bytes));
+        if(bytes!=null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer,boolean present) throws IOException {
+        int length=buffer.getShort()&0xFFFF;
+        if(length>buffer.remaining()) {
+            throw new IOException("字符串长度错误！ length="+length);
+        }
+        if(!present) {
+            return null;
+        }
+        byte[] bytes=new byte[length];
+        buffer.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+}
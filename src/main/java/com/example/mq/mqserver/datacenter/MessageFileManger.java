@@ -1,31 +1,282 @@
 package com.example.mq.mqserver.datacenter;
 
 import com.example.mq.common.BinaryTool;
+import com.example.mq.common.ByteBufferOutputStream;
+import com.example.mq.common.MqConfig;
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
 import com.example.mq.mqserver.core.MSGQueue;
 import com.example.mq.mqserver.core.Message;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
-import java.util.LinkedList;
-import java.util.Random;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
 @Slf4j
 /*
  * 通过这个类，来针对硬盘上的消息进行管理
+ * 每个队列的消息数据被切分成若干个固定大小的分段文件，通过分段清单文件记录当前有哪些分段
+ * 追加写入只会发生在最后一个分段上，所有消息都已经被确认的旧分段，直接整体删除
+ * 持久化消息的写入由一个 journal 写线程统一完成：多个生产者的消息攒成一批写入，一批只刷一次盘
+ * 每条消息记录的有效标记放在记录头中的固定位置，确认消息时只需要原地改写一个字节
+ * 旧分段的垃圾回收在后台线程中进行：先不加锁地把有效消息复制到新文件，只有最后替换文件时才短暂地持有队列的锁
+ * 每个队列中有效消息的索引（messageId 和偏移量）会定期做快照，重启时根据快照恢复，只需要回放快照之后写入的消息
  */
-public class MessageFileManger {
+public class MessageFileManger implements MessageStore {
+    // 默认的分段大小，64MB
+    public static final long DEFAULT_SEGMENT_SIZE=64*1024*1024;
+    // MMAP 写入方式下，默认每次映射的区域大小，16MB
+    public static final long DEFAULT_MAP_REGION_SIZE=16*1024*1024;
+    // INTERVAL 刷盘策略下，默认的刷盘间隔
+    public static final long DEFAULT_FLUSH_INTERVAL_MS=10;
+    // 一批最多写入的消息个数
+    private static final int MAX_BATCH_SIZE=1024;
+    // 默认每隔多久把内存中的统计信息 checkpoint 到统计文件中
+    public static final long DEFAULT_STAT_CHECKPOINT_INTERVAL_MS=1000;
+    // 统计文件的格式：magic(4) version(4) clean(1) endOffset(8) totalCount(4) validCount(4) segmentCount(4)
+    // 后面跟着 segmentCount 个分段的 baseOffset(8) totalCount(4) validCount(4)
+    private static final int STAT_MAGIC=0x4D515354;
+    private static final int STAT_VERSION=1;
+    private static final int STAT_CLEAN_OFFSET=8;
+    // 默认的压缩阈值：旧分段中有效消息的比例低于这个值，就把有效消息复制到新文件中，去掉无效消息占用的空间
+    public static final double DEFAULT_COMPACT_THRESHOLD=0.5;
+    // 默认每隔多久给队列的消息索引做一次快照
+    public static final long DEFAULT_INDEX_SNAPSHOT_INTERVAL_MS=60*1000;
+    // 索引快照文件的格式：magic(4) version(4) endOffset(8) count(4)
+    // 后面跟着 count 条有效消息的 messageId(UTF) offsetBeg(8) offsetEnd(8)，按照 offsetBeg 排好序
+    private static final int INDEX_MAGIC=0x4D514958;
+    private static final int INDEX_VERSION=1;
+
     // 定义一个内部类，来表示该队列的统计信息
     // 优先考虑使用 static,静态内部类
+    // 统计信息常驻内存，收发消息时只修改内存中的计数器，定期（以及关闭时）再 checkpoint 到统计文件
     static public class Stat {
         // 此处直接定义成 public，就不用再写 get set方法了
         // 对于这样的简单的类，就直接使用类成员
-        public int totalCount; // 总消息数量
-        public int validCount; // 有效消息数量
+        public final AtomicInteger totalCount=new AtomicInteger(0); // 总消息数量
+        public final AtomicInteger validCount=new AtomicInteger(0); // 有效消息数量
+        // 自从上次 checkpoint 之后，统计信息有没有发生过变化
+        private boolean dirty=false;
+        // 修改统计信息、索引的锁，持有锁的时候可能会写文件，使用 ReentrantLock 而不是 synchronized，虚拟线程阻塞时不会占住载体线程
+        private final ReentrantLock lock=new ReentrantLock();
+    }
+
+    // 索引中的一条记录，对应一条有效消息
+    static class IndexEntry {
+        private final String messageId;
+        private final long offsetBeg;
+        private final long offsetEnd;
+
+        IndexEntry(String messageId,long offsetBeg,long offsetEnd) {
+            this.messageId=messageId;
+            this.offsetBeg=offsetBeg;
+            this.offsetEnd=offsetEnd;
+        }
+    }
+
+    // 一个队列中所有有效消息的索引，key 是 messageId
+    // 只有启动时完整恢复过的队列（或者是新创建的队列），索引才是完整的，才能用来做快照
+    // 索引的读写都要持有该队列 stat 的锁
+    static class MessageIndex {
+        private final HashMap<String,IndexEntry> entries=new HashMap<>();
+        // 索引每修改一次 version 就加一，和上次快照时一样的话，就不需要再做快照了
+        private long version=0;
+        private long snapshotVersion=-1;
+        // 压缩分段会改变消息的偏移量，每压缩一次 generation 就加一，正在写的快照如果跨过了压缩，就要丢弃
+        private long generation=0;
+    }
+
+    // 表示一次等待 journal 写线程完成的写入任务
+    static class AppendTask {
+        private final MSGQueue queue;
+        private final Message message;
+        private final byte[] messageBinary;
+        // 写入（以及按照刷盘策略刷盘）完成之后，通过这个 future 通知到发送消息的线程
+        private final CompletableFuture<Void> future=new CompletableFuture<>();
+
+        AppendTask(MSGQueue queue,Message message,byte[] messageBinary) {
+            this.queue=queue;
+            this.message=message;
+            this.messageBinary=messageBinary;
+        }
+    }
+
+    // 每个分段文件的大小上限，写满之后就切换到新的分段
+    private long segmentSize=DEFAULT_SEGMENT_SIZE;
+    // 刷盘策略
+    private volatile FlushPolicy flushPolicy=FlushPolicy.EVERY_BATCH;
+    private volatile long flushIntervalMs=DEFAULT_FLUSH_INTERVAL_MS;
+    // 追加写入分段的方式
+    private volatile WriteMode writeMode=WriteMode.CHANNEL;
+    private volatile long mapRegionSize=DEFAULT_MAP_REGION_SIZE;
+    private volatile long statCheckpointIntervalMs=DEFAULT_STAT_CHECKPOINT_INTERVAL_MS;
+    private volatile double compactThreshold=DEFAULT_COMPACT_THRESHOLD;
+    private volatile long indexSnapshotIntervalMs=DEFAULT_INDEX_SNAPSHOT_INTERVAL_MS;
+    private volatile RelocationListener relocationListener=null;
+
+    // 每个队列当前有哪些分段：key 是 queueName,value 是按照 baseOffset 排好序的分段
+    private ConcurrentHashMap<String, ConcurrentSkipListMap<Long,MessageSegment>> segmentsMap=new ConcurrentHashMap<>();
+    // 每个队列的统计信息：key 是 queueName,value 是统计信息
+    private ConcurrentHashMap<String,Stat> statMap=new ConcurrentHashMap<>();
+    // 加载队列的分段和统计信息时使用的锁，每个队列一个，这样不同队列可以并行加载
+    private ConcurrentHashMap<String,ReentrantLock> loadLocks=new ConcurrentHashMap<>();
+    // 修改队列消息文件时使用的锁，每个队列一个（写入、删除、压缩分段不能同时进行）
+    private ConcurrentHashMap<String,ReentrantLock> queueLocks=new ConcurrentHashMap<>();
+    // 每个队列中有效消息的索引：key 是 queueName,value 是索引
+    private ConcurrentHashMap<String,MessageIndex> indexMap=new ConcurrentHashMap<>();
+
+    // 等待写入硬盘的消息，由 journal 写线程统一取出来批量写入
+    // 一次批量发送的消息作为一个整体放进来，保证被同一批取出来，同一个队列的消息合并成一次写操作
+    private BlockingQueue<List<AppendTask>> appendQueue=new LinkedBlockingQueue<>();
+    private Thread journalThread=null;
+    private volatile boolean runnable=true;
+    // 定期 checkpoint 统计信息以及做索引快照的线程
+    private ScheduledExecutorService statScheduler=null;
+    // 执行垃圾回收的后台线程，以及已经在排队等待 gc 的队列
+    private ExecutorService gcExecutor=null;
+    private ConcurrentHashMap<String,MSGQueue> gcCandidates=new ConcurrentHashMap<>();
+
+    public MessageFileManger() {
+        journalThread=new Thread(this::runJournal,"journal-writer");
+        // 把线程设为后台线程
+        journalThread.setDaemon(true);
+        journalThread.start();
+
+        statScheduler=Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t=new Thread(r,"stat-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduleStatCheckpoint();
+        scheduleIndexSnapshot();
+
+        gcExecutor=Executors.newSingleThreadExecutor(r -> {
+            Thread t=new Thread(r,"segment-gc");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // 每次 checkpoint 完之后再安排下一次，这样修改了间隔之后下一次就能生效
+    private void scheduleStatCheckpoint() {
+        statScheduler.schedule(() -> {
+            checkpointStats();
+            if(runnable) {
+                scheduleStatCheckpoint();
+            }
+        },statCheckpointIntervalMs,TimeUnit.MILLISECONDS);
     }
 
+    private void scheduleIndexSnapshot() {
+        statScheduler.schedule(() -> {
+            snapshotIndexes();
+            if(runnable) {
+                scheduleIndexSnapshot();
+            }
+        },indexSnapshotIntervalMs,TimeUnit.MILLISECONDS);
+    }
+
+    @Override
     public void init() {
-        // 暂时不需要做其他额外的初始化工作
+        // 从配置文件中读取分段大小和刷盘策略
+        segmentSize=MqConfig.getLong("mq.storage.segment-size",DEFAULT_SEGMENT_SIZE);
+        flushPolicy=FlushPolicy.valueOf(MqConfig.getString("mq.storage.flush-policy",
+                FlushPolicy.EVERY_BATCH.name()).toUpperCase());
+        flushIntervalMs=MqConfig.getLong("mq.storage.flush-interval-ms",DEFAULT_FLUSH_INTERVAL_MS);
+        writeMode=WriteMode.valueOf(MqConfig.getString("mq.storage.write-mode",WriteMode.CHANNEL.name()).toUpperCase());
+        mapRegionSize=MqConfig.getLong("mq.storage.map-region-size",DEFAULT_MAP_REGION_SIZE);
+        statCheckpointIntervalMs=MqConfig.getLong("mq.storage.stat-checkpoint-interval-ms",DEFAULT_STAT_CHECKPOINT_INTERVAL_MS);
+        compactThreshold=MqConfig.getDouble("mq.storage.compact-threshold",DEFAULT_COMPACT_THRESHOLD);
+        indexSnapshotIntervalMs=MqConfig.getLong("mq.storage.index-snapshot-interval-ms",DEFAULT_INDEX_SNAPSHOT_INTERVAL_MS);
+        log.info("[MessageFileManger] segmentSize="+segmentSize+", flushPolicy="+flushPolicy
+                +", flushIntervalMs="+flushIntervalMs+", writeMode="+writeMode);
+    }
+
+    // 停止 journal 写线程，把还没写完的消息写完并刷盘，再关闭所有打开的文件
+    @Override
+    public void close() {
+        runnable=false;
+        try {
+            journalThread.join();
+            // 正在进行的 gc 要等它执行完，还在排队的就不用管了，下次启动之后还会再触发
+            gcExecutor.shutdownNow();
+            gcExecutor.awaitTermination(1,TimeUnit.MINUTES);
+            statScheduler.shutdownNow();
+            statScheduler.awaitTermination(1,TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        checkpointStats();
+        snapshotIndexes();
+        for (ConcurrentSkipListMap<Long,MessageSegment> segments:segmentsMap.values()) {
+            for (MessageSegment segment:segments.values()) {
+                try {
+                    segment.force();
+                    segment.closeChannel();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        log.info("[MessageFileManger] 关闭完成！");
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy=flushPolicy;
+    }
+
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs=flushIntervalMs;
+    }
+
+    public double getCompactThreshold() {
+        return compactThreshold;
+    }
+
+    public void setCompactThreshold(double compactThreshold) {
+        this.compactThreshold=compactThreshold;
+    }
+
+    @Override
+    public void setRelocationListener(RelocationListener relocationListener) {
+        this.relocationListener=relocationListener;
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode=writeMode;
+    }
+
+    public void setMapRegionSize(long mapRegionSize) {
+        this.mapRegionSize=mapRegionSize;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize=segmentSize;
     }
 
     // 预定消息文件所在的目录和文件名
@@ -34,62 +285,323 @@ public class MessageFileManger {
         return "./data/" +queueName;
     }
 
-    // 这个方法用来获取该队列的消息数据文件路径
+    // 这个方法用来获取该队列旧版本的（不分段的）消息数据文件路径，只在升级迁移的时候用到
     // 注意，二进制文件，使用 txt 作为后缀，不太合适. txt一般表示文本，此处不做修改
     private String getQueueDataPath(String queueName) {
         return getQueueDir(queueName)+"/queue_data.txt";
     }
 
-    // 这个方法用来获取该队列的消息统计文件路径
-    private String getQueueStatPath(String queueName) {
-        return getQueueDir(queueName)+"/queue_stat.txt";
+    // 这个方法用来获取该队列某个分段的消息数据文件路径
+    // 文件名中的数字就是该分段的 baseOffset，补齐到 20 位，这样按照文件名排序就是按照偏移量排序
+    private String getSegmentPath(String queueName,long baseOffset) {
+        return getQueueDir(queueName)+"/queue_data_"+String.format("%020d",baseOffset)+".txt";
     }
 
-    private Stat readStat(String queueName) {
-        // 由于当前的消息统计文件是文本文件，可以直接使用 Scanner 来读取文件内容
-        Stat stat=new Stat();
-        try(InputStream inputStream=new FileInputStream(getQueueStatPath(queueName))) {
+    // 这个方法用来获取该队列的分段清单文件路径，文件中每一行是一个分段的 baseOffset
+    private String getQueueSegmentsPath(String queueName) {
+        return getQueueDir(queueName)+"/queue_segments.txt";
+    }
+
+    private List<Long> readSegments(String queueName) throws IOException {
+        List<Long> baseOffsets=new ArrayList<>();
+        try(InputStream inputStream=new FileInputStream(getQueueSegmentsPath(queueName))) {
             Scanner scanner=new Scanner(inputStream);
-            stat.totalCount=scanner.nextInt();
-            stat.validCount=scanner.nextInt();
-            return stat;
-        } catch (IOException e) {
-            e.printStackTrace();
+            while (scanner.hasNextLong()) {
+                baseOffsets.add(scanner.nextLong());
+            }
         }
-        return null;
+        return baseOffsets;
     }
 
-    private void writeStat(String queueName,Stat stat) {
-        // 此处使用PrintWrite 来写文件
-        // OutputStream 打开文件，默认情况下，会直接把原文件清空，此时相当于新的数据覆盖了旧的
-        try (OutputStream outputStream=new FileOutputStream(getQueueStatPath(queueName))){
+    private void writeSegments(String queueName,Collection<Long> baseOffsets) throws IOException {
+        // 先写到临时文件，再重命名覆盖，避免写了一半程序崩溃导致清单文件损坏
+        File tmpFile=new File(getQueueSegmentsPath(queueName)+".tmp");
+        try (OutputStream outputStream=new FileOutputStream(tmpFile)){
             PrintWriter printWriter=new PrintWriter(outputStream);
-            printWriter.write(stat.totalCount+"\t"+stat.validCount);
+            for (long baseOffset:baseOffsets) {
+                printWriter.println(baseOffset);
+            }
             printWriter.flush();
+        }
+        Files.move(tmpFile.toPath(),new File(getQueueSegmentsPath(queueName)).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 旧版本的队列只有一个 queue_data.txt，升级之后把它转换成 baseOffset 为 0 的分段
+    // 旧文件中的记录没有单独的有效标记，需要逐条转换成新的记录格式
+    private void migrateLegacyDataFile(String queueName) throws IOException {
+        File segmentsFile=new File(getQueueSegmentsPath(queueName));
+        if(segmentsFile.exists()) {
+            return;
+        }
+        File legacyDataFile=new File(getQueueDataPath(queueName));
+        File firstSegmentFile=new File(getSegmentPath(queueName,0));
+        if(legacyDataFile.exists()) {
+            // 先转换出新的分段文件，再写分段清单，最后才删除旧文件
+            // 中途崩溃的话，重启时清单文件还不存在，会重新转换一次
+            convertLegacyDataFile(legacyDataFile,firstSegmentFile);
+            writeSegments(queueName,Collections.singletonList(0L));
+            if(!legacyDataFile.delete()) {
+                throw new IOException("删除旧的数据文件失败！ queueDataFile="+legacyDataFile.getAbsolutePath());
+            }
+            log.info("[MessageFileManger] 旧的数据文件迁移为分段文件！queueName="+queueName);
+            return;
+        }
+        MessageSegment.create(0,firstSegmentFile).closeChannel();
+        writeSegments(queueName,Collections.singletonList(0L));
+    }
+
+    // 把旧格式的数据文件（消息长度(4) 消息本体）转换成新格式的分段文件（文件头 消息长度(4) 校验和(4) 有效标记(1) 消息本体）
+    // 旧文件中的消息本体是 Java 标准库序列化出来的，转换的时候顺便重新编码成 MessageCodec 的格式
+    private void convertLegacyDataFile(File legacyDataFile,File segmentFile) throws IOException {
+        File tmpFile=new File(segmentFile.getPath()+".tmp");
+        try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(legacyDataFile)));
+             DataOutputStream dataOutputStream=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))){
+            dataOutputStream.writeInt(MessageSegment.SEGMENT_MAGIC);
+            dataOutputStream.writeInt(MessageSegment.SEGMENT_VERSION);
+            while (true) {
+                int messageSize;
+                try {
+                    messageSize=dataInputStream.readInt();
+                } catch (EOFException e) {
+                    // 读到文件末尾，转换完成
+                    break;
+                }
+                byte[] buffer=new byte[messageSize];
+                dataInputStream.readFully(buffer);
+                // 旧格式中，有效标记只存在于序列化之后的 Message对象中
+                Message message=(Message) BinaryTool.fromBytes(buffer);
+                MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION,MessageCodec.encode(message),message.getIsValid());
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("旧的数据文件格式错误！ queueDataFile="+legacyDataFile.getAbsolutePath(),e);
+        }
+        Files.move(tmpFile.toPath(),segmentFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 获取队列的分段信息，如果内存中还没有，就先从统计文件的 checkpoint 中恢复
+    // 如果 checkpoint 已经过期了（上次没来得及 checkpoint 就退出了，或者和分段文件对不上），就扫描一遍分段文件重新统计
+    private ConcurrentSkipListMap<Long,MessageSegment> getSegments(String queueName) throws IOException, MqException, ClassNotFoundException {
+        ConcurrentSkipListMap<Long,MessageSegment> segments=segmentsMap.get(queueName);
+        if(segments!=null) {
+            return segments;
+        }
+        ReentrantLock loadLock=getLoadLock(queueName);
+        loadLock.lock();
+        try {
+            segments=segmentsMap.get(queueName);
+            if(segments!=null) {
+                return segments;
+            }
+            migrateLegacyDataFile(queueName);
+            Stat stat=new Stat();
+            segments=readStat(queueName,stat);
+            if(segments==null) {
+                log.info("[MessageFileManger] 统计文件已过期，重新统计！queueName="+queueName);
+                segments=scanSegments(queueName,null);
+                stat=buildStat(segments);
+                stat.dirty=true;
+            }
+            statMap.put(queueName,stat);
+            segmentsMap.put(queueName,segments);
+            return segments;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    private ReentrantLock getLoadLock(String queueName) {
+        return loadLocks.computeIfAbsent(queueName,k -> new ReentrantLock());
+    }
+
+    private ReentrantLock getQueueLock(String queueName) {
+        return queueLocks.computeIfAbsent(queueName,k -> new ReentrantLock());
+    }
+
+    // 获取队列在内存中的统计信息
+    public Stat getStat(String queueName) throws IOException, MqException, ClassNotFoundException {
+        getSegments(queueName);
+        return statMap.get(queueName);
+    }
+
+    // 根据每个分段的统计结果，汇总出整个队列的统计信息
+    private Stat buildStat(ConcurrentSkipListMap<Long,MessageSegment> segments) {
+        Stat stat=new Stat();
+        for (MessageSegment segment:segments.values()) {
+            stat.totalCount.addAndGet(segment.getTotalCount());
+            stat.validCount.addAndGet(segment.getValidCount());
+        }
+        return stat;
+    }
+
+    // 根据消息的偏移量找到它所在的分段
+    private MessageSegment findSegment(String queueName,long offset) throws IOException, MqException, ClassNotFoundException {
+        Map.Entry<Long,MessageSegment> entry=getSegments(queueName).floorEntry(offset);
+        if(entry==null) {
+            throw new MqException("[MessageFileManger] 消息所在的分段不存在！queueName="+queueName+", offset="+offset);
+        }
+        return entry.getValue();
+    }
+
+    // 获取当前要写入的活跃分段，如果活跃分段放不下这条记录了，就切换到一个新的分段
+    private MessageSegment getActiveSegment(String queueName,int recordSize) throws IOException, MqException, ClassNotFoundException {
+        ConcurrentSkipListMap<Long,MessageSegment> segments=getSegments(queueName);
+        MessageSegment activeSegment=segments.lastEntry().getValue();
+        long regionSize=writeMode==WriteMode.MMAP?mapRegionSize:0;
+        // 空的分段无论如何都要写进去，避免一条超过分段大小的消息永远写不进去
+        // 旧版本的分段只读不写，新消息总是写到一个新版本的分段中
+        if(activeSegment.getVersion()==MessageSegment.SEGMENT_VERSION&&(activeSegment.getWritePosition()<=MessageSegment.HEADER_SIZE
+                ||activeSegment.getWritePosition()+recordSize<=segmentSize)) {
+            activeSegment.setMapRegionSize(regionSize);
+            return activeSegment;
+        }
+        // 旧的活跃分段不会再写入了，内存映射多出来的部分要截掉
+        activeSegment.seal();
+        long baseOffset=activeSegment.getEndOffset();
+        MessageSegment newSegment=MessageSegment.create(baseOffset,new File(getSegmentPath(queueName,baseOffset)));
+        newSegment.setMapRegionSize(regionSize);
+        segments.put(baseOffset,newSegment);
+        writeSegments(queueName,segments.keySet());
+        log.info("[MessageFileManger] 切换到新的分段！queueName="+queueName+", baseOffset="+baseOffset);
+        return newSegment;
+    }
+
+    // 这个方法用来获取该队列的索引快照文件路径
+    private String getQueueIndexPath(String queueName) {
+        return getQueueDir(queueName)+"/queue_index.txt";
+    }
+
+    // 这个方法用来获取该队列的消息统计文件路径
+    private String getQueueStatPath(String queueName) {
+        return getQueueDir(queueName)+"/queue_stat.txt";
+    }
+
+    // 读取统计文件中的 checkpoint，并按照其中记录的分段统计信息构造出分段
+    // checkpoint 不完整、没有正常结束（clean 标记为 0）、或者和分段文件对不上，都认为是过期的，返回 null
+    private ConcurrentSkipListMap<Long,MessageSegment> readStat(String queueName,Stat stat) throws IOException {
+        File queueStatFile=new File(getQueueStatPath(queueName));
+        if(!queueStatFile.exists()) {
+            return null;
+        }
+        List<Long> baseOffsets=readSegments(queueName);
+        try(DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(queueStatFile)))) {
+            if(dataInputStream.readInt()!=STAT_MAGIC||dataInputStream.readInt()!=STAT_VERSION
+                    ||dataInputStream.readByte()!=0x1) {
+                return null;
+            }
+            long endOffset=dataInputStream.readLong();
+            int totalCount=dataInputStream.readInt();
+            int validCount=dataInputStream.readInt();
+            int segmentCount=dataInputStream.readInt();
+            if(segmentCount!=baseOffsets.size()) {
+                return null;
+            }
+            ConcurrentSkipListMap<Long,MessageSegment> segments=new ConcurrentSkipListMap<>();
+            for (int i = 0; i < segmentCount; i++) {
+                long baseOffset=dataInputStream.readLong();
+                if(baseOffset!=baseOffsets.get(i)) {
+                    return null;
+                }
+                MessageSegment segment=new MessageSegment(baseOffset,new File(getSegmentPath(queueName,baseOffset)));
+                segment.setTotalCount(dataInputStream.readInt());
+                segment.setValidCount(dataInputStream.readInt());
+                segments.put(baseOffset,segment);
+            }
+            // 活跃分段的实际长度，必须和 checkpoint 时记录的一致，否则说明之后又写入过消息
+            if(segments.isEmpty()||segments.lastEntry().getValue().getEndOffset()!=endOffset) {
+                return null;
+            }
+            stat.totalCount.set(totalCount);
+            stat.validCount.set(validCount);
+            return segments;
+        } catch (EOFException e) {
+            // 统计文件不完整（比如旧版本的文本格式），也当成过期处理
+            return null;
+        }
+    }
+
+    // 把内存中的统计信息写入统计文件（checkpoint）
+    // 先写到临时文件，再重命名覆盖，避免写了一半程序崩溃导致统计文件损坏
+    // 调用者需要持有 stat 的锁
+    private void writeStat(String queueName,Stat stat,boolean clean) throws IOException {
+        ConcurrentSkipListMap<Long,MessageSegment> segments=segmentsMap.get(queueName);
+        File tmpFile=new File(getQueueStatPath(queueName)+".tmp");
+        try (DataOutputStream dataOutputStream=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))){
+            dataOutputStream.writeInt(STAT_MAGIC);
+            dataOutputStream.writeInt(STAT_VERSION);
+            dataOutputStream.writeByte(clean?0x1:0x0);
+            dataOutputStream.writeLong(segments==null?0:segments.lastEntry().getValue().getEndOffset());
+            dataOutputStream.writeInt(stat.totalCount.get());
+            dataOutputStream.writeInt(stat.validCount.get());
+            dataOutputStream.writeInt(segments==null?0:segments.size());
+            if(segments!=null) {
+                for (MessageSegment segment:segments.values()) {
+                    dataOutputStream.writeLong(segment.getBaseOffset());
+                    dataOutputStream.writeInt(segment.getTotalCount());
+                    dataOutputStream.writeInt(segment.getValidCount());
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(),new File(getQueueStatPath(queueName)).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 修改统计信息之前调用，checkpoint 之后第一次修改时，把统计文件中的 clean 标记改成 0
+    // 这样即使程序在下一次 checkpoint 之前崩溃了，重启的时候也知道统计文件过期了，需要重新统计
+    // 调用者需要持有 stat 的锁
+    private void markStatDirty(String queueName,Stat stat) {
+        if(stat.dirty) {
+            return;
+        }
+        stat.dirty=true;
+        try (RandomAccessFile randomAccessFile=new RandomAccessFile(getQueueStatPath(queueName),"rw")) {
+            if(randomAccessFile.length()>STAT_CLEAN_OFFSET) {
+                randomAccessFile.seek(STAT_CLEAN_OFFSET);
+                randomAccessFile.writeByte(0x0);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // 把所有发生过变化的队列的统计信息 checkpoint 到统计文件中
+    public void checkpointStats() {
+        for (Map.Entry<String,Stat> entry:statMap.entrySet()) {
+            Stat stat=entry.getValue();
+            stat.lock.lock();
+            try {
+                if(!stat.dirty||statMap.get(entry.getKey())!=stat) {
+                    continue;
+                }
+                try {
+                    writeStat(entry.getKey(),stat,true);
+                    stat.dirty=false;
+                } catch (IOException e) {
+                    log.info("[MessageFileManger] checkpoint 统计信息失败！queueName="+entry.getKey());
+                    e.printStackTrace();
+                }
+            } finally {
+                stat.lock.unlock();
+            }
+        }
+    }
+
     // 创建队列对应的文件和目录
+    @Override
     public void createQueueFiles(String queueName) throws IOException {
         // 1.先创建队列对应的消息目录
         File baseDir=new File(getQueueDir(queueName));
-        if(!baseDir.exists()) {
+        boolean newQueue=!baseDir.exists();
+        if(newQueue) {
             // 不存在，就创建这个目录
             boolean ok=baseDir.mkdirs();
             if(!ok) {
                 throw new IOException("创建目录失败！ baseDir="+baseDir);
             }
         }
-        // 2.创建队列数据文件
-        File queueDataFile=new File(getQueueDataPath(queueName));
-        if(!queueDataFile.exists()) {
-            boolean ok=queueDataFile.createNewFile();
-            if(!ok) {
-                throw new IOException("创建文件失败！ queueDataFile="+queueDataFile.getAbsolutePath());
-            }
-        }
+        // 2.创建第一个分段文件和分段清单文件（如果是旧版本的数据文件，就顺便迁移过来）
+        migrateLegacyDataFile(queueName);
         // 3.创建消息统计文件
         File queueStatFile=new File(getQueueStatPath(queueName));
         if(!queueStatFile.exists()) {
@@ -98,19 +610,53 @@ public class MessageFileManger {
                 throw new IOException("创建文件失败！ queueStatFile="+queueStatFile.getAbsolutePath());
             }
         }
-        // 4.给消息统计文件，设定初始值 0\t0
-        Stat stat=new Stat();
-        stat.totalCount=0;
-        stat.validCount=0;
-        writeStat(queueName,stat);
+        // 4.给消息统计文件，设定初始值
+        // 这里标记为过期，第一次用到这个队列时，再根据分段文件的实际内容统计一次
+        // (目录中可能还残留着之前的数据，比如刚刚迁移过来的旧数据文件)
+        segmentsMap.remove(queueName);
+        statMap.remove(queueName);
+        writeStat(queueName,new Stat(),false);
+        // 全新的队列中没有任何消息，索引一开始就是完整的
+        indexMap.remove(queueName);
+        if(newQueue) {
+            indexMap.put(queueName,new MessageIndex());
+        }
     }
 
     // 删除队列的目录和文件
     // 队列是可以删除的， 当队列删除之后，对应的消息文件啥的，自然也要随之删除
+    @Override
     public void destroyQueueFiles(String queueName) throws IOException {
         // 先删除里面的文件，再删除目录
-        File queueDataFile=new File(getQueueDataPath(queueName));
-        boolean ok1=queueDataFile.delete();
+        gcCandidates.remove(queueName);
+        MqMetrics.removeByPrefix(getGCMetricPrefix(queueName));
+        statMap.remove(queueName);
+        indexMap.remove(queueName);
+        ConcurrentSkipListMap<Long,MessageSegment> segments=segmentsMap.remove(queueName);
+        if(segments!=null) {
+            for (MessageSegment segment:segments.values()) {
+                segment.closeChannel();
+            }
+        }
+        boolean ok1=true;
+        File segmentsFile=new File(getQueueSegmentsPath(queueName));
+        if(segmentsFile.exists()) {
+            for (long baseOffset:readSegments(queueName)) {
+                ok1&=new File(getSegmentPath(queueName,baseOffset)).delete();
+            }
+            ok1&=segmentsFile.delete();
+        }
+        // gc 过程中留下的临时文件也要删掉
+        File[] compactFiles=new File(getQueueDir(queueName)).listFiles((dir,name) -> name.endsWith(".compact"));
+        if(compactFiles!=null) {
+            for (File compactFile:compactFiles) {
+                ok1&=compactFile.delete();
+            }
+        }
+        File queueIndexFile=new File(getQueueIndexPath(queueName));
+        if(queueIndexFile.exists()) {
+            ok1&=queueIndexFile.delete();
+        }
         File queueStatFile=new File(getQueueStatPath(queueName));
         boolean ok2=queueStatFile.delete();
         File baseDir=new File(getQueueDir(queueName));
@@ -124,9 +670,9 @@ public class MessageFileManger {
     // 检查队列的目录和文件是否存在
     // 比如后续有生产者给 broker server 生产消息了，这个消息就可能需要记录到文件上（取决于消息是否要持久化）
     public boolean checkFileExits(String queueName) {
-        // 判定队列的数据文件和统计文件是否都存在
-        File queueDataFile=new File(getQueueDataPath(queueName));
-        if(!queueDataFile.exists()) {
+        // 判定队列的分段清单文件和统计文件是否都存在
+        File segmentsFile=new File(getQueueSegmentsPath(queueName));
+        if(!segmentsFile.exists()) {
             return false;
         }
         File queueStatFile=new File(getQueueStatPath(queueName));
@@ -138,70 +684,321 @@ public class MessageFileManger {
 
     // 这个方法用来把一个新的消息，放到队列对应的文件中
     // queue 表示要把消息写入的队列，message 则是要写的消息
-    public void sendMessage(MSGQueue queue, Message message) throws MqException, IOException {
+    // 真正的写入操作交给 journal 写线程批量完成，这个方法会阻塞到满足刷盘策略之后才返回
+    @Override
+    public void sendMessage(MSGQueue queue, Message message) throws MqException, IOException, ClassNotFoundException {
         // 1.检查一下当前要写入的队列对应的文件是否存在
         if(!checkFileExits(queue.getName())) {
             throw new MqException("[MessageFileManger] 队列对应的文件不存在! queueName="+queue.getName());
         }
-        // 2.把 Message对象，进行序列化，转成二进制的字节数组
-        byte[] messageBinary= BinaryTool.toBytes(message);
-        synchronized (queue) {
-            // 3. 先获取到当前的队列数据文件的长度，用这个来计算出该 Message对象的 offsetBeg和 offsetEnd
-            // 把新的 Message数据，写入到队列数据文件的末尾，此时 Message对象的 offsetBeg就是当前文件长度+4
-            // offsetEnd 就是当前文件长度+4+ Message自身长度
-            File queueDataFile=new File(getQueueDataPath(queue.getName()));
-            // 通过 queueDataFile.length()可以获取到文件的长度，单位字节
-            message.setOffsetBeg(queueDataFile.length()+4);
-            message.setOffsetEnd(queueDataFile.length()+4+messageBinary.length);
-            // 4. 写入消息到数据文件，注意是追加写入到数据文件末尾
-            try(OutputStream outputStream=new FileOutputStream(queueDataFile,true)) {
-                try (DataOutputStream dataOutputStream=new DataOutputStream(outputStream)){
-                    // 写入当前消息的长度，占据四个字节
-                    dataOutputStream.writeInt(messageBinary.length);
-                    // 写入消息本体
-                    dataOutputStream.write(messageBinary);
-                }
-            }
-            // 5.更新消息统计文件
-            Stat stat=readStat(queue.getName());
-            stat.totalCount+=1;
-            stat.validCount+=1;
-            writeStat(queue.getName(),stat);
+        if(!runnable) {
+            throw new MqException("[MessageFileManger] journal 写线程已经停止！queueName="+queue.getName());
+        }
+        // 2.把 Message对象，编码成二进制的字节数组
+        byte[] messageBinary=MessageCodec.encode(message);
+        // 3.交给 journal 写线程，并等待写入完成
+        AppendTask task=new AppendTask(queue,message,messageBinary);
+        appendQueue.add(Collections.singletonList(task));
+        waitAppended(task);
+    }
+
+    // 同一次发布路由到多个队列的消息，每个队列都要保存一份，和批量发送一样一起交给 journal 写线程
+    // 这样只需要等待一次写入和刷盘，而不是每个队列各等一次
+    @Override
+    public void sendMessages(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        sendMessageBatch(queues,messages);
+    }
+
+    // 批量发送的消息一起交给 journal 写线程，同一个队列的消息会在一次写操作中写入
+    @Override
+    public void sendMessageBatch(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        if(queues.isEmpty()) {
+            return;
+        }
+        List<AppendTask> tasks=new ArrayList<>(queues.size());
+        for (int i = 0; i < queues.size(); i++) {
+            MSGQueue queue=queues.get(i);
+            if(!checkFileExits(queue.getName())) {
+                throw new MqException("[MessageFileManger] 队列对应的文件不存在! queueName="+queue.getName());
+            }
+            tasks.add(new AppendTask(queue,messages.get(i),MessageCodec.encode(messages.get(i))));
+        }
+        if(!runnable) {
+            throw new MqException("[MessageFileManger] journal 写线程已经停止！");
+        }
+        appendQueue.add(tasks);
+        for (AppendTask task:tasks) {
+            waitAppended(task);
+        }
+    }
+
+    private void waitAppended(AppendTask task) throws IOException, MqException, ClassNotFoundException {
+        try {
+            task.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[MessageFileManger] 等待消息写入时被中断！queueName="+task.queue.getName());
+        } catch (ExecutionException e) {
+            Throwable cause=e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof MqException) {
+                throw (MqException) cause;
+            }
+            if(cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // journal 写线程的主循环
+    // 每次把当前攒下的所有写入任务一次性取出来，按照队列分组写入，然后根据刷盘策略决定何时 force 以及何时通知生产者
+    private void runJournal() {
+        // INTERVAL 策略下，已经写入但还没有刷盘的任务，以及被写过的分段
+        List<AppendTask> unflushedTasks=new ArrayList<>();
+        Set<MessageSegment> dirtySegments=new HashSet<>();
+        long lastFlushTime=System.currentTimeMillis();
+        while (runnable||!appendQueue.isEmpty()||!unflushedTasks.isEmpty()) {
+            try {
+                // 1. 等待新的任务，INTERVAL 策略下如果有未刷盘的任务，最多只等到下一次刷盘时间
+                long waitMs=100;
+                if(flushPolicy==FlushPolicy.INTERVAL&&!unflushedTasks.isEmpty()) {
+                    waitMs=Math.max(0,lastFlushTime+flushIntervalMs-System.currentTimeMillis());
+                }
+                List<AppendTask> batch=new ArrayList<>();
+                List<AppendTask> tasks=appendQueue.poll(waitMs,TimeUnit.MILLISECONDS);
+                while (tasks!=null) {
+                    batch.addAll(tasks);
+                    tasks=batch.size()<MAX_BATCH_SIZE?appendQueue.poll():null;
+                }
+                // 2. 写入这一批消息
+                List<AppendTask> written=writeBatch(batch,dirtySegments);
+                // 3. 根据刷盘策略进行 force，并通知生产者
+                if(flushPolicy==FlushPolicy.INTERVAL) {
+                    unflushedTasks.addAll(written);
+                    if(System.currentTimeMillis()-lastFlushTime>=flushIntervalMs||!runnable) {
+                        flushAndComplete(unflushedTasks,dirtySegments);
+                        unflushedTasks.clear();
+                        lastFlushTime=System.currentTimeMillis();
+                    }
+                } else if(flushPolicy==FlushPolicy.EVERY_BATCH) {
+                    unflushedTasks.addAll(written);
+                    flushAndComplete(unflushedTasks,dirtySegments);
+                    unflushedTasks.clear();
+                } else {
+                    // OS 策略，不主动刷盘，写完就通知
+                    dirtySegments.clear();
+                    unflushedTasks.addAll(written);
+                    for (AppendTask task:unflushedTasks) {
+                        task.future.complete(null);
+                    }
+                    unflushedTasks.clear();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        log.info("[MessageFileManger] journal 写线程退出！");
+    }
+
+    private void flushAndComplete(List<AppendTask> tasks,Set<MessageSegment> dirtySegments) {
+        try {
+            for (MessageSegment segment:dirtySegments) {
+                segment.force();
+            }
+            for (AppendTask task:tasks) {
+                task.future.complete(null);
+            }
+        } catch (IOException e) {
+            for (AppendTask task:tasks) {
+                task.future.completeExceptionally(e);
+            }
         }
+        dirtySegments.clear();
+    }
+
+    // 把一批任务按照队列分组写入，返回写入成功的任务
+    private List<AppendTask> writeBatch(List<AppendTask> batch,Set<MessageSegment> dirtySegments) {
+        Map<String,List<AppendTask>> groups=new LinkedHashMap<>();
+        for (AppendTask task:batch) {
+            groups.computeIfAbsent(task.queue.getName(),k -> new ArrayList<>()).add(task);
+        }
+        List<AppendTask> written=new ArrayList<>();
+        for (List<AppendTask> tasks:groups.values()) {
+            MSGQueue queue=tasks.get(0).queue;
+            ReentrantLock queueLock=getQueueLock(queue.getName());
+            queueLock.lock();
+            try {
+                appendMessages(queue.getName(),tasks,dirtySegments);
+                written.addAll(tasks);
+            } catch (IOException | MqException | ClassNotFoundException e) {
+                for (AppendTask task:tasks) {
+                    task.future.completeExceptionally(e);
+                }
+            } finally {
+                queueLock.unlock();
+            }
+        }
+        return written;
+    }
+
+    // 把同一个队列的若干条消息，追加写入到活跃分段中
+    // 连续写到同一个分段的消息，会合并成一次写操作
+    private void appendMessages(String queueName,List<AppendTask> tasks,Set<MessageSegment> dirtySegments) throws IOException, MqException, ClassNotFoundException {
+        Stat stat=getStat(queueName);
+        stat.lock.lock();
+        try {
+            markStatDirty(queueName,stat);
+            appendMessages(queueName,stat,tasks,dirtySegments);
+            MessageIndex index=indexMap.get(queueName);
+            if(index!=null) {
+                for (AppendTask task:tasks) {
+                    index.entries.put(task.message.getMessageId(),new IndexEntry(task.message.getMessageId(),
+                            task.message.getOffsetBeg(),task.message.getOffsetEnd()));
+                }
+                index.version++;
+            }
+        } finally {
+            stat.lock.unlock();
+        }
+    }
+
+    // 一批记录先攒在 journal 写线程复用的缓冲区中，再直接包装成 ByteBuffer 写到分段里，不需要再复制一次
+    private void appendMessages(String queueName,Stat stat,List<AppendTask> tasks,Set<MessageSegment> dirtySegments) throws IOException, MqException, ClassNotFoundException {
+        ByteBufferOutputStream byteArrayOutputStream=BinaryTool.acquireBuffer();
+        try {
+            appendMessages(queueName,stat,tasks,dirtySegments,byteArrayOutputStream);
+        } finally {
+            BinaryTool.releaseBuffer(byteArrayOutputStream);
+        }
+    }
+
+    private void appendMessages(String queueName,Stat stat,List<AppendTask> tasks,Set<MessageSegment> dirtySegments,
+                                ByteBufferOutputStream byteArrayOutputStream) throws IOException, MqException, ClassNotFoundException {
+        DataOutputStream dataOutputStream=new DataOutputStream(byteArrayOutputStream);
+        MessageSegment segment=null;
+        for (AppendTask task:tasks) {
+            int recordSize=MessageSegment.RECORD_HEADER_SIZE+task.messageBinary.length;
+            // 1. 如果当前分段放不下这条消息了，就先把攒下的数据写进去，再去获取（可能会切换）活跃分段
+            if(segment!=null&&segment.getWritePosition()+byteArrayOutputStream.size()+recordSize>segmentSize) {
+                flushPending(segment,byteArrayOutputStream,dirtySegments);
+            }
+            segment=getActiveSegment(queueName,byteArrayOutputStream.size()+recordSize);
+            // 2. 计算出该 Message对象的 offsetBeg和 offsetEnd
+            // 此时 Message对象的 offsetBeg就是分段的结束偏移量+攒下的数据长度+记录头的长度
+            // offsetEnd 就是 offsetBeg + Message自身长度
+            long offsetBeg=segment.getEndOffset()+byteArrayOutputStream.size()+MessageSegment.RECORD_HEADER_SIZE;
+            task.message.setOffsetBeg(offsetBeg);
+            task.message.setOffsetEnd(offsetBeg+task.messageBinary.length);
+            // 3. 先写入记录头：当前消息的长度（四个字节）、校验和（四个字节）和有效标记（一个字节），再写入消息本体
+            MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION,task.messageBinary,(byte) 0x1);
+            segment.setTotalCount(segment.getTotalCount()+1);
+            segment.setValidCount(segment.getValidCount()+1);
+        }
+        flushPending(segment,byteArrayOutputStream,dirtySegments);
+        // 4.更新内存中的统计信息
+        stat.totalCount.addAndGet(tasks.size());
+        stat.validCount.addAndGet(tasks.size());
+    }
+
+    private void flushPending(MessageSegment segment,ByteBufferOutputStream byteArrayOutputStream,Set<MessageSegment> dirtySegments) throws IOException {
+        if(byteArrayOutputStream.size()==0) {
+            return;
+        }
+        segment.append(byteArrayOutputStream.toByteBuffer());
+        dirtySegments.add(segment);
+        byteArrayOutputStream.reset();
     }
 
     // 这个是删除消息的方法
-    // 这里的删除是逻辑删除，也就是把硬盘上存储的这个数据里面的那个 isValid属性，设置成 0
-    // 1. 先把文件中的这一段数据，读出来，还原回 Message对象
-    // 2. 把 isValid 改成 0
-    // 3. 把上述数据重新写回到文件
+    // 这里的删除是逻辑删除，也就是把硬盘上这条消息记录头中的有效标记，设置成 0
+    // 有效标记就在消息本体的前一个字节，直接通过分段缓存的文件通道改写这一个字节即可
+    // 不需要把消息读出来反序列化再写回去，确认消息的开销和消息体的大小无关
     // 此处这个参数中包含的 message 对象，必须得包含有效的 offsetBeg 和 offsetEnd
-    public void deleteMessage(MSGQueue queue,Message message) throws IOException, ClassNotFoundException {
-        synchronized (queue) {
-            try(RandomAccessFile randomAccessFile=new RandomAccessFile(getQueueDataPath(queue.getName()),"rw")) {
-                // 1. 先从文件中读取对应的 Message数据
-                byte[] bufferSrc=new byte[(int) (message.getOffsetEnd()-message.getOffsetBeg())];
-                randomAccessFile.seek(message.getOffsetBeg());
-                randomAccessFile.read(bufferSrc);
-                // 2. 把当前读出来的二进制数据，转换回成 Message 对象
-                Message diskMessage=(Message) BinaryTool.fromBytes(bufferSrc);
-                // 3.把 isValid 设置为无效
-                diskMessage.setIsValid((byte) 0x0);
-                // 此处不需要给参数的这个 message 的 isValid设为0，因为这个参数代表的是内存中管理的 Message对象
-                // 而这个对象马上也要被从内存中销毁了
-                // 4. 重新写入文件
-                byte[] bufferDest=BinaryTool.toBytes(diskMessage);
-                // 重新调整文件光标
-                randomAccessFile.seek(message.getOffsetBeg());
-                randomAccessFile.write(bufferDest);
-                // 通过上述操作，对于文件来说，只有 isValid一个字节发生改变了
-            }
-            // 更新统计文件，把一个消息设为无效
-            Stat stat=readStat(queue.getName());
-            if(stat.validCount>0) {
-                stat.validCount-=1;
-            }
-            writeStat(queue.getName(),stat);
+    @Override
+    public void deleteMessage(MSGQueue queue,Message message) throws IOException, ClassNotFoundException, MqException {
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            // 先根据偏移量找到消息所在的分段，文件中的位置要减去分段的 baseOffset
+            MessageSegment segment=findSegment(queue.getName(),message.getOffsetBeg());
+            long position=message.getOffsetBeg()-segment.getBaseOffset()-1;
+            // 已经被删除过了（比如同一条消息被确认了两次），不能再减一次有效消息数
+            // 否则分段的有效消息数会比实际的少，降到 0 的时候 gc 会把还有有效消息的分段整个删掉
+            if(segment.readValidFlag(position)!=0x1) {
+                return;
+            }
+            // 此处不需要给参数的这个 message 的 isValid设为0，因为这个参数代表的是内存中管理的 Message对象
+            // 而这个对象马上也要被从内存中销毁了
+            segment.markInvalid(position);
+            // 更新内存中的统计信息，把一个消息设为无效
+            Stat stat=getStat(queue.getName());
+            stat.lock.lock();
+            try {
+                markStatDirty(queue.getName(),stat);
+                if(segment.getValidCount()>0) {
+                    segment.setValidCount(segment.getValidCount()-1);
+                }
+                if(stat.validCount.get()>0) {
+                    stat.validCount.decrementAndGet();
+                }
+                MessageIndex index=indexMap.get(queue.getName());
+                if(index!=null&&index.entries.remove(message.getMessageId())!=null) {
+                    index.version++;
+                }
+            } finally {
+                stat.lock.unlock();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // 批量删除同一个队列的消息，队列的锁和统计信息的锁都只加一次
+    @Override
+    public void deleteMessages(MSGQueue queue,List<Message> messages) throws IOException, ClassNotFoundException, MqException {
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            // 1. 先在各个分段中把记录标记成无效，记下每个分段删除了几条
+            // 和 deleteMessage 一样，已经无效的记录（重复确认、列表里有重复的消息）不能再算一次
+            Map<MessageSegment,Integer> deletedCounts=new HashMap<>();
+            int deleted=0;
+            for (Message message:messages) {
+                MessageSegment segment=findSegment(queue.getName(),message.getOffsetBeg());
+                long position=message.getOffsetBeg()-segment.getBaseOffset()-1;
+                if(segment.readValidFlag(position)!=0x1) {
+                    continue;
+                }
+                segment.markInvalid(position);
+                deletedCounts.merge(segment,1,Integer::sum);
+                deleted++;
+            }
+            int deletedCount=deleted;
+            // 2. 再一次性更新统计信息和索引
+            Stat stat=getStat(queue.getName());
+            stat.lock.lock();
+            try {
+                markStatDirty(queue.getName(),stat);
+                for (Map.Entry<MessageSegment,Integer> entry:deletedCounts.entrySet()) {
+                    MessageSegment segment=entry.getKey();
+                    segment.setValidCount(Math.max(0,segment.getValidCount()-entry.getValue()));
+                }
+                stat.validCount.updateAndGet(validCount -> Math.max(0,validCount-deletedCount));
+                MessageIndex index=indexMap.get(queue.getName());
+                if(index!=null) {
+                    for (Message message:messages) {
+                        index.entries.remove(message.getMessageId());
+                    }
+                    index.version++;
+                }
+            } finally {
+                stat.lock.unlock();
+            }
+        } finally {
+            queueLock.unlock();
         }
     }
 
@@ -210,123 +1007,736 @@ public class MessageFileManger {
     // 这里使用一个 LinkedList,主要目的是为了后续进行头删操作
     // 该方法的参数，只是一个 queueName 而不是 MSGQueue 对象，因为该方法不需要加锁，只使用 queueName 就够了
     // 由于该方法是在程序启动时调用，此时服务器还不能处理请求，所以不涉及多线程操作文件
+    @Override
     public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        return loadMessages(queueName,false);
+    }
+
+    // headerOnly 为 true 的时候，扫描出来的消息只有 messageId 和偏移量（isBodyOnDisk 为 true），不解码消息内容
+    private LinkedList<Message> loadMessages(String queueName,boolean headerOnly) throws IOException, MqException, ClassNotFoundException {
         LinkedList<Message> messages=new LinkedList<>();
-        try(InputStream inputStream=new FileInputStream(getQueueDataPath(queueName))) {
-            try (DataInputStream dataInputStream=new DataInputStream(inputStream)){
-                // 这个变量记录当前文件光标
-                long currentOffset=0;
+        // 扫描的同时，也顺便把每个分段的统计信息重新构造出来，此时的统计信息一定是准确的，直接 checkpoint 一次
+        ReentrantLock loadLock=getLoadLock(queueName);
+        loadLock.lock();
+        try {
+            ConcurrentSkipListMap<Long,MessageSegment> segments=scanSegments(queueName,messages,headerOnly);
+            Stat stat=buildStat(segments);
+            ConcurrentSkipListMap<Long,MessageSegment> oldSegments=segmentsMap.put(queueName,segments);
+            statMap.put(queueName,stat);
+            if(oldSegments!=null) {
+                for (MessageSegment segment:oldSegments.values()) {
+                    segment.closeChannel();
+                }
+            }
+            // 扫描出来的就是全部的有效消息，索引是完整的
+            MessageIndex index=new MessageIndex();
+            for (Message message:messages) {
+                index.entries.put(message.getMessageId(),new IndexEntry(message.getMessageId(),
+                        message.getOffsetBeg(),message.getOffsetEnd()));
+            }
+            index.version++;
+            stat.lock.lock();
+            try {
+                writeStat(queueName,stat,true);
+                indexMap.put(queueName,index);
+            } finally {
+                stat.lock.unlock();
+            }
+        } finally {
+            loadLock.unlock();
+        }
+        log.info("[MessageFileManger] 恢复 Message数据完成！queueName="+queueName);
+        return messages;
+    }
+
+    // 服务器启动时，恢复队列中的消息
+    // 如果有索引快照，就根据快照恢复出快照之前写入的有效消息，这些消息只有 messageId 和偏移量，消息内容等到投递的时候再读取
+    // 然后从快照时的结束位置开始，回放快照之后追加写入的消息，这样就不需要把每条消息都反序列化一遍了
+    // 没有快照（或者快照不可用）的时候，退化成扫描全部的消息
+    @Override
+    public LinkedList<Message> recoverMessagesFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        return recoverMessages(queueName,false);
+    }
+
+    // 惰性队列恢复的时候只需要 messageId，没有快照退化成扫描全部消息的时候也不解码消息内容
+    @Override
+    public LinkedList<Message> recoverMessageIdsFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        return recoverMessages(queueName,true);
+    }
+
+    private LinkedList<Message> recoverMessages(String queueName,boolean headerOnly) throws IOException, MqException, ClassNotFoundException {
+        ReentrantLock loadLock=getLoadLock(queueName);
+        loadLock.lock();
+        try {
+            // 统计文件过期的时候（上次没有正常退出），这里先不扫描分段重新统计，等看过索引快照之后，只扫描快照之后的分段
+            ConcurrentSkipListMap<Long,MessageSegment> segments=segmentsMap.get(queueName);
+            boolean counted=true;
+            if(segments==null) {
+                migrateLegacyDataFile(queueName);
+                Stat stat=new Stat();
+                segments=readStat(queueName,stat);
+                if(segments!=null) {
+                    statMap.put(queueName,stat);
+                    segmentsMap.put(queueName,segments);
+                } else {
+                    segments=openSegments(queueName);
+                    counted=false;
+                }
+            }
+            LinkedList<Message> messages=new LinkedList<>();
+            MessageIndex index=new MessageIndex();
+            long endOffset=readIndexSnapshot(queueName,segments,messages,index);
+            if(endOffset<0) {
+                log.info("[MessageFileManger] 索引快照不可用，扫描全部消息！queueName="+queueName);
+                return loadMessages(queueName,headerOnly);
+            }
+            int snapshotCount=messages.size();
+            // 回放快照之后追加写入的消息
+            // 统计信息过期的话，快照之后的分段要从头扫描一遍（顺便检查校验和、截断写了一半的记录）重新统计，但只解码快照之后的消息
+            LinkedList<Message> tailMessages=new LinkedList<>();
+            for (MessageSegment segment:segments.values()) {
+                if(segment.getEndOffset()<=endOffset) {
+                    continue;
+                }
+                if(counted) {
+                    long startPosition=Math.max(MessageSegment.HEADER_SIZE,endOffset-segment.getBaseOffset());
+                    scanSegment(queueName,segment,startPosition,endOffset,tailMessages,false,headerOnly);
+                } else {
+                    scanSegment(queueName,segment,MessageSegment.HEADER_SIZE,endOffset,tailMessages,true,headerOnly);
+                }
+            }
+            if(!counted) {
+                countSnapshotSegments(queueName,segments,endOffset,messages);
+                Stat stat=buildStat(segments);
+                stat.dirty=true;
+                statMap.put(queueName,stat);
+                segmentsMap.put(queueName,segments);
+            }
+            for (Message message:tailMessages) {
+                index.entries.put(message.getMessageId(),new IndexEntry(message.getMessageId(),
+                        message.getOffsetBeg(),message.getOffsetEnd()));
+                messages.add(message);
+            }
+            index.version++;
+            Stat stat=statMap.get(queueName);
+            stat.lock.lock();
+            try {
+                indexMap.put(queueName,index);
+            } finally {
+                stat.lock.unlock();
+            }
+            log.info("[MessageFileManger] 根据索引快照恢复 Message数据完成！queueName="+queueName
+                    +", snapshotMessages="+snapshotCount+", tailMessages="+tailMessages.size());
+            return messages;
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    // 按照分段清单打开该队列的所有分段，不扫描，消息数量都是 0
+    private ConcurrentSkipListMap<Long,MessageSegment> openSegments(String queueName) throws IOException, MqException {
+        ConcurrentSkipListMap<Long,MessageSegment> segments=new ConcurrentSkipListMap<>();
+        for (long baseOffset:readSegments(queueName)) {
+            segments.put(baseOffset,new MessageSegment(baseOffset,new File(getSegmentPath(queueName,baseOffset))));
+        }
+        if(segments.isEmpty()) {
+            throw new MqException("[MessageFileManger] 队列的分段清单为空！queueName="+queueName);
+        }
+        return segments;
+    }
+
+    // 统计文件过期的时候，快照已经覆盖的分段（快照之后不会再追加写入）不再扫描，直接根据快照统计
+    // 有效消息数：快照中依然有效的消息就是这些分段中全部的有效消息
+    // 消息总数：快照并不知道无效的消息，分段不会再追加写入，总数只有压缩的时候才会变小，所以沿用过期的统计文件中的值
+    // （统计文件中没有的分段就只算有效消息），这个值只影响 gc 压缩的时机，压缩的时候会重新统计准确的数量
+    private void countSnapshotSegments(String queueName,ConcurrentSkipListMap<Long,MessageSegment> segments,
+                                       long endOffset,List<Message> snapshotMessages) throws IOException {
+        for (Message message:snapshotMessages) {
+            MessageSegment segment=segments.floorEntry(message.getOffsetBeg()).getValue();
+            if(segment.getEndOffset()<=endOffset) {
+                segment.setValidCount(segment.getValidCount()+1);
+            }
+        }
+        Map<Long,Integer> staleTotalCounts=readStaleTotalCounts(queueName);
+        for (MessageSegment segment:segments.values()) {
+            if(segment.getEndOffset()>endOffset) {
+                continue;
+            }
+            Integer totalCount=staleTotalCounts.get(segment.getBaseOffset());
+            segment.setTotalCount(Math.max(segment.getValidCount(),totalCount==null?0:totalCount));
+        }
+    }
+
+    // 不管 clean 标记，读出统计文件中每个分段的消息总数：key 是 baseOffset；统计文件不存在或者不完整的时候返回空的
+    private Map<Long,Integer> readStaleTotalCounts(String queueName) throws IOException {
+        Map<Long,Integer> totalCounts=new HashMap<>();
+        File queueStatFile=new File(getQueueStatPath(queueName));
+        if(!queueStatFile.exists()) {
+            return totalCounts;
+        }
+        try(DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(queueStatFile)))) {
+            if(dataInputStream.readInt()!=STAT_MAGIC||dataInputStream.readInt()!=STAT_VERSION) {
+                return totalCounts;
+            }
+            // clean(1) endOffset(8) totalCount(4) validCount(4)
+            dataInputStream.readByte();
+            dataInputStream.readLong();
+            dataInputStream.readInt();
+            dataInputStream.readInt();
+            int segmentCount=dataInputStream.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                long baseOffset=dataInputStream.readLong();
+                int totalCount=dataInputStream.readInt();
+                dataInputStream.readInt();
+                totalCounts.put(baseOffset,totalCount);
+            }
+        } catch (EOFException e) {
+            totalCounts.clear();
+        }
+        return totalCounts;
+    }
+
+    // 读取索引快照，把快照中依然有效的消息放到 messages 和 index 中，返回做快照时队列的结束偏移量
+    // 快照不存在或者和分段文件对不上的时候，返回 -1
+    // 快照之后被确认的消息，快照中并不知道，所以每条消息都要再看一下分段文件中的有效标记
+    // 这里把分段文件映射到内存中来读取有效标记，不需要每条消息都进行一次系统调用
+    private long readIndexSnapshot(String queueName,ConcurrentSkipListMap<Long,MessageSegment> segments,
+                                   LinkedList<Message> messages,MessageIndex index) throws IOException {
+        File queueIndexFile=new File(getQueueIndexPath(queueName));
+        if(!queueIndexFile.exists()) {
+            return -1;
+        }
+        Map<MessageSegment,MappedByteBuffer> buffers=new HashMap<>();
+        try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(queueIndexFile)))){
+            if(dataInputStream.readInt()!=INDEX_MAGIC||dataInputStream.readInt()!=INDEX_VERSION) {
+                return -1;
+            }
+            long endOffset=dataInputStream.readLong();
+            // 快照中的位置比数据文件还要靠后，说明数据文件被截断过，快照不能用了
+            if(endOffset>segments.lastEntry().getValue().getEndOffset()) {
+                return -1;
+            }
+            int count=dataInputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String messageId=dataInputStream.readUTF();
+                long offsetBeg=dataInputStream.readLong();
+                long offsetEnd=dataInputStream.readLong();
+                Map.Entry<Long,MessageSegment> entry=segments.floorEntry(offsetBeg);
+                // 消息所在的分段已经被 gc 删除了，说明其中的消息都已经被确认了
+                if(entry==null||offsetEnd>entry.getValue().getEndOffset()) {
+                    continue;
+                }
+                MessageSegment segment=entry.getValue();
+                MappedByteBuffer buffer=buffers.get(segment);
+                if(buffer==null) {
+                    if(segment.getWritePosition()>Integer.MAX_VALUE) {
+                        return -1;
+                    }
+                    try (FileChannel channel=FileChannel.open(segment.getFile().toPath(),StandardOpenOption.READ)) {
+                        buffer=channel.map(FileChannel.MapMode.READ_ONLY,0,segment.getWritePosition());
+                    }
+                    buffers.put(segment,buffer);
+                }
+                int position=(int) (offsetBeg-segment.getBaseOffset());
+                int recordHeaderSize=segment.getRecordHeaderSize();
+                if(position<MessageSegment.HEADER_SIZE+recordHeaderSize
+                        ||buffer.getInt(position-recordHeaderSize)!=offsetEnd-offsetBeg) {
+                    log.info("[MessageFileManger] 索引快照和数据文件对不上！queueName="+queueName+", offsetBeg="+offsetBeg);
+                    return -1;
+                }
+                if(buffer.get(position-1)!=0x1) {
+                    continue;
+                }
+                Message message=new Message();
+                message.setMessageId(messageId);
+                message.setDeliverMode(2);
+                message.setOffsetBeg(offsetBeg);
+                message.setOffsetEnd(offsetEnd);
+                message.setBodyOnDisk(true);
+                messages.add(message);
+                index.entries.put(messageId,new IndexEntry(messageId,offsetBeg,offsetEnd));
+            }
+            return endOffset;
+        } catch (EOFException e) {
+            // 快照文件不完整
+            return -1;
+        }
+    }
+
+    // 给所有索引完整的队列做一次快照
+    public void snapshotIndexes() {
+        for (String queueName:indexMap.keySet()) {
+            try {
+                snapshotIndex(queueName);
+            } catch (IOException e) {
+                log.info("[MessageFileManger] 索引快照失败！queueName="+queueName);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 持有 stat 的锁把索引复制一份，同时记下此时队列的结束偏移量，然后不持有锁地写入快照文件
+    // 之后写入的消息，偏移量都不小于这个结束偏移量，重启的时候从这个位置开始回放就可以了
+    private void snapshotIndex(String queueName) throws IOException {
+        Stat stat=statMap.get(queueName);
+        MessageIndex index=indexMap.get(queueName);
+        ConcurrentSkipListMap<Long,MessageSegment> segments=segmentsMap.get(queueName);
+        if(stat==null||index==null||segments==null) {
+            return;
+        }
+        long endOffset;
+        long version;
+        long generation;
+        List<IndexEntry> entries;
+        stat.lock.lock();
+        try {
+            if(indexMap.get(queueName)!=index||index.version==index.snapshotVersion) {
+                return;
+            }
+            endOffset=segments.lastEntry().getValue().getEndOffset();
+            entries=new ArrayList<>(index.entries.values());
+            version=index.version;
+            generation=index.generation;
+        } finally {
+            stat.lock.unlock();
+        }
+        // 按照偏移量排序，这样恢复出来的消息就是原来在队列中的顺序
+        entries.sort(Comparator.comparingLong(entry -> entry.offsetBeg));
+        File tmpFile=new File(getQueueIndexPath(queueName)+".tmp");
+        try (DataOutputStream dataOutputStream=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))){
+            dataOutputStream.writeInt(INDEX_MAGIC);
+            dataOutputStream.writeInt(INDEX_VERSION);
+            dataOutputStream.writeLong(endOffset);
+            dataOutputStream.writeInt(entries.size());
+            for (IndexEntry entry:entries) {
+                dataOutputStream.writeUTF(entry.messageId);
+                dataOutputStream.writeLong(entry.offsetBeg);
+                dataOutputStream.writeLong(entry.offsetEnd);
+            }
+        }
+        stat.lock.lock();
+        try {
+            // 写快照的过程中，队列被删除了，或者有分段被压缩了（快照中的偏移量已经过时了），这次的快照就作废
+            if(indexMap.get(queueName)!=index||index.generation!=generation) {
+                tmpFile.delete();
+                return;
+            }
+            Files.move(tmpFile.toPath(),new File(getQueueIndexPath(queueName)).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            index.snapshotVersion=version;
+        } finally {
+            stat.lock.unlock();
+        }
+    }
+
+    // 从索引快照中恢复出来的消息，内存中只有 messageId 和偏移量，投递之前通过这个方法从文件中读出完整的内容
+    // 惰性队列中取出来的消息，内存中只有 messageId，偏移量也要从索引中查出来
+    @Override
+    public void loadMessageBody(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException {
+        // 持有队列的锁，避免读取的过程中，消息因为分段压缩被挪走了
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            if(!message.isBodyOnDisk()) {
+                return;
+            }
+            if(message.getOffsetEnd()==0) {
+                Stat stat=getStat(queue.getName());
+                IndexEntry entry=null;
+                stat.lock.lock();
+                try {
+                    MessageIndex index=indexMap.get(queue.getName());
+                    if(index!=null) {
+                        entry=index.entries.get(message.getMessageId());
+                    }
+                } finally {
+                    stat.lock.unlock();
+                }
+                if(entry==null) {
+                    throw new MqException("[MessageFileManger] 索引中找不到消息！queueName="+queue.getName()
+                            +", messageId="+message.getMessageId());
+                }
+                message.setOffsetBeg(entry.offsetBeg);
+                message.setOffsetEnd(entry.offsetEnd);
+            }
+            MessageSegment segment=findSegment(queue.getName(),message.getOffsetBeg());
+            byte[] buffer=segment.read(message.getOffsetBeg()-segment.getBaseOffset(),
+                    (int) (message.getOffsetEnd()-message.getOffsetBeg()));
+            Message diskMessage=MessageCodec.decode(segment.getVersion(),buffer);
+            message.setBasicProperties(diskMessage.getBasicProperties());
+            message.setBody(diskMessage.getBody());
+            message.setBodyOnDisk(false);
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    // 按照分段清单，依次扫描该队列的每个分段，统计每个分段的消息数量
+    // 如果 messages 不为 null,就把扫描到的有效消息都放到 messages 中
+    private ConcurrentSkipListMap<Long,MessageSegment> scanSegments(String queueName,LinkedList<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        return scanSegments(queueName,messages,false);
+    }
+
+    private ConcurrentSkipListMap<Long,MessageSegment> scanSegments(String queueName,LinkedList<Message> messages,boolean headerOnly) throws IOException, MqException, ClassNotFoundException {
+        migrateLegacyDataFile(queueName);
+        ConcurrentSkipListMap<Long,MessageSegment> segments=new ConcurrentSkipListMap<>();
+        for (long baseOffset:readSegments(queueName)) {
+            MessageSegment segment=new MessageSegment(baseOffset,new File(getSegmentPath(queueName,baseOffset)));
+            scanSegment(queueName,segment,MessageSegment.HEADER_SIZE,0,messages,true,headerOnly);
+            segments.put(baseOffset,segment);
+        }
+        if(segments.isEmpty()) {
+            throw new MqException("[MessageFileManger] 队列的分段清单为空！queueName="+queueName);
+        }
+        return segments;
+    }
+
+    // 从分段的 startPosition 位置开始扫描消息，countMessages 表示是否要顺便统计分段中的消息数量
+    // 如果 messages 为 null,只需要统计数量，就不需要解码消息了；否则只解码全局偏移量不小于 collectFrom 的消息放到 messages 中
+    // 遇到不完整或者校验和不对的记录（追加写入的过程中程序崩溃了），就把分段从这条记录开始截断，前面的消息照常恢复
+    // headerOnly 为 true 的时候只读出 messageId，消息内容等到投递的时候再读取，恢复的时候不会把所有的消息内容都放到堆上
+    private void scanSegment(String queueName,MessageSegment segment,long startPosition,long collectFrom,
+                             LinkedList<Message> messages,boolean countMessages,boolean headerOnly) throws IOException, MqException, ClassNotFoundException {
+        // 空的分段文件（还没来得及写入文件头），补上文件头即可
+        segment.writeHeaderIfEmpty();
+        int version=segment.getVersion();
+        int recordHeaderSize=MessageSegment.recordHeaderSize(version);
+        long fileLength=segment.getFile().length();
+        try(InputStream inputStream=new FileInputStream(segment.getFile())) {
+            try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(inputStream))){
+                skipFully(queueName,dataInputStream,startPosition);
+                // 这个变量记录当前记录在分段中的位置，全局的偏移量要再加上分段的 baseOffset
+                long position=startPosition;
                 // 一个文件中包含了很多消息，此处势必要循环读取
-                while (true) {
-                    // 1.读当前消息的长度，这里的 readInt 可能会读到文件的末尾（EOF）
-                    // readInt 方法，读到文件末尾，会抛出 EOFException 异常
+                while (position<fileLength) {
+                    // 1.读当前消息的记录头，剩下的数据连记录头都不够，说明是写了一半的记录
+                    if(fileLength-position<recordHeaderSize) {
+                        truncateTornRecord(queueName,segment,position,"记录头不完整");
+                        return;
+                    }
                     int messageSize=dataInputStream.readInt();
-                    // 2.按照这个长度，读取消息内容
-                    byte[] buffer=new byte[messageSize];
-                    int actualSize=dataInputStream.read(buffer);
-                    if(messageSize!=actualSize) {
-                        // 如果不匹配，说明文件有问题，格式错乱了
-                        throw new MqException("[MessageFileManger] 文件格式错误！queueName="+queueName);
+                    int checksum=version==MessageSegment.SEGMENT_VERSION_V1?0:dataInputStream.readInt();
+                    byte isValid=dataInputStream.readByte();
+                    if(messageSize<=0||messageSize>fileLength-position-recordHeaderSize) {
+                        truncateTornRecord(queueName,segment,position,"消息长度错误 messageSize="+messageSize);
+                        return;
+                    }
+                    long offsetBeg=segment.getBaseOffset()+position+recordHeaderSize;
+                    // 2.判定一下看看这个消息是不是无效消息，无效消息不需要读取消息内容，直接跳过
+                    if(isValid!=0x1) {
+                        skipFully(queueName,dataInputStream,messageSize);
+                    } else {
+                        // 3.按照这个长度，读取消息内容，检查校验和
+                        byte[] buffer=new byte[messageSize];
+                        dataInputStream.readFully(buffer);
+                        if(version!=MessageSegment.SEGMENT_VERSION_V1&&MessageSegment.checksum(buffer)!=checksum) {
+                            truncateTornRecord(queueName,segment,position,"校验和错误");
+                            return;
+                        }
+                        // 只统计数量的时候不需要解码
+                        if(messages!=null&&offsetBeg>=collectFrom) {
+                            // 4.把这个读到的二进制数据，按照分段的版本解码回 Message对象
+                            Message message;
+                            if(headerOnly) {
+                                message=new Message();
+                                message.setMessageId(MessageCodec.decodeMessageId(version,buffer));
+                                message.setDeliverMode(2);
+                                message.setBodyOnDisk(true);
+                            } else {
+                                message=MessageCodec.decode(version,buffer);
+                            }
+                            // 5. 有效数据，则需要把这个 Message对象加入到链表中，加入之前还需要填写 offsetBeg 和 OffsetEnd
+                            message.setOffsetBeg(offsetBeg);
+                            message.setOffsetEnd(offsetBeg+messageSize);
+                            messages.add(message);
+                        }
                     }
-                    // 3.把这个读到的二进制数据，反序列化回 Message对象
-                    Message message=(Message) BinaryTool.fromBytes(buffer);
-                    // 4.判定一下看看这个消息对象，是不是无效对象
-                    if(message.getIsValid()!=0x1) {
-                        // 无效数据，直接跳过
-                        // 虽然消息是无效数据，但是 offset 不要忘记更新
-                        currentOffset+=(4+messageSize);
-                        continue;
+                    if(countMessages) {
+                        segment.setTotalCount(segment.getTotalCount()+1);
+                        if(isValid==0x1) {
+                            segment.setValidCount(segment.getValidCount()+1);
+                        }
                     }
-                    // 5. 有效数据，则需要把这个 Message对象加入到链表中，加入之前还需要填写 offsetBeg 和 OffsetEnd
-                    // 进行计算 offset的时候，需要知道当前文件光标的位置
-                    message.setOffsetBeg(currentOffset+4);
-                    message.setOffsetEnd(currentOffset+4+messageSize);
-                    currentOffset+=(4+messageSize);
-                    messages.add(message);
+                    position+=recordHeaderSize+messageSize;
                 }
-            }catch (EOFException e) {
-                // 这个 catch 并非真实处理”异常“，而是处理”正常“的业务逻辑，文件读到末尾，会被 readInt抛出该异常
-                // 这个 catch 语句中也不需要做什么特殊的事情
-                log.info("[MessageFileManger] 恢复 Message数据完成！");
             }
         }
-        return messages;
     }
 
-    // 检查当前是否要针对该队列的消息数据文件进行 GC
-    public boolean checkGC(String queueName) {
-        // 判定是否要 GC，是根据总消息数和有效消息数，这两个值都是在 消息统计文件中的。
-        Stat stat=readStat(queueName);
-        if(stat.totalCount>2000&&(double)stat.validCount/(double) stat.totalCount<0.5) {
-            return true;
+    // 把分段从 position 位置截断，丢掉写了一半的记录以及它后面的数据
+    private void truncateTornRecord(String queueName,MessageSegment segment,long position,String reason) throws IOException {
+        log.warn("[MessageFileManger] 发现不完整的记录，截断分段文件！queueName="+queueName+", segmentFile="
+                +segment.getFile().getAbsolutePath()+", position="+position+", length="+segment.getFile().length()+", reason="+reason);
+        segment.truncate(position);
+    }
+
+    private void skipFully(String queueName,DataInputStream dataInputStream,long n) throws IOException, MqException {
+        long skipped=0;
+        while (skipped<n) {
+            int m=dataInputStream.skipBytes((int) Math.min(Integer.MAX_VALUE,n-skipped));
+            if(m<=0) {
+                throw new MqException("[MessageFileManger] 文件格式错误！queueName="+queueName);
+            }
+            skipped+=m;
+        }
+    }
+
+    // 检查当前是否要针对该队列的消息数据进行 GC
+    // 只要存在一个不再写入的旧分段，里面的消息都已经被确认了，或者有效消息的比例低于压缩阈值，就需要 gc
+    public boolean checkGC(String queueName) throws IOException, MqException, ClassNotFoundException {
+        // 先看内存中的计数器，没有无效消息的话，肯定不需要 gc
+        Stat stat=getStat(queueName);
+        if(stat.validCount.get()>=stat.totalCount.get()) {
+            return false;
+        }
+        ConcurrentSkipListMap<Long,MessageSegment> segments=getSegments(queueName);
+        MessageSegment activeSegment=segments.lastEntry().getValue();
+        for (MessageSegment segment:segments.values()) {
+            if(segment!=activeSegment&&(segment.getValidCount()==0||needCompact(segment))) {
+                return true;
+            }
         }
         return false;
     }
 
-    private String getQueueDataNewPath(String queueName) {
-        return getQueueDir(queueName)+"/queue_data_new.txt";
+    private boolean needCompact(MessageSegment segment) {
+        return segment.getValidCount()<segment.getTotalCount()*compactThreshold;
+    }
+
+    // 如果需要 gc,就交给后台线程去执行，调用者（确认消息的线程）不会被阻塞
+    // 同一个队列同时最多只会有一个 gc 任务在排队
+    @Override
+    public void requestGC(MSGQueue queue) throws IOException, MqException, ClassNotFoundException {
+        if(!runnable||!checkGC(queue.getName())) {
+            return;
+        }
+        if(gcCandidates.putIfAbsent(queue.getName(),queue)!=null) {
+            return;
+        }
+        gcExecutor.submit(() -> {
+            gcCandidates.remove(queue.getName());
+            // 排队的过程中，队列可能已经被删除了
+            if(!checkFileExits(queue.getName())) {
+                return;
+            }
+            try {
+                gc(queue);
+            } catch (IOException | MqException | ClassNotFoundException e) {
+                log.info("[MessageFileManger] gc 失败！queueName="+queue.getName());
+                e.printStackTrace();
+            }
+        });
     }
 
     // 通过这个方法，真正执行消息数据文件的垃圾回收操作
-    // 使用复制算法来完成
-    // 创建一个新的文件，名字是 queue_data_new.txt
-    // 把之前消息数据文件中的有效消息都读出来，写到新的文件中
-    // 删除旧的文件，再把新的文件名改回 queue_data.txt
-    // 同时要记得更新消息统计文件
+    // 1. 已经没有有效消息的旧分段，直接整体删除
+    // 2. 有效消息比例低于压缩阈值的旧分段，把有效消息复制到新文件中，再用新文件替换掉旧分段
+    // 活跃分段即使消息都被确认了，也不处理，后续的消息还要继续往里写
+    // 复制消息的过程不持有队列的锁，生产者可以继续往活跃分段中写入消息，只有最后修改分段清单、替换文件的时候才持有锁
     public void gc(MSGQueue queue) throws MqException, IOException, ClassNotFoundException {
-        // 进行 gc的时候，是针对消息数据文件进行大洗牌,在这个过程中，其他线程不能针对该队列的消息文件做任何修改
-        synchronized (queue) {
-            // 由于 gc操作可能比较耗时，此处统计一下执行消耗的时间
-            long gcBeg=System.currentTimeMillis();
-
-            // 1.创建一个新的文件(创建了一个表示文件或目录路径的File对象，你可以通过这个对象来执行文件和目录的各种操作，如创建、删除、判断是否存在等)
-            File queueDataNewFile=new File(getQueueDataNewPath(queue.getName()));
-            if(queueDataNewFile.exists()) {
-                // 正常情况下，这个文件不应该存在，如果存在，就是意外;说明上次 gc了一半，程序就意外崩溃了
-                throw new MqException("[MessageFileManger] gc时发现该队列的 queue_data_new 已经存在！queueName="+queue.getName());
-            }
-            boolean ok=queueDataNewFile.createNewFile();
-            if(!ok) {
-                throw new MqException("[MessageFileManger] 创建文件文件失败！ queueDataNewFile="+queueDataNewFile.getAbsolutePath());
+        // 统计一下执行消耗的时间
+        long gcBeg=System.currentTimeMillis();
+
+        ConcurrentSkipListMap<Long,MessageSegment> segments=getSegments(queue.getName());
+        // 此时的活跃分段以及之后新切换出来的分段都不处理
+        List<MessageSegment> sealedSegments=new ArrayList<>(segments.headMap(segments.lastKey()).values());
+        int deletedSegments=deleteEmptySegments(queue,segments,sealedSegments);
+        int compactedSegments=0;
+        for (MessageSegment segment:sealedSegments) {
+            if(segment.getValidCount()>0&&needCompact(segment)) {
+                if(compactSegment(queue,segments,segment)) {
+                    compactedSegments++;
+                }
             }
+        }
 
-            // 2.从旧的文件中，读出所有的有效消息对象
-            LinkedList<Message> messages=loadAllMessageFromQueue(queue.getName());
+        long gcEnd=System.currentTimeMillis();
+        log.info("[MessageFileManger] gc执行完毕！queueName="+queue.getName()+", deletedSegments="+deletedSegments
+                +", compactedSegments="+compactedSegments+", time="+(gcEnd-gcBeg)+"ms");
+    }
 
-            // 3.把有效消息，写入到新的文件中
-            try(OutputStream outputStream=new FileOutputStream(queueDataNewFile)) {
-                try(DataOutputStream dataOutputStream=new DataOutputStream(outputStream)) {
-                    for (Message message:messages) {
-                        byte[] buffer=BinaryTool.toBytes(message);
-                        // 先写四个字节消息的长度
-                        dataOutputStream.writeInt(buffer.length);
-                        dataOutputStream.write(buffer);
-                    }
+    // 删除已经没有有效消息的旧分段，返回删除的分段个数
+    private int deleteEmptySegments(MSGQueue queue,ConcurrentSkipListMap<Long,MessageSegment> segments,
+                                    List<MessageSegment> sealedSegments) throws IOException, MqException, ClassNotFoundException {
+        List<MessageSegment> toDelete=new ArrayList<>();
+        // 修改分段清单的时候，其他线程不能针对该队列的消息文件做任何修改
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            long pauseBeg=System.nanoTime();
+            if(segmentsMap.get(queue.getName())!=segments) {
+                // 队列在此期间被删除或者重新加载了
+                return 0;
+            }
+            Stat stat=getStat(queue.getName());
+            for (MessageSegment segment:sealedSegments) {
+                if(segment.getValidCount()==0) {
+                    toDelete.add(segment);
                 }
             }
-
-            // 4.删除旧的数据文件，并把新的文件进行重新命名
-            File queueDataOldFile=new File(getQueueDataPath(queue.getName()));
-            ok=queueDataOldFile.delete();
-            if(!ok) {
-                throw new MqException("[MessageFileManger] 删除旧的数据文件失败！ queueDataOldFile="+queueDataOldFile.getAbsolutePath());
+            if(toDelete.isEmpty()) {
+                return 0;
             }
-            // 把 queue_data_new.txt => queue_data.txt
-            ok=queueDataNewFile.renameTo(queueDataOldFile);
-            if(!ok){
-                throw new MqException("[MessageFileManger] 文件重命名失败！ queueDataNewFile="+queueDataNewFile.getAbsolutePath()
-                +",queueDataOldFile="+queueDataOldFile.getAbsolutePath());
+            // 先更新分段清单，再删除分段文件
+            // 这样即使删除文件的过程中程序崩溃了，清单中也不会引用到已经删除的文件
+            // 被删除的分段中都是无效消息，统计信息中只需要减少总数
+            stat.lock.lock();
+            try {
+                markStatDirty(queue.getName(),stat);
+                for (MessageSegment segment:toDelete) {
+                    segments.remove(segment.getBaseOffset());
+                    stat.totalCount.addAndGet(-segment.getTotalCount());
+                }
+                writeSegments(queue.getName(),segments.keySet());
+            } finally {
+                stat.lock.unlock();
+            }
+            sealedSegments.removeAll(toDelete);
+            recordGCPause(queue.getName(),System.nanoTime()-pauseBeg);
+        } finally {
+            queueLock.unlock();
+        }
+        // 这些分段已经不在清单中了，删除文件就不需要再持有锁了
+        for (MessageSegment segment:toDelete) {
+            segment.closeChannel();
+            if(!segment.getFile().delete()) {
+                throw new MqException("[MessageFileManger] 删除分段文件失败！ segmentFile="+segment.getFile().getAbsolutePath());
             }
+        }
+        return toDelete.size();
+    }
 
-            // 5.更新统计文件
-            Stat stat=readStat(queue.getName());
-            stat.totalCount=messages.size();
-            stat.validCount=messages.size();
-            writeStat(queue.getName(),stat);
+    // 压缩一个旧分段：把其中的有效消息复制到新文件中，替换掉旧的分段文件
+    // 压缩之后分段的 baseOffset 不变，有效消息在分段中的位置往前挪，所以不会和后面的分段重叠
+    private boolean compactSegment(MSGQueue queue,ConcurrentSkipListMap<Long,MessageSegment> segments,MessageSegment segment) throws IOException, MqException, ClassNotFoundException {
+        String queueName=queue.getName();
+        File compactFile=new File(segment.getFile().getPath()+".compact");
+        // 1. 不持有锁，把旧分段中的有效消息复制到新文件中，记录下每条消息在新旧文件中的位置
+        // 旧分段已经不会再写入新的消息了，复制的过程中只可能有消息被确认，这个在替换文件之前再检查
+        // 旧版本的分段在压缩的时候顺便转换成当前版本，新格式的消息本体比 Java 序列化出来的短得多，一般都放得下
+        // positions 中每一项是：记录在旧文件中的位置、在新文件中的位置、新的消息本体长度
+        List<long[]> positions=new ArrayList<>();
+        List<String> messageIds=new ArrayList<>();
+        int version=segment.getVersion();
+        int recordHeaderSize=MessageSegment.recordHeaderSize(version);
+        long newPosition=MessageSegment.HEADER_SIZE;
+        try (DataInputStream dataInputStream=new DataInputStream(new BufferedInputStream(new FileInputStream(segment.getFile())));
+             DataOutputStream dataOutputStream=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compactFile)))){
+            if(dataInputStream.readInt()!=MessageSegment.SEGMENT_MAGIC
+                    ||dataInputStream.readInt()!=version) {
+                throw new MqException("[MessageFileManger] 分段文件头错误！queueName="+queueName
+                        +", segmentFile="+segment.getFile().getAbsolutePath());
+            }
+            dataOutputStream.writeInt(MessageSegment.SEGMENT_MAGIC);
+            dataOutputStream.writeInt(MessageSegment.SEGMENT_VERSION);
+            long oldPosition=MessageSegment.HEADER_SIZE;
+            while (oldPosition<segment.getWritePosition()) {
+                int messageSize=dataInputStream.readInt();
+                if(version!=MessageSegment.SEGMENT_VERSION_V1) {
+                    dataInputStream.readInt();
+                }
+                byte isValid=dataInputStream.readByte();
+                byte[] buffer=new byte[messageSize];
+                dataInputStream.readFully(buffer);
+                if(isValid==0x1) {
+                    Message message=MessageCodec.decode(version,buffer);
+                    byte[] payload=version==MessageSegment.SEGMENT_VERSION?buffer:MessageCodec.encode(message);
+                    MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION,payload,(byte) 0x1);
+                    positions.add(new long[]{oldPosition,newPosition,payload.length});
+                    messageIds.add(message.getMessageId());
+                    newPosition+=MessageSegment.RECORD_HEADER_SIZE+payload.length;
+                }
+                oldPosition+=recordHeaderSize+messageSize;
+            }
+        }
+        if(newPosition>segment.getWritePosition()) {
+            // 转换之后反而变长了，会和后面的分段重叠，这次就不压缩了，等分段中的消息都被确认之后整个删除
+            log.warn("[MessageFileManger] 压缩之后的分段比原来还大，放弃压缩！queueName="+queueName
+                    +", segmentFile="+segment.getFile().getAbsolutePath());
+            compactFile.delete();
+            return false;
+        }
 
-            long gcEnd=System.currentTimeMillis();
-            log.info("[MessageFileManger] gc执行完毕！queueName="+queue.getName()+
-                    ", time="+(gcEnd-gcBeg)+"ms");
+        // 2. 持有队列的锁，把复制期间被确认的消息在新文件中也标记为无效，然后替换掉旧的分段文件
+        ReentrantLock queueLock=getQueueLock(queue.getName());
+        queueLock.lock();
+        try {
+            long pauseBeg=System.nanoTime();
+            if(segmentsMap.get(queueName)!=segments||segments.get(segment.getBaseOffset())!=segment) {
+                // 队列在此期间被删除或者重新加载了
+                compactFile.delete();
+                return false;
+            }
+            int validCount=0;
+            try (FileChannel compactChannel=FileChannel.open(compactFile.toPath(),StandardOpenOption.WRITE)) {
+                for (long[] position:positions) {
+                    if(segment.readValidFlag(position[0]+recordHeaderSize-1)==0x1) {
+                        validCount++;
+                    } else {
+                        compactChannel.write(ByteBuffer.wrap(new byte[]{0x0}),position[1]+MessageSegment.RECORD_HEADER_SIZE-1);
+                    }
+                }
+                compactChannel.force(true);
+            }
+            MessageSegment newSegment=new MessageSegment(segment.getBaseOffset(),segment.getFile());
+            newSegment.setTotalCount(positions.size());
+            newSegment.setValidCount(validCount);
+            // 替换文件之前先把统计文件标记为过期，这样替换之后即使程序崩溃了，重启的时候也会重新统计
+            Stat stat=getStat(queueName);
+            stat.lock.lock();
+            try {
+                markStatDirty(queueName,stat);
+                segment.closeChannel();
+                Files.move(compactFile.toPath(),segment.getFile().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+                newSegment.setWritePosition(segment.getFile().length());
+                segments.put(newSegment.getBaseOffset(),newSegment);
+                stat.totalCount.addAndGet(newSegment.getTotalCount()-segment.getTotalCount());
+                stat.validCount.addAndGet(newSegment.getValidCount()-segment.getValidCount());
+                // 索引快照中的偏移量已经过时了，直接删除，下次快照的时候再重新生成
+                new File(getQueueIndexPath(queueName)).delete();
+                MessageIndex index=indexMap.get(queueName);
+                if(index!=null) {
+                    for (int i = 0; i < positions.size(); i++) {
+                        IndexEntry entry=index.entries.get(messageIds.get(i));
+                        if(entry!=null) {
+                            long offsetBeg=newSegment.getBaseOffset()+positions.get(i)[1]+MessageSegment.RECORD_HEADER_SIZE;
+                            index.entries.put(entry.messageId,new IndexEntry(entry.messageId,offsetBeg,offsetBeg+positions.get(i)[2]));
+                        }
+                    }
+                    index.version++;
+                    index.generation++;
+                }
+            } finally {
+                stat.lock.unlock();
+            }
+            // 3. 通知内存中的 Message对象更新偏移量
+            RelocationListener listener=relocationListener;
+            if(listener!=null) {
+                for (int i = 0; i < positions.size(); i++) {
+                    long[] position=positions.get(i);
+                    long offsetBeg=newSegment.getBaseOffset()+position[1]+MessageSegment.RECORD_HEADER_SIZE;
+                    listener.relocate(queueName,messageIds.get(i),offsetBeg,offsetBeg+position[2]);
+                }
+            }
+            recordGCPause(queueName,System.nanoTime()-pauseBeg);
+        } finally {
+            queueLock.unlock();
         }
+        return true;
+    }
+
+    private String getGCMetricPrefix(String queueName) {
+        return "queue."+queueName+".gc.";
+    }
+
+    // 记录 gc 过程中持有队列锁的时间（也就是生产者和消费者被阻塞的时间），单位是微秒
+    private void recordGCPause(String queueName,long pauseNs) {
+        String prefix=getGCMetricPrefix(queueName);
+        long pauseUs=pauseNs/1000;
+        MqMetrics.add(prefix+"count",1);
+        MqMetrics.set(prefix+"pause.last.us",pauseUs);
+        MqMetrics.max(prefix+"pause.max.us",pauseUs);
+        MqMetrics.add(prefix+"pause.total.us",pauseUs);
     }
 }
@@ -0,0 +1,260 @@
+package com.example.mq.mqserver.datacenter;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+ * 表示队列消息数据中的一个分段文件
+ * 一个队列的消息数据由若干个固定大小的分段组成，只有最后一个分段（活跃分段）会被追加写入
+ * 分段文件的名字就是该分段在整个队列消息流中的起始偏移量（baseOffset）
+ * 这样 Message 中的 offsetBeg/offsetEnd 就是全局偏移量，通过 baseOffset 就能定位到具体的分段文件
+ * 分段文件以一个固定的文件头开始，后面是一条一条的消息记录：消息长度(4) 校验和(4) 有效标记(1) 消息本体
+ * 校验和是消息本体的 CRC32，用来在重启时发现写了一半的记录（比如追加写入的过程中断电了）
+ * 有效标记放在固定的位置（消息本体的前一个字节），确认消息的时候只需要改写这一个字节，所以校验和不包含有效标记
+ * 消息本体的编码方式见 MessageCodec，版本 3 是紧凑的二进制格式，版本 1、2 是 Java 标准库序列化出来的 Message 对象
+ * 版本 1 的分段文件中的记录没有校验和：消息长度(4) 有效标记(1) 消息本体
+ * 旧版本的分段只读不写，直到被 gc 掉（或者在压缩的时候转换成当前版本）
+ * 追加写入有两种方式：通过文件通道 write，或者写到预先映射好的一块内存区域中（mapRegionSize 大于 0）
+ * 内存映射的区域会把文件撑大，文件末尾是还没有写入的 0，分段不再写入（切换分段、关闭）的时候再截掉
+ * 如果程序崩溃了没来得及截掉，重启扫描分段的时候会当成不完整的记录截掉
+ */
+@Getter
+@Setter
+public class MessageSegment {
+    // 分段文件头：magic(4) version(4)
+    public static final int SEGMENT_MAGIC=0x4D515347;
+    public static final int SEGMENT_VERSION=3;
+    public static final int SEGMENT_VERSION_V2=2;
+    public static final int SEGMENT_VERSION_V1=1;
+    public static final int HEADER_SIZE=8;
+    // 每条消息记录的头部：消息长度(4) 校验和(4) 有效标记(1)，版本 2、3 都是这样
+    public static final int RECORD_HEADER_SIZE=9;
+    // 版本 1 的记录头部：消息长度(4) 有效标记(1)
+    public static final int RECORD_HEADER_SIZE_V1=5;
+
+    // 该分段第一个字节在整个队列消息流中的偏移量
+    private long baseOffset;
+    // 分段对应的文件
+    private File file;
+    // 当前分段已经写入的字节数，下一条消息就从这个位置开始写
+    // channel 方式追加写入的时候只有写入线程修改它，不加锁；gc、恢复和 CommitLogStore 会在别的线程读取，所以用 volatile
+    private volatile long writePosition;
+    // 该分段中的消息总数和有效消息数，有效消息数为 0 且不是活跃分段时，整个分段就可以直接删除了
+    private int totalCount;
+    private int validCount;
+    // 缓存打开的文件通道，避免每次写入都重新打开文件
+    @Getter(lombok.AccessLevel.NONE)
+    @Setter(lombok.AccessLevel.NONE)
+    private FileChannel channel;
+    // 分段文件的版本，0 表示还没有读取过文件头
+    @Getter(lombok.AccessLevel.NONE)
+    @Setter(lombok.AccessLevel.NONE)
+    private int version;
+    // 大于 0 表示通过内存映射的方式追加写入，每次映射这么大的一块区域，写满了再映射下一块
+    private long mapRegionSize;
+    // 当前映射的区域，以及它的第一个字节在文件中的位置
+    @Getter(lombok.AccessLevel.NONE)
+    @Setter(lombok.AccessLevel.NONE)
+    private MappedByteBuffer mappedBuffer;
+    @Getter(lombok.AccessLevel.NONE)
+    @Setter(lombok.AccessLevel.NONE)
+    private long mappedPosition;
+
+    public MessageSegment(long baseOffset,File file) {
+        this.baseOffset=baseOffset;
+        this.file=file;
+        this.writePosition=file.length();
+    }
+
+    // 创建一个分段，如果分段文件还不存在（或者是空的），就创建出来并写入文件头
+    public static MessageSegment create(long baseOffset,File file) throws IOException {
+        if(!file.exists()&&!file.createNewFile()) {
+            throw new IOException("创建文件失败！ segmentFile="+file.getAbsolutePath());
+        }
+        MessageSegment segment=new MessageSegment(baseOffset,file);
+        segment.writeHeaderIfEmpty();
+        return segment;
+    }
+
+    public void writeHeaderIfEmpty() throws IOException {
+        if(writePosition!=0) {
+            return;
+        }
+        version=SEGMENT_VERSION;
+        ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(SEGMENT_VERSION);
+        header.flip();
+        append(header);
+    }
+
+    // 获取分段文件的版本，第一次调用的时候读取文件头
+    public synchronized int getVersion() throws IOException {
+        if(version!=0) {
+            return version;
+        }
+        if(writePosition==0) {
+            // 空文件，之后会按照当前版本写入文件头
+            return SEGMENT_VERSION;
+        }
+        if(writePosition<HEADER_SIZE) {
+            throw new IOException("分段文件头不完整！ segmentFile="+file.getAbsolutePath());
+        }
+        ByteBuffer header=ByteBuffer.wrap(read(0,HEADER_SIZE));
+        int magic=header.getInt();
+        int fileVersion=header.getInt();
+        if(magic!=SEGMENT_MAGIC||fileVersion<SEGMENT_VERSION_V1||fileVersion>SEGMENT_VERSION) {
+            throw new IOException("分段文件头错误！ segmentFile="+file.getAbsolutePath());
+        }
+        version=fileVersion;
+        return version;
+    }
+
+    // 该分段中每条记录的头部长度，和分段文件的版本有关
+    public int getRecordHeaderSize() throws IOException {
+        return recordHeaderSize(getVersion());
+    }
+
+    public static int recordHeaderSize(int version) {
+        return version==SEGMENT_VERSION_V1?RECORD_HEADER_SIZE_V1:RECORD_HEADER_SIZE;
+    }
+
+    // 按照 version 对应的记录格式，写入一条记录
+    public static void writeRecord(DataOutputStream dataOutputStream,int version,byte[] payload,byte isValid) throws IOException {
+        dataOutputStream.writeInt(payload.length);
+        if(version!=SEGMENT_VERSION_V1) {
+            dataOutputStream.writeInt(checksum(payload));
+        }
+        dataOutputStream.writeByte(isValid);
+        dataOutputStream.write(payload);
+    }
+
+    // 计算消息本体的校验和
+    public static int checksum(byte[] payload) {
+        CRC32 crc32=new CRC32();
+        crc32.update(payload,0,payload.length);
+        return (int) crc32.getValue();
+    }
+
+    // 该分段结束位置对应的全局偏移量，也就是下一个分段的 baseOffset
+    public long getEndOffset() {
+        return baseOffset+writePosition;
+    }
+
+    public synchronized FileChannel openChannel() throws IOException {
+        if(channel==null||!channel.isOpen()) {
+            channel=FileChannel.open(file.toPath(),StandardOpenOption.READ,StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    // 把 buffer 中的数据，追加写到分段的末尾
+    public void append(ByteBuffer buffer) throws IOException {
+        if(mapRegionSize>0) {
+            appendMapped(buffer);
+            return;
+        }
+        FileChannel fileChannel=openChannel();
+        long position=writePosition;
+        while (buffer.hasRemaining()) {
+            position+=fileChannel.write(buffer,position);
+        }
+        writePosition=position;
+    }
+
+    // 写到映射的内存区域中，写入位置只在内存中维护，区域写满了就从当前写入位置开始再映射一块
+    private synchronized void appendMapped(ByteBuffer buffer) throws IOException {
+        FileChannel fileChannel=openChannel();
+        while (buffer.hasRemaining()) {
+            if(mappedBuffer==null||!mappedBuffer.hasRemaining()||mappedPosition+mappedBuffer.position()!=writePosition) {
+                mappedBuffer=fileChannel.map(FileChannel.MapMode.READ_WRITE,writePosition,mapRegionSize);
+                mappedPosition=writePosition;
+            }
+            int length=Math.min(buffer.remaining(),mappedBuffer.remaining());
+            ByteBuffer slice=buffer.duplicate();
+            slice.limit(slice.position()+length);
+            mappedBuffer.put(slice);
+            buffer.position(buffer.position()+length);
+            writePosition+=length;
+        }
+    }
+
+    // 分段不再写入了，把映射的区域刷到硬盘上，再把文件末尾没有用到的部分截掉
+    public synchronized void seal() throws IOException {
+        if(mappedBuffer==null) {
+            return;
+        }
+        mappedBuffer.force();
+        mappedBuffer=null;
+        if(channel!=null&&channel.isOpen()&&channel.size()>writePosition) {
+            channel.truncate(writePosition);
+        }
+    }
+
+    // 把 position 位置的有效标记改成无效，只写一个字节，不需要把整条消息读出来再写回去
+    public void markInvalid(long position) throws IOException {
+        FileChannel fileChannel=openChannel();
+        ByteBuffer buffer=ByteBuffer.wrap(new byte[]{0x0});
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer,position);
+        }
+    }
+
+    // 从 position 位置开始，读取 length 个字节
+    public byte[] read(long position,int length) throws IOException {
+        FileChannel fileChannel=openChannel();
+        ByteBuffer buffer=ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if(fileChannel.read(buffer,position+buffer.position())<0) {
+                throw new IOException("读取分段文件失败！ segmentFile="+file.getAbsolutePath()+", position="+position);
+            }
+        }
+        return buffer.array();
+    }
+
+    // 读取 position 位置的有效标记
+    public byte readValidFlag(long position) throws IOException {
+        FileChannel fileChannel=openChannel();
+        ByteBuffer buffer=ByteBuffer.allocate(1);
+        while (buffer.hasRemaining()) {
+            if(fileChannel.read(buffer,position)<0) {
+                throw new IOException("读取有效标记失败！ segmentFile="+file.getAbsolutePath()+", position="+position);
+            }
+        }
+        return buffer.get(0);
+    }
+
+    // 把 position 之后的数据截掉，用来丢弃文件末尾写了一半的记录
+    public synchronized void truncate(long position) throws IOException {
+        openChannel().truncate(position);
+        channel.force(true);
+        writePosition=position;
+    }
+
+    // 把写入的数据真正刷到硬盘上
+    public synchronized void force() throws IOException {
+        if(mappedBuffer!=null) {
+            mappedBuffer.force();
+        }
+        if(channel!=null&&channel.isOpen()) {
+            channel.force(false);
+        }
+    }
+
+    public synchronized void closeChannel() throws IOException {
+        seal();
+        if(channel!=null) {
+            channel.close();
+            channel=null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.mq.mqserver.datacenter;
+
+import com.example.mq.common.MqException;
+import com.example.mq.mqserver.core.MSGQueue;
+import com.example.mq.mqserver.core.Message;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * 持久化消息的存储引擎
+ * DiskDataCenter 根据配置项 mq.storage.engine 选择具体的实现：
+ * 1. MessageFileManger：每个队列一组自己的分段文件（默认）
+ * 2. CommitLogStore：所有队列共用一个提交日志，每个队列只有一个定长的消费索引
+ */
+public interface MessageStore {
+    // 后台整理数据的时候，有效消息可能会被挪到新的位置，通过这个接口通知内存中管理的 Message对象更新偏移量
+    // 调用的时候持有队列的锁，此时不会有其他线程针对该队列确认消息
+    interface RelocationListener {
+        void relocate(String queueName,String messageId,long offsetBeg,long offsetEnd);
+    }
+
+    void init();
+
+    void close();
+
+    void createQueueFiles(String queueName) throws IOException;
+
+    void destroyQueueFiles(String queueName) throws IOException;
+
+    void sendMessage(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException;
+
+    // 同一次发布被路由到多个队列的消息，只有 messageId 不同，消息内容是一样的
+    // 默认逐个队列写入，存储引擎可以只保存一份消息内容
+    default void sendMessages(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        for (int i = 0; i < queues.size(); i++) {
+            sendMessage(queues.get(i),messages.get(i));
+        }
+    }
+
+    // 一次批量发送的若干条消息（内容各不相同），queues 和 messages 一一对应
+    // 默认逐条写入，存储引擎可以把同一个队列的消息合并成一次写操作
+    default void sendMessageBatch(List<MSGQueue> queues,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        for (int i = 0; i < queues.size(); i++) {
+            sendMessage(queues.get(i),messages.get(i));
+        }
+    }
+
+    void deleteMessage(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException;
+
+    // 一次确认同一个队列的若干条消息，默认逐条删除，存储引擎可以只加一次锁、合并统计信息的更新
+    default void deleteMessages(MSGQueue queue,List<Message> messages) throws IOException, MqException, ClassNotFoundException {
+        for (Message message:messages) {
+            deleteMessage(queue,message);
+        }
+    }
+
+    // 确认消息之后调用，由存储引擎决定要不要回收硬盘空间
+    void requestGC(MSGQueue queue) throws IOException, MqException, ClassNotFoundException;
+
+    void setRelocationListener(RelocationListener relocationListener);
+
+    LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException;
+
+    // 启动时恢复队列中的消息，恢复出来的消息可以只有 messageId 和偏移量（isBodyOnDisk 为 true）
+    LinkedList<Message> recoverMessagesFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException;
+
+    // 惰性队列启动时恢复消息，只需要 messageId 和偏移量，任何情况下都不应该把消息内容读到内存中
+    default LinkedList<Message> recoverMessageIdsFromQueue(String queueName) throws IOException, MqException, ClassNotFoundException {
+        return recoverMessagesFromQueue(queueName);
+    }
+
+    // 投递之前，把只有 messageId 和偏移量的消息的完整内容从硬盘上读出来
+    void loadMessageBody(MSGQueue queue,Message message) throws IOException, MqException, ClassNotFoundException;
+}
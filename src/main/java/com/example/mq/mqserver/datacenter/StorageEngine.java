@@ -0,0 +1,11 @@
+package com.example.mq.mqserver.datacenter;
+
+/*
+ * 持久化消息的存储引擎
+ */
+public enum StorageEngine {
+    // 每个队列一组自己的分段文件，见 MessageFileManger
+    SEGMENT,
+    // 所有队列共用一个提交日志，每个队列只有一个定长的消费索引，见 CommitLogStore
+    COMMIT_LOG
+}
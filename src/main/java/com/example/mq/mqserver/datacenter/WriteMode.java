@@ -0,0 +1,11 @@
+package com.example.mq.mqserver.datacenter;
+
+/*
+ * 持久化消息追加写入分段文件的方式
+ */
+public enum WriteMode {
+    // 通过缓存的文件通道 write 到分段的末尾
+    CHANNEL,
+    // 写到预先映射好的一块内存区域中，写满了再映射下一块
+    MMAP
+}
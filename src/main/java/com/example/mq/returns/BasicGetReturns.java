@@ -0,0 +1,23 @@
+package com.example.mq.returns;
+
+import com.example.mq.mqserver.core.BasicProperties;
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.List;
+
+/*
+ * 拉模式消费的响应，messages 是这次取到的消息，等待超时的时候是空的
+ * 手动应答的时候，可以按照 messageId 或者投递标签确认这些消息
+ */
+@Data
+public class BasicGetReturns extends BasicReturns implements Serializable {
+    private List<GetMessage> messages;
+
+    @Data
+    public static class GetMessage implements Serializable {
+        private BasicProperties basicProperties;
+        private byte[] body;
+        private long deliveryTag;
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.mq.returns;
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/*
+ * 批量发送消息的响应，results 和请求中的消息一一对应，表示每条消息是否发送成功
+ * 所有消息都发送成功的时候 ok 才是 true
+ */
+@Data
+public class BasicPublishBatchReturns extends BasicReturns implements Serializable {
+    private boolean[] results;
+}
@@ -10,4 +10,6 @@ public class SubScribeReturns extends BasicReturns implements Serializable {
     private String consumerTag;
     private BasicProperties basicProperties;
     private byte[] body;
+    // 这条消息在 channel 上的投递标签，按照标签确认消息的时候使用
+    private long deliveryTag;
 }
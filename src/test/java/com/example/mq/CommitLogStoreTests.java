@@ -0,0 +1,274 @@
+package com.example.mq;
+
+import com.example.mq.common.MqException;
+import com.example.mq.mqserver.core.MSGQueue;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.datacenter.CommitLogStore;
+import com.example.mq.mqserver.datacenter.FlushPolicy;
+import com.example.mq.mqserver.datacenter.MessageSegment;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.tomcat.util.http.fileupload.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+@Slf4j
+public class CommitLogStoreTests {
+    private static final String BASE_DIR="./data/commitlog/test";
+    private static final String queueName1="testQueue1";
+    private static final String queueName2="testQueue2";
+    private static final String queueName3="testQueue3";
+
+    private CommitLogStore commitLogStore=null;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        commitLogStore=new CommitLogStore(BASE_DIR);
+        commitLogStore.init();
+        commitLogStore.createQueueFiles(queueName1);
+        commitLogStore.createQueueFiles(queueName2);
+        commitLogStore.createQueueFiles(queueName3);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        commitLogStore.close();
+        FileUtils.deleteDirectory(new File("./data/commitlog"));
+    }
+
+    private MSGQueue createTestQueue(String queueName) {
+        MSGQueue queue=new MSGQueue();
+        queue.setName(queueName);
+        queue.setDurable(true);
+        return queue;
+    }
+
+    // 同一次发布路由到多个队列的消息，和 VirtualHost.basicPublish 一样，只有 messageId 不同
+    private List<Message> createFanoutMessages(String content,int count) {
+        byte[] body=content.getBytes();
+        List<Message> messages=new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(Message.createMessageWithId("testRoutingKey",null,body));
+        }
+        return messages;
+    }
+
+    private File getCommitLogFile(long baseOffset) {
+        return new File(BASE_DIR+"/"+String.format("commitlog_%020d.txt",baseOffset));
+    }
+
+    private File getConsumeIndexFile(String queueName) {
+        return new File(BASE_DIR+"/consumequeue/"+queueName+".txt");
+    }
+
+    @Test
+    public void testFanoutStoresBodyOnce() throws IOException, MqException, ClassNotFoundException {
+        // 一条消息发给三个队列，提交日志中只有一条记录，每个队列的消费索引中各有一条记录
+        List<MSGQueue> queues=Arrays.asList(createTestQueue(queueName1),createTestQueue(queueName2),createTestQueue(queueName3));
+        List<Message> messages=createFanoutMessages("hello",3);
+        commitLogStore.sendMessages(queues,messages);
+
+        long recordSize=messages.get(0).getOffsetEnd()-messages.get(0).getOffsetBeg()+MessageSegment.RECORD_HEADER_SIZE;
+        Assertions.assertEquals(MessageSegment.HEADER_SIZE+recordSize,getCommitLogFile(0).length());
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(CommitLogStore.INDEX_ENTRY_SIZE,getConsumeIndexFile(queues.get(i).getName()).length());
+            Assertions.assertEquals(messages.get(0).getOffsetBeg(),messages.get(i).getOffsetBeg());
+        }
+
+        // 每个队列读出来的消息，messageId 都是自己的
+        for (int i = 0; i < 3; i++) {
+            LinkedList<Message> actualMessages=commitLogStore.loadAllMessageFromQueue(queues.get(i).getName());
+            Assertions.assertEquals(1,actualMessages.size());
+            Assertions.assertEquals(messages.get(i).getMessageId(),actualMessages.get(0).getMessageId());
+            Assertions.assertEquals("testRoutingKey",actualMessages.get(0).getRoutingKey());
+            Assertions.assertArrayEquals("hello".getBytes(),actualMessages.get(0).getBody());
+        }
+    }
+
+    @Test
+    public void testRecoverAfterAck() throws IOException, MqException, ClassNotFoundException {
+        // 写入 10条消息，确认其中 3条，重启之后只恢复出剩下的 7条，消息内容在投递之前再读取
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            Message message=createFanoutMessages("testMessage"+i,1).get(0);
+            commitLogStore.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        commitLogStore.deleteMessage(queue,expectedMessages.remove(0));
+        commitLogStore.deleteMessage(queue,expectedMessages.remove(3));
+        commitLogStore.deleteMessage(queue,expectedMessages.remove(6));
+        commitLogStore.close();
+
+        commitLogStore=new CommitLogStore(BASE_DIR);
+        commitLogStore.init();
+        LinkedList<Message> actualMessages=commitLogStore.recoverMessagesFromQueue(queueName1);
+        Assertions.assertEquals(7,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Message actualMessage=actualMessages.get(i);
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessage.getMessageId());
+            Assertions.assertTrue(actualMessage.isBodyOnDisk());
+            commitLogStore.loadMessageBody(queue,actualMessage);
+            Assertions.assertArrayEquals(expectedMessages.get(i).getBody(),actualMessage.getBody());
+        }
+        // 恢复出来的消息可以正常确认
+        commitLogStore.deleteMessage(queue,actualMessages.get(0));
+        Assertions.assertEquals(6,commitLogStore.recoverMessagesFromQueue(queueName1).size());
+    }
+
+    @Test
+    public void testTruncateTornTail() throws IOException, MqException, ClassNotFoundException {
+        // 提交日志和消费索引的末尾都有写了一半的数据，重启之后截断，前面的消息照常恢复
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 3; i++) {
+            Message message=createFanoutMessages("testMessage"+i,1).get(0);
+            commitLogStore.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        commitLogStore.close();
+        long commitLogLength=getCommitLogFile(0).length();
+        try (FileOutputStream outputStream=new FileOutputStream(getCommitLogFile(0),true)) {
+            outputStream.write(new byte[]{0,0,1,0,0,0});
+        }
+        try (FileOutputStream outputStream=new FileOutputStream(getConsumeIndexFile(queueName1),true)) {
+            outputStream.write(new byte[10]);
+        }
+
+        commitLogStore=new CommitLogStore(BASE_DIR);
+        commitLogStore.init();
+        Assertions.assertEquals(commitLogLength,getCommitLogFile(0).length());
+        Assertions.assertEquals(3*CommitLogStore.INDEX_ENTRY_SIZE,getConsumeIndexFile(queueName1).length());
+        LinkedList<Message> actualMessages=commitLogStore.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(3,actualMessages.size());
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+    }
+
+    @Test
+    public void testDeleteAckedSegments() throws IOException, MqException, ClassNotFoundException {
+        // 分段很小，写入的消息会分布在多个分段中
+        // 两个队列都确认了之后，除了正在写入的分段，其他分段都被删除
+        commitLogStore.setSegmentSize(256);
+        List<MSGQueue> queues=Arrays.asList(createTestQueue(queueName1),createTestQueue(queueName2));
+        List<List<Message>> sent=new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            List<Message> messages=createFanoutMessages("testMessage"+i,2);
+            commitLogStore.sendMessages(queues,messages);
+            sent.add(messages);
+        }
+        Assertions.assertTrue(getCommitLogFile(0).exists());
+        long lastOffset=sent.get(9).get(0).getOffsetBeg();
+
+        // 只有一个队列确认的时候，分段还不能删除
+        for (List<Message> messages:sent) {
+            commitLogStore.deleteMessage(queues.get(0),messages.get(0));
+            commitLogStore.requestGC(queues.get(0));
+        }
+        Assertions.assertTrue(getCommitLogFile(0).exists());
+        Assertions.assertEquals(10,commitLogStore.loadAllMessageFromQueue(queueName2).size());
+
+        for (List<Message> messages:sent) {
+            commitLogStore.deleteMessage(queues.get(1),messages.get(1));
+            commitLogStore.requestGC(queues.get(1));
+        }
+        File[] files=new File(BASE_DIR).listFiles((dir,name) -> name.startsWith("commitlog_"));
+        Assertions.assertEquals(1,files.length);
+        Assertions.assertTrue(lastOffset>=Long.parseLong(files[0].getName().substring(10,30)));
+    }
+
+    @Test
+    public void testSendMessageBatch() throws IOException, MqException, ClassNotFoundException {
+        // 批量发送的 20条消息交替发给两个队列，分段很小，这一批记录会跨越多个分段
+        // 每个队列按照发送的顺序读出来，两个队列都确认之后，旧的分段照常被删除
+        commitLogStore.setSegmentSize(256);
+        MSGQueue queue1=createTestQueue(queueName1);
+        MSGQueue queue2=createTestQueue(queueName2);
+        List<MSGQueue> queues=new ArrayList<>();
+        List<Message> messages=new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            queues.add(i%2==0?queue1:queue2);
+            messages.add(createFanoutMessages("testMessage"+i,1).get(0));
+        }
+        commitLogStore.sendMessageBatch(queues,messages);
+        Assertions.assertTrue(new File(BASE_DIR).listFiles((dir,name) -> name.startsWith("commitlog_")).length>1);
+        Assertions.assertEquals(10*CommitLogStore.INDEX_ENTRY_SIZE,getConsumeIndexFile(queueName1).length());
+        Assertions.assertEquals(10*CommitLogStore.INDEX_ENTRY_SIZE,getConsumeIndexFile(queueName2).length());
+
+        for (int q = 0; q < 2; q++) {
+            LinkedList<Message> actualMessages=commitLogStore.loadAllMessageFromQueue(queues.get(q).getName());
+            Assertions.assertEquals(10,actualMessages.size());
+            for (int i = 0; i < 10; i++) {
+                Message expectedMessage=messages.get(i*2+q);
+                Assertions.assertEquals(expectedMessage.getMessageId(),actualMessages.get(i).getMessageId());
+                Assertions.assertArrayEquals(expectedMessage.getBody(),actualMessages.get(i).getBody());
+            }
+        }
+
+        for (int i = 0; i < 20; i++) {
+            commitLogStore.deleteMessage(queues.get(i),messages.get(i));
+            commitLogStore.requestGC(queues.get(i));
+        }
+        Assertions.assertEquals(1,new File(BASE_DIR).listFiles((dir,name) -> name.startsWith("commitlog_")).length);
+    }
+
+    @Test
+    public void testConcurrentSendMessages() throws IOException, MqException, ClassNotFoundException, InterruptedException {
+        // 多个线程同时发送消息，由 journal 写线程合并成批写入，每个线程交替发送单条消息和发给两个队列的消息
+        MSGQueue queue1=createTestQueue(queueName1);
+        MSGQueue queue2=createTestQueue(queueName2);
+        List<Thread> threads=new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread=new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        if(i%2==0) {
+                            commitLogStore.sendMessage(queue1,createFanoutMessages("testMessage"+i,1).get(0));
+                        } else {
+                            commitLogStore.sendMessages(Arrays.asList(queue1,queue2),createFanoutMessages("testMessage"+i,2));
+                        }
+                    } catch (IOException | MqException | ClassNotFoundException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread:threads) {
+            thread.join();
+        }
+
+        Assertions.assertEquals(200*CommitLogStore.INDEX_ENTRY_SIZE,getConsumeIndexFile(queueName1).length());
+        Assertions.assertEquals(100*CommitLogStore.INDEX_ENTRY_SIZE,getConsumeIndexFile(queueName2).length());
+        Assertions.assertEquals(200,commitLogStore.loadAllMessageFromQueue(queueName1).size());
+        LinkedList<Message> actualMessages=commitLogStore.loadAllMessageFromQueue(queueName2);
+        Assertions.assertEquals(100,actualMessages.size());
+        for (Message message:actualMessages) {
+            Assertions.assertTrue(new String(message.getBody()).startsWith("testMessage"));
+        }
+    }
+
+    @Test
+    public void testIntervalFlushWaits() throws IOException, MqException, ClassNotFoundException {
+        // INTERVAL 策略下，生产者要等到覆盖自己那次写入的定时刷盘完成才返回
+        commitLogStore.setFlushPolicy(FlushPolicy.INTERVAL);
+        commitLogStore.setFlushIntervalMs(300);
+        MSGQueue queue=createTestQueue(queueName1);
+        commitLogStore.sendMessage(queue,createFanoutMessages("testMessage0",1).get(0));
+        long beg=System.currentTimeMillis();
+        commitLogStore.sendMessage(queue,createFanoutMessages("testMessage1",1).get(0));
+        Assertions.assertTrue(System.currentTimeMillis()-beg>=200);
+        Assertions.assertEquals(2,commitLogStore.loadAllMessageFromQueue(queueName1).size());
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.mq;
 
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
 import com.example.mq.mqserver.core.*;
 import com.example.mq.mqserver.datacenter.DiskDataCenter;
 import com.example.mq.mqserver.datacenter.MemoryDataCenter;
@@ -126,6 +127,24 @@ public class MemoryDataCenterTests {
         Assertions.assertNull(actualMessage);
     }
 
+    // 消息中心按照 body + 固定开销统计内存占用，重复插入不重复计算，移除的时候扣回去
+    @Test
+    public void testMessageBytes() {
+        Message message=createTestMessage("testMessage");
+        long expectedBytes=MemoryDataCenter.MESSAGE_OVERHEAD_BYTES+message.getBody().length;
+        memoryDataCenter.addMessage(message);
+        Assertions.assertEquals(expectedBytes,memoryDataCenter.getMessageBytes());
+        memoryDataCenter.addMessage(message);
+        Assertions.assertEquals(expectedBytes,memoryDataCenter.getMessageBytes());
+
+        // body 之后被释放了（惰性队列），扣回去的还是当时计入的字节数
+        message.setBody(null);
+        memoryDataCenter.removeMessage(message.getMessageId());
+        Assertions.assertEquals(0,memoryDataCenter.getMessageBytes());
+        memoryDataCenter.removeMessage(message.getMessageId());
+        Assertions.assertEquals(0,memoryDataCenter.getMessageBytes());
+    }
+
     @Test
     public void testSendMessage() {
         // 1. 创建一个队列，创建 10条消息，把这些消息都插入队列中
@@ -228,4 +247,45 @@ public class MemoryDataCenterTests {
         FileUtils.deleteDirectory(dataDir);
     }
 
+    @Test
+    public void testParallelRecovery() throws IOException, MqException, ClassNotFoundException {
+        MqApplication.context= SpringApplication.run(MqApplication.class);
+
+        // 1. 在硬盘上构造多个队列，每个队列中有若干条消息
+        DiskDataCenter diskDataCenter=new DiskDataCenter();
+        diskDataCenter.init();
+        List<List<Message>> expectedMessages=new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            MSGQueue queue=createTestQueue("testQueue"+i);
+            diskDataCenter.insertQueue(queue);
+            List<Message> messages=new ArrayList<>();
+            for (int j = 0; j < 20; j++) {
+                Message message=createTestMessage("testContent"+i+"-"+j);
+                diskDataCenter.sendMessage(queue,message);
+                messages.add(message);
+            }
+            expectedMessages.add(messages);
+        }
+
+        // 2. 执行恢复操作，多个队列会被并行恢复
+        memoryDataCenter.recovery(diskDataCenter);
+
+        // 3. 每个队列中的消息都要完整恢复，并且保持原来的顺序
+        for (int i = 0; i < 8; i++) {
+            String queueName="testQueue"+i;
+            Assertions.assertEquals(20,memoryDataCenter.getMessageCount(queueName));
+            Assertions.assertTrue(MqMetrics.snapshot().containsKey("queue."+queueName+".recovery.ms"));
+            for (Message expectedMessage:expectedMessages.get(i)) {
+                Message actualMessage=memoryDataCenter.pollMessage(queueName);
+                Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
+                Assertions.assertNotNull(memoryDataCenter.getMessage(expectedMessage.getMessageId()));
+            }
+        }
+
+        // 4.清理硬盘的数据，把整个 data目录里的内容都删除
+        diskDataCenter.close();
+        MqApplication.context.close();
+        File dataDir=new File("./data");
+        FileUtils.deleteDirectory(dataDir);
+    }
 }
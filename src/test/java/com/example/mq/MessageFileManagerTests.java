@@ -1,9 +1,15 @@
 package com.example.mq;
 
+import com.example.mq.common.BinaryTool;
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
 import com.example.mq.mqserver.core.MSGQueue;
 import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.datacenter.FlushPolicy;
+import com.example.mq.mqserver.datacenter.MessageCodec;
 import com.example.mq.mqserver.datacenter.MessageFileManger;
+import com.example.mq.mqserver.datacenter.MessageSegment;
+import com.example.mq.mqserver.datacenter.WriteMode;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
@@ -12,10 +18,20 @@ import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 @Slf4j
 @SpringBootTest
@@ -44,30 +60,56 @@ public class MessageFileManagerTests {
     @Test
     public void testCreateFiles() {
         // 创建队列文件已经在上面 setUp阶段执行过了，此处主要是验证看看文件是否存在
-        File queueDataFile1=new File("./data/"+queueName1+"/queue_data.txt");
+        File queueSegmentsFile1=new File("./data/"+queueName1+"/queue_segments.txt");
+        Assertions.assertEquals(true,queueSegmentsFile1.isFile());
+        File queueDataFile1=new File("./data/"+queueName1+"/queue_data_00000000000000000000.txt");
         Assertions.assertEquals(true,queueDataFile1.isFile());
         File queueStatFile1=new File("./data/"+queueName1+"/queue_stat.txt");
         Assertions.assertEquals(true,queueStatFile1.isFile());
 
-        File queueDataFile2=new File("./data/"+queueName2+"/queue_data.txt");
+        File queueSegmentsFile2=new File("./data/"+queueName2+"/queue_segments.txt");
+        Assertions.assertEquals(true,queueSegmentsFile2.isFile());
+        File queueDataFile2=new File("./data/"+queueName2+"/queue_data_00000000000000000000.txt");
         Assertions.assertEquals(true,queueDataFile2.isFile());
         File queueStatFile2=new File("./data/"+queueName2+"/queue_stat.txt");
         Assertions.assertEquals(true,queueStatFile2.isFile());
     }
 
     @Test
-    public void testReadWriteStat() {
-        MessageFileManger.Stat stat=new MessageFileManger.Stat();
-        stat.totalCount=100;
-        stat.validCount=50;
-        // 此处需要使用反射的方式，来调用 writeStat 和 readStat了
-        // 此处使用 Spring 帮我们封装好的 反射 的工具类
-        ReflectionTestUtils.invokeMethod(messageFileManger,"writeStat",queueName1,stat);
+    public void testReadWriteStat() throws IOException, MqException, ClassNotFoundException {
+        // 写入 10 条消息，删除其中 3 条，checkpoint 之后，用一个新的 MessageFileManger 直接从统计文件中读取
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> messages=new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            messages.add(message);
+        }
+        for (int i = 0; i < 3; i++) {
+            messageFileManger.deleteMessage(queue,messages.get(i));
+        }
+        MessageFileManger.Stat stat=messageFileManger.getStat(queueName1);
+        Assertions.assertEquals(10,stat.totalCount.get());
+        Assertions.assertEquals(7,stat.validCount.get());
+        messageFileManger.checkpointStats();
+
+        // checkpoint 之后的统计文件，可以直接恢复出统计信息，不需要扫描消息数据
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        MessageFileManger.Stat newStat=newMessageFileManger.getStat(queueName1);
+        Assertions.assertEquals(10,newStat.totalCount.get());
+        Assertions.assertEquals(7,newStat.validCount.get());
+        newMessageFileManger.close();
 
-        // 写入完毕之后，再掉用一下读取，验证读取的结果和写入的数据是一致的
-        MessageFileManger.Stat newStat=ReflectionTestUtils.invokeMethod(messageFileManger,"readStat",queueName1);
-        Assertions.assertEquals(100,newStat.totalCount);
-        Assertions.assertEquals(50,newStat.validCount);
+        // checkpoint 之后再修改，统计文件就会被标记为过期，此时会重新扫描消息数据来统计
+        messageFileManger.deleteMessage(queue,messages.get(3));
+        newMessageFileManger=new MessageFileManger();
+        MessageFileManger.Stat rebuiltStat=ReflectionTestUtils.invokeMethod(newMessageFileManger,"readStat",
+                queueName1,new MessageFileManger.Stat());
+        Assertions.assertNull(rebuiltStat);
+        newStat=newMessageFileManger.getStat(queueName1);
+        Assertions.assertEquals(10,newStat.totalCount.get());
+        Assertions.assertEquals(6,newStat.validCount.get());
+        newMessageFileManger.close();
         log.info("测试 readStat 和 writeStat 完成!");
     }
 
@@ -96,10 +138,10 @@ public class MessageFileManagerTests {
         // 调用发送消息方法
         messageFileManger.sendMessage(queue,message);
 
-        // 检查 stat 文件
-        MessageFileManger.Stat stat=ReflectionTestUtils.invokeMethod(messageFileManger,"readStat",queueName1);
-        Assertions.assertEquals(1,stat.totalCount);
-        Assertions.assertEquals(1,stat.validCount);
+        // 检查统计信息
+        MessageFileManger.Stat stat=messageFileManger.getStat(queueName1);
+        Assertions.assertEquals(1,stat.totalCount.get());
+        Assertions.assertEquals(1,stat.validCount.get());
 
         // 检查 data 文件
         LinkedList<Message> messages=messageFileManger.loadAllMessageFromQueue(queueName1);
@@ -113,6 +155,34 @@ public class MessageFileManagerTests {
         log.info("message:"+curMessage);
     }
 
+    @Test
+    public void testSendMessageBatch() throws IOException, MqException, ClassNotFoundException {
+        // 批量发送的消息交替发给两个队列，每个队列的消息合并成一次写操作，读出来的顺序和发送的顺序一致
+        MSGQueue queue1=createTestQueue(queueName1);
+        MSGQueue queue2=createTestQueue(queueName2);
+        List<MSGQueue> queues=new ArrayList<>();
+        List<Message> messages=new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            queues.add(i%2==0?queue1:queue2);
+            messages.add(createTestMessage("testMessage"+i));
+        }
+        messageFileManger.sendMessageBatch(queues,messages);
+
+        Assertions.assertEquals(10,messageFileManger.getStat(queueName1).totalCount.get());
+        Assertions.assertEquals(10,messageFileManger.getStat(queueName2).totalCount.get());
+        for (int q = 0; q < 2; q++) {
+            LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queues.get(q).getName());
+            Assertions.assertEquals(10,actualMessages.size());
+            for (int i = 0; i < 10; i++) {
+                Message expectedMessage=messages.get(i*2+q);
+                Message actualMessage=actualMessages.get(i);
+                Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
+                Assertions.assertEquals(expectedMessage.getOffsetBeg(),actualMessage.getOffsetBeg());
+                Assertions.assertArrayEquals(expectedMessage.getBody(),actualMessage.getBody());
+            }
+        }
+    }
+
     @Test
     public void testLoadAllMessageFromQueue() throws IOException, MqException, ClassNotFoundException {
         // 往队列中插入 100条消息，然后验证看看这 100 条消息从文件中读取之后，是否和最初是一致的
@@ -140,6 +210,34 @@ public class MessageFileManagerTests {
         }
     }
 
+    @Test
+    public void testDeleteMessages() throws IOException, MqException, ClassNotFoundException {
+        // 一次删除同一个队列中的多条消息，统计信息和逐条删除的结果一样
+        messageFileManger.setSegmentSize(2048);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new ArrayList<>();
+        for (int i=0;i<100;i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        List<Message> deletedMessages=new ArrayList<>();
+        for (int i=0;i<100;i+=3) {
+            deletedMessages.add(expectedMessages.get(i));
+        }
+        messageFileManger.deleteMessages(queue,deletedMessages);
+        expectedMessages.removeAll(deletedMessages);
+
+        MessageFileManger.Stat stat=messageFileManger.getStat(queueName1);
+        Assertions.assertEquals(100,stat.totalCount.get());
+        Assertions.assertEquals(expectedMessages.size(),stat.validCount.get());
+        LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(expectedMessages.size(),actualMessages.size());
+        for (int i=0;i<expectedMessages.size();i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+    }
+
     @Test
     public void testDeleteMessage() throws IOException, MqException, ClassNotFoundException {
         // 创建队列，写入 10个消息，删除其中的几个消息，再把所有消息读取出来，判定是否符合预期
@@ -173,11 +271,195 @@ public class MessageFileManagerTests {
     }
 
 
+    @Test
+    public void testDeleteMessageTwice() throws IOException, MqException, ClassNotFoundException {
+        // 同一条消息被确认两次，有效消息数只能减一次，不然 gc 会把还有有效消息的分段当成空分段删掉
+        messageFileManger.setSegmentSize(2048);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 40; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        Message deleted=expectedMessages.remove(0);
+        for (int i = 0; i < 10; i++) {
+            messageFileManger.deleteMessage(queue,deleted);
+        }
+        Assertions.assertEquals(39,messageFileManger.getStat(queueName1).validCount.get());
+        Assertions.assertEquals(40,messageFileManger.getStat(queueName1).totalCount.get());
+
+        messageFileManger.gc(queue);
+        LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(39,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+    }
+
+    @Test
+    public void testDeleteMessagesTwice() throws IOException, MqException, ClassNotFoundException {
+        // 批量删除的列表里有重复的消息，或者消息已经被删除过了，有效消息数都只能减一次
+        messageFileManger.setSegmentSize(2048);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 40; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        Message deleted=expectedMessages.remove(0);
+        messageFileManger.deleteMessages(queue,Arrays.asList(deleted,deleted));
+        messageFileManger.deleteMessages(queue,Arrays.asList(deleted,deleted,deleted));
+        Assertions.assertEquals(39,messageFileManger.getStat(queueName1).validCount.get());
+        Assertions.assertEquals(40,messageFileManger.getStat(queueName1).totalCount.get());
+
+        messageFileManger.gc(queue);
+        LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(39,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+    }
+
+    @Test
+    public void testConcurrentSendMessage() throws IOException, MqException, ClassNotFoundException, InterruptedException {
+        // 多个线程同时发送消息，由 journal 写线程合并成批写入，验证所有消息都能完整读取出来
+        messageFileManger.setFlushPolicy(FlushPolicy.INTERVAL);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Thread> threads=new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread=new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    try {
+                        messageFileManger.sendMessage(queue,createTestMessage("testMessage"+i));
+                    } catch (IOException | MqException | ClassNotFoundException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread:threads) {
+            thread.join();
+        }
+
+        MessageFileManger.Stat stat=messageFileManger.getStat(queueName1);
+        Assertions.assertEquals(200,stat.totalCount.get());
+        Assertions.assertEquals(200,stat.validCount.get());
+        LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(200,actualMessages.size());
+    }
+
+    @Test
+    public void testDeleteMessageWritesOneByte() throws IOException, MqException, ClassNotFoundException {
+        // 确认消息的时候，分段文件中只有这条消息记录头中的有效标记这一个字节发生变化
+        MSGQueue queue=createTestQueue(queueName1);
+        Message message=createTestMessage("testMessage");
+        messageFileManger.sendMessage(queue,message);
+        File segmentFile=new File("./data/"+queueName1+"/queue_data_00000000000000000000.txt");
+        byte[] before=Files.readAllBytes(segmentFile.toPath());
+
+        messageFileManger.deleteMessage(queue,message);
+        byte[] after=Files.readAllBytes(segmentFile.toPath());
+        Assertions.assertEquals(before.length,after.length);
+        for (int i = 0; i < before.length; i++) {
+            if(i==message.getOffsetBeg()-1) {
+                Assertions.assertEquals(0x1,before[i]);
+                Assertions.assertEquals(0x0,after[i]);
+            } else {
+                Assertions.assertEquals(before[i],after[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testMigrateLegacyDataFile() throws IOException, MqException, ClassNotFoundException {
+        // 构造一个旧版本的数据文件（消息长度 + 消息本体，有效标记在消息本体中），验证能转换成新的分段文件
+        messageFileManger.destroyQueueFiles(queueName2);
+        File baseDir=new File("./data/"+queueName2);
+        Assertions.assertTrue(baseDir.mkdirs());
+        List<Message> expectedMessages=new LinkedList<>();
+        try (DataOutputStream dataOutputStream=new DataOutputStream(new FileOutputStream(new File(baseDir,"queue_data.txt")))){
+            for (int i = 0; i < 3; i++) {
+                Message message=createTestMessage("testMessage"+i);
+                if(i==0) {
+                    message.setIsValid((byte) 0x0);
+                } else {
+                    expectedMessages.add(message);
+                }
+                byte[] messageBinary=BinaryTool.toBytes(message);
+                dataOutputStream.writeInt(messageBinary.length);
+                dataOutputStream.write(messageBinary);
+            }
+        }
+        Files.write(new File(baseDir,"queue_stat.txt").toPath(),"3\t2".getBytes());
+
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        LinkedList<Message> actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName2);
+        Assertions.assertFalse(new File(baseDir,"queue_data.txt").exists());
+        Assertions.assertEquals(2,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+        MessageFileManger.Stat stat=newMessageFileManger.getStat(queueName2);
+        Assertions.assertEquals(3,stat.totalCount.get());
+        Assertions.assertEquals(2,stat.validCount.get());
+
+        // 转换之后的消息，可以正常确认
+        newMessageFileManger.deleteMessage(createTestQueue(queueName2),actualMessages.get(0));
+        actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName2);
+        Assertions.assertEquals(1,actualMessages.size());
+        Assertions.assertEquals(expectedMessages.get(1).getMessageId(),actualMessages.get(0).getMessageId());
+        newMessageFileManger.close();
+    }
+
+    // 计算队列目录下所有分段文件的总大小
+    private long getSegmentsLength(String queueName) {
+        File[] files=new File("./data/"+queueName).listFiles((dir,name) -> name.startsWith("queue_data_"));
+        long length=0;
+        for (File file:files) {
+            length+=file.length();
+        }
+        return length;
+    }
+
+    @Test
+    public void testSegmentRoll() throws IOException, MqException, ClassNotFoundException {
+        // 把分段大小调小，让 100条消息分布到多个分段中，再验证能否按顺序全部读取出来
+        messageFileManger.setSegmentSize(2048);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 100; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        File[] segmentFiles=new File("./data/"+queueName1).listFiles((dir,name) -> name.startsWith("queue_data_"));
+        Assertions.assertTrue(segmentFiles.length>1);
+
+        // 删除一个不在第一个分段中的消息，验证能找到正确的分段
+        messageFileManger.deleteMessage(queue,expectedMessages.get(99));
+
+        LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(99,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Message expectedMessage=expectedMessages.get(i);
+            Message actualMessage=actualMessages.get(i);
+            Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
+            Assertions.assertEquals(expectedMessage.getOffsetBeg(),actualMessage.getOffsetBeg());
+            Assertions.assertEquals(expectedMessage.getOffsetEnd(),actualMessage.getOffsetEnd());
+            Assertions.assertArrayEquals(expectedMessage.getBody(),actualMessage.getBody());
+        }
+    }
+
     @Test
     public void testGC() throws IOException, MqException, ClassNotFoundException {
-        // 先往队列中写 100个消息，获取到文件大小
-        // 再把 100个消息中的一半，都给删除掉(比如把下标为偶数的消息都删除)
-        // 再手动调用 gc方法，检测得到的新的文件的大小是否比之前缩小了
+        // 先把分段大小调小，往队列中写 100个消息，让这些消息分布在多个分段中，获取到文件大小
+        // 再把 100个消息中的前一半都给删除掉，这样前面的分段中就没有有效消息了
+        // 再手动调用 gc方法，检测这些分段是否被整体删除，文件的总大小是否比之前缩小了
+        messageFileManger.setSegmentSize(2048);
         MSGQueue queue=createTestQueue(queueName1);
         List<Message> expectedMessages=new LinkedList<>();
         for (int i = 0; i < 100; i++) {
@@ -187,27 +469,23 @@ public class MessageFileManagerTests {
         }
 
         // 获取 gc 前的文件大小
-        File beforeGCFile=new File("./data/"+queueName1+"/queue_data.txt");
-        long beforeGCLength=beforeGCFile.length();
+        long beforeGCLength=getSegmentsLength(queueName1);
 
-        // 删除偶数下标的消息
-        for (int i = 0; i < 100; i+=2) {
+        // 删除前一半的消息
+        for (int i = 0; i < 50; i++) {
             messageFileManger.deleteMessage(queue,expectedMessages.get(i));
         }
 
         // 手动调用 gc
+        Assertions.assertTrue(messageFileManger.checkGC(queueName1));
         messageFileManger.gc(queue);
 
         // 重新读取文件，验证新的文件的内容是不是和之前的内容匹配
         LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
         Assertions.assertEquals(50,actualMessages.size());
         for (int i = 0; i < actualMessages.size(); i++) {
-            // 把之前消息偶数下标的删了，剩下的就是奇数下标的元素了
-            // actual 中的 0 对应 expected 的 1
-            // actual 中的 1 对应 expected 的 3
-            // actual 中的 2 对应 expected 的 5
-            // actual 中的 i 对应 expected 的 2 * i + 1
-            Message expectedMessage=expectedMessages.get(2*i+1);
+            // 前一半消息被删除了，actual 中的 i 对应 expected 的 50 + i
+            Message expectedMessage=expectedMessages.get(50+i);
             Message actualMessage=actualMessages.get(i);
 
             Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
@@ -217,11 +495,359 @@ public class MessageFileManagerTests {
             Assertions.assertEquals(0x1,actualMessage.getIsValid());
         }
         // 获取新的文件大小
-        File afterGCFile=new File("./data/"+queueName1+"/queue_data.txt");
-        long afterGCLength=afterGCFile.length();
+        long afterGCLength=getSegmentsLength(queueName1);
         log.info("before:"+beforeGCLength);
         log.info("after:"+afterGCLength);
         Assertions.assertTrue(beforeGCLength>afterGCLength);
     }
-}
 
+    @Test
+    public void testCompactSegment() throws IOException, MqException, ClassNotFoundException {
+        // 每个分段中都只确认一部分消息，这样没有分段可以被整体删除，gc 时需要把有效消息复制到新文件中压缩
+        messageFileManger.setSegmentSize(2048);
+        messageFileManger.setCompactThreshold(0.6);
+        Map<String,Message> memoryMessages=new HashMap<>();
+        messageFileManger.setRelocationListener((queueName,messageId,offsetBeg,offsetEnd) -> {
+            Message message=memoryMessages.get(messageId);
+            message.setOffsetBeg(offsetBeg);
+            message.setOffsetEnd(offsetEnd);
+        });
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 100; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            if(i%2==0) {
+                messageFileManger.deleteMessage(queue,message);
+            } else {
+                expectedMessages.add(message);
+                memoryMessages.put(message.getMessageId(),message);
+            }
+        }
+        long beforeGCLength=getSegmentsLength(queueName1);
+        long beforeGCCount=MqMetrics.get("queue."+queueName1+".gc.count");
+
+        Assertions.assertTrue(messageFileManger.checkGC(queueName1));
+        messageFileManger.gc(queue);
+        Assertions.assertTrue(getSegmentsLength(queueName1)<beforeGCLength);
+        Assertions.assertTrue(MqMetrics.get("queue."+queueName1+".gc.count")>beforeGCCount);
+
+        // 压缩之后，内存中的 Message对象的偏移量，要和重新从文件中加载出来的一致
+        LinkedList<Message> actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(50,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Message expectedMessage=expectedMessages.get(i);
+            Message actualMessage=actualMessages.get(i);
+            Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
+            Assertions.assertEquals(expectedMessage.getOffsetBeg(),actualMessage.getOffsetBeg());
+            Assertions.assertEquals(expectedMessage.getOffsetEnd(),actualMessage.getOffsetEnd());
+            Assertions.assertArrayEquals(expectedMessage.getBody(),actualMessage.getBody());
+        }
+
+        // 使用更新之后的偏移量，依然可以正确的确认消息
+        messageFileManger.deleteMessage(queue,expectedMessages.get(0));
+        actualMessages=messageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(49,actualMessages.size());
+        Assertions.assertEquals(expectedMessages.get(1).getMessageId(),actualMessages.get(0).getMessageId());
+    }
+
+    @Test
+    public void testRecoverFromIndexSnapshot() throws IOException, MqException, ClassNotFoundException {
+        // 写入 10条消息，确认其中 2条，然后做索引快照
+        // 快照之后再写入 3条消息，并确认一条快照中的消息，验证重启之后恢复出来的消息是正确的
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(0));
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(0));
+        messageFileManger.snapshotIndexes();
+        Assertions.assertTrue(new File("./data/"+queueName1+"/queue_index.txt").isFile());
+        for (int i = 10; i < 13; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(0));
+
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        LinkedList<Message> actualMessages=newMessageFileManger.recoverMessagesFromQueue(queueName1);
+        Assertions.assertEquals(10,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Message expectedMessage=expectedMessages.get(i);
+            Message actualMessage=actualMessages.get(i);
+            Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
+            Assertions.assertEquals(expectedMessage.getOffsetBeg(),actualMessage.getOffsetBeg());
+            Assertions.assertEquals(expectedMessage.getOffsetEnd(),actualMessage.getOffsetEnd());
+            // 快照中的消息只恢复出了索引，快照之后写入的消息是完整回放出来的
+            Assertions.assertEquals(i<7,actualMessage.isBodyOnDisk());
+            newMessageFileManger.loadMessageBody(queue,actualMessage);
+            Assertions.assertFalse(actualMessage.isBodyOnDisk());
+            Assertions.assertEquals(expectedMessage.getRoutingKey(),actualMessage.getRoutingKey());
+            Assertions.assertArrayEquals(expectedMessage.getBody(),actualMessage.getBody());
+        }
+        newMessageFileManger.close();
+    }
+
+    @Test
+    public void testRecoverMessageIdsWithoutSnapshot() throws IOException, MqException, ClassNotFoundException {
+        // 没有索引快照的时候，惰性队列的恢复也只读出 messageId 和偏移量，消息内容等到投递的时候再读取
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(0));
+        Assertions.assertFalse(new File("./data/"+queueName1+"/queue_index.txt").exists());
+
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        LinkedList<Message> actualMessages=newMessageFileManger.recoverMessageIdsFromQueue(queueName1);
+        Assertions.assertEquals(9,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Message expectedMessage=expectedMessages.get(i);
+            Message actualMessage=actualMessages.get(i);
+            Assertions.assertEquals(expectedMessage.getMessageId(),actualMessage.getMessageId());
+            Assertions.assertEquals(expectedMessage.getOffsetBeg(),actualMessage.getOffsetBeg());
+            Assertions.assertEquals(expectedMessage.getOffsetEnd(),actualMessage.getOffsetEnd());
+            Assertions.assertTrue(actualMessage.isBodyOnDisk());
+            Assertions.assertNull(actualMessage.getBody());
+            newMessageFileManger.loadMessageBody(queue,actualMessage);
+            Assertions.assertArrayEquals(expectedMessage.getBody(),actualMessage.getBody());
+        }
+        Assertions.assertEquals(9,newMessageFileManger.getStat(queueName1).validCount.get());
+        Assertions.assertEquals(10,newMessageFileManger.getStat(queueName1).totalCount.get());
+        newMessageFileManger.close();
+    }
+
+    @Test
+    public void testRecoverUncleanStatFromSnapshot() throws IOException, MqException, ClassNotFoundException {
+        // 统计文件没有正常结束（clean 标记为 0）的时候，快照已经覆盖的分段不再扫描，只扫描快照之后的分段
+        messageFileManger.setSegmentSize(2048);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 40; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        messageFileManger.checkpointStats();
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(1));
+        messageFileManger.snapshotIndexes();
+        for (int i = 40; i < 45; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(0));
+        try (RandomAccessFile randomAccessFile=new RandomAccessFile("./data/"+queueName1+"/queue_stat.txt","rw")) {
+            randomAccessFile.seek(8);
+            randomAccessFile.writeByte(0x0);
+        }
+        // 破坏第一个分段中一条有效消息的内容，如果重新扫描了这个分段，就会从这里截断
+        File firstSegment=new File("./data/"+queueName1+"/queue_data_00000000000000000000.txt");
+        long length=firstSegment.length();
+        Message corrupted=expectedMessages.get(0);
+        try (RandomAccessFile randomAccessFile=new RandomAccessFile(firstSegment,"rw")) {
+            randomAccessFile.seek(corrupted.getOffsetEnd()-1);
+            byte b=randomAccessFile.readByte();
+            randomAccessFile.seek(corrupted.getOffsetEnd()-1);
+            randomAccessFile.writeByte(b^0xff);
+        }
+
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        LinkedList<Message> actualMessages=newMessageFileManger.recoverMessagesFromQueue(queueName1);
+        Assertions.assertEquals(length,firstSegment.length());
+        Assertions.assertEquals(expectedMessages.size(),actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+        // 有效消息数是准确的，快照覆盖的分段的总数沿用统计文件中的值，被确认的两条消息也算在总数里
+        Assertions.assertEquals(expectedMessages.size(),newMessageFileManger.getStat(queueName1).validCount.get());
+        Assertions.assertEquals(45,newMessageFileManger.getStat(queueName1).totalCount.get());
+        newMessageFileManger.close();
+    }
+
+    @Test
+    public void testTruncateTornTail() throws IOException, MqException, ClassNotFoundException {
+        // 写入 5条消息，模拟程序崩溃时追加写入了一半的记录，重启之后截断不完整的记录，前面的消息照常恢复
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        File segmentFile=new File("./data/"+queueName1+"/queue_data_00000000000000000000.txt");
+        long length=segmentFile.length();
+        try (DataOutputStream dataOutputStream=new DataOutputStream(new FileOutputStream(segmentFile,true))){
+            dataOutputStream.writeInt(1000);
+            dataOutputStream.writeInt(0);
+            dataOutputStream.writeByte(0x1);
+            dataOutputStream.write(new byte[10]);
+        }
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        LinkedList<Message> actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(5,actualMessages.size());
+        Assertions.assertEquals(length,segmentFile.length());
+        newMessageFileManger.close();
+
+        // 最后一条消息的内容被破坏了（长度完整，但校验和对不上），也要截断
+        Message lastMessage=expectedMessages.remove(4);
+        try (RandomAccessFile randomAccessFile=new RandomAccessFile(segmentFile,"rw")) {
+            randomAccessFile.seek(lastMessage.getOffsetEnd()-1);
+            byte b=randomAccessFile.readByte();
+            randomAccessFile.seek(lastMessage.getOffsetEnd()-1);
+            randomAccessFile.writeByte(b^0xff);
+        }
+        newMessageFileManger=new MessageFileManger();
+        actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(4,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+        }
+        Assertions.assertEquals(lastMessage.getOffsetBeg()-MessageSegment.RECORD_HEADER_SIZE,segmentFile.length());
+        Assertions.assertEquals(4,newMessageFileManger.getStat(queueName1).totalCount.get());
+
+        // 截断之后，可以继续追加写入新的消息
+        Message message=createTestMessage("testMessage5");
+        newMessageFileManger.sendMessage(queue,message);
+        expectedMessages.add(message);
+        newMessageFileManger.close();
+        newMessageFileManger=new MessageFileManger();
+        actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(5,actualMessages.size());
+        Assertions.assertEquals(message.getMessageId(),actualMessages.getLast().getMessageId());
+        newMessageFileManger.close();
+    }
+
+    @Test
+    public void testMmapWriteMode() throws IOException, MqException, ClassNotFoundException {
+        // 内存映射的方式写入，映射的区域很小，写入的过程中会多次重新映射
+        messageFileManger.setWriteMode(WriteMode.MMAP);
+        messageFileManger.setMapRegionSize(1024);
+        MSGQueue queue=createTestQueue(queueName1);
+        List<Message> expectedMessages=new LinkedList<>();
+        for (int i = 0; i < 10; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        messageFileManger.deleteMessage(queue,expectedMessages.remove(0));
+        File segmentFile=new File("./data/"+queueName1+"/queue_data_00000000000000000000.txt");
+        // 还没有关闭的时候，文件末尾是映射出来的还没有写入的部分，正常关闭的时候会被截掉
+        Assertions.assertTrue(segmentFile.length()>expectedMessages.get(8).getOffsetEnd());
+        messageFileManger.close();
+        Assertions.assertEquals(expectedMessages.get(8).getOffsetEnd(),segmentFile.length());
+
+        // 继续写入，然后模拟程序崩溃，没有截掉文件末尾，重启的时候也能正确恢复
+        messageFileManger=new MessageFileManger();
+        messageFileManger.setWriteMode(WriteMode.MMAP);
+        messageFileManger.setMapRegionSize(1024);
+        for (int i = 10; i < 20; i++) {
+            Message message=createTestMessage("testMessage"+i);
+            messageFileManger.sendMessage(queue,message);
+            expectedMessages.add(message);
+        }
+        long endOffset=expectedMessages.get(18).getOffsetEnd();
+        Assertions.assertTrue(segmentFile.length()>endOffset);
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        LinkedList<Message> actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(19,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+            Assertions.assertArrayEquals(expectedMessages.get(i).getBody(),actualMessages.get(i).getBody());
+        }
+        Assertions.assertEquals(endOffset,segmentFile.length());
+        newMessageFileManger.close();
+    }
+
+    @Test
+    public void testMessageCodec() throws IOException, ClassNotFoundException {
+        // 新格式可以区分 null 和空值，并且比 Java 序列化出来的数据短得多
+        Message message=createTestMessage("hello");
+        message.setDeliverMode(2);
+        byte[] payload=MessageCodec.encode(message);
+        Assertions.assertTrue(payload.length<BinaryTool.toBytes(message).length/2);
+        Message actualMessage=MessageCodec.decode(MessageSegment.SEGMENT_VERSION,payload);
+        Assertions.assertEquals(message.getMessageId(),actualMessage.getMessageId());
+        Assertions.assertEquals("testRoutingKey",actualMessage.getRoutingKey());
+        Assertions.assertEquals(2,actualMessage.getDeliverMode());
+        Assertions.assertArrayEquals("hello".getBytes(),actualMessage.getBody());
+
+        message=Message.createMessageWithId(null,null,null);
+        actualMessage=MessageCodec.decode(MessageSegment.SEGMENT_VERSION,MessageCodec.encode(message));
+        Assertions.assertEquals(message.getMessageId(),actualMessage.getMessageId());
+        Assertions.assertNull(actualMessage.getRoutingKey());
+        Assertions.assertNull(actualMessage.getBody());
+        message.setRoutingKey("");
+        message.setBody(new byte[0]);
+        actualMessage=MessageCodec.decode(MessageSegment.SEGMENT_VERSION,MessageCodec.encode(message));
+        Assertions.assertEquals("",actualMessage.getRoutingKey());
+        Assertions.assertArrayEquals(new byte[0],actualMessage.getBody());
+
+        // 不完整的消息本体，解码的时候报错
+        Assertions.assertThrows(IOException.class,() -> MessageCodec.decode(MessageSegment.SEGMENT_VERSION,
+                Arrays.copyOf(payload,payload.length-1)));
+    }
+
+    @Test
+    public void testReadOldSegmentVersion() throws IOException, MqException, ClassNotFoundException {
+        // 构造一个版本 2 的分段（消息本体是 Java 序列化出来的），验证可以正常读取，新消息写到新版本的分段中
+        File segmentFile=new File("./data/"+queueName1+"/queue_data_00000000000000000000.txt");
+        List<Message> expectedMessages=new LinkedList<>();
+        try (DataOutputStream dataOutputStream=new DataOutputStream(new FileOutputStream(segmentFile))){
+            dataOutputStream.writeInt(MessageSegment.SEGMENT_MAGIC);
+            dataOutputStream.writeInt(MessageSegment.SEGMENT_VERSION_V2);
+            for (int i = 0; i < 4; i++) {
+                Message message=createTestMessage("testMessage"+i);
+                MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION_V2,BinaryTool.toBytes(message),(byte) 0x1);
+                expectedMessages.add(message);
+            }
+        }
+        long oldLength=segmentFile.length();
+        MSGQueue queue=createTestQueue(queueName1);
+        MessageFileManger newMessageFileManger=new MessageFileManger();
+        Map<String,Message> memoryMessages=new HashMap<>();
+        newMessageFileManger.setRelocationListener((queueName,messageId,offsetBeg,offsetEnd) -> {
+            Message message=memoryMessages.get(messageId);
+            message.setOffsetBeg(offsetBeg);
+            message.setOffsetEnd(offsetEnd);
+        });
+        LinkedList<Message> actualMessages=newMessageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(4,actualMessages.size());
+        for (int i = 0; i < actualMessages.size(); i++) {
+            Assertions.assertEquals(expectedMessages.get(i).getMessageId(),actualMessages.get(i).getMessageId());
+            Assertions.assertArrayEquals(expectedMessages.get(i).getBody(),actualMessages.get(i).getBody());
+            memoryMessages.put(actualMessages.get(i).getMessageId(),actualMessages.get(i));
+        }
+        Message message=createTestMessage("testMessage4");
+        newMessageFileManger.sendMessage(queue,message);
+        Assertions.assertEquals(oldLength,segmentFile.length());
+        Assertions.assertTrue(new File("./data/"+queueName1+"/queue_data_"+String.format("%020d",oldLength)+".txt").exists());
+
+        // 压缩旧分段的时候，转换成当前版本
+        newMessageFileManger.setCompactThreshold(0.9);
+        newMessageFileManger.deleteMessage(queue,actualMessages.remove(0));
+        newMessageFileManger.deleteMessage(queue,actualMessages.remove(0));
+        newMessageFileManger.gc(queue);
+        Assertions.assertTrue(segmentFile.length()<oldLength);
+        try (DataInputStream dataInputStream=new DataInputStream(new FileInputStream(segmentFile))){
+            Assertions.assertEquals(MessageSegment.SEGMENT_MAGIC,dataInputStream.readInt());
+            Assertions.assertEquals(MessageSegment.SEGMENT_VERSION,dataInputStream.readInt());
+        }
+        actualMessages.add(message);
+        LinkedList<Message> loadedMessages=newMessageFileManger.loadAllMessageFromQueue(queueName1);
+        Assertions.assertEquals(3,loadedMessages.size());
+        for (int i = 0; i < loadedMessages.size(); i++) {
+            Assertions.assertEquals(actualMessages.get(i).getMessageId(),loadedMessages.get(i).getMessageId());
+            Assertions.assertEquals(actualMessages.get(i).getOffsetBeg(),loadedMessages.get(i).getOffsetBeg());
+            Assertions.assertArrayEquals(actualMessages.get(i).getBody(),loadedMessages.get(i).getBody());
+        }
+        newMessageFileManger.close();
+    }
+}
@@ -1,13 +1,24 @@
 package com.example.mq;
 
+import com.example.mq.arguments.BasicArguments;
+import com.example.mq.arguments.BasicPublishArguments;
+import com.example.mq.arguments.QueueDeclareArguments;
 import com.example.mq.common.Consumer;
 import com.example.mq.common.MqException;
+import com.example.mq.common.VirtualThreads;
+import com.example.mq.common.WireCodec;
 import com.example.mq.mqclient.Channel;
 import com.example.mq.mqclient.Connection;
 import com.example.mq.mqclient.ConnectionFactory;
+import com.example.mq.common.ByteBufferOutputStream;
+import com.example.mq.mqserver.AbstractClientConnection;
 import com.example.mq.mqserver.BrokerServer;
+import com.example.mq.mqserver.IoMode;
 import com.example.mq.mqserver.core.BasicProperties;
 import com.example.mq.mqserver.core.ExchangeType;
+import com.example.mq.returns.BasicGetReturns;
+import com.example.mq.returns.BasicReturns;
+import com.example.mq.returns.SubScribeReturns;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.junit.jupiter.api.AfterEach;
@@ -17,8 +28,22 @@ import org.junit.jupiter.api.Test;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 @SpringBootTest
@@ -161,4 +186,443 @@ public class MqClientTests {
         channel.close();
         connection.close();
     }
+
+    @Test
+    public void testWireCodec() throws IOException, ClassNotFoundException {
+        // 二进制编码的请求和响应，解码之后和原来的一样
+        BasicPublishArguments publishArguments=new BasicPublishArguments();
+        publishArguments.setRid("R-1");
+        publishArguments.setChannelId("C-1");
+        publishArguments.setExchangeName("testExchange");
+        publishArguments.setRoutingKey("testQueue");
+        BasicProperties basicProperties=new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        publishArguments.setBasicProperties(basicProperties);
+        publishArguments.setBody("hello".getBytes());
+        byte[] payload=WireCodec.encodeArguments(WireCodec.VERSION,0x9,publishArguments);
+        Assertions.assertEquals(publishArguments,WireCodec.decodeArguments(WireCodec.VERSION,0x9,payload));
+
+        QueueDeclareArguments declareArguments=new QueueDeclareArguments();
+        declareArguments.setRid("R-2");
+        declareArguments.setChannelId("C-1");
+        declareArguments.setQueueName("testQueue");
+        declareArguments.setDurable(true);
+        Map<String,Object> arguments=new HashMap<>();
+        arguments.put("x-queue-mode","lazy");
+        arguments.put("x-max-length",100);
+        arguments.put("x-expires",null);
+        declareArguments.setArguments(arguments);
+        payload=WireCodec.encodeArguments(WireCodec.VERSION,0x5,declareArguments);
+        Assertions.assertEquals(declareArguments,WireCodec.decodeArguments(WireCodec.VERSION,0x5,payload));
+
+        SubScribeReturns subScribeReturns=new SubScribeReturns();
+        subScribeReturns.setRid("");
+        subScribeReturns.setChannelId("C-1");
+        subScribeReturns.setOk(true);
+        subScribeReturns.setConsumerTag("C-1");
+        subScribeReturns.setBody(new byte[0]);
+        payload=WireCodec.encodeReturns(WireCodec.VERSION,subScribeReturns);
+        Assertions.assertEquals(subScribeReturns,WireCodec.decodeReturns(WireCodec.VERSION,0xc,payload));
+        BasicReturns basicReturns=WireCodec.decodeReturns(WireCodec.VERSION,0x9,
+                WireCodec.encodeReturns(WireCodec.VERSION,subScribeReturns));
+        Assertions.assertEquals("C-1",basicReturns.getChannelId());
+        Assertions.assertTrue(basicReturns.isOk());
+
+        // 数据不完整的时候报错
+        byte[] truncated=WireCodec.encodeArguments(WireCodec.VERSION,0x1,new BasicArguments());
+        Assertions.assertThrows(IOException.class,() -> WireCodec.decodeArguments(WireCodec.VERSION,0x9,truncated));
+    }
+
+    @Test
+    public void testLegacyCodecClient() throws IOException, MqException, InterruptedException {
+        // 不协商编码方式的客户端（旧版本的客户端），依然可以正常收发消息
+        factory.setBinaryCodec(false);
+        Connection connection=factory.newConnection();
+        Channel channel=connection.createChannel();
+        Assertions.assertNotNull(channel);
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+        Assertions.assertTrue(channel.basicPublish("testExchange","testQueue",null,"hello".getBytes()));
+
+        CountDownLatch latch=new CountDownLatch(1);
+        AtomicReference<byte[]> received=new AtomicReference<>();
+        Assertions.assertTrue(channel.basicConsume("testQueue",true,new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                received.set(body);
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(latch.await(5,TimeUnit.SECONDS));
+        Assertions.assertArrayEquals("hello".getBytes(),received.get());
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testNioServer() throws IOException, MqException, InterruptedException {
+        // 换成 NIO 模式的服务器，多个连接（包括不协商编码方式的旧客户端）都可以正常收发消息，大消息会被拆成多次读写
+        brokerServer.stop();
+        brokerServer=new BrokerServer(9090, IoMode.NIO);
+        t=new Thread(()-> {
+            try {
+                brokerServer.start();
+            }catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+
+        Connection consumerConnection=factory.newConnection();
+        Channel consumerChannel=consumerConnection.createChannel();
+        Assertions.assertTrue(consumerChannel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(consumerChannel.queueDeclare("testQueue",true,false,false,null));
+
+        Connection producerConnection=factory.newConnection();
+        Channel producerChannel=producerConnection.createChannel();
+        byte[] largeBody=new byte[1024*1024];
+        Arrays.fill(largeBody,(byte) 'a');
+        Assertions.assertTrue(producerChannel.basicPublish("testExchange","testQueue",null,largeBody));
+
+        factory.setBinaryCodec(false);
+        Connection legacyConnection=factory.newConnection();
+        Channel legacyChannel=legacyConnection.createChannel();
+        Assertions.assertTrue(legacyChannel.basicPublish("testExchange","testQueue",null,"hello".getBytes()));
+
+        CountDownLatch latch=new CountDownLatch(2);
+        Map<Integer,byte[]> received=new ConcurrentHashMap<>();
+        Assertions.assertTrue(consumerChannel.basicConsume("testQueue",true,new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                received.put(body.length,body);
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(latch.await(5,TimeUnit.SECONDS));
+        Assertions.assertArrayEquals(largeBody,received.get(largeBody.length));
+        Assertions.assertArrayEquals("hello".getBytes(),received.get(5));
+
+        legacyChannel.close();
+        legacyConnection.close();
+        producerChannel.close();
+        producerConnection.close();
+        consumerChannel.close();
+        consumerConnection.close();
+    }
+
+    @Test
+    public void testVirtualThreads() throws IOException, MqException, InterruptedException {
+        // JDK 21 以上才能创建出虚拟线程的线程池，低版本 JDK 上退化成平台线程池，两种情况下都可以正常收发消息
+        ExecutorService virtualExecutor=VirtualThreads.newVirtualThreadPerTaskExecutor();
+        Assertions.assertEquals(VirtualThreads.isSupported(),virtualExecutor!=null);
+        if(virtualExecutor!=null) {
+            virtualExecutor.shutdown();
+        }
+        System.setProperty("mq.server.virtual-threads","true");
+        try {
+            brokerServer.stop();
+            brokerServer=new BrokerServer(9090);
+            t=new Thread(()-> {
+                try {
+                    brokerServer.start();
+                }catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+
+            Connection connection=factory.newConnection();
+            Channel channel=connection.createChannel();
+            Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+            Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+            Assertions.assertTrue(channel.basicPublish("testExchange","testQueue",null,"hello".getBytes()));
+            CountDownLatch latch=new CountDownLatch(1);
+            AtomicReference<byte[]> received=new AtomicReference<>();
+            Assertions.assertTrue(channel.basicConsume("testQueue",true,new Consumer() {
+                @Override
+                public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                    received.set(body);
+                    latch.countDown();
+                }
+            }));
+            Assertions.assertTrue(latch.await(5,TimeUnit.SECONDS));
+            Assertions.assertArrayEquals("hello".getBytes(),received.get());
+            channel.close();
+            connection.close();
+        } finally {
+            System.clearProperty("mq.server.virtual-threads");
+        }
+    }
+
+    @Test
+    public void testOutboundCoalescing() throws Exception {
+        // 写线程阻塞在 socket 上的时候，其他线程追加的帧不需要等待，写完之后一次全部写出去
+        CountDownLatch firstWriteStarted=new CountDownLatch(1);
+        CountDownLatch releaseFirstWrite=new CountDownLatch(1);
+        List<byte[]> writes=new ArrayList<>();
+        AbstractClientConnection connection=new AbstractClientConnection() {
+            @Override
+            protected boolean writeOut(ByteBufferOutputStream batch) throws IOException {
+                writes.add(batch.toByteArray());
+                if(writes.size()==1) {
+                    firstWriteStarted.countDown();
+                    try {
+                        releaseFirstWrite.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+
+            @Override
+            public String getRemoteAddress() {
+                return "test";
+            }
+        };
+        Thread writer=new Thread(() -> {
+            try {
+                connection.writeFrame(0x1,new byte[]{0});
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        Assertions.assertTrue(firstWriteStarted.await(5,TimeUnit.SECONDS));
+        for (int i = 1; i <= 10; i++) {
+            // 当前有写线程，追加之后直接返回
+            connection.writeFrame(0xc,new byte[]{(byte) i});
+        }
+        Assertions.assertEquals(1,writes.size());
+        releaseFirstWrite.countDown();
+        writer.join(5000);
+        Assertions.assertEquals(2,writes.size());
+        // 第二次写出去的是按顺序排好的 10 个完整的帧
+        DataInputStream dataInputStream=new DataInputStream(new ByteArrayInputStream(writes.get(1)));
+        for (int i = 1; i <= 10; i++) {
+            Assertions.assertEquals(0xc,dataInputStream.readInt());
+            Assertions.assertEquals(1,dataInputStream.readInt());
+            Assertions.assertEquals(i,dataInputStream.readByte());
+        }
+        Assertions.assertEquals(0,dataInputStream.available());
+    }
+
+    @Test
+    public void testAsyncPublish() throws Exception {
+        Connection connection=factory.newConnection();
+        Channel channel=connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+
+        // 一个 channel 上连续发出去很多个请求，不等响应
+        int count=200;
+        List<CompletableFuture<BasicReturns>> futures=new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            futures.add(channel.basicPublishAsync("testExchange","testQueue",null,("hello"+i).getBytes()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10,TimeUnit.SECONDS);
+        for (CompletableFuture<BasicReturns> future:futures) {
+            Assertions.assertTrue(future.get().isOk());
+        }
+        Assertions.assertTrue(channel.getPendingReturns().isEmpty());
+
+        CountDownLatch latch=new CountDownLatch(count);
+        Assertions.assertTrue(channel.basicConsume("testQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(latch.await(10,TimeUnit.SECONDS));
+
+        // 连接关闭之后，还没有收到响应的请求直接失败
+        CompletableFuture<BasicReturns> pending=new CompletableFuture<>();
+        channel.getPendingReturns().put("R-pending",pending);
+        connection.close();
+        Assertions.assertTrue(pending.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testPublishBatch() throws Exception {
+        Connection connection=factory.newConnection();
+        Channel channel=connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+
+        // 一个请求发送 100条消息，其中有一条发往不存在的队列，只有这一条失败
+        List<BasicPublishArguments> entries=new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            BasicPublishArguments entry=new BasicPublishArguments();
+            entry.setExchangeName("testExchange");
+            entry.setRoutingKey(i==50?"notExistQueue":"testQueue");
+            BasicProperties basicProperties=new BasicProperties();
+            basicProperties.setDeliverMode(i%2==0?1:2);
+            entry.setBasicProperties(basicProperties);
+            entry.setBody(("hello"+i).getBytes());
+            entries.add(entry);
+        }
+        boolean[] results=channel.basicPublishBatch(entries);
+        Assertions.assertEquals(100,results.length);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(i!=50,results[i]);
+        }
+
+        List<String> received=new ArrayList<>();
+        CountDownLatch latch=new CountDownLatch(99);
+        Assertions.assertTrue(channel.basicConsume("testQueue", true, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                synchronized (received) {
+                    received.add(new String(body));
+                }
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(latch.await(10,TimeUnit.SECONDS));
+        Assertions.assertEquals(99,received.size());
+        Assertions.assertFalse(received.contains("hello50"));
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testMultipleAck() throws Exception {
+        Connection connection=factory.newConnection();
+        Channel channel=connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+        for (int i = 0; i < 100; i++) {
+            BasicProperties basicProperties=new BasicProperties();
+            basicProperties.setDeliverMode(2);
+            Assertions.assertTrue(channel.basicPublish("testExchange","testQueue",basicProperties,("hello"+i).getBytes()));
+        }
+
+        // 手动应答，记下每条消息的投递标签
+        Map<Long,String> messageIds=new ConcurrentHashMap<>();
+        CountDownLatch latch=new CountDownLatch(100);
+        Assertions.assertTrue(channel.basicConsume("testQueue", false, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+                Assertions.fail("应该调用带投递标签的方法");
+            }
+
+            @Override
+            public void handleDelivery(String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) {
+                messageIds.put(deliveryTag,basicProperties.getMessageId());
+                latch.countDown();
+            }
+        }));
+        Assertions.assertTrue(latch.await(10,TimeUnit.SECONDS));
+        for (long deliveryTag = 1; deliveryTag <= 100; deliveryTag++) {
+            Assertions.assertTrue(messageIds.containsKey(deliveryTag));
+        }
+
+        // 确认前 50条，已经确认过的标签不能再确认
+        Assertions.assertTrue(channel.basicAck(50,true));
+        Assertions.assertFalse(channel.basicAck(30,false));
+        // 单独确认一条
+        Assertions.assertTrue(channel.basicAck(51,false));
+        // 按照 messageId 批量确认一部分，这些消息之后不会再被按照标签确认
+        List<String> batch=new ArrayList<>();
+        for (long deliveryTag = 52; deliveryTag <= 80; deliveryTag++) {
+            batch.add(messageIds.get(deliveryTag));
+        }
+        Assertions.assertTrue(channel.basicAckBatch("testQueue",batch));
+        Assertions.assertFalse(channel.basicAckBatch("testQueue",batch));
+        Assertions.assertFalse(channel.basicAck(80,false));
+        // 剩下的一次全部确认
+        Assertions.assertTrue(channel.basicAck(100,true));
+        Assertions.assertFalse(channel.basicAck(100,true));
+        channel.close();
+        connection.close();
+    }
+
+    @Test
+    public void testBasicQos() throws Exception {
+        Connection connection=factory.newConnection();
+        Channel channel=connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertTrue(channel.basicPublish("testExchange","testQueue",null,("hello"+i).getBytes()));
+        }
+
+        // 额度是 5条，不确认的话只能收到 5条
+        Assertions.assertTrue(channel.basicQos(5,0));
+        List<Long> deliveryTags=Collections.synchronizedList(new ArrayList<>());
+        Assertions.assertTrue(channel.basicConsume("testQueue", false, new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) {
+            }
+
+            @Override
+            public void handleDelivery(String consumerTag, long deliveryTag, BasicProperties basicProperties, byte[] body) {
+                deliveryTags.add(deliveryTag);
+            }
+        }));
+        Thread.sleep(500);
+        Assertions.assertEquals(5,deliveryTags.size());
+
+        // 确认之后归还额度，继续推送
+        Assertions.assertTrue(channel.basicAck(5,true));
+        Thread.sleep(500);
+        Assertions.assertEquals(10,deliveryTags.size());
+
+        // 不限制额度之后，剩下的都推送过来
+        Assertions.assertTrue(channel.basicQos(0,0));
+        Thread.sleep(500);
+        Assertions.assertEquals(20,deliveryTags.size());
+        channel.close();
+        connection.close();
+    }
+
+    // 拉模式消费：一次取走一批消息，队列是空的时候等待消息到达或者超时
+    @Test
+    public void testBasicGet() throws Exception {
+        Connection connection=factory.newConnection();
+        Channel channel=connection.createChannel();
+        Assertions.assertTrue(channel.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        Assertions.assertTrue(channel.queueDeclare("testQueue",true,false,false,null));
+        for (int i = 0; i < 25; i++) {
+            BasicProperties basicProperties=new BasicProperties();
+            basicProperties.setDeliverMode(2);
+            Assertions.assertTrue(channel.basicPublish("testExchange","testQueue",basicProperties,("hello"+i).getBytes()));
+        }
+
+        // 自动应答，按照顺序取走前 10条
+        List<BasicGetReturns.GetMessage> messages=channel.basicGet("testQueue",10,0,true);
+        Assertions.assertEquals(10,messages.size());
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertArrayEquals(("hello"+i).getBytes(),messages.get(i).getBody());
+        }
+        // 手动应答，剩下的 15条一次取完，再按照投递标签一起确认
+        messages=channel.basicGet("testQueue",100,1000,false);
+        Assertions.assertEquals(15,messages.size());
+        Assertions.assertTrue(channel.basicAck(messages.get(14).getDeliveryTag(),true));
+
+        // 队列是空的，等到超时返回空的结果
+        long beg=System.currentTimeMillis();
+        messages=channel.basicGet("testQueue",10,300,true);
+        Assertions.assertTrue(messages.isEmpty());
+        Assertions.assertTrue(System.currentTimeMillis()-beg>=250);
+
+        // 等待期间有消息到达，立即返回；等待的时候不影响这个连接上的其他请求
+        CompletableFuture<BasicReturns> future=channel.basicGetAsync("testQueue",10,5000,true);
+        Assertions.assertTrue(channel.queueDeclare("testQueue2",true,false,false,null));
+        Assertions.assertFalse(future.isDone());
+        Assertions.assertTrue(channel.basicPublish("testExchange","testQueue",null,"late".getBytes()));
+        messages=((BasicGetReturns) future.get(2,TimeUnit.SECONDS)).getMessages();
+        Assertions.assertEquals(1,messages.size());
+        Assertions.assertArrayEquals("late".getBytes(),messages.get(0).getBody());
+
+        // 队列不存在
+        Assertions.assertNull(channel.basicGet("notExistQueue",10,0,true));
+        channel.close();
+        connection.close();
+    }
 }
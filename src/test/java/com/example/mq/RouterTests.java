@@ -4,13 +4,20 @@ import com.example.mq.common.MqException;
 import com.example.mq.mqserver.core.Binding;
 import com.example.mq.mqserver.core.ExchangeType;
 import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.core.RouteCache;
 import com.example.mq.mqserver.core.Router;
+import com.example.mq.mqserver.core.TopicTrie;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 @SpringBootTest
 public class RouterTests {
     private Router router=new Router();
@@ -158,4 +165,72 @@ public class RouterTests {
         message.setRoutingKey("aaa.bbb.ccc");
         Assertions.assertTrue(router.route(ExchangeType.TOPIC,binding,message));
     }
+
+    // 前缀树和上面逐个绑定判定的结果一致，一次找出所有匹配的队列
+    @Test
+    public void testTopicTrie() {
+        String[][] cases={
+                {"aaa","aaa","true"},
+                {"aaa.bbb","aaa.bbb","true"},
+                {"aaa.bbb","aaa.bbb.ccc","false"},
+                {"aaa.bbb","aaa.ccc","false"},
+                {"aaa.bbb.ccc","aaa.bbb.ccc","true"},
+                {"aaa.*","aaa.bbb","true"},
+                {"aaa.*.bbb","aaa.bbb.ccc","false"},
+                {"*.aaa.bbb","aaa.bbb","false"},
+                {"#","aaa.bbb.ccc","true"},
+                {"aaa.#","aaa.bbb","true"},
+                {"aaa.#","aaa.bbb.ccc","true"},
+                {"aaa.#.ccc","aaa.ccc","true"},
+                {"aaa.#.ccc","aaa.bbb.ccc","true"},
+                {"aaa.#.ccc","aaa.aaa.bbb.ccc","true"},
+                {"#.ccc","ccc","true"},
+                {"#.ccc","aaa.bbb.ccc","true"},
+        };
+        TopicTrie topicTrie=new TopicTrie();
+        for (int i = 0; i < cases.length; i++) {
+            topicTrie.add(cases[i][0],"queue"+i);
+        }
+        for (int i = 0; i < cases.length; i++) {
+            Set<String> matched=topicTrie.match(cases[i][1]);
+            Assertions.assertEquals(Boolean.parseBoolean(cases[i][2]),matched.contains("queue"+i),cases[i][0]+" "+cases[i][1]);
+        }
+        // 多个绑定的 bindingKey 相同，或者一个绑定可以通过多条路径匹配，结果中每个队列只出现一次
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("queue8","queue9","queue10","queue11","queue12","queue13","queue14","queue15")),
+                topicTrie.match("aaa.aaa.bbb.ccc"));
+
+        // # 后面的单词在 routingKey 中出现多次的时候，要能匹配到最后一次
+        topicTrie.add("#.aaa.bbb","backtrack");
+        Assertions.assertTrue(topicTrie.match("aaa.aaa.bbb").contains("backtrack"));
+
+        // 解除绑定之后不再匹配，没有用的节点也被删掉
+        for (int i = 0; i < cases.length; i++) {
+            topicTrie.remove(cases[i][0],"queue"+i);
+        }
+        topicTrie.remove("#.aaa.bbb","backtrack");
+        Assertions.assertTrue(topicTrie.match("aaa.bbb.ccc").isEmpty());
+        Assertions.assertTrue(topicTrie.isEmpty());
+    }
+
+    @Test
+    public void testRouteCache() {
+        RouteCache routeCache=new RouteCache(2);
+        routeCache.put("aaa",1,Collections.singletonList("queue1"));
+        Assertions.assertEquals(Collections.singletonList("queue1"),routeCache.get("aaa",1));
+        // 版本号对不上就是没有命中
+        Assertions.assertNull(routeCache.get("aaa",2));
+        // 更旧的版本不会覆盖已经缓存的结果
+        routeCache.put("aaa",2,Collections.singletonList("queue2"));
+        routeCache.put("aaa",1,Collections.singletonList("queue1"));
+        Assertions.assertEquals(Collections.singletonList("queue2"),routeCache.get("aaa",2));
+
+        // 超过容量之后淘汰最久没有用过的 routingKey
+        routeCache.put("bbb",2,Collections.emptyList());
+        Assertions.assertNotNull(routeCache.get("aaa",2));
+        routeCache.put("ccc",2,Collections.emptyList());
+        Assertions.assertEquals(2,routeCache.size());
+        Assertions.assertNull(routeCache.get("bbb",2));
+        Assertions.assertNotNull(routeCache.get("aaa",2));
+        Assertions.assertNotNull(routeCache.get("ccc",2));
+    }
 }
@@ -2,9 +2,14 @@ package com.example.mq;
 
 import com.example.mq.common.Consumer;
 import com.example.mq.common.MqException;
+import com.example.mq.common.MqMetrics;
+import com.example.mq.mqserver.ResourceAlarm;
 import com.example.mq.mqserver.VirtualHost;
 import com.example.mq.mqserver.core.BasicProperties;
 import com.example.mq.mqserver.core.ExchangeType;
+import com.example.mq.mqserver.core.MSGQueue;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.datacenter.MemoryDataCenter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tomcat.util.http.fileupload.FileUtils;
 import org.junit.jupiter.api.AfterEach;
@@ -16,6 +21,15 @@ import org.springframework.boot.test.context.SpringBootTest;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @SpringBootTest
@@ -287,4 +301,293 @@ public class VirtualHostTests {
 
         Thread.sleep(500);
     }
+
+    // 批量确认的时候同一个 messageId 出现了两次，只确认一次，不影响同一个队列中其他的消息
+    @Test
+    public void testBasicAckBatchDuplicate() throws InterruptedException, IOException, MqException, ClassNotFoundException {
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue",true,false,false,null));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        for (int i = 0; i < 2; i++) {
+            BasicProperties basicProperties=new BasicProperties();
+            basicProperties.setDeliverMode(2);
+            Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",basicProperties,"hello".getBytes()));
+        }
+        List<String> received=Collections.synchronizedList(new ArrayList<>());
+        Assertions.assertTrue(virtualHost.basicConsume("testConsumer","testQueue",false,
+                (consumerTag, properties, body) -> received.add(properties.getMessageId())));
+        Thread.sleep(500);
+        Assertions.assertEquals(2,received.size());
+
+        Assertions.assertTrue(virtualHost.basicAckBatch("testQueue",Arrays.asList(received.get(0),received.get(0))));
+        LinkedList<Message> messages=virtualHost.getDiskDataCenter().loadAllMessageFromQueue("defaulttestQueue");
+        Assertions.assertEquals(1,messages.size());
+        Assertions.assertEquals(received.get(1),messages.get(0).getMessageId());
+    }
+
+    // 预取额度：不确认消息的消费者额度用完之后就不再给它投递，剩下的消息都投递给还有额度的消费者
+    @Test
+    public void testBasicQos() throws InterruptedException {
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue",true,false,false,null));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+
+        List<String> slowReceived=Collections.synchronizedList(new ArrayList<>());
+        List<String> fastReceived=Collections.synchronizedList(new ArrayList<>());
+        // 慢消费者从来不确认，最多只能拿到 2条
+        Assertions.assertTrue(virtualHost.basicConsume("slowConsumer","testQueue",false,2,0,
+                (consumerTag, basicProperties, body) -> slowReceived.add(basicProperties.getMessageId())));
+        // 快消费者每次都确认，一次最多 1条未确认
+        Assertions.assertTrue(virtualHost.basicConsume("fastConsumer","testQueue",false,1,0,
+                (consumerTag, basicProperties, body) -> {
+                    fastReceived.add(basicProperties.getMessageId());
+                    virtualHost.basicAck("testQueue",basicProperties.getMessageId());
+                }));
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",null,("hello"+i).getBytes()));
+        }
+        Thread.sleep(1000);
+        Assertions.assertEquals(2,slowReceived.size());
+        Assertions.assertEquals(18,fastReceived.size());
+
+        // 放开慢消费者的额度之后，它还能再拿到消息
+        Assertions.assertTrue(virtualHost.basicQos("slowConsumer",3,0));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",null,"hello".getBytes()));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",null,"hello".getBytes()));
+        Thread.sleep(500);
+        Assertions.assertEquals(3,slowReceived.size());
+        Assertions.assertEquals(19,fastReceived.size());
+    }
+
+    // 惰性队列中的消息投递之前内容还在硬盘上，字节数的额度要按照读出来的消息内容计算
+    @Test
+    public void testBasicQosBytesLazyQueue() throws InterruptedException {
+        Map<String,Object> arguments=new HashMap<>();
+        arguments.put(MSGQueue.QUEUE_MODE_ARGUMENT,MSGQueue.QUEUE_MODE_LAZY);
+        Assertions.assertTrue(virtualHost.queueDeclare("testLazyQueue",true,false,false,arguments));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        for (int i = 0; i < 10; i++) {
+            BasicProperties basicProperties=new BasicProperties();
+            basicProperties.setDeliverMode(2);
+            Assertions.assertTrue(virtualHost.basicPublish("testExchange","testLazyQueue",basicProperties,new byte[100]));
+        }
+
+        // 每条消息 100字节，额度 250字节：投递 3条之后未确认的字节数达到上限
+        List<String> received=Collections.synchronizedList(new ArrayList<>());
+        Assertions.assertTrue(virtualHost.basicConsume("testConsumer","testLazyQueue",false,0,250,
+                (consumerTag, properties, body) -> {
+                    Assertions.assertEquals(100,body.length);
+                    received.add(properties.getMessageId());
+                }));
+        Thread.sleep(500);
+        Assertions.assertEquals(3,received.size());
+
+        // 确认一条之后，又可以再投递一条
+        Assertions.assertTrue(virtualHost.basicAck("testLazyQueue",received.get(0)));
+        Thread.sleep(500);
+        Assertions.assertEquals(4,received.size());
+    }
+
+    // 主题交换机按照绑定的前缀树转发，解除绑定之后不再转发给这个队列
+    @Test
+    public void testTopicPublish() {
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.TOPIC,true,false,null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue1",true,false,false,null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue2",true,false,false,null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue3",true,false,false,null));
+        Assertions.assertTrue(virtualHost.queueBind("testQueue1","testExchange","order.*"));
+        Assertions.assertTrue(virtualHost.queueBind("testQueue2","testExchange","order.#"));
+        Assertions.assertTrue(virtualHost.queueBind("testQueue3","testExchange","#.paid"));
+
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.eu.created",null,"hello".getBytes()));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","user.paid",null,"hello".getBytes()));
+        Assertions.assertEquals(1,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+        Assertions.assertEquals(2,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue2"));
+        Assertions.assertEquals(2,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue3"));
+
+        Assertions.assertTrue(virtualHost.queueUnbind("testQueue2","testExchange"));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertEquals(2,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+        Assertions.assertEquals(2,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue2"));
+        Assertions.assertEquals(3,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue3"));
+    }
+
+    // 转发结果缓存：同一个 routingKey 第二次发布命中缓存，绑定、解除绑定、删除队列之后缓存失效
+    @Test
+    public void testRouteCache() {
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.TOPIC,true,false,null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue1",true,false,false,null));
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue2",true,false,false,null));
+        Assertions.assertTrue(virtualHost.queueBind("testQueue1","testExchange","order.*"));
+        String hit="exchange.defaulttestExchange.route-cache.hit";
+        String miss="exchange.defaulttestExchange.route-cache.miss";
+        String size="exchange.defaulttestExchange.route-cache.size";
+
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertEquals(1,MqMetrics.get(hit));
+        Assertions.assertEquals(1,MqMetrics.get(miss));
+        Assertions.assertEquals(1,MqMetrics.get(size));
+        Assertions.assertEquals(2,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+
+        // 新的绑定之后重新匹配
+        Assertions.assertTrue(virtualHost.queueBind("testQueue2","testExchange","#.paid"));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertEquals(2,MqMetrics.get(miss));
+        Assertions.assertEquals(3,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+        Assertions.assertEquals(1,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue2"));
+
+        // 解除绑定之后不再转发到这个队列
+        Assertions.assertTrue(virtualHost.queueUnbind("testQueue1","testExchange"));
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertEquals(3,MqMetrics.get(miss));
+        Assertions.assertEquals(3,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue1"));
+        Assertions.assertEquals(2,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue2"));
+
+        // 删除绑定着的队列，缓存也要失效
+        long version=virtualHost.getMemoryDataCenter().getBindingVersion("defaulttestExchange");
+        Assertions.assertTrue(virtualHost.queueDelete("testQueue2"));
+        Assertions.assertTrue(virtualHost.getMemoryDataCenter().getBindingVersion("defaulttestExchange")>version);
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","order.paid",null,"hello".getBytes()));
+        Assertions.assertEquals(4,MqMetrics.get(miss));
+        Assertions.assertEquals(1,MqMetrics.get(hit));
+    }
+
+    // 拉模式消费：等待中的 basicGet 由发布消息时的令牌唤醒，惰性队列的消息投递之前从硬盘上读出来
+    @Test
+    public void testBasicGet() throws InterruptedException {
+        Map<String,Object> arguments=new HashMap<>();
+        arguments.put(MSGQueue.QUEUE_MODE_ARGUMENT,MSGQueue.QUEUE_MODE_LAZY);
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue",true,false,false,arguments));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+
+        List<List<byte[]>> results=Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch=new CountDownLatch(1);
+        Assertions.assertTrue(virtualHost.basicGet("testQueue",5,5000,true,messages -> {
+            List<byte[]> bodies=new ArrayList<>();
+            for (Message message:messages) {
+                bodies.add(message.getBody());
+            }
+            results.add(bodies);
+            latch.countDown();
+        }));
+        Thread.sleep(100);
+        Assertions.assertTrue(results.isEmpty());
+
+        BasicProperties basicProperties=new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",basicProperties,"hello".getBytes()));
+        Assertions.assertTrue(latch.await(2,TimeUnit.SECONDS));
+        Assertions.assertEquals(1,results.get(0).size());
+        Assertions.assertArrayEquals("hello".getBytes(),results.get(0).get(0));
+        Assertions.assertEquals(0,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue"));
+
+        // 参数错误、队列不存在
+        Assertions.assertFalse(virtualHost.basicGet("testQueue",0,0,true,messages -> {}));
+        Assertions.assertFalse(virtualHost.basicGet("notExistQueue",1,0,true,messages -> {}));
+    }
+
+    // 内存超过高水位之后阻塞发布者，消息被消费掉、降到低水位以下之后解除
+    @Test
+    public void testResourceAlarm() throws InterruptedException {
+        Assertions.assertTrue(virtualHost.queueDeclare("testQueue",true,false,false,null));
+        Assertions.assertTrue(virtualHost.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null));
+        long messageBytes=MemoryDataCenter.MESSAGE_OVERHEAD_BYTES+100;
+        ResourceAlarm alarm=new ResourceAlarm(virtualHost.getMemoryDataCenter()::getMessageBytes,
+                messageBytes*8,messageBytes*2,null,0);
+        // 第一个监听者卡住（比如给一个不读数据的客户端写通知），不能影响告警本身和发布者
+        CountDownLatch stuck=new CountDownLatch(1);
+        alarm.addListener(blocked -> {
+            try {
+                stuck.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<Boolean> changes=Collections.synchronizedList(new ArrayList<>());
+        alarm.addListener(changes::add);
+
+        // 两个水位之间不触发告警
+        for (int i = 0; i < 7; i++) {
+            Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",null,new byte[100]));
+            alarm.checkMemory();
+        }
+        Assertions.assertFalse(alarm.isBlocked());
+        Assertions.assertTrue(virtualHost.basicPublish("testExchange","testQueue",null,new byte[100]));
+        alarm.checkMemory();
+        Assertions.assertTrue(alarm.isBlocked());
+        Assertions.assertEquals(1L,MqMetrics.snapshot().get("server.memory.blocked"));
+
+        // 发布者在告警期间一直等待
+        Thread publisher=new Thread(alarm::awaitUnblocked);
+        publisher.start();
+        publisher.join(200);
+        Assertions.assertTrue(publisher.isAlive());
+
+        // 消费掉 5条之后还在低水位之上，告警不解除
+        List<String> received=Collections.synchronizedList(new ArrayList<>());
+        Assertions.assertTrue(virtualHost.basicConsume("testConsumer","testQueue",false,
+                (consumerTag, basicProperties, body) -> received.add(basicProperties.getMessageId())));
+        Thread.sleep(500);
+        Assertions.assertEquals(8,received.size());
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertTrue(virtualHost.basicAck("testQueue",received.get(i)));
+        }
+        alarm.checkMemory();
+        Assertions.assertTrue(alarm.isBlocked());
+
+        Assertions.assertTrue(virtualHost.basicAck("testQueue",received.get(5)));
+        alarm.checkMemory();
+        Assertions.assertFalse(alarm.isBlocked());
+        publisher.join(1000);
+        Assertions.assertFalse(publisher.isAlive());
+        Assertions.assertEquals(0L,MqMetrics.snapshot().get("server.memory.blocked"));
+        // 监听者恢复之后，按照状态变化的顺序收到通知
+        Assertions.assertTrue(changes.isEmpty());
+        stuck.countDown();
+        for (int i = 0; i < 100&&changes.size()<2; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(Arrays.asList(true,false),changes);
+        alarm.close();
+    }
+
+    // 惰性队列：持久化消息在内存中只保留 messageId，投递的时候再从硬盘上读出消息内容
+    @Test
+    public void testBasicConsumeLazyQueue() throws InterruptedException {
+        Map<String,Object> arguments=new HashMap<>();
+        arguments.put(MSGQueue.QUEUE_MODE_ARGUMENT,MSGQueue.QUEUE_MODE_LAZY);
+        boolean ok=virtualHost.queueDeclare("testQueue",true,false,false,arguments);
+        Assertions.assertTrue(ok);
+        ok=virtualHost.exchangeDeclare("testExchange",ExchangeType.DIRECT,true,false,null);
+        Assertions.assertTrue(ok);
+
+        BasicProperties basicProperties=new BasicProperties();
+        basicProperties.setDeliverMode(2);
+        ok=virtualHost.basicPublish("testExchange","testQueue",basicProperties,"hello".getBytes());
+        Assertions.assertTrue(ok);
+        Assertions.assertEquals(1,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue"));
+
+        List<byte[]> bodies=new ArrayList<>();
+        ok=virtualHost.basicConsume("testConsumerTag","testQueue",false,new Consumer() {
+            @Override
+            public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws MqException, IOException {
+                Message message=virtualHost.getMemoryDataCenter().getMessage(basicProperties.getMessageId());
+                Assertions.assertNotNull(message);
+                Assertions.assertEquals(2,basicProperties.getDeliverMode());
+                synchronized (bodies) {
+                    bodies.add(body);
+                }
+                boolean ok=virtualHost.basicAck("testQueue",basicProperties.getMessageId());
+                Assertions.assertTrue(ok);
+            }
+        });
+        Assertions.assertTrue(ok);
+
+        Thread.sleep(500);
+        synchronized (bodies) {
+            Assertions.assertEquals(1,bodies.size());
+            Assertions.assertArrayEquals("hello".getBytes(),bodies.get(0));
+        }
+        Assertions.assertEquals(0,virtualHost.getMemoryDataCenter().getMessageCount("defaulttestQueue"));
+    }
 }
@@ -0,0 +1,91 @@
+package com.example.mq.benchmark;
+
+import com.example.mq.common.BinaryTool;
+import com.example.mq.mqserver.core.MSGQueue;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.datacenter.FlushPolicy;
+import com.example.mq.mqserver.datacenter.MessageFileManger;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 持久化消息确认（deleteMessage）的耗时测试，直接运行 main 方法即可，不会被单元测试执行
+ * 对比两种做法在不同消息体大小下，每次确认的平均耗时：
+ * 1. 旧的做法：把整条消息读出来，反序列化，修改 isValid，再序列化写回去
+ * 2. 现在的做法：只改写记录头中的一个字节的有效标记
+ * 旧的做法耗时会随着消息体变大而增长，现在的做法应该基本不变
+ */
+public class AckBenchmark {
+    private static final String QUEUE_NAME="benchmarkAckQueue";
+    private static final int[] BODY_SIZES={128,4*1024,64*1024,512*1024};
+    private static final int MESSAGE_COUNT=2000;
+    private static final int WARMUP_ROUNDS=2;
+    private static final long SEGMENT_SIZE=256L*1024*1024;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%10s %18s %18s","bodySize","rewrite(us/op)","tombstone(us/op)"));
+        for (int bodySize:BODY_SIZES) {
+            // 消息体越大，写入的数据越多，适当减少消息个数，保证所有消息都在同一个分段中
+            int count=Math.max(100,Math.min(MESSAGE_COUNT,(int) (SEGMENT_SIZE/2/bodySize)));
+            double rewrite=0;
+            double tombstone=0;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                rewrite=run(bodySize,count,true);
+                tombstone=run(bodySize,count,false);
+            }
+            System.out.println(String.format("%10d %18.2f %18.2f",bodySize,rewrite,tombstone));
+        }
+    }
+
+    // 写入 count 条消息，再逐条确认，返回平均每次确认的耗时（微秒）
+    private static double run(int bodySize,int count,boolean rewrite) throws Exception {
+        MessageFileManger messageFileManger=new MessageFileManger();
+        messageFileManger.setFlushPolicy(FlushPolicy.OS);
+        messageFileManger.setSegmentSize(SEGMENT_SIZE);
+        MSGQueue queue=new MSGQueue();
+        queue.setName(QUEUE_NAME);
+        queue.setDurable(true);
+        messageFileManger.createQueueFiles(QUEUE_NAME);
+        try {
+            List<Message> messages=new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Message message=Message.createMessageWithId("benchmark",null,new byte[bodySize]);
+                messageFileManger.sendMessage(queue,message);
+                messages.add(message);
+            }
+            File segmentFile=new File("./data/"+QUEUE_NAME+"/queue_data_00000000000000000000.txt");
+            long beg=System.nanoTime();
+            if(rewrite) {
+                try (RandomAccessFile randomAccessFile=new RandomAccessFile(segmentFile,"rw")) {
+                    for (Message message:messages) {
+                        rewriteAck(randomAccessFile,message);
+                    }
+                }
+            } else {
+                for (Message message:messages) {
+                    messageFileManger.deleteMessage(queue,message);
+                }
+            }
+            long end=System.nanoTime();
+            return (end-beg)/1000.0/count;
+        } finally {
+            messageFileManger.close();
+            messageFileManger.destroyQueueFiles(QUEUE_NAME);
+        }
+    }
+
+    // 旧的确认方式：读出整条消息，反序列化，修改 isValid，再序列化之后写回去
+    private static void rewriteAck(RandomAccessFile randomAccessFile,Message message) throws Exception {
+        byte[] bufferSrc=new byte[(int) (message.getOffsetEnd()-message.getOffsetBeg())];
+        randomAccessFile.seek(message.getOffsetBeg());
+        randomAccessFile.readFully(bufferSrc);
+        Message diskMessage=(Message) BinaryTool.fromBytes(bufferSrc);
+        diskMessage.setIsValid((byte) 0x0);
+        byte[] bufferDest=BinaryTool.toBytes(diskMessage);
+        randomAccessFile.seek(message.getOffsetBeg());
+        randomAccessFile.write(bufferDest);
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.mq.benchmark;
+
+import com.example.mq.arguments.BasicPublishArguments;
+import com.example.mq.common.BinaryTool;
+import com.example.mq.common.ByteBufferOutputStream;
+import com.example.mq.common.WireCodec;
+import com.example.mq.mqserver.core.BasicProperties;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.datacenter.MessageCodec;
+import com.example.mq.mqserver.datacenter.MessageSegment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/*
+ * 编码路径上每次操作分配的内存（字节），直接运行 main 方法即可，不会被单元测试执行
+ * 通过 com.sun.management.ThreadMXBean 统计当前线程分配的字节数，对比复用缓冲区之前（before）和之后（after）：
+ * 1. serialize：BinaryTool.toBytes，之前每次都 new 一个 ByteArrayOutputStream，toByteArray 的时候再复制一次
+ * 2. frame：客户端发送一个 0x9 请求，之前先编码出 payload 再分三次写帧头和 payload，现在直接编码到复用的缓冲区中一次写出
+ * 3. journal：journal 写线程把一批 32条记录攒起来写入分段，之前是 ByteArrayOutputStream + toByteArray，现在直接包装复用的缓冲区
+ */
+public class AllocationBenchmark {
+    private static final int[] BODY_SIZES={16,1024,16*1024};
+    private static final int COUNT=100000;
+    private static final int BATCH_SIZE=32;
+
+    // 丢弃所有数据，只用来测量编码本身
+    private static final OutputStream NULL_OUTPUT=new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b,int off,int len) {
+        }
+    };
+
+    private interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%10s %18s %18s %18s %18s %18s %18s","bodySize",
+                "serialize before","serialize after","frame before","frame after","journal before","journal after"));
+        for (int bodySize:BODY_SIZES) {
+            BasicPublishArguments arguments=createPublishArguments(bodySize);
+            byte[] record=MessageCodec.encode(Message.createMessageWithId("benchmarkQueue",null,new byte[bodySize]));
+            double serializeBefore=measure(() -> serializeBefore(arguments));
+            double serializeAfter=measure(() -> BinaryTool.toBytes(arguments));
+            double frameBefore=measure(() -> frameBefore(arguments));
+            double frameAfter=measure(() -> WireCodec.writeRequestFrame(NULL_OUTPUT,WireCodec.VERSION,0x9,arguments));
+            double journalBefore=measure(() -> journalBefore(record))/BATCH_SIZE;
+            double journalAfter=measure(() -> journalAfter(record))/BATCH_SIZE;
+            System.out.println(String.format("%10d %18.0f %18.0f %18.0f %18.0f %18.0f %18.0f",bodySize,
+                    serializeBefore,serializeAfter,frameBefore,frameAfter,journalBefore,journalAfter));
+        }
+    }
+
+    // 返回每次操作平均分配的字节数，先预热一轮
+    private static double measure(Op op) throws Exception {
+        com.sun.management.ThreadMXBean threadMXBean=(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId=Thread.currentThread().getId();
+        for (int i = 0; i < COUNT; i++) {
+            op.run();
+        }
+        long beg=threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < COUNT; i++) {
+            op.run();
+        }
+        long end=threadMXBean.getThreadAllocatedBytes(threadId);
+        return (double) (end-beg)/COUNT;
+    }
+
+    private static BasicPublishArguments createPublishArguments(int bodySize) {
+        BasicPublishArguments arguments=new BasicPublishArguments();
+        arguments.setRid("R-d5b8a7b4-5c2e-4c43-a3a8-1e0f3c3c2a11");
+        arguments.setChannelId("C-6c4b1d2e-0d8f-4b6e-9a57-2b0c7f5e9d33");
+        arguments.setExchangeName("benchmarkExchange");
+        arguments.setRoutingKey("benchmarkQueue");
+        arguments.setBasicProperties(new BasicProperties());
+        arguments.setBody(new byte[bodySize]);
+        return arguments;
+    }
+
+    // 之前的 BinaryTool.toBytes
+    private static byte[] serializeBefore(Object object) throws IOException {
+        try (ByteArrayOutputStream byteArrayOutputStream=new ByteArrayOutputStream()){
+            try (ObjectOutputStream objectOutputStream=new ObjectOutputStream(byteArrayOutputStream)){
+                objectOutputStream.writeObject(object);
+            }
+            return byteArrayOutputStream.toByteArray();
+        }
+    }
+
+    // 之前的发送请求：先编码出 payload，再分别写 type、length、payload
+    private static void frameBefore(BasicPublishArguments arguments) throws IOException {
+        byte[] payload=WireCodec.encodeArguments(WireCodec.VERSION,0x9,arguments);
+        DataOutputStream dataOutputStream=new DataOutputStream(NULL_OUTPUT);
+        dataOutputStream.writeInt(0x9);
+        dataOutputStream.writeInt(payload.length);
+        dataOutputStream.write(payload);
+        dataOutputStream.flush();
+    }
+
+    private static ByteBuffer journalBefore(byte[] record) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream=new ByteArrayOutputStream();
+        DataOutputStream dataOutputStream=new DataOutputStream(byteArrayOutputStream);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION,record,(byte) 0x1);
+        }
+        return ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+    }
+
+    private static ByteBuffer journalAfter(byte[] record) throws IOException {
+        ByteBufferOutputStream buffer=BinaryTool.acquireBuffer();
+        try {
+            DataOutputStream dataOutputStream=new DataOutputStream(buffer);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                MessageSegment.writeRecord(dataOutputStream,MessageSegment.SEGMENT_VERSION,record,(byte) 0x1);
+            }
+            return buffer.toByteBuffer();
+        } finally {
+            BinaryTool.releaseBuffer(buffer);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.mq.benchmark;
+
+import com.example.mq.mqserver.core.MSGQueue;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.datacenter.FlushPolicy;
+import com.example.mq.mqserver.datacenter.MessageFileManger;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * 服务器重启时恢复消息的耗时测试，直接运行 main 方法即可，不会被单元测试执行
+ * 对比两种恢复方式：
+ * 1. 扫描全部的消息，每条消息都反序列化一遍（loadAllMessageFromQueue）
+ * 2. 根据索引快照恢复，只回放快照之后写入的消息（recoverMessagesFromQueue）
+ * 参数是要测试的消息个数，用逗号隔开，默认是 1000000,10000000
+ * 快照之后还会再写入 1% 的消息，模拟快照之后、重启之前写入的那一部分数据
+ */
+public class RecoveryBenchmark {
+    private static final String QUEUE_NAME="benchmarkRecoveryQueue";
+    private static final int BODY_SIZE=128;
+    private static final int PRODUCER_COUNT=8;
+
+    public static void main(String[] args) throws Exception {
+        String counts=args.length>0?args[0]:"1000000,10000000";
+        System.out.println(String.format("%12s %16s %16s","messages","fullScan(ms)","snapshot(ms)"));
+        for (String count:counts.split(",")) {
+            run(Integer.parseInt(count.trim()));
+        }
+    }
+
+    private static void run(int count) throws Exception {
+        MSGQueue queue=new MSGQueue();
+        queue.setName(QUEUE_NAME);
+        queue.setDurable(true);
+        MessageFileManger writer=new MessageFileManger();
+        writer.setFlushPolicy(FlushPolicy.OS);
+        writer.createQueueFiles(QUEUE_NAME);
+        try {
+            int tailCount=count/100;
+            send(writer,queue,count-tailCount);
+            writer.snapshotIndexes();
+            send(writer,queue,tailCount);
+            writer.close();
+
+            // 先测试根据快照恢复，根据快照恢复之后关闭时会重新做快照，但不影响后面的全量扫描
+            MessageFileManger snapshot=new MessageFileManger();
+            long beg=System.nanoTime();
+            LinkedList<Message> messages=snapshot.recoverMessagesFromQueue(QUEUE_NAME);
+            long snapshotMs=(System.nanoTime()-beg)/1000000;
+            check(messages,count);
+            messages=null;
+            snapshot.close();
+
+            MessageFileManger fullScan=new MessageFileManger();
+            beg=System.nanoTime();
+            messages=fullScan.loadAllMessageFromQueue(QUEUE_NAME);
+            long fullScanMs=(System.nanoTime()-beg)/1000000;
+            check(messages,count);
+            messages=null;
+            fullScan.close();
+
+            System.out.println(String.format("%12d %16d %16d",count,fullScanMs,snapshotMs));
+        } finally {
+            writer.destroyQueueFiles(QUEUE_NAME);
+        }
+    }
+
+    // 多个生产者并发写入，让 journal 写线程可以批量写入
+    private static void send(MessageFileManger messageFileManger,MSGQueue queue,int count) throws InterruptedException {
+        AtomicInteger remain=new AtomicInteger(count);
+        List<Thread> threads=new ArrayList<>();
+        for (int i = 0; i < PRODUCER_COUNT; i++) {
+            Thread thread=new Thread(() -> {
+                try {
+                    while (remain.getAndDecrement()>0) {
+                        Message message=Message.createMessageWithId("benchmark",null,new byte[BODY_SIZE]);
+                        message.setDeliverMode(2);
+                        messageFileManger.sendMessage(queue,message);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread:threads) {
+            thread.join();
+        }
+    }
+
+    private static void check(LinkedList<Message> messages,int count) {
+        if(messages.size()!=count) {
+            throw new IllegalStateException("恢复出来的消息个数不对！expected="+count+", actual="+messages.size());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.mq.benchmark;
+
+import com.example.mq.mqserver.core.Binding;
+import com.example.mq.mqserver.core.ExchangeType;
+import com.example.mq.mqserver.core.Message;
+import com.example.mq.mqserver.core.Router;
+import com.example.mq.mqserver.core.TopicTrie;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 主题交换机转发的耗时测试，直接运行 main 方法即可，不会被单元测试执行
+ * 对比在不同的绑定个数下，找出一条消息要转发到的所有队列的平均耗时：
+ * 1. 旧的做法：遍历交换机的所有绑定，每个绑定都用 Router.route 切分、匹配一次
+ * 2. 现在的做法：沿着 routingKey 在绑定的前缀树上走一遍
+ * 旧的做法耗时和绑定个数成正比，现在的做法基本只和 routingKey 的长度有关
+ */
+public class TopicRouteBenchmark {
+    private static final int[] BINDING_COUNTS={100,2000,20000};
+    private static final int ROUTE_COUNT=20000;
+    private static final int WARMUP_ROUNDS=2;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%10s %18s %18s","bindings","scan(us/op)","trie(us/op)"));
+        for (int bindingCount:BINDING_COUNTS) {
+            List<Binding> bindings=createBindings(bindingCount);
+            TopicTrie topicTrie=new TopicTrie();
+            for (Binding binding:bindings) {
+                topicTrie.add(binding.getBindingKey(),binding.getQueueName());
+            }
+            // 旧的做法太慢，绑定多的时候少转发几次
+            int scanCount=Math.max(100,ROUTE_COUNT*100/bindingCount);
+            double scan=0;
+            double trie=0;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                scan=runScan(bindings,scanCount);
+                trie=runTrie(topicTrie,ROUTE_COUNT);
+            }
+            System.out.println(String.format("%10d %18.2f %18.2f",bindingCount,scan,trie));
+        }
+    }
+
+    // 模拟 服务.地区.事件 这样的 bindingKey，其中一部分带通配符
+    private static List<Binding> createBindings(int count) {
+        List<Binding> bindings=new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Binding binding=new Binding();
+            binding.setQueueName("queue"+i);
+            switch (i%4) {
+                case 0:
+                    binding.setBindingKey("service"+i+".region"+(i%10)+".created");
+                    break;
+                case 1:
+                    binding.setBindingKey("service"+i+".*.updated");
+                    break;
+                case 2:
+                    binding.setBindingKey("service"+i+".#");
+                    break;
+                default:
+                    binding.setBindingKey("*.region"+(i%10)+".event"+i);
+                    break;
+            }
+            bindings.add(binding);
+        }
+        return bindings;
+    }
+
+    private static String routingKey(int i) {
+        return "service"+(i%1000)+".region"+(i%10)+".created";
+    }
+
+    private static double runScan(List<Binding> bindings,int count) throws Exception {
+        Router router=new Router();
+        Message message=new Message();
+        long matched=0;
+        long beg=System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            message.setRoutingKey(routingKey(i));
+            for (Binding binding:bindings) {
+                if(router.route(ExchangeType.TOPIC,binding,message)) {
+                    matched++;
+                }
+            }
+        }
+        long cost=System.nanoTime()-beg;
+        if(matched<0) {
+            System.out.println(matched);
+        }
+        return cost/1000.0/count;
+    }
+
+    private static double runTrie(TopicTrie topicTrie,int count) {
+        long matched=0;
+        long beg=System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            matched+=topicTrie.match(routingKey(i)).size();
+        }
+        long cost=System.nanoTime()-beg;
+        if(matched<0) {
+            System.out.println(matched);
+        }
+        return cost/1000.0/count;
+    }
+}
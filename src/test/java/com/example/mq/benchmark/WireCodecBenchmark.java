@@ -0,0 +1,82 @@
+package com.example.mq.benchmark;
+
+import com.example.mq.arguments.BasicPublishArguments;
+import com.example.mq.common.WireCodec;
+import com.example.mq.mqserver.core.BasicProperties;
+import com.example.mq.returns.SubScribeReturns;
+
+/*
+ * 网络通信中 payload 编解码的耗时测试，直接运行 main 方法即可，不会被单元测试执行
+ * 对比 Java 标准库序列化（旧版本的客户端）和二进制编码，在不同消息体大小下：
+ * 1. 发送消息的请求（0x9）编码 + 解码一次的平均耗时，以及编码之后的长度
+ * 2. 推送消息的响应（0xc）编码 + 解码一次的平均耗时
+ */
+public class WireCodecBenchmark {
+    private static final int[] BODY_SIZES={16,256,4*1024};
+    private static final int COUNT=200000;
+    private static final int WARMUP_ROUNDS=2;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%10s %14s %14s %18s %18s %18s %18s","bodySize","java(bytes)","binary(bytes)",
+                "java publish(ns)","binary publish(ns)","java deliver(ns)","binary deliver(ns)"));
+        for (int bodySize:BODY_SIZES) {
+            BasicPublishArguments arguments=createPublishArguments(bodySize);
+            SubScribeReturns returns=createSubScribeReturns(bodySize);
+            double[] java=null;
+            double[] binary=null;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                java=run(WireCodec.VERSION_SERIALIZABLE,arguments,returns);
+                binary=run(WireCodec.VERSION,arguments,returns);
+            }
+            System.out.println(String.format("%10d %14d %14d %18.0f %18.0f %18.0f %18.0f",bodySize,
+                    WireCodec.encodeArguments(WireCodec.VERSION_SERIALIZABLE,0x9,arguments).length,
+                    WireCodec.encodeArguments(WireCodec.VERSION,0x9,arguments).length,
+                    java[0],binary[0],java[1],binary[1]));
+        }
+    }
+
+    private static BasicPublishArguments createPublishArguments(int bodySize) {
+        BasicPublishArguments arguments=new BasicPublishArguments();
+        arguments.setRid("R-d5b8a7b4-5c2e-4c43-a3a8-1e0f3c3c2a11");
+        arguments.setChannelId("C-6c4b1d2e-0d8f-4b6e-9a57-2b0c7f5e9d33");
+        arguments.setExchangeName("benchmarkExchange");
+        arguments.setRoutingKey("benchmarkQueue");
+        arguments.setBasicProperties(new BasicProperties());
+        arguments.setBody(new byte[bodySize]);
+        return arguments;
+    }
+
+    private static SubScribeReturns createSubScribeReturns(int bodySize) {
+        SubScribeReturns returns=new SubScribeReturns();
+        returns.setRid("");
+        returns.setChannelId("C-6c4b1d2e-0d8f-4b6e-9a57-2b0c7f5e9d33");
+        returns.setOk(true);
+        returns.setConsumerTag("C-6c4b1d2e-0d8f-4b6e-9a57-2b0c7f5e9d33");
+        BasicProperties basicProperties=new BasicProperties();
+        basicProperties.setMessageId("M-0b0e3a0c-1b7e-4f7a-8d38-6a4a5d0f7e21");
+        basicProperties.setRoutingKey("benchmarkQueue");
+        returns.setBasicProperties(basicProperties);
+        returns.setBody(new byte[bodySize]);
+        return returns;
+    }
+
+    // 返回 {发送消息的请求编解码一次的耗时, 推送消息的响应编解码一次的耗时}，单位纳秒
+    private static double[] run(int version,BasicPublishArguments arguments,SubScribeReturns returns) throws Exception {
+        long beg=System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            byte[] payload=WireCodec.encodeArguments(version,0x9,arguments);
+            if(WireCodec.decodeArguments(version,0x9,payload)==null) {
+                throw new IllegalStateException("解码失败！");
+            }
+        }
+        long mid=System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            byte[] payload=WireCodec.encodeReturns(version,returns);
+            if(WireCodec.decodeReturns(version,0xc,payload)==null) {
+                throw new IllegalStateException("解码失败！");
+            }
+        }
+        long end=System.nanoTime();
+        return new double[]{(double) (mid-beg)/COUNT,(double) (end-mid)/COUNT};
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.mq.benchmark;
+
+import com.example.mq.mqserver.datacenter.MessageFileManger;
+import com.example.mq.mqserver.datacenter.MessageSegment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * 追加写入分段文件的耗时测试，直接运行 main 方法即可，不会被单元测试执行
+ * 对比三种写入方式在不同消息体大小下，每条记录的平均写入耗时（都不刷盘，只比较写入本身的开销）：
+ * 1. stream：最早的做法，每次写入都打开一个 FileOutputStream，写完再关闭
+ * 2. channel：通过缓存的文件通道 write（WriteMode.CHANNEL）
+ * 3. mmap：写到预先映射的内存区域中（WriteMode.MMAP）
+ * 参数是每种大小写入的总字节数（MB），默认 256
+ */
+public class WriteModeBenchmark {
+    private static final int[] BODY_SIZES={256,4*1024,64*1024};
+    private static final int WARMUP_ROUNDS=2;
+
+    public static void main(String[] args) throws Exception {
+        long totalBytes=(args.length>0?Long.parseLong(args[0]):256)*1024*1024;
+        File dir=new File("./data/benchmarkWriteMode");
+        if(!dir.exists()&&!dir.mkdirs()) {
+            throw new IOException("创建目录失败！ dir="+dir.getAbsolutePath());
+        }
+        System.out.println(String.format("%10s %16s %16s %16s","bodySize","stream(us/op)","channel(us/op)","mmap(us/op)"));
+        try {
+            for (int bodySize:BODY_SIZES) {
+                byte[] record=createRecord(bodySize);
+                int count=(int) Math.max(1000,totalBytes/record.length);
+                double stream=0;
+                double channel=0;
+                double mmap=0;
+                for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                    stream=runStream(new File(dir,"stream.txt"),record,count);
+                    channel=runSegment(new File(dir,"channel.txt"),record,count,0);
+                    mmap=runSegment(new File(dir,"mmap.txt"),record,count,MessageFileManger.DEFAULT_MAP_REGION_SIZE);
+                }
+                System.out.println(String.format("%10d %16.2f %16.2f %16.2f",bodySize,stream,channel,mmap));
+            }
+        } finally {
+            File[] files=dir.listFiles();
+            if(files!=null) {
+                for (File file:files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static byte[] createRecord(int bodySize) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream=new ByteArrayOutputStream();
+        MessageSegment.writeRecord(new DataOutputStream(byteArrayOutputStream),MessageSegment.SEGMENT_VERSION,
+                new byte[bodySize],(byte) 0x1);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    // 每条记录都打开文件、写入、关闭，写入位置通过 File.length() 获取
+    private static double runStream(File file,byte[] record,int count) throws IOException {
+        file.delete();
+        long beg=System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long offset=file.length();
+            try (FileOutputStream outputStream=new FileOutputStream(file,true)) {
+                outputStream.write(record);
+            }
+            if(file.length()!=offset+record.length) {
+                throw new IllegalStateException("写入的长度不对！");
+            }
+        }
+        long end=System.nanoTime();
+        file.delete();
+        return (end-beg)/1000.0/count;
+    }
+
+    private static double runSegment(File file,byte[] record,int count,long mapRegionSize) throws IOException {
+        file.delete();
+        MessageSegment segment=MessageSegment.create(0,file);
+        segment.setMapRegionSize(mapRegionSize);
+        long beg=System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            segment.append(ByteBuffer.wrap(record));
+        }
+        long end=System.nanoTime();
+        segment.closeChannel();
+        if(file.length()!=MessageSegment.HEADER_SIZE+(long) record.length*count) {
+            throw new IllegalStateException("写入的长度不对！");
+        }
+        file.delete();
+        return (end-beg)/1000.0/count;
+    }
+}